@@ -0,0 +1,257 @@
+/**
+ * Copyright (c) 2011-2014, OpenIoT
+ *
+ * This file is part of OpenIoT.
+ *
+ * OpenIoT is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * OpenIoT is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with OpenIoT. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contact: OpenIoT mailto: info@openiot.eu
+ */
+package org.openiot.cupus.entity.broker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.openiot.cupus.artefact.ActiveAnnouncement;
+import org.openiot.cupus.artefact.ActiveSubscription;
+import org.openiot.cupus.artefact.MemorySubscription;
+import org.openiot.cupus.artefact.Subscription;
+import org.openiot.cupus.artefact.TripletAnnouncement;
+import org.openiot.cupus.artefact.TripletSubscription;
+import org.openiot.cupus.artefact.TripletTopKWSubscription;
+import org.openiot.cupus.common.Triplet;
+
+/**
+ * The active announcements of the mobile brokers, indexed by the attributes
+ * they announce. A triplet announcement only covers subscriptions whose
+ * attributes it all announces, so the candidates for a subscription are the
+ * announcements of its least announced attribute, checked with
+ * Announcement.coversSubscription.
+ *
+ * Like the ActivePublicationStore, announcements are evicted in expiry order
+ * and matching only takes a read lock.
+ */
+class ActiveAnnouncementStore {
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Map<ActiveAnnouncement, ActiveAnnouncement> announcements = new HashMap<ActiveAnnouncement, ActiveAnnouncement>();
+    private final Map<String, Set<ActiveAnnouncement>> byAttribute = new HashMap<String, Set<ActiveAnnouncement>>();
+    private final TreeMap<Long, Set<ActiveAnnouncement>> expiry = new TreeMap<Long, Set<ActiveAnnouncement>>();
+    //announcements that are not triplet announcements, always checked
+    private final Set<ActiveAnnouncement> unindexed = identitySet();
+
+    /**
+     * Adds the announcement, returns false if it was already present.
+     */
+    boolean add(ActiveAnnouncement ann) {
+        lock.writeLock().lock();
+        try {
+            evictExpired(System.currentTimeMillis());
+            if (announcements.containsKey(ann)) {
+                return false;
+            }
+            announcements.put(ann, ann);
+            if (ann.getValidity() != -1) {
+                Set<ActiveAnnouncement> set = expiry.get(ann.getValidity());
+                if (set == null) {
+                    set = identitySet();
+                    expiry.put(ann.getValidity(), set);
+                }
+                set.add(ann);
+            }
+            if (ann.getAnnouncement() instanceof TripletAnnouncement) {
+                for (String attr : ((TripletAnnouncement) ann.getAnnouncement()).attributes()) {
+                    Set<ActiveAnnouncement> set = byAttribute.get(attr);
+                    if (set == null) {
+                        set = identitySet();
+                        byAttribute.put(attr, set);
+                    }
+                    set.add(ann);
+                }
+            } else {
+                unindexed.add(ann);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the announcement, returns false if it was not present.
+     */
+    boolean remove(ActiveAnnouncement ann) {
+        lock.writeLock().lock();
+        try {
+            ActiveAnnouncement stored = announcements.get(ann);
+            if (stored == null) {
+                return false;
+            }
+            unlink(stored);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void unlink(ActiveAnnouncement stored) {
+        announcements.remove(stored);
+        if (stored.getValidity() != -1) {
+            Set<ActiveAnnouncement> set = expiry.get(stored.getValidity());
+            if (set != null) {
+                set.remove(stored);
+                if (set.isEmpty()) {
+                    expiry.remove(stored.getValidity());
+                }
+            }
+        }
+        if (stored.getAnnouncement() instanceof TripletAnnouncement) {
+            for (String attr : ((TripletAnnouncement) stored.getAnnouncement()).attributes()) {
+                Set<ActiveAnnouncement> set = byAttribute.get(attr);
+                if (set != null) {
+                    set.remove(stored);
+                    if (set.isEmpty()) {
+                        byAttribute.remove(attr);
+                    }
+                }
+            }
+        } else {
+            unindexed.remove(stored);
+        }
+    }
+
+    /**
+     * Removes the announcements whose validity is before now (write lock held).
+     */
+    private void evictExpired(long now) {
+        while (!expiry.isEmpty() && expiry.firstKey() < now) {
+            for (ActiveAnnouncement expired : new ArrayList<ActiveAnnouncement>(expiry.firstEntry().getValue())) {
+                unlink(expired);
+            }
+        }
+    }
+
+    /**
+     * Returns the mobile brokers having an active announcement that covers the
+     * subscription.
+     */
+    Set<UUID> match(Subscription subscription) {
+        long now = System.currentTimeMillis();
+        lock.readLock().lock();
+        try {
+            if (expiry.isEmpty() || expiry.firstKey() >= now) {
+                return matchIndexed(subscription);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        lock.writeLock().lock();
+        try {
+            evictExpired(now);
+            lock.readLock().lock();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            return matchIndexed(subscription);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * (read lock held)
+     */
+    private Set<UUID> matchIndexed(Subscription subscription) {
+        Collection<ActiveAnnouncement> candidates = null;
+        Set<String> attributes = attributes(subscription);
+        if (attributes != null) {
+            for (String attr : attributes) {
+                Set<ActiveAnnouncement> set = byAttribute.get(attr);
+                if (set == null) {
+                    candidates = Collections.emptySet();
+                    break;
+                } else if (candidates == null || set.size() < candidates.size()) {
+                    candidates = set;
+                }
+            }
+        }
+        if (candidates == null) {
+            candidates = announcements.keySet();
+        }
+
+        Set<UUID> mobileBrokers = new HashSet<UUID>();
+        for (ActiveAnnouncement ann : candidates) {
+            if (ann.isValid() && ann.coversSubscription(subscription)) {
+                mobileBrokers.add(ann.getMobileBrokerID());
+            }
+        }
+        for (ActiveAnnouncement ann : unindexed) {
+            if (ann.isValid() && ann.coversSubscription(subscription)) {
+                mobileBrokers.add(ann.getMobileBrokerID());
+            }
+        }
+        return mobileBrokers;
+    }
+
+    /**
+     * The attributes a triplet announcement must announce to cover the
+     * subscription, or null if they are not known (all announcements are
+     * checked then).
+     */
+    private static Set<String> attributes(Subscription subscription) {
+        Subscription sub = subscription;
+        while (true) {
+            if (sub instanceof ActiveSubscription) {
+                sub = ((ActiveSubscription) sub).getSubscription();
+            } else if (sub instanceof MemorySubscription) {
+                sub = ((MemorySubscription) sub).getSubscription();
+            } else {
+                break;
+            }
+        }
+        if (sub instanceof TripletSubscription) {
+            return ((TripletSubscription) sub).attributes();
+        } else if (sub instanceof TripletTopKWSubscription) {
+            Set<String> attributes = new HashSet<String>();
+            for (Triplet t : ((TripletTopKWSubscription) sub).getData()) {
+                attributes.add(t.getKey());
+            }
+            return attributes;
+        }
+        return null;
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return announcements.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static Set<ActiveAnnouncement> identitySet() {
+        return Collections.newSetFromMap(new IdentityHashMap<ActiveAnnouncement, Boolean>());
+    }
+}
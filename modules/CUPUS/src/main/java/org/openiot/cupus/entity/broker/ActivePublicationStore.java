@@ -0,0 +1,393 @@
+/**
+ * Copyright (c) 2011-2014, OpenIoT
+ *
+ * This file is part of OpenIoT.
+ *
+ * OpenIoT is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * OpenIoT is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with OpenIoT. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contact: OpenIoT mailto: info@openiot.eu
+ */
+package org.openiot.cupus.entity.broker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.openiot.cupus.artefact.ActivePublication;
+import org.openiot.cupus.artefact.ActiveSubscription;
+import org.openiot.cupus.artefact.HashtablePublication;
+import org.openiot.cupus.artefact.Publication;
+import org.openiot.cupus.artefact.Subscription;
+import org.openiot.cupus.artefact.TripletSubscription;
+import org.openiot.cupus.common.Triplet;
+import org.openiot.cupus.common.enums.Operator;
+
+/**
+ * The active (published and not yet expired) publications of a broker, indexed
+ * for computing the initial matches of new subscriptions.
+ *
+ * For every attribute the publications are indexed by value: numeric values in
+ * a sorted map (so that range predicates are a sub-map) and string values,
+ * lower-cased as in Triplet.covers, in a sorted map as well (prefix predicates
+ * are a tail-map walk, the others filter the distinct values only). The
+ * candidates of a subscription are taken from its most selective predicate
+ * and checked against the whole subscription, so the result is exactly the
+ * one of Subscription.coversPublication over all active publications.
+ *
+ * Publications are also kept ordered by expiry time and evicted as soon as
+ * they expire. Matching only takes a read lock, so concurrent subscriptions
+ * are matched in parallel and publishing waits only for the index updates.
+ */
+class ActivePublicationStore {
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * The stored instance of each publication (equal publications are stored
+     * once); the indexes hold these instances and compare them by identity.
+     */
+    private final Map<ActivePublication, ActivePublication> publications = new HashMap<ActivePublication, ActivePublication>();
+    private final Map<String, AttributeIndex> attributes = new HashMap<String, AttributeIndex>();
+    private final TreeMap<Long, Set<ActivePublication>> expiry = new TreeMap<Long, Set<ActivePublication>>();
+    //publications that are not hashtable publications, always checked
+    private final Set<ActivePublication> unindexed = identitySet();
+
+    /**
+     * Adds the publication, returns false if it was already present.
+     */
+    boolean add(ActivePublication pub) {
+        lock.writeLock().lock();
+        try {
+            evictExpired(System.currentTimeMillis());
+            if (publications.containsKey(pub)) {
+                return false;
+            }
+            publications.put(pub, pub);
+            if (pub.getValidity() != -1) {
+                Set<ActivePublication> set = expiry.get(pub.getValidity());
+                if (set == null) {
+                    set = identitySet();
+                    expiry.put(pub.getValidity(), set);
+                }
+                set.add(pub);
+            }
+            if (pub.getPublication() instanceof HashtablePublication) {
+                for (Map.Entry<String, Object> property : ((HashtablePublication) pub.getPublication()).getProperties().entrySet()) {
+                    AttributeIndex index = attributes.get(property.getKey());
+                    if (index == null) {
+                        index = new AttributeIndex();
+                        attributes.put(property.getKey(), index);
+                    }
+                    index.add(property.getValue(), pub);
+                }
+            } else {
+                unindexed.add(pub);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the publication, returns false if it was not present.
+     */
+    boolean remove(ActivePublication pub) {
+        lock.writeLock().lock();
+        try {
+            ActivePublication stored = publications.get(pub);
+            if (stored == null) {
+                return false;
+            }
+            unlink(stored);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void unlink(ActivePublication stored) {
+        publications.remove(stored);
+        if (stored.getValidity() != -1) {
+            Set<ActivePublication> set = expiry.get(stored.getValidity());
+            if (set != null) {
+                set.remove(stored);
+                if (set.isEmpty()) {
+                    expiry.remove(stored.getValidity());
+                }
+            }
+        }
+        if (stored.getPublication() instanceof HashtablePublication) {
+            for (Map.Entry<String, Object> property : ((HashtablePublication) stored.getPublication()).getProperties().entrySet()) {
+                AttributeIndex index = attributes.get(property.getKey());
+                if (index != null && index.remove(property.getValue(), stored)) {
+                    attributes.remove(property.getKey());
+                }
+            }
+        } else {
+            unindexed.remove(stored);
+        }
+    }
+
+    /**
+     * Removes the publications whose validity is before now (write lock held).
+     */
+    private void evictExpired(long now) {
+        while (!expiry.isEmpty() && expiry.firstKey() < now) {
+            for (ActivePublication expired : new ArrayList<ActivePublication>(expiry.firstEntry().getValue())) {
+                unlink(expired);
+            }
+        }
+    }
+
+    /**
+     * Returns the active publications covered by the subscription.
+     */
+    List<Publication> match(Subscription subscription) {
+        long now = System.currentTimeMillis();
+        lock.readLock().lock();
+        try {
+            if (expiry.isEmpty() || expiry.firstKey() >= now) {
+                return matchIndexed(subscription);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        lock.writeLock().lock();
+        try {
+            evictExpired(now);
+            //downgrade, so that the matching doesn't block other readers
+            lock.readLock().lock();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            return matchIndexed(subscription);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * (read lock held)
+     */
+    private List<Publication> matchIndexed(Subscription subscription) {
+        Subscription sub = subscription;
+        while (sub instanceof ActiveSubscription) {
+            sub = ((ActiveSubscription) sub).getSubscription();
+        }
+
+        Collection<ActivePublication> candidates = null;
+        if (sub instanceof TripletSubscription) {
+            TripletSubscription tripSub = (TripletSubscription) sub;
+            for (String attr : tripSub.attributes()) {
+                AttributeIndex index = attributes.get(attr);
+                if (index == null) {
+                    //no publication with this attribute...
+                    candidates = Collections.emptyList();
+                    break;
+                }
+                int limit = candidates == null ? Integer.MAX_VALUE : candidates.size();
+                for (Triplet predicate : tripSub.attributePredicates(attr)) {
+                    Collection<ActivePublication> c = index.candidates(predicate, limit);
+                    if (c != null) {
+                        candidates = c;
+                        limit = c.size();
+                    }
+                }
+            }
+        }
+        if (candidates == null) {
+            candidates = publications.keySet();
+        }
+
+        List<Publication> matches = new ArrayList<Publication>();
+        for (ActivePublication pub : candidates) {
+            if (pub.isValid() && subscription.coversPublication(pub.getPublication())) {
+                matches.add(pub.getPublication());
+            }
+        }
+        for (ActivePublication pub : unindexed) {
+            if (pub.isValid() && subscription.coversPublication(pub.getPublication())) {
+                matches.add(pub.getPublication());
+            }
+        }
+        return matches;
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return publications.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static Set<ActivePublication> identitySet() {
+        return Collections.newSetFromMap(new IdentityHashMap<ActivePublication, Boolean>());
+    }
+
+    /**
+     * The publications having one attribute, by value.
+     */
+    private static class AttributeIndex {
+
+        private final TreeMap<Double, Set<ActivePublication>> numbers = new TreeMap<Double, Set<ActivePublication>>();
+        private final TreeMap<String, Set<ActivePublication>> strings = new TreeMap<String, Set<ActivePublication>>();
+
+        void add(Object value, ActivePublication pub) {
+            Object key = key(value);
+            if (key == null) {
+                return;
+            }
+            if (key instanceof String) {
+                put(strings, (String) key, pub);
+            } else {
+                put(numbers, (Double) key, pub);
+            }
+        }
+
+        private static <K> void put(TreeMap<K, Set<ActivePublication>> map, K key, ActivePublication pub) {
+            Set<ActivePublication> set = map.get(key);
+            if (set == null) {
+                set = identitySet();
+                map.put(key, set);
+            }
+            set.add(pub);
+        }
+
+        /**
+         * Returns true if the index is empty afterwards.
+         */
+        boolean remove(Object value, ActivePublication pub) {
+            Object key = key(value);
+            if (key != null) {
+                Map<?, Set<ActivePublication>> map = key instanceof String ? strings : numbers;
+                Set<ActivePublication> set = map.get(key);
+                if (set != null) {
+                    set.remove(pub);
+                    if (set.isEmpty()) {
+                        map.remove(key);
+                    }
+                }
+            }
+            return numbers.isEmpty() && strings.isEmpty();
+        }
+
+        /**
+         * The value as Triplet compares it: a lower-cased string, or a double
+         * (null for values that can't match any predicate).
+         */
+        private static Object key(Object value) {
+            if (value instanceof String) {
+                return ((String) value).toLowerCase(Locale.ENGLISH);
+            }
+            double d;
+            try {
+                d = value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(value.toString());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (Double.isNaN(d)) {
+                return null;
+            }
+            return d + 0.0; //-0.0 == 0.0
+        }
+
+        /**
+         * Returns the publications that may satisfy the predicate, or null if
+         * there are more than limit of them.
+         */
+        Collection<ActivePublication> candidates(Triplet predicate, int limit) {
+            try {
+                return candidates(predicate.getOperator(), predicate.getValue(), limit);
+            } catch (ClassCastException e) {
+                //a value not set by the Triplet constructor, no restriction from this predicate
+                return null;
+            }
+        }
+
+        private Collection<ActivePublication> candidates(Operator operator, Object value, int limit) {
+            switch (operator) {
+                case EQUAL:
+                    Set<ActivePublication> set = value instanceof String
+                            ? strings.get(((String) value).toLowerCase(Locale.ENGLISH))
+                            : numbers.get(((Double) value) + 0.0);
+                    return set == null ? Collections.<ActivePublication>emptySet() : (set.size() <= limit ? set : null);
+                case GREATER_THAN:
+                    return collect(numbers.tailMap((Double) value, false), limit);
+                case GREATER_OR_EQUAL:
+                    return collect(numbers.tailMap((Double) value, true), limit);
+                case LESS_THAN:
+                    return collect(numbers.headMap((Double) value, false), limit);
+                case LESS_OR_EQUAL:
+                    return collect(numbers.headMap((Double) value, true), limit);
+                case BETWEEN:
+                    Double[] range = (Double[]) value;
+                    return collect(numbers.subMap(range[0], true, range[1], true), limit);
+                case STARTS_WITH_STRING:
+                    String prefix = ((String) value).toLowerCase(Locale.ENGLISH);
+                    List<ActivePublication> prefixed = new ArrayList<ActivePublication>();
+                    for (Map.Entry<String, Set<ActivePublication>> e : strings.tailMap(prefix, true).entrySet()) {
+                        if (!e.getKey().startsWith(prefix)) {
+                            break;
+                        }
+                        prefixed.addAll(e.getValue());
+                        if (prefixed.size() > limit) {
+                            return null;
+                        }
+                    }
+                    return prefixed;
+                case CONTAINS_STRING:
+                case ENDS_WITH_STRING:
+                    String part = ((String) value).toLowerCase(Locale.ENGLISH);
+                    boolean contains = operator == Operator.CONTAINS_STRING;
+                    List<ActivePublication> found = new ArrayList<ActivePublication>();
+                    for (Map.Entry<String, Set<ActivePublication>> e : strings.entrySet()) {
+                        if (contains ? e.getKey().contains(part) : e.getKey().endsWith(part)) {
+                            found.addAll(e.getValue());
+                            if (found.size() > limit) {
+                                return null;
+                            }
+                        }
+                    }
+                    return found;
+                default:
+                    return null;
+            }
+        }
+
+        private static Collection<ActivePublication> collect(NavigableMap<?, Set<ActivePublication>> buckets, int limit) {
+            List<ActivePublication> list = new ArrayList<ActivePublication>();
+            Iterator<Set<ActivePublication>> it = buckets.values().iterator();
+            while (it.hasNext()) {
+                list.addAll(it.next());
+                if (list.size() > limit) {
+                    return null;
+                }
+            }
+            return list;
+        }
+    }
+}
@@ -57,6 +57,7 @@ import org.openiot.cupus.message.internal.SubscriptionStructureMessage;
 import org.openiot.cupus.subscriptionforest.ActiveSubscriptionForest;
 import org.openiot.cupus.subscriptionforest.ActiveSubscriptionNode;
 import org.openiot.cupus.util.LogWriter;
+import org.openiot.cupus.util.MetricsRegistry;
 
 /**
  * Matcher is a component of a cloud-broker whose job is to keep and maintain a
@@ -80,6 +81,14 @@ public class BooleanMatcher {
     private boolean logWriting = false;
     protected LogWriter log = null;
 
+    protected MetricsRegistry metrics;
+    private MetricsRegistry.Counter publicationsIn;
+    private MetricsRegistry.Counter subscriptionsIn;
+    private MetricsRegistry.Counter announcementsIn;
+    private MetricsRegistry.Counter notificationsOut;
+    private MetricsRegistry.Histogram matchingTime;
+    private volatile double idleRatio = 1;
+
     //elasticity monitoring 
     private boolean elasticity;
     private double splitThreshold; //maximal percentage of idle time when a split event is triggered
@@ -109,6 +118,7 @@ public class BooleanMatcher {
         this.treeRoot = new ActiveSubscriptionForest();
 
         this.log = new LogWriter("Matcher_" + matcherID + ".log", logWriting, false);
+        initMetrics();
 
         this.elasticity = elasticity;
         this.splitThreshold = splitThreshold;
@@ -131,12 +141,38 @@ public class BooleanMatcher {
         System.exit(-1);
     }
 
+    private void initMetrics() {
+        metrics = new MetricsRegistry("Matcher_" + matcherID);
+        publicationsIn = metrics.counter("publications");
+        subscriptionsIn = metrics.counter("subscriptions");
+        announcementsIn = metrics.counter("announcements");
+        notificationsOut = metrics.counter("notifications");
+        matchingTime = metrics.histogram("matchingTime");
+        metrics.gauge("idleRatio", new MetricsRegistry.Gauge() {
+            @Override
+            public Number value() {
+                return idleRatio;
+            }
+        });
+        metrics.gauge("activeSubscribers", new MetricsRegistry.Gauge() {
+            @Override
+            public Number value() {
+                return activeSubscribers.size();
+            }
+        });
+    }
+
+    /**
+     * Measures the idle ratio over every checkThreshold messages and (if
+     * elasticity is on) asks for a split or a merge depending on it.
+     */
     public void checkElasticityMeasurement(long startIdle, long endIdle) {
         idleTime += endIdle - startIdle;
         messageCounter++;
         if (messageCounter > checkThreshold) {
             float idle = (idleTime) / ((float) (System.currentTimeMillis() - measurementStartTime));
-            if (idle < splitThreshold) {//split matcher
+            idleRatio = idle;
+            if (elasticity && idle < splitThreshold) {//split matcher
                 if (sentMessage == null) {
                     informBroker("Matcher " + matcherID + " SPLITTING " + idle, false);
                     List<ActiveSubscriptionNode> list = ((ActiveSubscriptionForest) treeRoot).toList();
@@ -147,7 +183,7 @@ public class BooleanMatcher {
                     sentMessage = new SplitBooleanMatcherMessage(toDelivery);
                     sendInternalMessage(sentMessage);
                 }
-            } else if (idle > mergeThreshold) {//merge matcher
+            } else if (elasticity && idle > mergeThreshold) {//merge matcher
                 if (sentMessage == null) {
                     informBroker("Matcher " + matcherID + " MERGING " + idle, false);
                     List<ActiveSubscriptionNode> list = ((ActiveSubscriptionForest) treeRoot).toList();
@@ -319,9 +355,7 @@ public class BooleanMatcher {
             while (true) {
                 Object objIn = null;
                 try {
-                    if (elasticity) {
-                        checkElasticityMeasurement(startIdle, endIdle);
-                    }
+                    checkElasticityMeasurement(startIdle, endIdle);
                     startIdle = System.currentTimeMillis();
                     objIn = in.readObject();
                     endIdle = System.currentTimeMillis();
@@ -343,6 +377,7 @@ public class BooleanMatcher {
                     } else if (objIn instanceof SubscribeMessage) {
                         SubscribeMessage msg = (SubscribeMessage) objIn;
                         ActiveSubscription actSub = (ActiveSubscription) msg.getSubscription();
+                        subscriptionsIn.inc();
                         if (msg.isUnsubscribe()) {
                             int retval = removeSubscription(actSub);
                             switch (retval) {
@@ -356,7 +391,11 @@ public class BooleanMatcher {
                             int retval = addSubscription(actSub);
                             switch (retval) {
                                 case SubscriptionDataStructure.SUB_ADDED:
-                                    informBroker("Subscription successfully added!" + actSub.getSubscription().toString(), false);
+                                    if (testing) {
+                                        informBroker("Subscription successfully added!" + actSub.getSubscription().toString(), false);
+                                    } else {
+                                        log.writeToLogLazy("Subscription successfully added!", actSub.getSubscription());
+                                    }
                                     break;
                                 case SubscriptionDataStructure.SUB_NOT_ADDED:
                                     informBroker("Subscription not added for unknown reason!", false);
@@ -366,9 +405,13 @@ public class BooleanMatcher {
                     } else if (objIn instanceof PublishMessage) {
 
                         PublishMessage msg = (PublishMessage) objIn;
+                        publicationsIn.inc();
                         if (!msg.isUnpublish()) {
+                            long start = System.nanoTime();
                             Set<UUID> matched = findMatchingSubscribers(msg);
+                            matchingTime.recordSince(start);
                             if (matched != null && !matched.isEmpty()) {
+                                notificationsOut.add(matched.size());
                                 toDeliveryService.send(msg, matched);
                             }
                         }
@@ -376,6 +419,7 @@ public class BooleanMatcher {
 
                         AnnounceMessage msg = (AnnounceMessage) objIn;
                         ActiveAnnouncement actAnn = (ActiveAnnouncement) msg.getAnnouncement();
+                        announcementsIn.inc();
                         Set<Subscription> matched = findMatchingSubscriptions(actAnn);
                         if (matched != null && !matched.isEmpty()) {
                             toDeliveryService.send(msg, matched, actAnn.getMobileBrokerID());
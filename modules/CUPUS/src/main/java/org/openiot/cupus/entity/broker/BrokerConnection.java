@@ -0,0 +1,48 @@
+/**
+ * Copyright (c) 2011-2014, OpenIoT
+ *
+ * This file is part of OpenIoT.
+ *
+ * OpenIoT is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * OpenIoT is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with OpenIoT. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contact: OpenIoT mailto: info@openiot.eu
+ */
+package org.openiot.cupus.entity.broker;
+
+/**
+ * An entity (subscriber, publisher or mobile broker) served by the
+ * MessageReceiver over one connection. Connections of the clients sending a
+ * plain object stream are served by a thread running the entity, the framed
+ * connections by the ReceiverEventLoop which hands it each received message.
+ */
+interface BrokerConnection extends Runnable {
+
+    /**
+     * Marks the entity as connected. Returns false if it already was or if the
+     * broker is not running, in which case the connection must not be served.
+     */
+    boolean open();
+
+    /**
+     * Processes one message received from the entity. Returns false once the
+     * connection has been terminated.
+     */
+    boolean process(Object objIn);
+
+    /**
+     * Called when the connection broke without a disconnect message.
+     */
+    void connectionLost();
+
+    void terminateConnection();
+}
@@ -329,9 +329,9 @@ public class CloudBroker {
 						sendMessage(objIn, deliveryServiceRelay.out);
 					} else if (objIn instanceof SubscribeMessage){
 						SubscribeMessage msg = (SubscribeMessage)objIn;
-						log.writeToLog("Received "
-								+(msg.isUnsubscribe()?"unsubscription ":"subscription ")
-								+ msg.getSubscription()+".");
+						log.writeToLogLazy("Received ",
+								msg.isUnsubscribe() ? "unsubscription " : "subscription ",
+								msg.getSubscription(), ".");
 
 						//forward to a matcher to process...
 						sendMessage(objIn, matcherRelays[matcherRoundRobin].out);
@@ -340,9 +340,9 @@ public class CloudBroker {
 					} else if (objIn instanceof PublishMessage){
 
 						PublishMessage msg = (PublishMessage)objIn;
-						log.writeToLog("Received "
-								+(msg.isUnpublish()?"unpublication ":"publication ")
-								+ msg.getPublication()+".");
+						log.writeToLogLazy("Received ",
+								msg.isUnpublish() ? "unpublication " : "publication ",
+								msg.getPublication(), ".");
 						//forward to all matchers to process...
 						for (int i=0; i<numberOfMatchers; i++){
 							sendMessage(objIn, matcherRelays[i].out);
@@ -351,9 +351,9 @@ public class CloudBroker {
 					} else if (objIn instanceof AnnounceMessage){
 						
 						AnnounceMessage msg = (AnnounceMessage)objIn;
-						log.writeToLog("Received "
-								+(msg.isRevokeAnnouncement()?"revoke announcement ":"announcement ")
-								+ msg.getAnnouncement()+".");
+						log.writeToLogLazy("Received ",
+								msg.isRevokeAnnouncement() ? "revoke announcement " : "announcement ",
+								msg.getAnnouncement(), ".");
 						//forward to all matchers to process...
 						for (int i=0; i<numberOfMatchers; i++){
 							sendMessage(objIn, matcherRelays[i].out);
@@ -540,9 +540,9 @@ public class Coordinator {
                     } else if (objIn instanceof SubscribeMessage) {
                         synchronized (mutexMatcher) {
                             SubscribeMessage msg = (SubscribeMessage) objIn;
-                            log.writeToLog("Received "
-                                    + (msg.isUnsubscribe() ? "unsubscription " : "subscription ")
-                                    + msg.getSubscription() + ".");
+                            log.writeToLogLazy("Received ",
+                                    msg.isUnsubscribe() ? "unsubscription " : "subscription ",
+                                    msg.getSubscription(), ".");
 
                             //forward to a matcher to process...
                             if (msg.getSubscription() instanceof TopKWSubscription) {
@@ -556,9 +556,9 @@ public class Coordinator {
                     } else if (objIn instanceof PublishMessage) {
                         synchronized (mutexMatcher) {
                             PublishMessage msg = (PublishMessage) objIn;
-                            log.writeToLog("Received "
-                                    + (msg.isUnpublish() ? "unpublication " : "publication ")
-                                    + msg.getPublication() + ".");
+                            log.writeToLogLazy("Received ",
+                                    msg.isUnpublish() ? "unpublication " : "publication ",
+                                    msg.getPublication(), ".");
                             //forward to all matchers to process...
                             for (int i = 0; i < numberOfMatchers; i++) {
                                 sendMessage(objIn, matcherRelays[i].out);
@@ -571,9 +571,9 @@ public class Coordinator {
                     } else if (objIn instanceof AnnounceMessage) {
                         synchronized (mutexMatcher) {
                             AnnounceMessage msg = (AnnounceMessage) objIn;
-                            log.writeToLog("Received "
-                                    + (msg.isRevokeAnnouncement() ? "revoke announcement " : "announcement ")
-                                    + msg.getAnnouncement() + ".");
+                            log.writeToLogLazy("Received ",
+                                    msg.isRevokeAnnouncement() ? "revoke announcement " : "announcement ",
+                                    msg.getAnnouncement(), ".");
                             //forward to all matchers to process...
                             for (int i = 0; i < numberOfMatchers; i++) {
                                 sendMessage(objIn, matcherRelays[i].out);
@@ -32,6 +32,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.openiot.cupus.artefact.ActivePublication;
 import org.openiot.cupus.artefact.ActiveSubscription;
@@ -61,6 +62,7 @@ import org.openiot.cupus.message.internal.InitialAnnouncementMatchesMessage;
 import org.openiot.cupus.message.internal.InitialMatchesMessage;
 import org.openiot.cupus.message.internal.StartComponentMessage;
 import org.openiot.cupus.util.LogWriter;
+import org.openiot.cupus.util.MetricsRegistry;
 
 /**
  * DeliveryService is a component of a cloud-broker whose job is to keep and
@@ -83,6 +85,15 @@ public class DeliveryService extends NetworkEntity {
     private LogWriter log = null;
 
     protected boolean isRunning = false;
+
+    //updated by the subscriber queues
+    MetricsRegistry metrics;
+    MetricsRegistry.Counter notificationsQueued;
+    MetricsRegistry.Counter notificationsDropped;
+    MetricsRegistry.Counter notificationsSent;
+    MetricsRegistry.Histogram deliveryLag;
+    final AtomicLong queuedMessages = new AtomicLong();
+    private MetricsRegistry.Counter matchingResults;
     
     
     private Sender gcmSender;
@@ -109,7 +120,8 @@ public class DeliveryService extends NetworkEntity {
         this.testing = testing;
         this.logWriting = logWriting;
         log = new LogWriter(brokerName + "_deliveryService.log", logWriting, false);
-        
+        initMetrics();
+
         intercomm = new InternalCommunicationsThread(in, out);
         new Thread(intercomm).start();
         
@@ -119,6 +131,39 @@ public class DeliveryService extends NetworkEntity {
         }
     }
 
+    private void initMetrics() {
+        metrics = new MetricsRegistry(myName + "_deliveryService");
+        notificationsQueued = metrics.counter("notificationsQueued");
+        notificationsDropped = metrics.counter("notificationsDropped");
+        notificationsSent = metrics.counter("notificationsSent");
+        deliveryLag = metrics.histogram("deliveryLag");
+        matchingResults = metrics.counter("matchingResults");
+        metrics.gauge("queuedMessages", new MetricsRegistry.Gauge() {
+            @Override
+            public Number value() {
+                return queuedMessages.get();
+            }
+        });
+    }
+
+    /**
+     * Adds the queue to the directory (the messages of the queue it replaces,
+     * if any, are not counted any more).
+     */
+    private void addQueue(UUID entityID, SubscriberQueue queue) {
+        SubscriberQueue old = queueDirectory.put(entityID, queue);
+        if (old != null) {
+            old.detachFromMetrics();
+        }
+    }
+
+    private void discardQueue(SubscriberQueue queue) {
+        if (queue != null) {
+            queue.terminateConnection();
+            queue.detachFromMetrics();
+        }
+    }
+
     /**
      * Creates a UDP socket a thread that manages all incoming packets to it.
      * All notifications from all Matchers about matched subscribers are sent
@@ -304,16 +349,13 @@ public class DeliveryService extends NetworkEntity {
                                 + " disconnected from broker!", false);
                     } else if (objIn instanceof SubscriberUnregisterMessage) {
                         UUID subID = ((SubscriberUnregisterMessage) objIn).getEntityID();
-                        SubscriberQueue queue = queueDirectory.remove(subID);
-                        if (queue != null){
-                            queue.terminateConnection();
-                        }
+                        discardQueue(queueDirectory.remove(subID));
                         informBroker("Subscriber " + ((SubscriberUnregisterMessage) objIn).getEntityName()
                                 + " unregistered from broker!", false);
                     } else if (objIn instanceof SubscriberRegisterMessage) {
                         SubscriberRegisterMessage msg = (SubscriberRegisterMessage) objIn;
                         SubscriberQueue queue = new SubscriberQueue(msg.getEntityID(), queueCapacity, DeliveryService.this, false);
-                        queueDirectory.put(msg.getEntityID(), queue);
+                        addQueue(msg.getEntityID(), queue);
                         Socket socket = null;
                         
                         try {
@@ -333,16 +375,13 @@ public class DeliveryService extends NetworkEntity {
                                 + " connected to broker!", false);
                     } else if (objIn instanceof MobileBrokerDisconnectMessage) {
                         UUID mbID = ((MobileBrokerDisconnectMessage) objIn).getEntityID();
-                        SubscriberQueue queue = queueDirectory.remove(mbID);
-                       if (queue != null){
-                            queue.terminateConnection();
-                        }
+                        discardQueue(queueDirectory.remove(mbID));
                         informBroker("Mobile broker " + ((MobileBrokerDisconnectMessage) objIn).getEntityName()
                                 + " unregistered from broker!", false);
                     } else if (objIn instanceof MobileBrokerRegisterMessage) {
                         MobileBrokerRegisterMessage msg = (MobileBrokerRegisterMessage) objIn;
                         SubscriberQueue queue = new SubscriberQueue(msg.getEntityID(), queueCapacity, DeliveryService.this, false);
-                        queueDirectory.put(msg.getEntityID(), queue);
+                        addQueue(msg.getEntityID(), queue);
                         Socket socket = null;
                         try {
                             socket = new Socket(msg.getIP(), msg.getPort());
@@ -362,7 +401,7 @@ public class DeliveryService extends NetworkEntity {
                         MobileBrokerRegisterGCMMessage msg = (MobileBrokerRegisterGCMMessage) objIn;
                         
                         SubscriberQueue queue = new SubscriberQueue(msg.getEntityID(), queueCapacity, DeliveryService.this, true);
-                        queueDirectory.put(msg.getEntityID(), queue);
+                        addQueue(msg.getEntityID(), queue);
                         if (msg.getRegistrationID() != null && !msg.getRegistrationID().isEmpty()) {
                             //informBroker("User RegId="+msg.getRegistrationID(), false);
                             queue.setGCMId(msg.getRegistrationID());
@@ -431,6 +470,7 @@ public class DeliveryService extends NetworkEntity {
                 try {
                     ObjectInputStream ois = new ObjectInputStream(bais); //has to read the stream header each time
                     Object messageType = ois.readObject();
+                    matchingResults.inc();
                     if (messageType instanceof PublishMessage) {
                         PublishMessage pubMsg = (PublishMessage) messageType;
                         Set<UUID> subscriberIDs = (Set<UUID>) ois.readObject();
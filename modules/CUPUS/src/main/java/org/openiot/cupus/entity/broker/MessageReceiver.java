@@ -20,18 +20,19 @@
 package org.openiot.cupus.entity.broker;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.ArrayList;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.openiot.cupus.artefact.ActiveAnnouncement;
 import org.openiot.cupus.artefact.ActivePublication;
@@ -64,14 +65,16 @@ import org.openiot.cupus.message.internal.InitialMatchesMessage;
 import org.openiot.cupus.message.internal.StartComponentMessage;
 import org.openiot.cupus.topkw.SASubscription;
 import org.openiot.cupus.util.LogWriter;
+import org.openiot.cupus.util.MetricsRegistry;
 
 /**
  * MessageReceiver is a component of a cloud-broker whose job is to receive all
  * messages and requests from publishers and subscribers. It maintains a list of
- * all regisered subscribers and publishers and has a thread for each of them
- * that manages the communication with it and delegates the received requests to
- * other broker components (via internal connection to CloudBroker superprocess)
- * for processing.
+ * all regisered subscribers and publishers, reads their connections with a
+ * ReceiverEventLoop (or a thread per connection for clients sending a plain
+ * object stream) and delegates the received requests to other broker
+ * components (via internal connection to CloudBroker superprocess) for
+ * processing.
  *
  * @author Eugen Rozic, Aleksandar Antonic
  *
@@ -84,21 +87,34 @@ public class MessageReceiver extends NetworkEntity {
     private volatile Map<UUID, SubscriberForBroker> registeredSubscribers = new HashMap<UUID, SubscriberForBroker>();
     private volatile Map<UUID, MobileBrokerForBroker> registeredMobileBrokers = new HashMap<UUID, MobileBrokerForBroker>();
 
-    private volatile Set<ActivePublication> activePublications = new HashSet<ActivePublication>();
-    private volatile Set<ActiveAnnouncement> activeAnnouncements = new HashSet<ActiveAnnouncement>();
+    private final ActivePublicationStore activePublications = new ActivePublicationStore();
+    private final ActiveAnnouncementStore activeAnnouncements = new ActiveAnnouncementStore();
 
     private Object mutexPublisherList = new Object();
     private Object mutexSubscriberList = new Object();
     private Object mutexMobileBroekrList = new Object();
-    private Object mutexActivePublicationsList = new Object();
-    private Object mutexActiveAnnouncementsList = new Object();
 
-    protected boolean isRunning = false;
+    /**
+     * I/O threads of the event loop (selectors), and worker threads processing
+     * the received messages.
+     */
+    private static final int IO_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private static final int WORKER_THREADS = Runtime.getRuntime().availableProcessors();
+
+    protected volatile boolean isRunning = false;
     private boolean testing = false;
     @SuppressWarnings("unused")
     private boolean logWriting = false;
     private LogWriter log = null;
 
+    private MetricsRegistry metrics;
+    private MetricsRegistry.Counter publicationsIn;
+    private MetricsRegistry.Counter subscriptionsIn;
+    private MetricsRegistry.Counter announcementsIn;
+    private MetricsRegistry.Histogram initialMatchingTime;
+    //frames received by the event loop and not processed yet
+    final AtomicLong pendingFrames = new AtomicLong();
+
     /**
      * Constructs the message receiver and starts it's internal communication
      * thread.
@@ -111,18 +127,45 @@ public class MessageReceiver extends NetworkEntity {
         this.testing = testing;
         this.logWriting = logWriting;
         this.log = new LogWriter(brokerName + "_messageReceiver.log", logWriting, false);
+        initMetrics();
 
         this.intercomm = new InternalCommunicationsThread(in, out);
         new Thread(intercomm).start();
     }
 
+    private void initMetrics() {
+        metrics = new MetricsRegistry(myName + "_messageReceiver");
+        publicationsIn = metrics.counter("publications");
+        subscriptionsIn = metrics.counter("subscriptions");
+        announcementsIn = metrics.counter("announcements");
+        initialMatchingTime = metrics.histogram("initialMatchingTime");
+        metrics.gauge("pendingFrames", new MetricsRegistry.Gauge() {
+            @Override
+            public Number value() {
+                return pendingFrames.get();
+            }
+        });
+        metrics.gauge("activePublications", new MetricsRegistry.Gauge() {
+            @Override
+            public Number value() {
+                return activePublications.size();
+            }
+        });
+        metrics.gauge("activeAnnouncements", new MetricsRegistry.Gauge() {
+            @Override
+            public Number value() {
+                return activeAnnouncements.size();
+            }
+        });
+    }
+
     /**
      * Starts a new BrokerListenerThread to accept incoming connections and
      * spawn new BrokerServingThreads to process each of the connections.
      */
     private void start() {
-        new Thread(new BrokerListenerThread()).start();
         this.isRunning = true;
+        new Thread(new BrokerListenerThread()).start();
         informBroker("MessageReceiver started!", false);
     }
 
@@ -188,6 +231,7 @@ public class MessageReceiver extends NetworkEntity {
 
         PublisherForBroker publisher = registeredPublishers.get(pubID);
         Publication publication = msg.getPublication();
+        publicationsIn.inc();
 
         if (publication == null || !publication.isValid()) {
             return;
@@ -219,11 +263,9 @@ public class MessageReceiver extends NetworkEntity {
         msg.setPublication(pubPair);
         sendInternalMessage(msg); //forward to broker for processing...
 
-        synchronized (this.mutexActivePublicationsList) {
-            if (!activePublications.add(pubPair)) {
-                informBroker("Publication " + publication + " from publisher " + publisher + " already present on broker!", false);
-                return; //do nothing if the broker already had this publication...
-            }
+        if (!activePublications.add(pubPair)) {
+            informBroker("Publication " + publication + " from publisher " + publisher + " already present on broker!", false);
+            return; //do nothing if the broker already had this publication...
         }
     }
 
@@ -240,11 +282,9 @@ public class MessageReceiver extends NetworkEntity {
         msg.setPublication(pubPair);
         sendInternalMessage(msg); //forward to broker for processing...
 
-        synchronized (this.mutexActivePublicationsList) {
-            if (!this.activePublications.remove(pubPair)) {
-                informBroker("(unpublish) Publication " + publication + " from publisher " + publisher + " not found on broker!", true);
-                return;
-            }
+        if (!this.activePublications.remove(pubPair)) {
+            informBroker("(unpublish) Publication " + publication + " from publisher " + publisher + " not found on broker!", true);
+            return;
         }
     }
 
@@ -259,6 +299,7 @@ public class MessageReceiver extends NetworkEntity {
 
         SubscriberForBroker subscriber = registeredSubscribers.get(subID);
         Subscription subscription = msg.getSubscription();
+        subscriptionsIn.inc();
 
         if (subscription == null || !subscription.isValid()) {
             return;
@@ -298,38 +339,14 @@ public class MessageReceiver extends NetworkEntity {
         msg.setSubscription(subPair);
         sendInternalMessage(msg); //forward to broker for processing...
 
-        //removing expired publications from the activePublications set...
-        List<Publication> toDeliver = new ArrayList<Publication>();
-        synchronized (this.mutexActivePublicationsList) { //deliver active publications that fit to the new subscription to its subscriber
-            Iterator<ActivePublication> actPubIter = activePublications.iterator();
-            while (actPubIter.hasNext()) {
-                ActivePublication pub = actPubIter.next();
-                if (pub.isValid()) {
-                    if (subscription.coversPublication(pub.getPublication())) {
-                        toDeliver.add(pub.getPublication());
-                    }
-                } else {
-                    actPubIter.remove();
-                }
-            }
-        }
+        //deliver active publications that fit to the new subscription to its subscriber
+        long start = System.nanoTime();
+        List<Publication> toDeliver = activePublications.match(subscription);
+        initialMatchingTime.recordSince(start);
         sendInternalMessage(new InitialMatchesMessage(subscriber.subID, toDeliver));
 
-        //removing expired announcements from the activeAnnouncement set...
-        Set<UUID> mobileBrokerstoDeliver = new HashSet<UUID>();
-        synchronized (this.mutexActiveAnnouncementsList) { //deliver subscription that fit to the active announcement to its mobile broker
-            Iterator<ActiveAnnouncement> actAnnIter = activeAnnouncements.iterator();
-            while (actAnnIter.hasNext()) {
-                ActiveAnnouncement ann = actAnnIter.next();
-                if (ann.isValid()) {
-                    if (ann.coversSubscription(subscription)) {
-                        mobileBrokerstoDeliver.add(ann.getMobileBrokerID());
-                    }
-                } else {
-                    actAnnIter.remove();
-                }
-            }
-        }
+        //deliver subscription that fit to the active announcement to its mobile broker
+        Set<UUID> mobileBrokerstoDeliver = activeAnnouncements.match(subscription);
         sendInternalMessage(new InitialAnnouncementMatchesMessage(msg, mobileBrokerstoDeliver));
     }
 
@@ -341,23 +358,10 @@ public class MessageReceiver extends NetworkEntity {
         ActiveSubscription subPair = new ActiveSubscription(subscriber.subID, msg.getSubscription());
         msg.setSubscription(subPair);
         sendInternalMessage(msg); //forward to broker for processing...
-        
-            Subscription subscription = msg.getSubscription();
-    //removing expired announcements from the activeAnnouncement set...
-        Set<UUID> mobileBrokerstoDeliver = new HashSet<UUID>();
-        synchronized (this.mutexActiveAnnouncementsList) { //deliver subscription that fit to the active announcement to its mobile broker
-            Iterator<ActiveAnnouncement> actAnnIter = activeAnnouncements.iterator();
-            while (actAnnIter.hasNext()) {
-                ActiveAnnouncement ann = actAnnIter.next();
-                if (ann.isValid()) {
-                    if (ann.coversSubscription(subscription)) {
-                        mobileBrokerstoDeliver.add(ann.getMobileBrokerID());
-                    }
-                } else {
-                    actAnnIter.remove();
-                }
-            }
-        }
+
+        Subscription subscription = msg.getSubscription();
+        //deliver subscription that fit to the active announcement to its mobile broker
+        Set<UUID> mobileBrokerstoDeliver = activeAnnouncements.match(subscription);
         sendInternalMessage(new InitialAnnouncementMatchesMessage(msg, mobileBrokerstoDeliver));
     }
 
@@ -370,21 +374,8 @@ public class MessageReceiver extends NetworkEntity {
             msg.setSubscription(subPair);
             sendInternalMessage(msg); //forward to broker for processing...
 
-            //removing expired announcements from the activeAnnouncement set...
-            Set<UUID> mobileBrokerstoDeliver = new HashSet<UUID>();
-            synchronized (this.mutexActiveAnnouncementsList) { //deliver subscription that fit to the active announcement to its mobile broker
-                Iterator<ActiveAnnouncement> actAnnIter = activeAnnouncements.iterator();
-                while (actAnnIter.hasNext()) {
-                    ActiveAnnouncement ann = actAnnIter.next();
-                    if (ann.isValid()) {
-                        if (ann.coversSubscription(subscription)) {
-                            mobileBrokerstoDeliver.add(ann.getMobileBrokerID());
-                        }
-                    } else {
-                        actAnnIter.remove();
-                    }
-                }
-            }
+            //deliver subscription that fit to the active announcement to its mobile broker
+            Set<UUID> mobileBrokerstoDeliver = activeAnnouncements.match(subscription);
             sendInternalMessage(new InitialAnnouncementMatchesMessage(msg, mobileBrokerstoDeliver));
         }
     }
@@ -406,6 +397,7 @@ public class MessageReceiver extends NetworkEntity {
 
         MobileBrokerForBroker mobileBroker = registeredMobileBrokers.get(mbID);
         Announcement announcement = msg.getAnnouncement();
+        announcementsIn.inc();
 
         if (announcement == null || !announcement.isValid()) {
             return;
@@ -435,11 +427,9 @@ public class MessageReceiver extends NetworkEntity {
         msg.setAnnouncement(annPair);
         sendInternalMessage(msg); //forward to broker for processing...
 
-        synchronized (this.mutexActiveAnnouncementsList) {
-            if (!activeAnnouncements.add(annPair)) {
-                informBroker("Announcement " + announcement + " from mobile broker " + mobileBroker + " already present on broker!", false);
-                return; //do nothing if the broker already had this publication...
-            }
+        if (!activeAnnouncements.add(annPair)) {
+            informBroker("Announcement " + announcement + " from mobile broker " + mobileBroker + " already present on broker!", false);
+            return; //do nothing if the broker already had this publication...
         }
     }
 
@@ -452,11 +442,9 @@ public class MessageReceiver extends NetworkEntity {
         msg.setAnnouncement(annPair);
         sendInternalMessage(msg); //forward to broker for processing...
 
-        synchronized (this.mutexActiveAnnouncementsList) {
-            if (!this.activeAnnouncements.remove(annPair)) {
-                informBroker("Revoke announcement " + annPair.getAnnouncement() + " from mobile broker " + mobileBroker + " not found on broker!", true);
-                return;
-            }
+        if (!this.activeAnnouncements.remove(annPair)) {
+            informBroker("Revoke announcement " + annPair.getAnnouncement() + " from mobile broker " + mobileBroker + " not found on broker!", true);
+            return;
         }
     }
 
@@ -562,16 +550,16 @@ public class MessageReceiver extends NetworkEntity {
     }
 
     /**
-     * This class is used for accepting requests from new users and creating
-     * serving threads that will serve them.
+     * This class is used for accepting requests from new users and handing
+     * their connections to the event loop that will serve them.
      */
     private class BrokerListenerThread implements Runnable {
 
         private MessageReceiver broker = MessageReceiver.this;
-        private ServerSocket serverSocket;
+        private ServerSocketChannel serverChannel;
 
         /**
-         * Primary run method that upon request creates new serving thread
+         * Primary run method that accepts the connections
          */
         public void run() {
 
@@ -579,10 +567,15 @@ public class MessageReceiver extends NetworkEntity {
             int tries = 0;
             while (invalidPort) { //crating new server socket (listener)
                 try {
-                    serverSocket = new ServerSocket(broker.myPort, 100);
-                    serverSocket.setReuseAddress(true);
+                    serverChannel = ServerSocketChannel.open();
+                    serverChannel.socket().setReuseAddress(true);
+                    serverChannel.socket().bind(new InetSocketAddress(broker.myPort), 100);
                     invalidPort = false;
                 } catch (IOException e) {
+                    try {
+                        serverChannel.close();
+                    } catch (IOException e2) {
+                    }
                     broker.myPort++;
                     tries++;
                     if (tries >= 10) {
@@ -593,15 +586,25 @@ public class MessageReceiver extends NetworkEntity {
                 }
             }
 
-            sendInternalMessage(new InfoMessage("Listener Created on port " + serverSocket.getLocalPort()));
+            ReceiverEventLoop eventLoop;
+            try {
+                eventLoop = new ReceiverEventLoop(broker, IO_THREADS, WORKER_THREADS);
+            } catch (IOException e) {
+                sendInternalMessage(new ErrorMessage("Unable to open the receiver selectors. Shutting the broker down..."));
+                MessageReceiver.this.shutdown();
+                return;
+            }
+            eventLoop.start();
+
+            sendInternalMessage(new InfoMessage("Listener Created on port " + serverChannel.socket().getLocalPort()));
 
             while (broker.isRunning) {
-                Socket s = null;
+                SocketChannel s = null;
                 try {
-                    s = serverSocket.accept();
-                    new Thread(new BrokerServingThread(s)).start();
+                    s = serverChannel.accept();
+                    eventLoop.register(s);
                 } catch (SecurityException e) {
-                    String errMsg = "Not allowed to accept a connection from: " + s.getInetAddress().getHostAddress() + ":" + s.getPort();
+                    String errMsg = "Not allowed to accept a connection from: " + s.socket().getInetAddress().getHostAddress() + ":" + s.socket().getPort();
                     informBroker(errMsg, true);
                 } catch (Exception e) {
                     String errMsg = "Unmanagable ServerSocket exception occured. Shutting the broker down...";
@@ -613,14 +616,13 @@ public class MessageReceiver extends NetworkEntity {
     }
 
     /**
-     * This class is used for handling the connection initiation
+     * This class is used for handling the connection initiation of the clients
+     * sending a plain object stream, which are then served by a thread each.
      */
-    private class BrokerServingThread implements Runnable {
+    class BrokerServingThread implements Runnable {
 
-        private MessageReceiver broker = MessageReceiver.this;
         private Socket socket;
-
-        private Message message;
+        private InputStream in;
 
         ObjectInputStream inFromClient;
         ObjectOutputStream outToClient;
@@ -628,9 +630,12 @@ public class MessageReceiver extends NetworkEntity {
         /**
          * @param socket Socket for communicating with client (entity -
          * publisher/subscriber)
+         * @param in the input stream of the socket, preceded by the bytes
+         * already read by the event loop
          */
-        public BrokerServingThread(Socket socket) {
+        public BrokerServingThread(Socket socket, InputStream in) {
             this.socket = socket;
+            this.in = in;
         }
 
         /**
@@ -640,14 +645,14 @@ public class MessageReceiver extends NetworkEntity {
         @Override
         public void run() {
 
-            if (!broker.isRunning) {
+            if (!isRunning) {
                 return;
             }
 
             try {
                 outToClient = new ObjectOutputStream(socket.getOutputStream());
                 outToClient.flush();
-                inFromClient = new ObjectInputStream(socket.getInputStream());
+                inFromClient = new ObjectInputStream(in);
             } catch (Exception e1) {
                 try {
                     socket.close();
@@ -668,188 +673,212 @@ public class MessageReceiver extends NetworkEntity {
                 return;
             }
 
-            if (!(objIn instanceof Message)) {
-                try {
-                    socket.close();
-                } catch (Exception e2) {
-                }
-                return;
-            } else {
-                message = (Message) objIn;
-            }
-            if (message instanceof SubscriberRegisterMessage) {
-                registerSubscriber((SubscriberRegisterMessage) message);
-            } else if (message instanceof PublisherRegisterMessage) {
-                connectPublisher((PublisherRegisterMessage) message);
-            } else if (message instanceof MobileBrokerRegisterMessage) {
-                connectMobileBroker((MobileBrokerRegisterMessage) message);
-            } else if (message instanceof MobileBrokerRegisterGCMMessage) {
-                connectMobileBroker((MobileBrokerRegisterGCMMessage) message);
-            } else {
-                //TODO send some sort of NACK...
+            BrokerConnection entity = register(objIn, socket, inFromClient, outToClient);
+            if (entity != null) {
+                new Thread(entity).start(); //start communication thread with the entity
             }
         }
+    }
 
-        /**
-         * Used for registering a new subscriber
-         */
-        private void registerSubscriber(SubscriberRegisterMessage msg) {
+    /**
+     * Registers (or reconnects) the entity whose first message on the
+     * connection is objIn. Returns the entity to be served over the
+     * connection, or null if the connection must not be served (the socket is
+     * closed if the message is not a Message).<br>
+     * The streams are null for connections served by the event loop.
+     */
+    BrokerConnection register(Object objIn, Socket socket, ObjectInputStream inFromClient, ObjectOutputStream outToClient) {
 
-            SubscriberForBroker subscriber = broker.registeredSubscribers.get(msg.getEntityID());
+        if (!(objIn instanceof Message)) {
+            try {
+                socket.close();
+            } catch (Exception e2) {
+            }
+            return null;
+        }
+        Message message = (Message) objIn;
+        if (message instanceof SubscriberRegisterMessage) {
+            return registerSubscriber((SubscriberRegisterMessage) message, socket, inFromClient, outToClient);
+        } else if (message instanceof PublisherRegisterMessage) {
+            return connectPublisher((PublisherRegisterMessage) message, socket, inFromClient, outToClient);
+        } else if (message instanceof MobileBrokerRegisterMessage) {
+            return connectMobileBroker((MobileBrokerRegisterMessage) message, socket, inFromClient, outToClient);
+        } else if (message instanceof MobileBrokerRegisterGCMMessage) {
+            return connectMobileBroker((MobileBrokerRegisterGCMMessage) message, socket, inFromClient, outToClient);
+        } else {
+            //TODO send some sort of NACK...
+            return null;
+        }
+    }
 
-            if (subscriber != null) {
-                informBroker("Reconnecting a previously registered subscriber " + subscriber + ".", false);
+    /**
+     * Used for registering a new subscriber
+     */
+    private BrokerConnection registerSubscriber(SubscriberRegisterMessage msg,
+            Socket socket, ObjectInputStream inFromClient, ObjectOutputStream outToClient) {
 
-                if (subscriber.setSocketAndStreams(socket, inFromClient, outToClient)) {
-                    new Thread(subscriber).start(); //start communication thread with subscriber
-                } else {
-                    //this should never happen...
-                    informBroker("Subscriber " + subscriber + " was already connected?!", false);
-                }
+        SubscriberForBroker subscriber = registeredSubscribers.get(msg.getEntityID());
+        BrokerConnection served = null;
+
+        if (subscriber != null) {
+            informBroker("Reconnecting a previously registered subscriber " + subscriber + ".", false);
+
+            if (subscriber.setSocketAndStreams(socket, inFromClient, outToClient)) {
+                served = subscriber; //start communication with subscriber
             } else {
-                subscriber = new SubscriberForBroker(msg.getEntityName(),
-                        socket.getInetAddress().getHostAddress(), socket.getPort(),
-                        msg.getEntityID(), broker);
-                synchronized (mutexSubscriberList) {
-                    broker.registeredSubscribers.put(msg.getEntityID(), subscriber);
-                }
-                subscriber.setSocketAndStreams(socket, inFromClient, outToClient);
-                new Thread(subscriber).start();
-                sendInternalMessage(new ErrorMessage("RECEIVER!!!1"));
-                informBroker("Subscriber " + subscriber + " registered.", false);
+                //this should never happen...
+                informBroker("Subscriber " + subscriber + " was already connected?!", false);
             }
-            //no need for ACK sending - establishing the return connection
-            //from deliveryService to subscriber will be like ACK
-            sendInternalMessage(msg); //forward to DeliveryService for it to setup the queue and connection beck to subscriber etc.
-        }
+        } else {
+            subscriber = new SubscriberForBroker(msg.getEntityName(),
+                    socket.getInetAddress().getHostAddress(), socket.getPort(),
+                    msg.getEntityID(), this);
+            synchronized (mutexSubscriberList) {
+                registeredSubscribers.put(msg.getEntityID(), subscriber);
+            }
+            subscriber.setSocketAndStreams(socket, inFromClient, outToClient);
+            served = subscriber;
+            sendInternalMessage(new ErrorMessage("RECEIVER!!!1"));
+            informBroker("Subscriber " + subscriber + " registered.", false);
+        }
+        //no need for ACK sending - establishing the return connection
+        //from deliveryService to subscriber will be like ACK
+        sendInternalMessage(msg); //forward to DeliveryService for it to setup the queue and connection beck to subscriber etc.
+        return served;
+    }
 
-        /**
-         * Used for registering a new mobile broker
-         */
-        private void connectMobileBroker(MobileBrokerRegisterMessage msg) {
-            MobileBrokerForBroker mobileBroker = broker.registeredMobileBrokers.get(msg.getEntityID());
+    /**
+     * Used for registering a new mobile broker
+     */
+    private BrokerConnection connectMobileBroker(MobileBrokerRegisterMessage msg,
+            Socket socket, ObjectInputStream inFromClient, ObjectOutputStream outToClient) {
+        MobileBrokerForBroker mobileBroker = registeredMobileBrokers.get(msg.getEntityID());
+        BrokerConnection served = null;
 
-            if (mobileBroker != null) {
-                informBroker("Reconnecting a previously registered mobile broker " + mobileBroker + ".", false);
+        if (mobileBroker != null) {
+            informBroker("Reconnecting a previously registered mobile broker " + mobileBroker + ".", false);
 
-                if (mobileBroker.setSocketAndStreams(socket, inFromClient, outToClient)) {
-                    new Thread(mobileBroker).start(); //start communication thread with mobile broker
-                } else {
-                    //this should never happen...
-                    informBroker("Mobile broker " + mobileBroker + " was already connected?!", false);
-                }
+            if (mobileBroker.setSocketAndStreams(socket, inFromClient, outToClient)) {
+                served = mobileBroker; //start communication with mobile broker
             } else {
-                mobileBroker = new MobileBrokerForBroker(msg.getEntityName(),
-                        socket.getInetAddress().getHostAddress(), socket.getPort(),
-                        msg.getEntityID(), broker);
-                synchronized (mutexMobileBroekrList) {
-                    broker.registeredMobileBrokers.put(msg.getEntityID(), mobileBroker);
-                }
-                mobileBroker.setSocketAndStreams(socket, inFromClient, outToClient);
-
-                SubscriberForBroker subscriber = new SubscriberForBroker(msg.getEntityName(),
-                        socket.getInetAddress().getHostAddress(), socket.getPort(),
-                        msg.getEntityID(), broker);
-                synchronized (mutexSubscriberList) {
-                    broker.registeredSubscribers.put(msg.getEntityID(), subscriber);
-                }
-                subscriber.setSocketAndStreams(socket, inFromClient, outToClient);
+                //this should never happen...
+                informBroker("Mobile broker " + mobileBroker + " was already connected?!", false);
+            }
+        } else {
+            mobileBroker = new MobileBrokerForBroker(msg.getEntityName(),
+                    socket.getInetAddress().getHostAddress(), socket.getPort(),
+                    msg.getEntityID(), this);
+            synchronized (mutexMobileBroekrList) {
+                registeredMobileBrokers.put(msg.getEntityID(), mobileBroker);
+            }
+            mobileBroker.setSocketAndStreams(socket, inFromClient, outToClient);
 
-                PublisherForBroker publisher = new PublisherForBroker(msg.getEntityName(),
-                        socket.getInetAddress().getHostAddress(), socket.getPort(),
-                        msg.getEntityID(), broker);
-                synchronized (mutexPublisherList) {
-                    broker.registeredPublishers.put(msg.getEntityID(), publisher);
-                }
-                publisher.setSocketAndStreams(socket, inFromClient, outToClient);
+            SubscriberForBroker subscriber = new SubscriberForBroker(msg.getEntityName(),
+                    socket.getInetAddress().getHostAddress(), socket.getPort(),
+                    msg.getEntityID(), this);
+            synchronized (mutexSubscriberList) {
+                registeredSubscribers.put(msg.getEntityID(), subscriber);
+            }
+            subscriber.setSocketAndStreams(socket, inFromClient, outToClient);
 
-                new Thread(mobileBroker).start();
-                informBroker("Mobile Broker " + mobileBroker + " registered.", false);
+            PublisherForBroker publisher = new PublisherForBroker(msg.getEntityName(),
+                    socket.getInetAddress().getHostAddress(), socket.getPort(),
+                    msg.getEntityID(), this);
+            synchronized (mutexPublisherList) {
+                registeredPublishers.put(msg.getEntityID(), publisher);
             }
-            //no need for ACK sending - establishing the return connection
-            //from deliveryService to subscriber will be like ACK
-            sendInternalMessage(msg); //forward to DeliveryService for it to setup the queue and connection beck to mobile broker etc.
+            publisher.setSocketAndStreams(socket, inFromClient, outToClient);
+
+            served = mobileBroker;
+            informBroker("Mobile Broker " + mobileBroker + " registered.", false);
         }
+        //no need for ACK sending - establishing the return connection
+        //from deliveryService to subscriber will be like ACK
+        sendInternalMessage(msg); //forward to DeliveryService for it to setup the queue and connection beck to mobile broker etc.
+        return served;
+    }
 
-           /**
-         * Used for registering a new mobile broker
-         */
-        private void connectMobileBroker(MobileBrokerRegisterGCMMessage msg) {
-            MobileBrokerForBroker mobileBroker = broker.registeredMobileBrokers.get(msg.getEntityID());
+    /**
+     * Used for registering a new mobile broker
+     */
+    private BrokerConnection connectMobileBroker(MobileBrokerRegisterGCMMessage msg,
+            Socket socket, ObjectInputStream inFromClient, ObjectOutputStream outToClient) {
+        MobileBrokerForBroker mobileBroker = registeredMobileBrokers.get(msg.getEntityID());
+        BrokerConnection served = null;
 
-            if (mobileBroker != null) {
-                informBroker("Reconnecting a previously registered mobile broker " + mobileBroker + ".", false);
+        if (mobileBroker != null) {
+            informBroker("Reconnecting a previously registered mobile broker " + mobileBroker + ".", false);
 
-                if (mobileBroker.setSocketAndStreams(socket, inFromClient, outToClient)) {
-                    new Thread(mobileBroker).start(); //start communication thread with mobile broker
-                } else {
-                    //this should never happen...
-                    informBroker("Mobile broker " + mobileBroker + " was already connected?!", false);
-                }
+            if (mobileBroker.setSocketAndStreams(socket, inFromClient, outToClient)) {
+                served = mobileBroker; //start communication with mobile broker
             } else {
-                mobileBroker = new MobileBrokerForBroker(msg.getEntityName(),
-                        socket.getInetAddress().getHostAddress(), socket.getPort(),
-                        msg.getEntityID(), broker);
-                synchronized (mutexMobileBroekrList) {
-                    broker.registeredMobileBrokers.put(msg.getEntityID(), mobileBroker);
-                }
-                mobileBroker.setSocketAndStreams(socket, inFromClient, outToClient);
-
-                SubscriberForBroker subscriber = new SubscriberForBroker(msg.getEntityName(),
-                        socket.getInetAddress().getHostAddress(), socket.getPort(),
-                        msg.getEntityID(), broker);
-                synchronized (mutexSubscriberList) {
-                    broker.registeredSubscribers.put(msg.getEntityID(), subscriber);
-                }
-                subscriber.setSocketAndStreams(socket, inFromClient, outToClient);
+                //this should never happen...
+                informBroker("Mobile broker " + mobileBroker + " was already connected?!", false);
+            }
+        } else {
+            mobileBroker = new MobileBrokerForBroker(msg.getEntityName(),
+                    socket.getInetAddress().getHostAddress(), socket.getPort(),
+                    msg.getEntityID(), this);
+            synchronized (mutexMobileBroekrList) {
+                registeredMobileBrokers.put(msg.getEntityID(), mobileBroker);
+            }
+            mobileBroker.setSocketAndStreams(socket, inFromClient, outToClient);
 
-                PublisherForBroker publisher = new PublisherForBroker(msg.getEntityName(),
-                        socket.getInetAddress().getHostAddress(), socket.getPort(),
-                        msg.getEntityID(), broker);
-                synchronized (mutexPublisherList) {
-                    broker.registeredPublishers.put(msg.getEntityID(), publisher);
-                }
-                publisher.setSocketAndStreams(socket, inFromClient, outToClient);
+            SubscriberForBroker subscriber = new SubscriberForBroker(msg.getEntityName(),
+                    socket.getInetAddress().getHostAddress(), socket.getPort(),
+                    msg.getEntityID(), this);
+            synchronized (mutexSubscriberList) {
+                registeredSubscribers.put(msg.getEntityID(), subscriber);
+            }
+            subscriber.setSocketAndStreams(socket, inFromClient, outToClient);
 
-                new Thread(mobileBroker).start();
-                informBroker("Mobile Broker " + mobileBroker + " registered.", false);
+            PublisherForBroker publisher = new PublisherForBroker(msg.getEntityName(),
+                    socket.getInetAddress().getHostAddress(), socket.getPort(),
+                    msg.getEntityID(), this);
+            synchronized (mutexPublisherList) {
+                registeredPublishers.put(msg.getEntityID(), publisher);
             }
-            //no need for ACK sending - establishing the return connection
-            //from deliveryService to subscriber will be like ACK
-            sendInternalMessage(msg); //forward to DeliveryService for it to setup the queue and connection beck to mobile broker etc.
+            publisher.setSocketAndStreams(socket, inFromClient, outToClient);
+
+            served = mobileBroker;
+            informBroker("Mobile Broker " + mobileBroker + " registered.", false);
         }
+        //no need for ACK sending - establishing the return connection
+        //from deliveryService to subscriber will be like ACK
+        sendInternalMessage(msg); //forward to DeliveryService for it to setup the queue and connection beck to mobile broker etc.
+        return served;
+    }
 
-        /**
-         * Used for registering a new publisher (with publishers there is no
-         * difference between registering and connecting)
-         */
-        private void connectPublisher(PublisherRegisterMessage msg) {
-            informBroker("Received a publisher register message...", false);
+    /**
+     * Used for registering a new publisher (with publishers there is no
+     * difference between registering and connecting)
+     */
+    private BrokerConnection connectPublisher(PublisherRegisterMessage msg,
+            Socket socket, ObjectInputStream inFromClient, ObjectOutputStream outToClient) {
+        informBroker("Received a publisher register message...", false);
 
-            PublisherForBroker publisher = broker.registeredPublishers.get(msg.getEntityID());
+        PublisherForBroker publisher = registeredPublishers.get(msg.getEntityID());
 
-            if (publisher != null) { //should not happen
-                if (publisher.isRunning()) {
-                    informBroker("Publisher " + publisher + " already connected?!", true);
-                    return;
-                } else {
-                    informBroker("WARNING: Publisher " + publisher + " was found registered on broker but unconnected?!", true);
-                    publisher.setSocketAndStreams(socket, inFromClient, outToClient);
-                    new Thread(publisher).start();
-                }
+        if (publisher != null) { //should not happen
+            if (publisher.isRunning()) {
+                informBroker("Publisher " + publisher + " already connected?!", true);
+                return null;
             } else {
-                publisher = new PublisherForBroker(msg.getEntityName(),
-                        socket.getInetAddress().getHostAddress(), socket.getPort(),
-                        msg.getEntityID(), broker);
-                synchronized (mutexPublisherList) {
-                    broker.registeredPublishers.put(msg.getEntityID(), publisher);
-                }
+                informBroker("WARNING: Publisher " + publisher + " was found registered on broker but unconnected?!", true);
                 publisher.setSocketAndStreams(socket, inFromClient, outToClient);
-                new Thread(publisher).start();
-                informBroker("Publisher " + publisher + " connected.", false);
             }
-            //TODO send some osrt of ACK
+        } else {
+            publisher = new PublisherForBroker(msg.getEntityName(),
+                    socket.getInetAddress().getHostAddress(), socket.getPort(),
+                    msg.getEntityID(), this);
+            synchronized (mutexPublisherList) {
+                registeredPublishers.put(msg.getEntityID(), publisher);
+            }
+            publisher.setSocketAndStreams(socket, inFromClient, outToClient);
+            informBroker("Publisher " + publisher + " connected.", false);
         }
+        //TODO send some osrt of ACK
+        return publisher;
     }
 
        //::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::
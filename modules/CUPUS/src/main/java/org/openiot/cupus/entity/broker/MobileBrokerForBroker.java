@@ -41,7 +41,7 @@ import org.openiot.cupus.message.external.SubscribeMessage;
  * @author Aleksandar NOTE: STO JE NAKON DISCONNECTA S
  * subscriberom/publisherom/announceom!!!!
  */
-public class MobileBrokerForBroker extends NetworkEntity implements Runnable {
+public class MobileBrokerForBroker extends NetworkEntity implements BrokerConnection {
 
     protected UUID mbID;
     protected MessageReceiver broker;
@@ -49,7 +49,7 @@ public class MobileBrokerForBroker extends NetworkEntity implements Runnable {
     ObjectInputStream inFromClient;
     ObjectOutputStream outToClient;
     private Message message;
-    private boolean isRunning = false;
+    private volatile boolean isRunning = false;
 
     /**
      * Constructor
@@ -68,10 +68,9 @@ public class MobileBrokerForBroker extends NetworkEntity implements Runnable {
 
     @Override
     public void run() {
-        if (isRunning || !broker.isRunning) {
+        if (!open()) {
             return;
         }
-        isRunning = true;
 
         while (isRunning) {
 
@@ -79,43 +78,65 @@ public class MobileBrokerForBroker extends NetworkEntity implements Runnable {
             try {
                 objIn = inFromClient.readObject();
             } catch (Exception e) {
-                terminateConnection();
-                broker.sendInternalMessage(
-                        new MobileBrokerDisconnectMessage(myName, getId()));
+                connectionLost();
                 return;
             }
 
-            if (!(objIn instanceof Message)) {
-                //TODO send some sort of NACK
-                continue;
-            } else {
-                message = (Message) objIn;
-            }
-
-            if (message instanceof MobileBrokerDisconnectMessage) {
-                terminateConnection();
-                broker.sendInternalMessage(message);
-                //TODO send some sort of ACK
+            if (!process(objIn)) {
                 return;
-                /*} else if (message instanceof SubscriberUnregisterMessage) {
-                 terminateConnection();
-                 broker.removeSubscriber((SubscriberUnregisterMessage)message);
-                 //TODO send some sort of ACK
-                 return;*/
-            } else if (message instanceof SubscribeMessage) {
-                broker.subscribe(mbID, (SubscribeMessage) message);
-                //TODO send some sort of ACK
-            } else if (message instanceof PublishMessage) {
-                broker.publish(mbID, (PublishMessage) message);
-                //TODO send some sort of ACK
-            } else if (message instanceof AnnounceMessage) {
-                broker.announce(mbID, (AnnounceMessage) message);
-                //TODO send some sort of ACK
             }
         }
         terminateConnection(); //just in case
     }
 
+    @Override
+    public boolean open() {
+        if (isRunning || !broker.isRunning) {
+            return false;
+        }
+        isRunning = true;
+        return true;
+    }
+
+    @Override
+    public boolean process(Object objIn) {
+        if (!(objIn instanceof Message)) {
+            //TODO send some sort of NACK
+            return true;
+        } else {
+            message = (Message) objIn;
+        }
+
+        if (message instanceof MobileBrokerDisconnectMessage) {
+            terminateConnection();
+            broker.sendInternalMessage(message);
+            //TODO send some sort of ACK
+            return false;
+            /*} else if (message instanceof SubscriberUnregisterMessage) {
+             terminateConnection();
+             broker.removeSubscriber((SubscriberUnregisterMessage)message);
+             //TODO send some sort of ACK
+             return false;*/
+        } else if (message instanceof SubscribeMessage) {
+            broker.subscribe(mbID, (SubscribeMessage) message);
+            //TODO send some sort of ACK
+        } else if (message instanceof PublishMessage) {
+            broker.publish(mbID, (PublishMessage) message);
+            //TODO send some sort of ACK
+        } else if (message instanceof AnnounceMessage) {
+            broker.announce(mbID, (AnnounceMessage) message);
+            //TODO send some sort of ACK
+        }
+        return true;
+    }
+
+    @Override
+    public void connectionLost() {
+        terminateConnection();
+        broker.sendInternalMessage(
+                new MobileBrokerDisconnectMessage(myName, getId()));
+    }
+
     /**
      * Used for terminating the connection to the mobile broker
      */
@@ -38,7 +38,7 @@ import org.openiot.cupus.message.external.PublisherDisconnectMessage;
  * @author Eugen
  *
  */
-public class PublisherForBroker extends NetworkEntity implements Runnable {
+public class PublisherForBroker extends NetworkEntity implements BrokerConnection {
 
     protected UUID pubID;
 
@@ -50,7 +50,7 @@ public class PublisherForBroker extends NetworkEntity implements Runnable {
     ObjectInputStream inFromClient;
     ObjectOutputStream outToClient;
 
-    private boolean isRunning = false;
+    private volatile boolean isRunning = false;
 
     /**
      * Constructor
@@ -70,10 +70,9 @@ public class PublisherForBroker extends NetworkEntity implements Runnable {
     @Override
     public void run() {
 
-        if (isRunning || !broker.isRunning) {
+        if (!open()) {
             return;
         }
-        isRunning = true;
 
         while (isRunning) {
             Object objIn = null;
@@ -86,22 +85,45 @@ public class PublisherForBroker extends NetworkEntity implements Runnable {
                 }
                 break;
             }
-            
-            if (!(objIn instanceof Message)) {
-                //TODO send some sort of NACK
-                continue;
-            } else {
-                message = (Message) objIn;
-            }
 
-            if (message instanceof PublisherDisconnectMessage) {
-                //TODO send some sort of ACK
-                break;
-            } else if (message instanceof PublishMessage) {
-                broker.publish(pubID, (PublishMessage) message);
-                //TODO send some sort of ACK
+            if (!process(objIn)) {
+                return;
             }
         }
+        connectionLost();
+    }
+
+    @Override
+    public boolean open() {
+        if (isRunning || !broker.isRunning) {
+            return false;
+        }
+        isRunning = true;
+        return true;
+    }
+
+    @Override
+    public boolean process(Object objIn) {
+        if (!(objIn instanceof Message)) {
+            //TODO send some sort of NACK
+            return true;
+        } else {
+            message = (Message) objIn;
+        }
+
+        if (message instanceof PublisherDisconnectMessage) {
+            //TODO send some sort of ACK
+            connectionLost();
+            return false;
+        } else if (message instanceof PublishMessage) {
+            broker.publish(pubID, (PublishMessage) message);
+            //TODO send some sort of ACK
+        }
+        return true;
+    }
+
+    @Override
+    public void connectionLost() {
         terminateConnection();
         broker.removePublisher(pubID);
     }
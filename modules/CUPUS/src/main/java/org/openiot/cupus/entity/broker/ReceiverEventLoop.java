@@ -0,0 +1,422 @@
+/**
+ * Copyright (c) 2011-2014, OpenIoT
+ *
+ * This file is part of OpenIoT.
+ *
+ * OpenIoT is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, version 3 of the License.
+ *
+ * OpenIoT is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with OpenIoT. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Contact: OpenIoT mailto: info@openiot.eu
+ */
+package org.openiot.cupus.entity.broker;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.SequenceInputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openiot.cupus.util.FramedObjectOutputStream;
+
+/**
+ * Serves all the connections accepted by the MessageReceiver with a small
+ * fixed set of I/O threads, each running a selector over its share of the
+ * connections, instead of one blocking reader thread per entity.
+ *
+ * The I/O threads only cut the received bytes into frames (see
+ * FramedObjectOutputStream), the frames being deserialized and processed by a
+ * pool of worker threads, in order for each connection. A connection having
+ * more than MAX_PENDING_FRAMES frames waiting to be processed is not read any
+ * more until half of them are, so slow processing pushes back on the producer
+ * through TCP instead of filling the broker's memory.
+ *
+ * Connections starting with the header of a plain ObjectOutputStream (older
+ * clients) are handed over to a blocking BrokerServingThread as before.
+ */
+class ReceiverEventLoop {
+
+    /** Header of a java.io.ObjectOutputStream (magic and version) */
+    private static final int OBJECT_STREAM_HEADER = 0xACED0005;
+
+    private static final int MAX_PENDING_FRAMES = 64;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final MessageReceiver receiver;
+    private final IOThread[] ioThreads;
+    private final ExecutorService workers;
+    private final AtomicInteger next = new AtomicInteger();
+
+    ReceiverEventLoop(MessageReceiver receiver, int ioThreadCount, int workerCount) throws IOException {
+        this.receiver = receiver;
+        this.ioThreads = new IOThread[ioThreadCount];
+        for (int i = 0; i < ioThreadCount; i++) {
+            ioThreads[i] = new IOThread(i);
+        }
+        this.workers = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "receiver-worker-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    void start() {
+        for (IOThread t : ioThreads) {
+            t.start();
+        }
+    }
+
+    /**
+     * Hands an accepted connection to one of the I/O threads (round robin).
+     */
+    void register(final SocketChannel channel) {
+        final IOThread owner = ioThreads[(next.getAndIncrement() & Integer.MAX_VALUE) % ioThreads.length];
+        owner.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.configureBlocking(false);
+                    Connection connection = new Connection(channel, owner);
+                    connection.key = channel.register(owner.selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    close(channel);
+                }
+            }
+        });
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            //ignoring...
+        }
+    }
+
+    /**
+     * Runs a selector over a part of the connections.
+     */
+    private class IOThread extends Thread {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final List<Connection> handovers = new ArrayList<Connection>();
+
+        IOThread(int i) throws IOException {
+            super("receiver-io-" + i);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        /**
+         * Runs the task on this thread, between two selections.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (receiver.isRunning) {
+                try {
+                    if (handovers.isEmpty()) {
+                        selector.select();
+                    } else {
+                        //the cancelled keys are only deregistered by a selection
+                        selector.selectNow();
+                        for (Connection c : handovers) {
+                            c.handOver();
+                        }
+                        handovers.clear();
+                    }
+                } catch (IOException e) {
+                    receiver.informBroker("Receiver selector failed: " + e, true);
+                    continue;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    Connection c = (Connection) key.attachment();
+                    try {
+                        c.read(readBuffer);
+                    } catch (Exception e) {
+                        //IOException, or the key cancelled by a worker closing the connection
+                        c.lost();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * One accepted connection: the bytes of an incomplete frame and the frames
+     * waiting to be processed.
+     */
+    private class Connection implements Runnable {
+
+        private final SocketChannel channel;
+        private final IOThread owner;
+        private SelectionKey key;
+
+        private boolean started = false;
+        //bytes left over from the previous read (incomplete length or small frame)
+        private byte[] leftover;
+        //body of a frame larger than the read buffer, read in place
+        private ByteBuffer frame;
+        private byte[] handoverPrefix;
+
+        //guarded by this
+        private final Queue<byte[]> inbox = new ArrayDeque<byte[]>();
+        private boolean scheduled = false;
+        private boolean suspended = false;
+        private boolean closed = false;
+
+        //only used by the worker currently draining the inbox
+        private BrokerConnection entity;
+        private boolean done = false;
+
+        private final Runnable resume = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    key.interestOps(SelectionKey.OP_READ);
+                } catch (Exception e) {
+                    //closed in the meantime
+                }
+            }
+        };
+
+        Connection(SocketChannel channel, IOThread owner) {
+            this.channel = channel;
+            this.owner = owner;
+        }
+
+        /**
+         * Reads what is available and queues the complete frames (I/O thread).
+         */
+        void read(ByteBuffer buffer) throws IOException {
+            if (frame != null) {
+                if (channel.read(frame) < 0) {
+                    throw new EOFException();
+                }
+                if (frame.hasRemaining()) {
+                    return;
+                }
+                received(frame.array());
+                frame = null;
+            }
+
+            buffer.clear();
+            if (leftover != null) {
+                buffer.put(leftover);
+                leftover = null;
+            }
+            int n = channel.read(buffer);
+            buffer.flip();
+            while (buffer.remaining() >= 4) {
+                int length = buffer.getInt(buffer.position());
+                if (!started) {
+                    started = true;
+                    if (length == OBJECT_STREAM_HEADER) {
+                        //an older client, served by a blocking thread from now on
+                        handoverPrefix = new byte[buffer.remaining()];
+                        buffer.get(handoverPrefix);
+                        key.cancel();
+                        owner.handovers.add(this);
+                        return;
+                    } else if (length != FramedObjectOutputStream.MAGIC) {
+                        throw new IOException("Unknown protocol");
+                    }
+                    buffer.getInt();
+                    continue;
+                }
+                if (length <= 0 || length > FramedObjectOutputStream.MAX_FRAME_SIZE) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                if (buffer.remaining() - 4 >= length) {
+                    buffer.getInt();
+                    byte[] bytes = new byte[length];
+                    buffer.get(bytes);
+                    received(bytes);
+                } else if (length + 4 > buffer.capacity()) {
+                    buffer.getInt();
+                    frame = ByteBuffer.allocate(length);
+                    frame.put(buffer);
+                    break;
+                } else {
+                    break;
+                }
+            }
+            if (buffer.hasRemaining()) {
+                leftover = new byte[buffer.remaining()];
+                buffer.get(leftover);
+            }
+            if (n < 0) {
+                throw new EOFException();
+            }
+        }
+
+        private void received(byte[] bytes) {
+            receiver.pendingFrames.incrementAndGet();
+            synchronized (this) {
+                inbox.add(bytes);
+                if (!suspended && inbox.size() >= MAX_PENDING_FRAMES) {
+                    suspended = true;
+                    key.interestOps(0);
+                }
+                schedule();
+            }
+        }
+
+        /**
+         * The connection broke or was closed (I/O thread).
+         */
+        void lost() {
+            close(channel);
+            synchronized (this) {
+                closed = true;
+                schedule();
+            }
+        }
+
+        private void schedule() {
+            if (!scheduled) {
+                scheduled = true;
+                workers.execute(this);
+            }
+        }
+
+        /**
+         * Continues with a blocking BrokerServingThread, the bytes already read
+         * being replayed to its object stream (I/O thread, key deregistered).
+         */
+        void handOver() {
+            try {
+                channel.configureBlocking(true);
+                Socket socket = channel.socket();
+                new Thread(receiver.new BrokerServingThread(socket,
+                        new SequenceInputStream(new ByteArrayInputStream(handoverPrefix), socket.getInputStream()))).start();
+            } catch (IOException e) {
+                close(channel);
+            }
+        }
+
+        /**
+         * Processes the queued frames in order (worker thread).
+         */
+        @Override
+        public void run() {
+            while (true) {
+                byte[] bytes;
+                boolean resumeReading = false;
+                boolean notifyLost = false;
+                synchronized (this) {
+                    bytes = inbox.poll();
+                    if (bytes == null) {
+                        scheduled = false;
+                        if (!closed) {
+                            return;
+                        }
+                        notifyLost = !done;
+                        done = true;
+                    } else if (suspended && inbox.size() <= MAX_PENDING_FRAMES / 2) {
+                        suspended = false;
+                        resumeReading = true;
+                    }
+                }
+                if (notifyLost) {
+                    if (entity != null) {
+                        entity.connectionLost();
+                    }
+                    return;
+                } else if (bytes == null) {
+                    return;
+                }
+                receiver.pendingFrames.decrementAndGet();
+                if (resumeReading) {
+                    owner.execute(resume);
+                }
+                if (!done) {
+                    process(bytes);
+                }
+            }
+        }
+
+        private void process(byte[] bytes) {
+            Object objIn;
+            try {
+                objIn = FramedObjectOutputStream.readFrame(bytes);
+            } catch (Exception e) {
+                receiver.informBroker("Undecodable frame received (" + e + "), closing the connection.", true);
+                terminate();
+                return;
+            }
+            if (entity == null) {
+                //the first message registers the entity served by this connection
+                entity = receiver.register(objIn, channel.socket(), null, null);
+                if (entity == null || !entity.open()) {
+                    entity = null;
+                    terminate();
+                }
+            } else if (!entity.process(objIn)) {
+                done = true;
+            }
+        }
+
+        /**
+         * Closes the connection from the worker thread. The I/O thread won't
+         * report it, so the entity is told here that its connection is gone.
+         */
+        private void terminate() {
+            boolean notifyLost;
+            synchronized (this) {
+                notifyLost = !done;
+                done = true;
+            }
+            close(channel);
+            if (notifyLost && entity != null) {
+                entity.connectionLost();
+            }
+        }
+    }
+}
@@ -39,7 +39,7 @@ import org.openiot.cupus.message.external.SubscriberUnregisterMessage;
  * @author Eugen
  *
  */
-public class SubscriberForBroker extends NetworkEntity implements Runnable {
+public class SubscriberForBroker extends NetworkEntity implements BrokerConnection {
 
     protected UUID subID;
 
@@ -50,7 +50,7 @@ public class SubscriberForBroker extends NetworkEntity implements Runnable {
 
     private Message message;
 
-    private boolean isRunning = false;
+    private volatile boolean isRunning = false;
 
     /**
      * Constructor
@@ -69,10 +69,9 @@ public class SubscriberForBroker extends NetworkEntity implements Runnable {
 
     @Override
     public void run() {
-        if (isRunning || !broker.isRunning) {
+        if (!open()) {
             return;
         }
-        isRunning = true;
 
         while (isRunning) {
 
@@ -80,37 +79,59 @@ public class SubscriberForBroker extends NetworkEntity implements Runnable {
             try {
                 objIn = inFromClient.readObject();
             } catch (Exception e) {
-                terminateConnection();
-                broker.sendInternalMessage(
-                        new SubscriberDisconnectMessage(myName, getId()));
+                connectionLost();
                 return;
             }
 
-            if (!(objIn instanceof Message)) {
-                //TODO send some sort of NACK
-                continue;
-            } else {
-                message = (Message) objIn;
-            }
-
-            if (message instanceof SubscriberDisconnectMessage) {
-                terminateConnection();
-                broker.sendInternalMessage(message);
-                //TODO send some sort of ACK
+            if (!process(objIn)) {
                 return;
-            } else if (message instanceof SubscriberUnregisterMessage) {
-                terminateConnection();
-                broker.removeSubscriber((SubscriberUnregisterMessage) message);
-                //TODO send some sort of ACK
-                return;
-            } else if (message instanceof SubscribeMessage) {
-                broker.subscribe(subID, (SubscribeMessage) message);
-                //TODO send some sort of ACK
             }
         }
         terminateConnection(); //just in case
     }
 
+    @Override
+    public boolean open() {
+        if (isRunning || !broker.isRunning) {
+            return false;
+        }
+        isRunning = true;
+        return true;
+    }
+
+    @Override
+    public boolean process(Object objIn) {
+        if (!(objIn instanceof Message)) {
+            //TODO send some sort of NACK
+            return true;
+        } else {
+            message = (Message) objIn;
+        }
+
+        if (message instanceof SubscriberDisconnectMessage) {
+            terminateConnection();
+            broker.sendInternalMessage(message);
+            //TODO send some sort of ACK
+            return false;
+        } else if (message instanceof SubscriberUnregisterMessage) {
+            terminateConnection();
+            broker.removeSubscriber((SubscriberUnregisterMessage) message);
+            //TODO send some sort of ACK
+            return false;
+        } else if (message instanceof SubscribeMessage) {
+            broker.subscribe(subID, (SubscribeMessage) message);
+            //TODO send some sort of ACK
+        }
+        return true;
+    }
+
+    @Override
+    public void connectionLost() {
+        terminateConnection();
+        broker.sendInternalMessage(
+                new SubscriberDisconnectMessage(myName, getId()));
+    }
+
     /**
      * Used for terminating the connection to the subscriber
      */
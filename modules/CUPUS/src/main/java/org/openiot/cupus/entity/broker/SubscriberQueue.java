@@ -25,6 +25,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 import org.apache.commons.codec.binary.Base64;
 
@@ -46,6 +48,10 @@ public class SubscriberQueue implements Runnable {
 
     private MinimalistLinkedHashQueue<Message> queue;
     private Object queueMutex = new Object();
+    //when each of the queued messages was queued (for the delivery lag)
+    private Map<Message, Long> queuedAt = new HashMap<Message, Long>();
+    //false once the queue was removed from the DeliveryService
+    private boolean counted = true;
 
     private UUID entityID;
     private Socket socket;
@@ -98,6 +104,14 @@ public class SubscriberQueue implements Runnable {
                         if (sendMessage(next)) //if the message is successfully sent then remove it from queue
                         {
                             queue.poll();
+                            Long since = queuedAt.remove(next);
+                            if (counted) {
+                                broker.queuedMessages.decrementAndGet();
+                                broker.notificationsSent.inc();
+                                if (since != null) {
+                                    broker.deliveryLag.recordSince(since);
+                                }
+                            }
                         }
                     }
                 }
@@ -116,11 +130,17 @@ public class SubscriberQueue implements Runnable {
         synchronized (queueMutex) {
             if (!queue.offer(msg)) {
                 if (queue.isFull()) {
+                    broker.notificationsDropped.inc();
                     broker.informBroker("Entity ID=" + entityID + " not notified of publication or subscription"
                             + " " + msg + " because queue is full!", true);
                 }
                 return false;
             } else {
+                queuedAt.put(msg, System.nanoTime());
+                if (counted) {
+                    broker.queuedMessages.incrementAndGet();
+                    broker.notificationsQueued.inc();
+                }
                 queueMutex.notify(); //let the sending thread know there is something new in the queue
                 return true;
             }
@@ -135,7 +155,27 @@ public class SubscriberQueue implements Runnable {
             return false;
         }
         synchronized (queueMutex) {
-            return queue.remove(msg);
+            if (!queue.remove(msg)) {
+                return false;
+            }
+            queuedAt.remove(msg);
+            if (counted) {
+                broker.queuedMessages.decrementAndGet();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Called when the queue is removed from the DeliveryService, so its
+     * messages are not counted in the queued messages any more.
+     */
+    void detachFromMetrics() {
+        synchronized (queueMutex) {
+            if (counted) {
+                counted = false;
+                broker.queuedMessages.addAndGet(-queue.size());
+            }
         }
     }
 
@@ -25,7 +25,6 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
@@ -49,6 +48,7 @@ import org.openiot.cupus.message.external.NotifyMessage;
 import org.openiot.cupus.message.external.NotifySubscriptionMessage;
 import org.openiot.cupus.message.external.PublishMessage;
 import org.openiot.cupus.message.external.SubscribeMessage;
+import org.openiot.cupus.util.FramedObjectOutputStream;
 import org.openiot.cupus.util.LogWriter;
 import org.openiot.cupus.util.ReadingWritingXML;
 
@@ -88,7 +88,7 @@ public class MobileBroker extends NetworkEntity implements MobileBrokerInterface
      * to the Broker
      */
     private Socket sendingSocket = null;
-    private ObjectOutputStream sendingOut = null;
+    private FramedObjectOutputStream sendingOut = null;
     /**
      * Socket for incoming notifications (about matched publications) from the
      * Broker
@@ -194,7 +194,7 @@ public class MobileBroker extends NetworkEntity implements MobileBrokerInterface
         try {
             sendingSocket = new Socket(this.myBrokerIP, this.myBrokerPort);
             this.myPort = sendingSocket.getLocalPort();
-            sendingOut = new ObjectOutputStream(sendingSocket.getOutputStream());
+            sendingOut = new FramedObjectOutputStream(sendingSocket.getOutputStream());
             sendingOut.flush();
         } catch (UnknownHostException ex) {
             log.writeToLog("Connecting failed - Unknown Broker Host or Port: " + ex);
@@ -23,7 +23,6 @@ package org.openiot.cupus.entity.publisher;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
@@ -39,6 +38,7 @@ import org.openiot.cupus.message.Message;
 import org.openiot.cupus.message.external.PublishMessage;
 import org.openiot.cupus.message.external.PublisherDisconnectMessage;
 import org.openiot.cupus.message.external.PublisherRegisterMessage;
+import org.openiot.cupus.util.FramedObjectOutputStream;
 import org.openiot.cupus.util.LogWriter;
 import org.openiot.cupus.util.ReadingWritingXML;
 
@@ -63,7 +63,7 @@ public class Publisher extends NetworkEntity implements PublisherInterface {
 	private boolean testing = true;
 
 	private Socket socket;
-	private ObjectOutputStream out;
+	private FramedObjectOutputStream out;
 
 	/**
 	 * Constructor - publisher can be created via configuration file or directly
@@ -157,7 +157,7 @@ public class Publisher extends NetworkEntity implements PublisherInterface {
 		try {
 			socket = new Socket(this.myBrokerIP, this.myBrokerPort);
 			this.myPort = socket.getLocalPort();
-			out = new ObjectOutputStream(socket.getOutputStream());
+			out = new FramedObjectOutputStream(socket.getOutputStream());
 			out.flush();
 		} catch (UnknownHostException ex) {
 			log.writeToLog("Connecting failed - Unknown Broker Host or Port: " + ex);
@@ -24,7 +24,6 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
@@ -45,6 +44,7 @@ import org.openiot.cupus.message.external.SubscribeMessage;
 import org.openiot.cupus.message.external.SubscriberDisconnectMessage;
 import org.openiot.cupus.message.external.SubscriberRegisterMessage;
 import org.openiot.cupus.message.external.SubscriberUnregisterMessage;
+import org.openiot.cupus.util.FramedObjectOutputStream;
 import org.openiot.cupus.util.LogWriter;
 import org.openiot.cupus.util.ReadingWritingXML;
 
@@ -75,7 +75,7 @@ public class Subscriber extends NetworkEntity implements SubscriberInterface {
 
 	/** Socket for sending messages (subscriptions and connect/disconnect/etc.) to the Broker */
 	private Socket sendingSocket = null;
-	private ObjectOutputStream sendingOut = null;
+	private FramedObjectOutputStream sendingOut = null;
 	//private ObjectInputStream sendingIn;
 	
 	/** Socket for incoming notifications (about matched publications) from the Broker */
@@ -180,7 +180,7 @@ public class Subscriber extends NetworkEntity implements SubscriberInterface {
 		try {
 			sendingSocket = new Socket(this.myBrokerIP, this.myBrokerPort);
 			this.myPort = sendingSocket.getLocalPort();
-			sendingOut = new ObjectOutputStream(sendingSocket.getOutputStream());
+			sendingOut = new FramedObjectOutputStream(sendingSocket.getOutputStream());
 			sendingOut.flush();
 		} catch (UnknownHostException ex) {
 			log.writeToLog("Connecting failed - Unknown Broker Host or Port: " + ex);
@@ -0,0 +1,97 @@
+/**
+ *    Copyright (c) 2011-2014, OpenIoT
+ *
+ *    This file is part of OpenIoT.
+ *
+ *    OpenIoT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3 of the License.
+ *
+ *    OpenIoT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Contact: OpenIoT mailto: info@openiot.eu
+ */
+
+package org.openiot.cupus.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes objects as length-prefixed frames, the format the MessageReceiver of a
+ * broker reads with its event loop.
+ *
+ * The stream starts with the 4 bytes of MAGIC (so the broker can tell it from
+ * the header of a plain ObjectOutputStream), followed by one frame per object:
+ * an int length and the object serialized on its own, so that every frame can
+ * be decoded independently of the others.
+ *
+ * It has the writeObject/flush/close methods of ObjectOutputStream so the
+ * entities can use it in place of one.
+ */
+public class FramedObjectOutputStream {
+
+	/** "CPUF" */
+	public static final int MAGIC = 0x43505546;
+
+	/** Frames longer than this are considered corrupted */
+	public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+	private DataOutputStream out;
+
+	private ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+
+	/**
+	 * Writes the stream header (doesn't flush it).
+	 */
+	public FramedObjectOutputStream(OutputStream out) throws IOException {
+		this.out = new DataOutputStream(out);
+		this.out.writeInt(MAGIC);
+	}
+
+	/**
+	 * Writes the object as a single frame.
+	 */
+	public synchronized void writeObject(Object o) throws IOException {
+		buffer.reset();
+		ObjectOutputStream oos = new ObjectOutputStream(buffer);
+		oos.writeObject(o);
+		oos.close();
+		if (buffer.size() > MAX_FRAME_SIZE) {
+			throw new IOException("Object too large to be sent (" + buffer.size() + " bytes)");
+		}
+		out.writeInt(buffer.size());
+		buffer.writeTo(out);
+	}
+
+	public synchronized void flush() throws IOException {
+		out.flush();
+	}
+
+	public synchronized void close() throws IOException {
+		out.close();
+	}
+
+	/**
+	 * Deserializes the content of one frame.
+	 */
+	public static Object readFrame(byte[] frame) throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(frame));
+		try {
+			return in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+}
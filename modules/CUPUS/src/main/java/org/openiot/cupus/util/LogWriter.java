@@ -1,6 +1,6 @@
 /**
  *    Copyright (c) 2011-2014, OpenIoT
- *    
+ *
  *    This file is part of OpenIoT.
  *
  *    OpenIoT is free software: you can redistribute it and/or modify
@@ -25,26 +25,52 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A class that writes to a file if the logging flag is set and/or to the stdout
  * if the testing flag is set.
- * 
+ *
+ * The lines for the file are put in a bounded buffer (with the time they were
+ * logged at) and written by a background thread, so the components never wait
+ * for the disk. The file is flushed whenever the buffer is emptied. If the
+ * writer can't keep up the lines that don't fit in the buffer are dropped and
+ * their number written to the log instead. If writing fails the error is
+ * reported on stderr and the file is reopened for the next lines.
+ *
  * @author Eugen
- * 
+ *
  */
 public class LogWriter {
 
 	private BufferedWriter log;
+	private File file;
 	public static final String DATE_FORMAT_NOW = "dd.MM.yyyy HH:mm:ss";
 
+	/** Number of lines that can wait to be written */
+	public static final int BUFFER_CAPACITY = 8192;
+
+	private static final Object[] END = new Object[0];
+
 	private boolean logging;
 	private boolean testing;
 
+	private BlockingQueue<Entry> buffer;
+	private AtomicLong dropped = new AtomicLong();
+	private Thread writer;
+	private Thread shutdownHook;
+	private volatile boolean closed = false;
+
 	/**
 	 * Constructor
-	 * 
+	 *
 	 * @param filename
 	 *            name of file where to write log.
 	 */
@@ -52,32 +78,45 @@ public class LogWriter {
 		this.logging = logging;
 		this.testing = testing;
 		if (logging) {
+			File folder = new File("log");
 			try {
-				File folder = new File("log");
 				folder.mkdir();
-				log = new BufferedWriter(new FileWriter("log/" + filename));
-				writeToLog("Log file: " + folder.getCanonicalPath()
-						+ File.separator + filename);
+				file = new File(folder, filename);
+				log = new BufferedWriter(new FileWriter(file));
 			} catch (Exception e) {
 				throw new RuntimeException("Faild to make the log file...", e);
 			}
+			buffer = new ArrayBlockingQueue<Entry>(BUFFER_CAPACITY);
+			writer = new Thread(new Writer(), "log-writer-" + filename);
+			writer.setDaemon(true);
+			writer.start();
+			//the components are stopped with System.exit...
+			shutdownHook = new Thread() {
+				@Override
+				public void run() {
+					drain();
+				}
+			};
+			Runtime.getRuntime().addShutdownHook(shutdownHook);
+			try {
+				writeToLog("Log file: " + folder.getCanonicalPath()
+						+ File.separator + filename);
+			} catch (IOException e) {
+				writeToLog("Log file: " + folder.getAbsolutePath()
+						+ File.separator + filename);
+			}
 		}
 	}
 
 	/**
 	 * Writes string to log.
-	 * 
+	 *
 	 * @param text
 	 *            Input text for writing
 	 */
 	public void writeToLog(String text, boolean forceToScreen) {
 		if (logging) {
-			try {
-				log.write(now() + " " + text + "\n");
-				log.flush();
-			} catch (IOException e) {
-				// logging error... so what xD
-			}
+			enqueue(new Entry(System.currentTimeMillis(), text, null));
 		}
 		if (testing || forceToScreen) {
 			System.out.println(text);
@@ -88,10 +127,37 @@ public class LogWriter {
 		writeToLog(text, false);
 	}
 
+	/**
+	 * Writes the concatenation of the string values of the parts to the log.
+	 * The parts are only converted to strings by the writer thread (and only if
+	 * logging is on), so publications and subscriptions can be passed as they
+	 * are on the hot paths. They must not be changed after being logged.
+	 */
+	public void writeToLogLazy(Object... parts) {
+		if (testing) {
+			writeToLog(concat(parts), false);
+		} else if (logging) {
+			enqueue(new Entry(System.currentTimeMillis(), null, parts));
+		}
+	}
+
+	/**
+	 * Returns true if the lines are written to the log file.
+	 */
+	public boolean isLogging() {
+		return logging && !closed;
+	}
+
+	private void enqueue(Entry entry) {
+		if (closed || !buffer.offer(entry)) {
+			dropped.incrementAndGet();
+		}
+	}
+
 	/**
 	 * Adds "ERROR: " in front of the given string and forces the output to
 	 * screen [calls writeToLog("ERROR: "+error, true)]
-	 * 
+	 *
 	 * @param error
 	 *            Msn to print/log
 	 */
@@ -100,7 +166,7 @@ public class LogWriter {
 	}
 
 	/**
-	 * 
+	 *
 	 * This method returns current time in format set by DATE_FORMAT_NOW
 	 */
 	public static String now() {
@@ -111,13 +177,174 @@ public class LogWriter {
 	}
 
 	/**
-	 * Closes log
+	 * Writes the lines still in the buffer and closes the log.
 	 */
 	public void close() {
+		if (!logging) {
+			return;
+		}
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch (IllegalStateException e) {
+			//already shutting down
+		}
+		drain();
+	}
+
+	/**
+	 * Stops the writer after it has written everything logged so far.
+	 */
+	private void drain() {
+		if (closed) {
+			return;
+		}
+		closed = true;
 		try {
-			log.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+			if (buffer.offer(new Entry(0, null, END), 5, TimeUnit.SECONDS)) {
+				writer.join(5000);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static String concat(Object[] parts) {
+		StringBuilder sb = new StringBuilder();
+		for (Object part : parts) {
+			sb.append(part);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * A line waiting to be written, either as text or as parts to concatenate.
+	 */
+	private static class Entry {
+
+		final long time;
+		final String text;
+		final Object[] parts;
+
+		Entry(long time, String text, Object[] parts) {
+			this.time = time;
+			this.text = text;
+			this.parts = parts;
+		}
+	}
+
+	/**
+	 * Writes the buffered lines to the file.
+	 */
+	private class Writer implements Runnable {
+
+		private SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT_NOW);
+		private long formattedSecond = -1;
+		private String formattedTime;
+
+		//set while the file can't be written, so the error is reported once
+		private boolean failing = false;
+
+		@Override
+		public void run() {
+			List<Entry> batch = new ArrayList<Entry>(256);
+			try {
+				while (true) {
+					batch.add(buffer.take());
+					buffer.drainTo(batch, 255);
+					int written = 0;
+					try {
+						if (log == null) {
+							reopen();
+						}
+						for (Entry entry : batch) {
+							if (entry.parts == END) {
+								writeDropped();
+								log.flush();
+								log.close();
+								return;
+							}
+							write(entry);
+							written++;
+						}
+						writeDropped();
+						if (buffer.isEmpty()) {
+							log.flush();
+						}
+						if (failing) {
+							failing = false;
+							System.err.println(now() + " log file " + file + " written again");
+						}
+					} catch (IOException e) {
+						if (!failing) {
+							failing = true;
+							System.err.println(now() + " can't write the log file " + file + " (" + e
+									+ "), the lines are dropped until it can be reopened");
+						}
+						//counted and reported once the file is writable again
+						for (Entry entry : batch.subList(written, batch.size())) {
+							if (entry.parts == END) {
+								closeQuietly();
+								return;
+							}
+							dropped.incrementAndGet();
+						}
+						closeQuietly();
+					}
+					batch.clear();
+				}
+			} catch (InterruptedException e) {
+				//exiting...
+			}
+		}
+
+		private void reopen() throws IOException {
+			log = new BufferedWriter(new FileWriter(file, true));
+		}
+
+		private void closeQuietly() {
+			try {
+				if (log != null) {
+					log.close();
+				}
+			} catch (IOException e) {
+				//already failing
+			}
+			log = null;
+		}
+
+		private void writeDropped() throws IOException {
+			long lost = dropped.getAndSet(0);
+			if (lost > 0) {
+				log.write(time(System.currentTimeMillis()) + " " + lost
+						+ " log lines dropped (log buffer full)\n");
+			}
+		}
+
+		private void write(Entry entry) throws IOException {
+			String text = entry.text;
+			if (text == null) {
+				try {
+					text = concat(entry.parts);
+				} catch (RuntimeException e) {
+					text = "(unprintable log line: " + e + ")";
+				}
+			}
+			log.write(time(entry.time));
+			log.write(' ');
+			log.write(text);
+			log.write('\n');
+		}
+
+		/**
+		 * The lines mostly come in bursts within the same second...
+		 */
+		private String time(long millis) {
+			long second = TimeUnit.MILLISECONDS.toSeconds(millis);
+			if (second != formattedSecond) {
+				formattedSecond = second;
+				formattedTime = format.format(new Date(millis));
+			}
+			return formattedTime;
 		}
 	}
 
@@ -0,0 +1,358 @@
+/**
+ *    Copyright (c) 2011-2014, OpenIoT
+ *
+ *    This file is part of OpenIoT.
+ *
+ *    OpenIoT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3 of the License.
+ *
+ *    OpenIoT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Contact: OpenIoT mailto: info@openiot.eu
+ */
+
+package org.openiot.cupus.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+/**
+ * The metrics of one broker component (each of them runs in its own process),
+ * published over JMX as the attributes of the MBean
+ * "org.openiot.cupus:type=Metrics,component=&lt;component&gt;" so they can be
+ * watched with jconsole/VisualVM or polled by any JMX client.
+ *
+ * There are three kinds of metrics:
+ * <ul>
+ * <li>counters - exposed as the total count and the rate per second over the
+ * last RATE_INTERVAL</li>
+ * <li>histograms of durations - exposed as the total count, and the mean, max
+ * and percentiles (in milliseconds) of the durations recorded over the last
+ * one to two RATE_INTERVALs, from power of 2 buckets of microseconds so
+ * recording is just an atomic increment</li>
+ * <li>gauges - values (queue depths, sizes, ratios) read when asked for</li>
+ * </ul>
+ */
+public class MetricsRegistry implements DynamicMBean {
+
+	/** Interval over which the counter rates are computed, in miliseconds */
+	public static final long RATE_INTERVAL = 10000;
+
+	private final String component;
+	private final Map<String, Gauge> attributes = new TreeMap<String, Gauge>();
+	private final List<Counter> counters = new CopyOnWriteArrayList<Counter>();
+	private final List<Histogram> histograms = new CopyOnWriteArrayList<Histogram>();
+
+	/**
+	 * Creates the registry and registers it with the platform MBean server (if
+	 * that fails the metrics are still collected, just not published).
+	 */
+	public MetricsRegistry(String component) {
+		this.component = component;
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName("org.openiot.cupus:type=Metrics,component="
+							+ ObjectName.quote(component)));
+		} catch (Exception e) {
+			//not published...
+		}
+		Thread ticker = new Thread("metrics-" + component) {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(RATE_INTERVAL);
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (Counter c : counters) {
+						c.tick();
+					}
+					for (Histogram h : histograms) {
+						h.tick();
+					}
+				}
+			}
+		};
+		ticker.setDaemon(true);
+		ticker.start();
+	}
+
+	public String getComponent() {
+		return component;
+	}
+
+	/**
+	 * Creates a counter published as name.count and name.rate.
+	 */
+	public Counter counter(String name) {
+		final Counter c = new Counter();
+		counters.add(c);
+		gauge(name + ".count", new Gauge() {
+			@Override
+			public Number value() {
+				return c.get();
+			}
+		});
+		gauge(name + ".rate", new Gauge() {
+			@Override
+			public Number value() {
+				return c.rate;
+			}
+		});
+		return c;
+	}
+
+	/**
+	 * Creates a histogram published as name.count (since the start), and
+	 * name.mean, name.max, name.p50, name.p95 and name.p99 (recent durations).
+	 */
+	public Histogram histogram(String name) {
+		final Histogram h = new Histogram();
+		histograms.add(h);
+		gauge(name + ".count", new Gauge() {
+			@Override
+			public Number value() {
+				return h.total.get();
+			}
+		});
+		gauge(name + ".mean", new Gauge() {
+			@Override
+			public Number value() {
+				return h.mean();
+			}
+		});
+		gauge(name + ".max", new Gauge() {
+			@Override
+			public Number value() {
+				return h.max() / 1000.0;
+			}
+		});
+		for (final int p : new int[]{50, 95, 99}) {
+			gauge(name + ".p" + p, new Gauge() {
+				@Override
+				public Number value() {
+					return h.percentile(p / 100.0);
+				}
+			});
+		}
+		return h;
+	}
+
+	/**
+	 * Publishes the value of the gauge under the given name.
+	 */
+	public synchronized void gauge(String name, Gauge gauge) {
+		attributes.put(name, gauge);
+	}
+
+	/**
+	 * A value read when the metrics are looked at.
+	 */
+	public interface Gauge {
+
+		Number value();
+	}
+
+	/**
+	 * A counter of events.
+	 */
+	public static class Counter {
+
+		private final AtomicLong count = new AtomicLong();
+		private long lastCount = 0;
+		private volatile double rate = 0;
+
+		public void inc() {
+			count.incrementAndGet();
+		}
+
+		public void add(long n) {
+			count.addAndGet(n);
+		}
+
+		public long get() {
+			return count.get();
+		}
+
+		private void tick() {
+			long now = count.get();
+			rate = (now - lastCount) * 1000.0 / RATE_INTERVAL;
+			lastCount = now;
+		}
+	}
+
+	/**
+	 * A histogram of durations. The durations are recorded in a window
+	 * replaced every RATE_INTERVAL, the statistics being computed over the
+	 * current and the previous windows, so they follow the recent behaviour
+	 * instead of averaging everything since the start.
+	 */
+	public static class Histogram {
+
+		private final AtomicLong total = new AtomicLong();
+		private volatile Window current = new Window();
+		private volatile Window previous = new Window();
+
+		/**
+		 * Records the time since startNanos (a System.nanoTime()).
+		 */
+		public void recordSince(long startNanos) {
+			record((System.nanoTime() - startNanos) / 1000);
+		}
+
+		/**
+		 * Records a duration in microseconds.
+		 */
+		public void record(long micros) {
+			if (micros < 0) {
+				micros = 0;
+			}
+			total.incrementAndGet();
+			current.record(micros);
+		}
+
+		private void tick() {
+			previous = current;
+			current = new Window();
+		}
+
+		/**
+		 * The mean of the recent durations, in miliseconds.
+		 */
+		double mean() {
+			Window c = current, p = previous;
+			long n = c.count.get() + p.count.get();
+			return n == 0 ? 0.0 : (c.sum.get() + p.sum.get()) / 1000.0 / n;
+		}
+
+		/**
+		 * The longest recent duration, in microseconds.
+		 */
+		long max() {
+			return Math.max(current.max.get(), previous.max.get());
+		}
+
+		/**
+		 * The upper bound of the bucket holding the percentile of the recent
+		 * durations, in miliseconds.
+		 */
+		double percentile(double p) {
+			Window c = current, w = previous;
+			long n = c.count.get() + w.count.get();
+			if (n == 0) {
+				return 0;
+			}
+			long max = Math.max(c.max.get(), w.max.get());
+			long rank = (long) Math.ceil(p * n);
+			long seen = 0;
+			for (int i = 0; i < c.buckets.length(); i++) {
+				seen += c.buckets.get(i) + w.buckets.get(i);
+				if (seen >= rank) {
+					return Math.min(1L << i, max) / 1000.0;
+				}
+			}
+			return max / 1000.0;
+		}
+	}
+
+	/**
+	 * The durations recorded during one interval.
+	 */
+	private static class Window {
+
+		//bucket i holds the durations of [2^(i-1), 2^i) microseconds
+		private final AtomicLongArray buckets = new AtomicLongArray(40);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		void record(long micros) {
+			buckets.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(micros), buckets.length() - 1));
+			count.incrementAndGet();
+			sum.addAndGet(micros);
+			long m;
+			while (micros > (m = max.get()) && !max.compareAndSet(m, micros)) {
+				//retry...
+			}
+		}
+	}
+
+	//::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::
+	//::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::::
+
+	@Override
+	public synchronized Object getAttribute(String name) throws AttributeNotFoundException {
+		Gauge gauge = attributes.get(name);
+		if (gauge == null) {
+			throw new AttributeNotFoundException(name);
+		}
+		return read(gauge);
+	}
+
+	private static Object read(Gauge gauge) {
+		Number n = gauge.value();
+		return n == null ? null : (n instanceof Double || n instanceof Float) ? (Object) n.doubleValue() : (Object) n.longValue();
+	}
+
+	@Override
+	public synchronized AttributeList getAttributes(String[] names) {
+		AttributeList list = new AttributeList();
+		for (String name : names) {
+			Gauge gauge = attributes.get(name);
+			if (gauge != null) {
+				list.add(new Attribute(name, read(gauge)));
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) {
+		throw new UnsupportedOperationException(actionName);
+	}
+
+	@Override
+	public synchronized MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> infos = new ArrayList<MBeanAttributeInfo>();
+		for (Map.Entry<String, Gauge> e : attributes.entrySet()) {
+			Object value = read(e.getValue());
+			String type = value instanceof Double ? Double.class.getName() : Long.class.getName();
+			infos.add(new MBeanAttributeInfo(e.getKey(), type, e.getKey(), true, false, false));
+		}
+		return new MBeanInfo(getClass().getName(), "Metrics of the " + component + " broker component",
+				infos.toArray(new MBeanAttributeInfo[infos.size()]), null, new MBeanOperationInfo[0], null);
+	}
+}
@@ -0,0 +1,565 @@
+package org.openiot.lsm.server;
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+import java.io.DataInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openiot.lsm.beans.Observation;
+import org.openiot.lsm.beans.ObservedProperty;
+import org.openiot.lsm.beans.Place;
+import org.openiot.lsm.beans.RDFTuple;
+import org.openiot.lsm.beans.Sensor;
+
+/**
+ * Compact binary encoding of the LSM beans, used to send several operations
+ * to the ObjectServlet and the TriplesServlet in one request (see
+ * {@link LSMPipelinedTripleStore}).
+ *
+ * A message starts with a magic number and the protocol version, followed by
+ * the number of operations (or results) and the operations themselves. The
+ * strings are UTF-8 encoded and prefixed by their length, the beans are
+ * written field by field after a type tag. The requests that don't have the
+ * {@link #CONTENT_TYPE} content type are Java serialized objects, handled as
+ * before.
+ *
+ * The batches are read before any authentication, so the decoder never trusts
+ * the counts and lengths of a message: they are checked against the bytes
+ * left in the message (at most {@link #MAX_MESSAGE}) and against
+ * {@link #MAX_COUNT}, and a {@link ProtocolException} is thrown when one is
+ * exceeded.
+ */
+public class LSMCodec {
+	public static final String CONTENT_TYPE = "application/x-lsm-batch";
+	public static final int MAGIC = 0x4C534D42; // "LSMB"
+	public static final int VERSION = 1;
+	public static final long MAX_MESSAGE = 64L * 1024 * 1024;
+	public static final int MAX_COUNT = 65536;
+	//strings are read by chunks, so that a length alone doesn't allocate
+	private static final int STRING_CHUNK = 8192;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	//value tags
+	private static final int NULL = 0;
+	private static final int STRING = 1;
+	private static final int SENSOR = 2;
+	private static final int OBSERVATION = 3;
+	private static final int RDF_TUPLE = 4;
+	private static final int STRING_MAP = 5;
+	private static final int DOUBLE = 6;
+	private static final int LONG = 7;
+	private static final int INTEGER = 8;
+
+	/**
+	 * An operation of a batch: the headers and the object of a legacy
+	 * request.
+	 */
+	public static class Operation {
+		private final String api;
+		private final String apiType;
+		private final String graphURL;
+		private final String clientId;
+		private final String token;
+		private final Object object;
+
+		public Operation(String api, String apiType, String graphURL, String clientId, String token, Object object) {
+			this.api = api;
+			this.apiType = apiType;
+			this.graphURL = graphURL;
+			this.clientId = clientId;
+			this.token = token;
+			this.object = object;
+		}
+
+		public String getApi() {
+			return api;
+		}
+		public String getApiType() {
+			return apiType;
+		}
+		public String getGraphURL() {
+			return graphURL;
+		}
+		public String getClientId() {
+			return clientId;
+		}
+		public String getToken() {
+			return token;
+		}
+		public Object getObject() {
+			return object;
+		}
+	}
+
+	/**
+	 * The result of an operation: the response line of the legacy request,
+	 * and the returned object if any (the sensor of a getSensorById).
+	 */
+	public static class Result {
+		private final String message;
+		private final Object object;
+
+		public Result(String message, Object object) {
+			this.message = message;
+			this.object = object;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+		public Object getObject() {
+			return object;
+		}
+	}
+
+	private LSMCodec() {
+	}
+
+	public static void writeOperations(OutputStream out, List<Operation> operations) throws IOException {
+		DataOutputStream dos = new DataOutputStream(out);
+		writeHeader(dos, operations.size());
+		for (Operation operation : operations) {
+			writeString(dos, operation.api);
+			writeString(dos, operation.apiType);
+			writeString(dos, operation.graphURL);
+			writeString(dos, operation.clientId);
+			writeString(dos, operation.token);
+			writeValue(dos, operation.object);
+		}
+		dos.flush();
+	}
+
+	public static List<Operation> readOperations(InputStream in) throws IOException {
+		return readOperations(in, -1);
+	}
+
+	/**
+	 * @param length the length of the message if known (the content length of
+	 *            the request), -1 otherwise
+	 */
+	public static List<Operation> readOperations(InputStream in, long length) throws IOException {
+		Input dis = new Input(in, length);
+		int count = readHeader(dis);
+		List<Operation> operations = new ArrayList<Operation>(Math.min(count, 1024));
+		for (int i = 0; i < count; i++) {
+			String api = readString(dis);
+			String apiType = readString(dis);
+			String graphURL = readString(dis);
+			String clientId = readString(dis);
+			String token = readString(dis);
+			operations.add(new Operation(api, apiType, graphURL, clientId, token, readValue(dis)));
+		}
+		return operations;
+	}
+
+	public static void writeResults(OutputStream out, List<Result> results) throws IOException {
+		DataOutputStream dos = new DataOutputStream(out);
+		writeHeader(dos, results.size());
+		for (Result result : results) {
+			writeString(dos, result.message);
+			writeValue(dos, result.object);
+		}
+		dos.flush();
+	}
+
+	public static List<Result> readResults(InputStream in) throws IOException {
+		return readResults(in, -1);
+	}
+
+	/**
+	 * @param length the length of the message if known, -1 otherwise
+	 */
+	public static List<Result> readResults(InputStream in, long length) throws IOException {
+		Input dis = new Input(in, length);
+		int count = readHeader(dis);
+		List<Result> results = new ArrayList<Result>(Math.min(count, 1024));
+		for (int i = 0; i < count; i++) {
+			String message = readString(dis);
+			results.add(new Result(message, readValue(dis)));
+		}
+		return results;
+	}
+
+	//helper methods
+
+	private static void writeHeader(DataOutputStream dos, int count) throws IOException {
+		dos.writeInt(MAGIC);
+		dos.writeByte(VERSION);
+		writeLength(dos, count);
+	}
+
+	private static int readHeader(Input dis) throws IOException {
+		if (dis.readInt() != MAGIC)
+			throw new IOException("Not an LSM batch");
+		int version = dis.readUnsignedByte();
+		if (version != VERSION)
+			throw new IOException("Unsupported LSM batch version: " + version);
+		return readCount(dis);
+	}
+
+	private static void writeValue(DataOutputStream dos, Object value) throws IOException {
+		if (value == null) {
+			dos.writeByte(NULL);
+		} else if (value instanceof String) {
+			dos.writeByte(STRING);
+			writeString(dos, (String) value);
+		} else if (value instanceof Sensor) {
+			dos.writeByte(SENSOR);
+			writeSensor(dos, (Sensor) value);
+		} else if (value instanceof Observation) {
+			dos.writeByte(OBSERVATION);
+			writeObservation(dos, (Observation) value);
+		} else if (value instanceof RDFTuple) {
+			dos.writeByte(RDF_TUPLE);
+			writeString(dos, ((RDFTuple) value).getGraphURL());
+			writeString(dos, ((RDFTuple) value).getNtriple());
+		} else if (value instanceof Map) {
+			dos.writeByte(STRING_MAP);
+			writeStringMap(dos, (Map<?, ?>) value);
+		} else if (value instanceof Double) {
+			dos.writeByte(DOUBLE);
+			dos.writeDouble((Double) value);
+		} else if (value instanceof Long) {
+			dos.writeByte(LONG);
+			dos.writeLong((Long) value);
+		} else if (value instanceof Integer) {
+			dos.writeByte(INTEGER);
+			dos.writeInt((Integer) value);
+		} else {
+			throw new IOException("Can't encode " + value.getClass().getName());
+		}
+	}
+
+	private static Object readValue(Input dis) throws IOException {
+		int tag = dis.readUnsignedByte();
+		switch (tag) {
+			case NULL:
+				return null;
+			case STRING:
+				return readString(dis);
+			case SENSOR:
+				return readSensor(dis);
+			case OBSERVATION:
+				return readObservation(dis);
+			case RDF_TUPLE:
+				String graphURL = readString(dis);
+				return new RDFTuple(graphURL, readString(dis));
+			case STRING_MAP:
+				return readStringMap(dis);
+			case DOUBLE:
+				return dis.readDouble();
+			case LONG:
+				return dis.readLong();
+			case INTEGER:
+				return dis.readInt();
+			default:
+				throw new IOException("Unknown value tag: " + tag);
+		}
+	}
+
+	private static void writeSensor(DataOutputStream dos, Sensor sensor) throws IOException {
+		writeString(dos, sensor.getId());
+		writeString(dos, sensor.getName());
+		writeString(dos, sensor.getSensorType());
+		writeString(dos, sensor.getInfor());
+		writeDate(dos, sensor.getTimes());
+		writeString(dos, sensor.getAuthor());
+		writeString(dos, sensor.getCode());
+		writeString(dos, sensor.getMetaGraph());
+		writeString(dos, sensor.getDataGraph());
+		dos.writeBoolean(sensor.getProperties() != null);
+		if (sensor.getProperties() != null)
+			writeStringMap(dos, sensor.getProperties());
+		dos.writeBoolean(sensor.getPlace() != null);
+		if (sensor.getPlace() != null)
+			writePlace(dos, sensor.getPlace());
+	}
+
+	private static Sensor readSensor(Input dis) throws IOException {
+		Sensor sensor = new Sensor();
+		sensor.setId(readString(dis));
+		sensor.setName(readString(dis));
+		sensor.setSensorType(readString(dis));
+		sensor.setInfor(readString(dis));
+		sensor.setTimes(readDate(dis));
+		sensor.setAuthor(readString(dis));
+		sensor.setCode(readString(dis));
+		sensor.setMetaGraph(readString(dis));
+		sensor.setDataGraph(readString(dis));
+		sensor.setProperties(dis.readBoolean() ? readStringMap(dis) : null);
+		sensor.setPlace(dis.readBoolean() ? readPlace(dis) : null);
+		return sensor;
+	}
+
+	private static void writePlace(DataOutputStream dos, Place place) throws IOException {
+		writeString(dos, place.getId());
+		writeString(dos, place.getWoeid());
+		writeString(dos, place.getGeonameid());
+		writeString(dos, place.getZipcode());
+		writeString(dos, place.getStreet());
+		writeString(dos, place.getCity());
+		writeString(dos, place.getProvince());
+		writeString(dos, place.getCountry());
+		writeString(dos, place.getContinent());
+		dos.writeDouble(place.getLat());
+		dos.writeDouble(place.getLng());
+		writeString(dos, place.getInfor());
+		writeString(dos, place.getAuthor());
+		writeDate(dos, place.getTimes());
+	}
+
+	private static Place readPlace(Input dis) throws IOException {
+		Place place = new Place(0, 0);
+		place.setId(readString(dis));
+		place.setWoeid(readString(dis));
+		place.setGeonameid(readString(dis));
+		place.setZipcode(readString(dis));
+		place.setStreet(readString(dis));
+		place.setCity(readString(dis));
+		place.setProvince(readString(dis));
+		place.setCountry(readString(dis));
+		place.setContinent(readString(dis));
+		place.setLat(dis.readDouble());
+		place.setLng(dis.readDouble());
+		place.setInfor(readString(dis));
+		place.setAuthor(readString(dis));
+		place.setTimes(readDate(dis));
+		return place;
+	}
+
+	private static void writeObservation(DataOutputStream dos, Observation observation) throws IOException {
+		writeString(dos, observation.getId());
+		writeDate(dos, observation.getTimes());
+		writeString(dos, observation.getSensor());
+		writeString(dos, observation.getFeatureOfInterest());
+		writeString(dos, observation.getMetaGraph());
+		writeString(dos, observation.getDataGraph());
+		List<ObservedProperty> readings = observation.getReadings();
+		writeLength(dos, readings == null ? 0 : readings.size() + 1);
+		if (readings == null)
+			return;
+		for (ObservedProperty reading : readings) {
+			Object value = reading.getValue();
+			//the server only uses the string representation of the other types
+			writeValue(dos, value == null || value instanceof String || value instanceof Double
+					|| value instanceof Long || value instanceof Integer ? value : value.toString());
+			writeDate(dos, reading.getTimes());
+			writeString(dos, reading.getPropertyType());
+			writeString(dos, reading.getUnit());
+			writeString(dos, reading.getObservationId());
+		}
+	}
+
+	private static Observation readObservation(Input dis) throws IOException {
+		Observation observation = new Observation();
+		observation.setId(readString(dis));
+		observation.setTimes(readDate(dis));
+		observation.setSensor(readString(dis));
+		observation.setFeatureOfInterest(readString(dis));
+		observation.setMetaGraph(readString(dis));
+		observation.setDataGraph(readString(dis));
+		int count = readCount(dis);
+		if (count == 0) {
+			observation.setReadings(null);
+			return observation;
+		}
+		for (int i = 0; i < count - 1; i++) {
+			ObservedProperty reading = new ObservedProperty();
+			reading.setValue(readValue(dis));
+			reading.setTimes(readDate(dis));
+			reading.setPropertyType(readString(dis));
+			reading.setUnit(readString(dis));
+			reading.setObservationId(readString(dis));
+			observation.addReading(reading);
+		}
+		return observation;
+	}
+
+	private static void writeStringMap(DataOutputStream dos, Map<?, ?> map) throws IOException {
+		writeLength(dos, map.size());
+		for (Map.Entry<?, ?> entry : map.entrySet()) {
+			writeString(dos, entry.getKey() == null ? null : entry.getKey().toString());
+			writeString(dos, entry.getValue() == null ? null : entry.getValue().toString());
+		}
+	}
+
+	private static HashMap<String, String> readStringMap(Input dis) throws IOException {
+		int count = readCount(dis);
+		HashMap<String, String> map = new HashMap<String, String>();
+		for (int i = 0; i < count; i++) {
+			String key = readString(dis);
+			map.put(key, readString(dis));
+		}
+		return map;
+	}
+
+	//null dates are written as Long.MIN_VALUE
+	private static void writeDate(DataOutputStream dos, Date date) throws IOException {
+		dos.writeLong(date == null ? Long.MIN_VALUE : date.getTime());
+	}
+
+	private static Date readDate(Input dis) throws IOException {
+		long time = dis.readLong();
+		return time == Long.MIN_VALUE ? null : new Date(time);
+	}
+
+	//the length is incremented by one so that 0 stands for null
+	private static void writeString(DataOutputStream dos, String str) throws IOException {
+		if (str == null) {
+			writeLength(dos, 0);
+			return;
+		}
+		byte[] bytes = str.getBytes(UTF8);
+		writeLength(dos, bytes.length + 1);
+		dos.write(bytes);
+	}
+
+	private static String readString(Input dis) throws IOException {
+		int length = readLength(dis);
+		if (length == 0)
+			return null;
+		length--;
+		if (length > dis.remaining())
+			throw new ProtocolException("String of " + length + " bytes, " + dis.remaining() + " bytes left");
+		if (length <= STRING_CHUNK) {
+			byte[] bytes = new byte[length];
+			dis.readFully(bytes);
+			return new String(bytes, UTF8);
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(STRING_CHUNK);
+		byte[] chunk = new byte[STRING_CHUNK];
+		while (length > 0) {
+			int read = Math.min(length, chunk.length);
+			dis.readFully(chunk, 0, read);
+			bytes.write(chunk, 0, read);
+			length -= read;
+		}
+		return new String(bytes.toByteArray(), UTF8);
+	}
+
+	//unsigned variable length integer, 7 bits per byte
+	private static void writeLength(DataOutputStream dos, int length) throws IOException {
+		while ((length & ~0x7F) != 0) {
+			dos.writeByte((length & 0x7F) | 0x80);
+			length >>>= 7;
+		}
+		dos.writeByte(length);
+	}
+
+	private static int readLength(Input dis) throws IOException {
+		int length = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = dis.readUnsignedByte();
+			length |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				if (length < 0)
+					throw new IOException("Invalid length");
+				return length;
+			}
+		}
+		throw new IOException("Invalid length");
+	}
+
+	//each element takes at least one byte
+	private static int readCount(Input dis) throws IOException {
+		int count = readLength(dis);
+		if (count > MAX_COUNT || count > dis.remaining())
+			throw new ProtocolException("Count of " + count + " elements, " + dis.remaining() + " bytes left");
+		return count;
+	}
+
+	/**
+	 * A message, which ends after its length or {@link #MAX_MESSAGE} bytes.
+	 */
+	private static class Input extends DataInputStream {
+		private final Limit limit;
+
+		Input(InputStream in, long length) {
+			this(new Limit(in, length < 0 ? MAX_MESSAGE : Math.min(length, MAX_MESSAGE)));
+		}
+
+		private Input(Limit limit) {
+			super(limit);
+			this.limit = limit;
+		}
+
+		long remaining() {
+			return limit.remaining;
+		}
+	}
+
+	private static class Limit extends FilterInputStream {
+		private long remaining;
+
+		Limit(InputStream in, long remaining) {
+			super(in);
+			this.remaining = remaining;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int b = super.read();
+			if (b >= 0)
+				remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int read = super.read(b, off, (int) Math.min(len, remaining));
+			if (read > 0)
+				remaining -= read;
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(super.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,612 @@
+package org.openiot.lsm.server;
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openiot.lsm.beans.Observation;
+import org.openiot.lsm.beans.RDFTuple;
+import org.openiot.lsm.beans.Sensor;
+import org.openiot.lsm.schema.LSMSchema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An LSM client sending its calls in batches, encoded with the
+ * {@link LSMCodec}, over persistent HTTP connections.
+ *
+ * Each call is queued on one of the lanes of the client and returns a
+ * future. A lane is a thread with its own keep-alive connection: it sends all
+ * the calls queued since its last request (at most maxBatch) in one request
+ * per servlet, so that the calls issued while a request is in flight are
+ * pipelined in the next one.
+ *
+ * The calls with the same ordering key always go to the same lane and are
+ * executed in order. The key is the sensor for the sensor calls and for
+ * {@link #sensorDataUpdateAsync}, and the graph for {@link #pushRDFAsync} and
+ * {@link #deleteTriplesAsync}. Calls with different keys may run in any
+ * order: an observation and triples pushed to the graph of its sensor are not
+ * ordered, wait for the future of the first call when the second depends on
+ * it.
+ *
+ * The synchronous methods of {@link LSMServer} wait for the result of the
+ * call, and behave as the ones of {@link LSMTripleStore}. Before its first
+ * batch to a servlet, the client sends it an empty batch. When the servlet
+ * definitely doesn't understand the batches (an older LSM server, failing to
+ * read the batch as a serialized object), the client uses the Java serialized
+ * requests of {@link LSMTripleStore} for this servlet, and probes it again
+ * after {@link #LEGACY_PROBE_INTERVAL}. Any other answer fails the calls of
+ * the batch, which are never replayed.
+ */
+public class LSMPipelinedTripleStore implements LSMServer {
+	public static final int DEFAULT_LANES = 4;
+	public static final int DEFAULT_MAX_BATCH = 100;
+	private static final int CONNECT_TIMEOUT = 10000;
+	private static final int READ_TIMEOUT = 120000;
+	public static final long LEGACY_PROBE_INTERVAL = 10 * 60 * 1000;
+	private static final int MAX_ERROR_BODY = 64 * 1024;
+	public static final long DEFAULT_CALL_TIMEOUT = 5 * 60 * 1000;
+
+	final static Logger logger = LoggerFactory.getLogger(LSMPipelinedTripleStore.class);
+
+	private final String RDFServletURL;
+	private final String ObjectServletURL;
+	private final int maxBatch;
+	private final LSMTripleStore legacy;
+	private final Lane[] lanes;
+	// servlets known to read batches
+	private final Set<String> batchServlets = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	// servlets which didn't read a batch -> time of the probe
+	private final ConcurrentHashMap<String, Long> legacyServlets = new ConcurrentHashMap<String, Long>();
+	// guards closed against the calls queued while closing
+	private final Object submitLock = new Object();
+	private volatile boolean closed = false;
+	private volatile long callTimeout = DEFAULT_CALL_TIMEOUT;
+
+	public LSMPipelinedTripleStore(String serverHost) {
+		this(serverHost, DEFAULT_LANES, DEFAULT_MAX_BATCH);
+	}
+
+	public LSMPipelinedTripleStore(String serverHost, int nbLanes, int maxBatch) {
+		RDFServletURL = serverHost + "rdfservlet";
+		ObjectServletURL = serverHost + "objservlet";
+		this.maxBatch = Math.max(1, maxBatch);
+		legacy = new LSMTripleStore(serverHost);
+		lanes = new Lane[Math.max(1, nbLanes)];
+		for (int i = 0; i < lanes.length; i++) {
+			lanes[i] = new Lane(i);
+			lanes[i].start();
+		}
+	}
+
+	// -------------------------------------------------------------------------
+	// Asynchronous calls
+	// -------------------------------------------------------------------------
+
+	/**
+	 * @return a future of the id of the added sensor
+	 */
+	public Future<String> sensorAddAsync(final Sensor sensor, String clientId, String token) {
+		return submit(sensor.getId(), ObjectServletURL, new LSMCodec.Operation("21", "insert", null, clientId, token, sensor), new Call<String>() {
+			public String result(LSMCodec.Result result) {
+				logger.info(result.getMessage());
+				return sensor.getId();
+			}
+			public String legacy(String clientId, String token) {
+				return legacy.sensorAdd(sensor, clientId, token);
+			}
+		});
+	}
+
+	/**
+	 * Ordered with the other calls on the sensor of the observation, not with
+	 * the calls on its graph.
+	 *
+	 * @return a future of the response of the server
+	 */
+	public Future<String> sensorDataUpdateAsync(final Observation observation, String clientId, String token) {
+		return submit(observation.getSensor(), ObjectServletURL, new LSMCodec.Operation("22", "insert", null, clientId, token, observation), new MessageCall() {
+			public String legacy(String clientId, String token) {
+				legacy.sensorDataUpdate(observation, clientId, token);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Ordered with the other calls on the graph, not with the observations of
+	 * its sensors.
+	 *
+	 * @return a future of true when the triples were sent
+	 */
+	public Future<Boolean> pushRDFAsync(final String graphURL, final String triples, String clientId, String token) {
+		return submit(graphURL, ObjectServletURL, new LSMCodec.Operation("23", "insert", graphURL, clientId, token, new RDFTuple(graphURL, triples)), new Call<Boolean>() {
+			public Boolean result(LSMCodec.Result result) {
+				logger.info(result.getMessage());
+				return true;
+			}
+			public Boolean legacy(String clientId, String token) {
+				return legacy.pushRDF(graphURL, triples, clientId, token);
+			}
+		});
+	}
+
+	public Future<String> deleteTriplesAsync(final String graphURL, final String triples, String clientId, String token) {
+		return submit(graphURL, ObjectServletURL, new LSMCodec.Operation("24", "insert", graphURL, clientId, token, new RDFTuple(graphURL, triples)), new MessageCall() {
+			public String legacy(String clientId, String token) {
+				legacy.deleteTriples(graphURL, triples, clientId, token);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Deletes all the triples of the graph.
+	 */
+	public Future<String> deleteTriplesAsync(final String graphURL, String clientId, String token) {
+		return submit(graphURL, ObjectServletURL, new LSMCodec.Operation("24", "insert", null, clientId, token, new RDFTuple(graphURL, "all")), new MessageCall() {
+			public String legacy(String clientId, String token) {
+				legacy.deleteTriples(graphURL, clientId, token);
+				return null;
+			}
+		});
+	}
+
+	public Future<String> sensorDeleteAsync(final String sensorURL, final String graphURL, String clientId, String token) {
+		return submit(sensorURL, RDFServletURL, new LSMCodec.Operation("3", "delete", graphURL, clientId, token, sensorURL), new MessageCall() {
+			public String legacy(String clientId, String token) {
+				legacy.sensorDelete(sensorURL, graphURL, clientId, token);
+				return null;
+			}
+		});
+	}
+
+	public Future<String> deleteAllReadingsAsync(final String sensorURL, final String graphURL, String clientId, String token) {
+		return submit(sensorURL, RDFServletURL, new LSMCodec.Operation("4", "delete", graphURL, clientId, token, sensorURL), new MessageCall() {
+			public String legacy(String clientId, String token) {
+				legacy.deleteAllReadings(sensorURL, graphURL, clientId, token);
+				return null;
+			}
+		});
+	}
+
+	public Future<Sensor> getSensorByIdAsync(final String sensorURL, final String graphURL, String clientId, String token) {
+		return submit(sensorURL, RDFServletURL, new LSMCodec.Operation("5", "get", graphURL, clientId, token, sensorURL), new Call<Sensor>() {
+			public Sensor result(LSMCodec.Result result) {
+				if (result.getObject() instanceof Sensor) {
+					Sensor sensor = (Sensor) result.getObject();
+					logger.info("sensor Id return:" + sensor.getId());
+					return sensor;
+				}
+				return null;
+			}
+			public Sensor legacy(String clientId, String token) {
+				return legacy.getSensorById(sensorURL, graphURL, clientId, token);
+			}
+		});
+	}
+
+	/**
+	 * Sets how long the synchronous methods wait for the result of a call
+	 * before giving up (DEFAULT_CALL_TIMEOUT by default).
+	 */
+	public void setCallTimeout(long millis) {
+		callTimeout = millis;
+	}
+
+	/**
+	 * Stops the lanes once the queued calls are sent. The calls submitted
+	 * afterwards fail.
+	 */
+	public void close() {
+		synchronized (submitLock) {
+			closed = true;
+		}
+		for (Lane lane : lanes) {
+			lane.interrupt();
+		}
+	}
+
+	// -------------------------------------------------------------------------
+	// LSMServer
+	// -------------------------------------------------------------------------
+
+	@Override
+	public void sensorDelete(String sensorURL, String graphURL, String clientId, String token) {
+		await(sensorDeleteAsync(sensorURL, graphURL, clientId, token), null, "sensorDelete returns error");
+	}
+
+	@Override
+	public Sensor getSensorById(String sensorURL, String graphURL, String clientId, String token) {
+		return await(getSensorByIdAsync(sensorURL, graphURL, clientId, token), null, "getSensorById returns error");
+	}
+
+	@Override
+	public void sensorDataUpdate(Observation observation, String clientId, String token) {
+		await(sensorDataUpdateAsync(observation, clientId, token), null, "sensorDataUpdate return error");
+	}
+
+	@Override
+	public void deleteAllReadings(String sensorURL, String graphURL, String clientId, String token) {
+		await(deleteAllReadingsAsync(sensorURL, graphURL, clientId, token), null, "deleteALlReadings returns error");
+	}
+
+	@Override
+	public void deleteAllReadings(String sensorURL, String graphURL, String dateOperator, Date fromTime, Date toTime, String clientId, String token) {
+		// not supported by the batches (the date range is only sent as headers)
+		legacy.deleteAllReadings(sensorURL, graphURL, dateOperator, fromTime, toTime, clientId, token);
+	}
+
+	@Override
+	public void deleteTriples(String graphURL, String triples, String clientId, String token) {
+		await(deleteTriplesAsync(graphURL, triples, clientId, token), null, "cannot send the data to LSM Server");
+	}
+
+	@Override
+	public void deleteTriples(String graphURL, String clientId, String token) {
+		await(deleteTriplesAsync(graphURL, clientId, token), null, "cannot send the data to LSM Server");
+	}
+
+	@Override
+	public void updateTriples(String graphURL, String newTriplePatterns, String oldTriplePatterns, String clientId, String token) {
+		legacy.updateTriples(graphURL, newTriplePatterns, oldTriplePatterns, clientId, token);
+	}
+
+	@Override
+	public void uploadSchema(LSMSchema schema, String name, String clientId, String token) {
+		legacy.uploadSchema(schema, name, clientId, token);
+	}
+
+	@Override
+	public String sensorAdd(Sensor sensor, String clientId, String token) {
+		return await(sensorAddAsync(sensor, clientId, token), "", "sensorAdd returns error");
+	}
+
+	@Override
+	public boolean pushRDF(String graphURL, String triples, String clientId, String token) {
+		return await(pushRDFAsync(graphURL, triples, clientId, token), false, "cannot send the data to LSM Server");
+	}
+
+	// -------------------------------------------------------------------------
+	// Lanes
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Turns the result of an operation into the value of its future, or runs
+	 * the operation with a legacy request.
+	 */
+	private interface Call<T> {
+		T result(LSMCodec.Result result);
+
+		T legacy(String clientId, String token);
+	}
+
+	private static abstract class MessageCall implements Call<String> {
+		public String result(LSMCodec.Result result) {
+			logger.info(result.getMessage());
+			return result.getMessage();
+		}
+	}
+
+	/**
+	 * A queued operation and its future.
+	 */
+	private static class Pending<T> {
+		private final String servletURL;
+		private final LSMCodec.Operation operation;
+		private final Call<T> call;
+		private final Completion<T> future = new Completion<T>();
+
+		Pending(String servletURL, LSMCodec.Operation operation, Call<T> call) {
+			this.servletURL = servletURL;
+			this.operation = operation;
+			this.call = call;
+		}
+
+		void complete(LSMCodec.Result result) {
+			try {
+				future.set(call.result(result));
+			} catch (RuntimeException e) {
+				future.setException(e);
+			}
+		}
+
+		void runLegacy() {
+			try {
+				future.set(call.legacy(operation.getClientId(), operation.getToken()));
+			} catch (RuntimeException e) {
+				future.setException(e);
+			}
+		}
+
+		void fail(Throwable t) {
+			future.setException(t);
+		}
+	}
+
+	/**
+	 * A future completed by a lane.
+	 */
+	private static class Completion<T> extends FutureTask<T> {
+		private static final Runnable NOTHING = new Runnable() {
+			public void run() {
+			}
+		};
+
+		Completion() {
+			super(NOTHING, null);
+		}
+
+		@Override
+		public void set(T value) {
+			super.set(value);
+		}
+
+		@Override
+		public void setException(Throwable t) {
+			super.setException(t);
+		}
+	}
+
+	private <T> Future<T> submit(String key, String servletURL, LSMCodec.Operation operation, Call<T> call) {
+		Pending<T> pending = new Pending<T>(servletURL, operation, call);
+		int lane = key == null ? 0 : (key.hashCode() & Integer.MAX_VALUE) % lanes.length;
+		synchronized (submitLock) {
+			// a lane stops once closed and its queue empty, so nothing is added after
+			if (!closed) {
+				lanes[lane].queue.add(pending);
+				return pending.future;
+			}
+		}
+		pending.fail(new IllegalStateException("LSM client closed"));
+		return pending.future;
+	}
+
+	private <T> T await(Future<T> future, T defaultValue, String error) {
+		try {
+			T value = future.get(callTimeout, TimeUnit.MILLISECONDS);
+			return value == null ? defaultValue : value;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.error(error, e);
+		} catch (ExecutionException e) {
+			logger.error(error, e.getCause());
+		} catch (TimeoutException e) {
+			future.cancel(false);
+			logger.error(error + ", no result after " + callTimeout + " ms");
+		}
+		return defaultValue;
+	}
+
+	private class Lane extends Thread {
+		private final LinkedBlockingQueue<Pending<?>> queue = new LinkedBlockingQueue<Pending<?>>();
+
+		Lane(int index) {
+			super("LSM client lane " + index);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			List<Pending<?>> batch = new ArrayList<Pending<?>>(maxBatch);
+			try {
+				loop(batch);
+			} finally {
+				// only left if the lane died, the futures must not wait forever
+				queue.drainTo(batch);
+				for (Pending<?> pending : batch) {
+					pending.fail(new IllegalStateException("LSM client lane stopped"));
+				}
+			}
+		}
+
+		private void loop(List<Pending<?>> batch) {
+			while (true) {
+				try {
+					Pending<?> first = closed ? queue.poll() : queue.poll(1, TimeUnit.SECONDS);
+					if (first == null) {
+						if (closed)
+							return;
+						continue;
+					}
+					batch.add(first);
+					queue.drainTo(batch, maxBatch - 1);
+				} catch (InterruptedException e) {
+					// closed, send what is left
+					continue;
+				}
+				// one request per run of operations on the same servlet, to
+				// keep them in order
+				int from = 0;
+				for (int i = 1; i <= batch.size(); i++) {
+					if (i == batch.size() || !batch.get(i).servletURL.equals(batch.get(from).servletURL)) {
+						send(batch.subList(from, i));
+						from = i;
+					}
+				}
+				batch.clear();
+			}
+		}
+	}
+
+	private void send(List<Pending<?>> batch) {
+		String servletURL = batch.get(0).servletURL;
+		List<LSMCodec.Operation> operations = new ArrayList<LSMCodec.Operation>(batch.size());
+		for (Pending<?> pending : batch) {
+			operations.add(pending.operation);
+		}
+		try {
+			if (!readsBatches(servletURL)) {
+				for (Pending<?> pending : batch) {
+					pending.runLegacy();
+				}
+				return;
+			}
+
+			HttpURLConnection conn = post(servletURL, operations);
+			int responseCode = conn.getResponseCode();
+			String contentType = conn.getContentType();
+			if (responseCode != HttpURLConnection.HTTP_OK || !isBatch(contentType)) {
+				// the operations may have been run, they are not sent again
+				drain(conn);
+				throw new IOException("Server returned " + responseCode + " (" + contentType + ") for a batch of " + batch.size() + " operations");
+			}
+
+			List<LSMCodec.Result> results;
+			try {
+				results = LSMCodec.readResults(conn.getInputStream(), conn.getContentLengthLong());
+			} finally {
+				// read till the end so that the connection is reused
+				drain(conn);
+			}
+			if (results.size() != batch.size())
+				throw new IOException("Expected " + batch.size() + " results, got " + results.size());
+			for (int i = 0; i < batch.size(); i++) {
+				batch.get(i).complete(results.get(i));
+			}
+		} catch (Exception e) {
+			for (Pending<?> pending : batch) {
+				pending.fail(e);
+			}
+		}
+	}
+
+	/**
+	 * Tells whether the servlet reads batches, sending it an empty batch the
+	 * first time and when it was found to be an older servlet more than
+	 * {@link #LEGACY_PROBE_INTERVAL} ago.
+	 * 
+	 * An older ObjectServlet fails to read the batch as a serialized object
+	 * and replies with an empty page, an older TriplesServlet lets the
+	 * StreamCorruptedException go to the container. Any other reply (e.g. the
+	 * error page of a proxy) is not a definite answer and fails the probe.
+	 */
+	private boolean readsBatches(String servletURL) throws IOException {
+		if (batchServlets.contains(servletURL))
+			return true;
+		Long probed = legacyServlets.get(servletURL);
+		if (probed != null && System.currentTimeMillis() - probed < LEGACY_PROBE_INTERVAL)
+			return false;
+
+		// no operation, so that it doesn't matter how the servlet reads it
+		HttpURLConnection conn = post(servletURL, new ArrayList<LSMCodec.Operation>());
+		int responseCode = conn.getResponseCode();
+		String contentType = conn.getContentType();
+		if (responseCode == HttpURLConnection.HTTP_OK && isBatch(contentType)) {
+			try {
+				LSMCodec.readResults(conn.getInputStream(), conn.getContentLengthLong());
+			} finally {
+				drain(conn);
+			}
+			batchServlets.add(servletURL);
+			legacyServlets.remove(servletURL);
+			return true;
+		}
+
+		String body = readBody(conn);
+		if ((responseCode == HttpURLConnection.HTTP_OK && body.trim().isEmpty()) || body.contains("StreamCorruptedException")) {
+			logger.warn("The LSM servlet " + servletURL + " doesn't read batches, using serialized objects");
+			legacyServlets.put(servletURL, System.currentTimeMillis());
+			return false;
+		}
+		throw new IOException("Cannot tell if " + servletURL + " reads batches, server returned " + responseCode + " (" + contentType + ")");
+	}
+
+	private HttpURLConnection post(String servletURL, List<LSMCodec.Operation> operations) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		LSMCodec.writeOperations(body, operations);
+
+		HttpURLConnection conn = (HttpURLConnection) new URL(servletURL).openConnection();
+		conn.setDoInput(true);
+		conn.setDoOutput(true);
+		conn.setUseCaches(false);
+		conn.setConnectTimeout(CONNECT_TIMEOUT);
+		conn.setReadTimeout(READ_TIMEOUT);
+		conn.setRequestMethod("POST");
+		conn.setRequestProperty("Connection", "Keep-Alive");
+		conn.setRequestProperty("Content-Type", LSMCodec.CONTENT_TYPE);
+		conn.setFixedLengthStreamingMode(body.size());
+		OutputStream out = conn.getOutputStream();
+		body.writeTo(out);
+		out.close();
+		return conn;
+	}
+
+	private static boolean isBatch(String contentType) {
+		return contentType != null && contentType.startsWith(LSMCodec.CONTENT_TYPE);
+	}
+
+	/**
+	 * @return the start of the response (at most MAX_ERROR_BODY bytes), the
+	 *         rest being drained
+	 */
+	private static String readBody(HttpURLConnection conn) {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		try {
+			InputStream in = conn.getResponseCode() < 400 ? conn.getInputStream() : conn.getErrorStream();
+			if (in == null)
+				return "";
+			byte[] buffer = new byte[LSMTripleStore.BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				body.write(buffer, 0, Math.max(0, Math.min(read, MAX_ERROR_BODY - body.size())));
+			}
+			in.close();
+		} catch (IOException e) {
+			logger.debug("cannot read the end of the response", e);
+		}
+		try {
+			return body.toString("ISO-8859-1");
+		} catch (IOException e) {
+			return "";
+		}
+	}
+
+	private static void drain(HttpURLConnection conn) {
+		try {
+			InputStream in = conn.getResponseCode() < 400 ? conn.getInputStream() : conn.getErrorStream();
+			if (in == null)
+				return;
+			byte[] buffer = new byte[LSMTripleStore.BUFFER_SIZE];
+			while (in.read(buffer) >= 0) {
+			}
+			in.close();
+		} catch (IOException e) {
+			logger.debug("cannot read the end of the response", e);
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package org.openiot.lsm.server;
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.openiot.lsm.beans.Observation;
+import org.openiot.lsm.beans.ObservedProperty;
+import org.openiot.lsm.beans.RDFTuple;
+
+public class LSMCodecTest {
+
+	private static byte[] encode(List<LSMCodec.Operation> operations) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		LSMCodec.writeOperations(out, operations);
+		return out.toByteArray();
+	}
+
+	private static List<LSMCodec.Operation> decode(byte[] bytes, long length) throws IOException {
+		return LSMCodec.readOperations(new ByteArrayInputStream(bytes), length);
+	}
+
+	/**
+	 * @return a header announcing count operations, followed by the given
+	 *         bytes
+	 */
+	private static byte[] header(long count, int... body) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(LSMCodec.MAGIC);
+		out.writeByte(LSMCodec.VERSION);
+		writeVarint(out, count);
+		for (int b : body)
+			out.writeByte(b);
+		return bytes.toByteArray();
+	}
+
+	private static void writeVarint(DataOutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	private static List<LSMCodec.Operation> sample() {
+		Observation observation = new Observation();
+		observation.setId("obs1");
+		observation.setTimes(new Date(1400000000000L));
+		observation.setSensor("http://lsm.deri.ie/resource/sensor1");
+		ObservedProperty reading = new ObservedProperty();
+		reading.setValue(21.5);
+		reading.setPropertyType("http://lsm.deri.ie/ont/lsm.owl#Temperature");
+		reading.setUnit("C");
+		reading.setObservationId("obs1");
+		observation.addReading(reading);
+
+		Map<String, String> map = new HashMap<String, String>();
+		map.put("key", "valeur \u00e9");
+
+		List<LSMCodec.Operation> operations = new ArrayList<LSMCodec.Operation>();
+		operations.add(new LSMCodec.Operation("22", "insert", null, "client", "token", observation));
+		operations.add(new LSMCodec.Operation("23", "insert", "http://graph", "client", "token", new RDFTuple("http://graph", "<a> <b> <c> .")));
+		operations.add(new LSMCodec.Operation("5", "get", "http://graph", null, null, map));
+		operations.add(new LSMCodec.Operation("4", "delete", null, null, null, null));
+		return operations;
+	}
+
+	@Test
+	public void operationsRoundTrip() throws IOException {
+		byte[] bytes = encode(sample());
+		List<LSMCodec.Operation> operations = decode(bytes, bytes.length);
+		assertEquals(4, operations.size());
+
+		Observation observation = (Observation) operations.get(0).getObject();
+		assertEquals("22", operations.get(0).getApi());
+		assertEquals("token", operations.get(0).getToken());
+		assertEquals("obs1", observation.getId());
+		assertEquals(1400000000000L, observation.getTimes().getTime());
+		assertEquals(1, observation.getReadings().size());
+		assertEquals("21.5", observation.getReadings().get(0).getValue());
+		assertNull(observation.getReadings().get(0).getTimes());
+
+		RDFTuple tuple = (RDFTuple) operations.get(1).getObject();
+		assertEquals("http://graph", tuple.getGraphURL());
+		assertEquals("<a> <b> <c> .", tuple.getNtriple());
+
+		assertEquals("valeur \u00e9", ((Map<?, ?>) operations.get(2).getObject()).get("key"));
+		assertNull(operations.get(2).getClientId());
+		assertNull(operations.get(3).getObject());
+
+		// the length is only a bound
+		assertEquals(4, decode(bytes, -1).size());
+	}
+
+	@Test
+	public void resultsRoundTrip() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		LSMCodec.writeResults(out, Arrays.asList(new LSMCodec.Result("done", null), new LSMCodec.Result(null, 42L)));
+		List<LSMCodec.Result> results = LSMCodec.readResults(new ByteArrayInputStream(out.toByteArray()), out.size());
+		assertEquals(2, results.size());
+		assertEquals("done", results.get(0).getMessage());
+		assertNull(results.get(1).getMessage());
+		assertEquals(42L, results.get(1).getObject());
+	}
+
+	@Test
+	public void truncatedInput() throws IOException {
+		byte[] bytes = encode(sample());
+		for (int length = 0; length < bytes.length; length++) {
+			try {
+				decode(Arrays.copyOf(bytes, length), -1);
+				fail("Decoded " + length + " of " + bytes.length + " bytes");
+			} catch (IOException e) {
+				// EOFException or ProtocolException, depending on where it is cut
+			}
+		}
+		// a content length shorter than the message
+		try {
+			decode(bytes, bytes.length - 1);
+			fail();
+		} catch (IOException e) {
+		}
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void countAboveMax() throws IOException {
+		byte[] bytes = header(Integer.MAX_VALUE);
+		decode(bytes, -1);
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void countAboveTheBytesLeft() throws IOException {
+		// within MAX_COUNT, but 3 operations can't fit in 2 bytes
+		byte[] bytes = header(3, 0, 0);
+		decode(bytes, bytes.length);
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void stringLengthAboveTheBytesLeft() throws IOException {
+		// one operation whose api is a string of about 2 GB
+		byte[] bytes = header(1, 0xFF, 0xFF, 0xFF, 0xFF, 0x07);
+		decode(bytes, bytes.length);
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void stringLengthAboveMaxWithoutContentLength() throws IOException {
+		byte[] bytes = header(1, 0xFF, 0xFF, 0xFF, 0xFF, 0x07);
+		decode(bytes, -1);
+	}
+
+	@Test(expected = EOFException.class)
+	public void stringLengthAboveTheBytesSent() throws IOException {
+		// a content length larger than the body doesn't allocate the string
+		// before the bytes arrive
+		byte[] bytes = header(1, 0x80, 0x80, 0x80, 0x08);
+		decode(bytes, LSMCodec.MAX_MESSAGE);
+	}
+}
@@ -21,6 +21,8 @@ package org.openiot.lsm.http;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 
+import org.openiot.commons.util.PropertyManagement;
+import org.openiot.lsm.manager.TripleLoader;
 import org.openiot.lsm.pooling.ConnectionManager;
 /**
  * 
@@ -35,6 +37,8 @@ public final class ContextListener implements ServletContextListener {
     }
  
     public void contextDestroyed(ServletContextEvent sce) {
+        TripleLoader.shutdown();
         ConnectionManager.shutdownConnPool();
+        PropertyManagement.stopWatching();
     } 
 }
@@ -22,7 +22,9 @@ package org.openiot.lsm.http;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -36,9 +38,11 @@ import org.openiot.lsm.beans.Observation;
 import org.openiot.lsm.beans.ObservedProperty;
 import org.openiot.lsm.beans.RDFTuple;
 import org.openiot.lsm.beans.Sensor;
+import org.openiot.lsm.manager.ObservationStore;
 import org.openiot.lsm.manager.SensorManager;
 import org.openiot.lsm.manager.TriplesDataRetriever;
 import org.openiot.lsm.pooling.ConnectionManager;
+import org.openiot.lsm.server.LSMCodec;
 import org.openiot.lsm.utils.ConstantsUtil;
 import org.openiot.lsm.utils.NumberUtil;
 import org.openiot.lsm.utils.SecurityUtil;
@@ -88,6 +92,10 @@ public class ObjectServlet extends HttpServlet {
 	 */
 	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 		// TODO Auto-generated method stub
+		if(LSMCodec.CONTENT_TYPE.equals(request.getContentType())){
+			processBatch(request, response);
+			return;
+		}
 		String sb = "";
 
 	    PrintWriter out= response.getWriter();
@@ -121,6 +129,31 @@ public class ObjectServlet extends HttpServlet {
 	}
 
 
+	/**
+	 * Processes the operations of a batch sent by the LSMPipelinedTripleStore,
+	 * in order, and replies with their results
+	 */
+	private void processBatch(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		response.setContentType(LSMCodec.CONTENT_TYPE);
+		response.setHeader("Cache-Control", "no-cache");
+		try {
+			List<LSMCodec.Operation> operations = LSMCodec.readOperations(request.getInputStream(), request.getContentLength());
+			logger.info("Batch of "+operations.size()+" operations");
+			List<LSMCodec.Result> results = new ArrayList<LSMCodec.Result>(operations.size());
+			for(LSMCodec.Operation operation : operations){
+				String result = "";
+				if(NumberUtil.isInteger(operation.getApi()))
+					result = processRequestImpl(operation.getApi(),operation.getObject(),operation.getClientId(),operation.getToken());
+				results.add(new LSMCodec.Result(result, null));
+			}
+			LSMCodec.writeResults(response.getOutputStream(), results);
+		} catch (Exception ex) {
+			// keep the content type, the client must not retry with serialized objects
+			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			logger.error("Server returns error",ex);
+		}
+	}
+
 	private String processRequestImpl(String api, Object object,String clientId,String token) {
 		// TODO Auto-generated method stub
 		String result="Your request processed successfully";
@@ -145,8 +178,7 @@ public class ObjectServlet extends HttpServlet {
 						permissionString = PermissionsUtil.ADD_SENSOR_DEMO;
 					else permissionString = PermissionsUtil.ADD_SENSOR_MAIN;
 
-					if(SecurityUtil.hasPermission(PermissionsUtil.LSM_ALL, getServletContext(), token, clientId)
-						||SecurityUtil.hasPermission(permissionString, getServletContext(), token, clientId)){
+					if(SecurityUtil.hasAnyPermission(new String[] { PermissionsUtil.LSM_ALL, permissionString }, getServletContext(), token, clientId)){
 		        		sensorManager.setDataGraph(sensor.getDataGraph());
 		        		sensorManager.setMetaGraph(sensor.getMetaGraph());
 //				        String sensorTypeId = sensorManager.getSensorTypeId(sensor.getSensorType().toLowerCase());
@@ -177,8 +209,7 @@ public class ObjectServlet extends HttpServlet {
 	        			permissionString = PermissionsUtil.UPDATE_SENSOR_DATA_DEMO;
 	        		else permissionString = PermissionsUtil.UPDATE_SENSOR_DATA_MAIN;
 
-	        		if(SecurityUtil.hasPermission(PermissionsUtil.LSM_ALL, getServletContext(), token, clientId)
-							||SecurityUtil.hasPermission(permissionString, getServletContext(), token, clientId)){
+	        		if(SecurityUtil.hasAnyPermission(new String[] { PermissionsUtil.LSM_ALL, permissionString }, getServletContext(), token, clientId)){
 		        		sensorManager.setDataGraph(observation.getDataGraph());
 		        		sensorManager.setMetaGraph(observation.getMetaGraph());
 
@@ -196,8 +227,10 @@ public class ObjectServlet extends HttpServlet {
 		        		triples+=TriplesDataRetriever.getObservationTripleData(observation.getId(), observation.getSensor(), foi, observation.getTimes());
 
 		        		OntModel model = ModelFactory.createOntologyModel();
+		        		List<String[]> readings = new ArrayList<String[]>();
 		        		for(ObservedProperty obv : observation.getReadings()){
 		        			OntClass cl = model.createClass(obv.getPropertyType());
+		        			readings.add(new String[]{cl.getLocalName(), obv.getValue().toString()});
 		        			if(obv.getUnit().equals(""))
 		        				triples+=TriplesDataRetriever.getTripleDataHasNoUnit("http://purl.oclc.org/NET/ssnx/ssn#ObservationValue",cl.getLocalName(),obv.getValue().toString(),
 		        						observation.getId(),sensor.getProperties().get(obv.getPropertyType()), observation.getTimes());
@@ -205,7 +238,9 @@ public class ObjectServlet extends HttpServlet {
 		        						observation.getId(),sensor.getProperties().get(obv.getPropertyType()), observation.getTimes());
 		        		}
 	//	        		System.out.println(triples);
-		        		sensorManager.insertTriplesToGraph(observation.getDataGraph(), triples);
+		        		if(sensorManager.insertTriplesToGraph(observation.getDataGraph(), triples))
+		        			ObservationStore.getInstance().addObservation(observation.getDataGraph(), observation.getSensor(),
+		        					propertyManagement.getOpeniotResourceNamespace()+observation.getId(), foi, observation.getTimes(), readings);
 		        		logger.info("Add new sensor data successfully");
 	        		}else{
 			 			result ="User "+clientId+" doesn't have permission "+permissionString+" to operate this funtion";
@@ -225,9 +260,9 @@ public class ObjectServlet extends HttpServlet {
 						permissionString = PermissionsUtil.ADD_TRIPLES_DEMO;
 					else permissionString = PermissionsUtil.ADD_TRIPLES_MAIN;
 
-					if(SecurityUtil.hasPermission(PermissionsUtil.LSM_ALL, getServletContext(), token, clientId)
-							||SecurityUtil.hasPermission(permissionString, getServletContext(), token, clientId)){
+					if(SecurityUtil.hasAnyPermission(new String[] { PermissionsUtil.LSM_ALL, permissionString }, getServletContext(), token, clientId)){
 		        		sensorManager.insertTriplesToGraph(tuple.getGraphURL(), tuple.getNtriple());
+		        		ObservationStore.getInstance().invalidateGraph(tuple.getGraphURL());
 		        		logger.info("Add triples to graph "+tuple.getGraphURL());
 					}else{
 			 			result ="User "+clientId+" doesn't have permission "+permissionString+" to operate this funtion";
@@ -246,8 +281,7 @@ public class ObjectServlet extends HttpServlet {
 						permissionString = PermissionsUtil.DEL_TRIPLES_DEMO;
 					else permissionString = PermissionsUtil.DEL_TRIPLES_MAIN;
 
-					if(SecurityUtil.hasPermission(PermissionsUtil.LSM_ALL, getServletContext(), token, clientId)
-							||SecurityUtil.hasPermission(permissionString, getServletContext(), token, clientId)){
+					if(SecurityUtil.hasAnyPermission(new String[] { PermissionsUtil.LSM_ALL, permissionString }, getServletContext(), token, clientId)){
 						if(tuple.getNtriple().equals("all")){
 							sensorManager.clearGraph(tuple.getGraphURL());
 							logger.info("Delete all triples of graph "+tuple.getGraphURL());
@@ -269,8 +303,7 @@ public class ObjectServlet extends HttpServlet {
 						permissionString = PermissionsUtil.UPDATE_TRIPLES_DEMO;
 					else permissionString = PermissionsUtil.UPDATE_TRIPLES_MAIN;
 
-	        		if(SecurityUtil.hasPermission(PermissionsUtil.LSM_ALL, getServletContext(), token, clientId)
-							||SecurityUtil.hasPermission(permissionString, getServletContext(), token, clientId)){
+	        		if(SecurityUtil.hasAnyPermission(new String[] { PermissionsUtil.LSM_ALL, permissionString }, getServletContext(), token, clientId)){
 		        		if(object instanceof HashMap<?,?>)
 		        			patterns = (HashMap<String, String>) object;
 		        		sensorManager.updateGraph(patterns.get("graph"),patterns.get("update"),patterns.get("delete"));
@@ -24,6 +24,8 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -34,6 +36,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.openiot.lsm.beans.Sensor;
 import org.openiot.lsm.manager.SensorManager;
+import org.openiot.lsm.server.LSMCodec;
 import org.openiot.lsm.utils.ConstantsUtil;
 /**
  *
@@ -79,6 +82,10 @@ public class TriplesServlet extends HttpServlet {
 	 */
 	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 		// TODO Auto-generated method stub
+		if(LSMCodec.CONTENT_TYPE.equals(request.getContentType())){
+			processBatch(request, response);
+			return;
+		}
 		ObjectInputStream inputFromClient = new ObjectInputStream(request.getInputStream());
 		// deserialize the object, note the cast
 		Object object;
@@ -119,6 +126,34 @@ public class TriplesServlet extends HttpServlet {
 	}
 
 
+	/**
+	 * Processes the operations of a batch sent by the LSMPipelinedTripleStore,
+	 * in order, and replies with their results
+	 */
+	private void processBatch(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		response.setContentType(LSMCodec.CONTENT_TYPE);
+		response.setHeader("Cache-Control", "no-cache");
+		try {
+			List<LSMCodec.Operation> operations = LSMCodec.readOperations(request.getInputStream(), request.getContentLength());
+			List<LSMCodec.Result> results = new ArrayList<LSMCodec.Result>(operations.size());
+			for(LSMCodec.Operation operation : operations){
+				String infos = (String) operation.getObject();
+				if(!"get".equals(operation.getApiType())){
+					String result = processRequestImpl(operation.getApi(),infos,operation.getGraphURL(),operation.getClientId(),operation.getToken());
+					results.add(new LSMCodec.Result(result, null));
+				}else{
+					Sensor sensor = processObjectRequestImpl(operation.getApi(),infos,operation.getGraphURL(),operation.getClientId(),operation.getToken());
+					results.add(new LSMCodec.Result("", sensor));
+				}
+			}
+			LSMCodec.writeResults(response.getOutputStream(), results);
+		} catch (Exception ex) {
+			// keep the content type, the client must not retry with serialized objects
+			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			logger.error("Server returns error",ex);
+		}
+	}
+
 	private Sensor processObjectRequestImpl(String api, String sensorInfo, String graphURL,String clientId,String token) {
 		// TODO Auto-generated method stub
 		Sensor sensor = null;
@@ -134,8 +169,7 @@ public class TriplesServlet extends HttpServlet {
 						permissionString = PermissionsUtil.GET_SENSOR_DEMO;
 					else permissionString = PermissionsUtil.GET_SENSOR_MAIN;
 
-					if(SecurityUtil.hasPermission(PermissionsUtil.LSM_ALL, getServletContext(), token, clientId)
-							||SecurityUtil.hasPermission(permissionString, getServletContext(), token, clientId)){
+					if(SecurityUtil.hasAnyPermission(new String[] { PermissionsUtil.LSM_ALL, permissionString }, getServletContext(), token, clientId)){
 	        			sensor = sensorManager.getSpecificSensorWithSensorId(sensorInfo);
 	        			logger.info(sensor.getId());
 	        		}else
@@ -164,8 +198,7 @@ public class TriplesServlet extends HttpServlet {
 						permissionString = PermissionsUtil.DEL_SENSOR_DEMO;
 					else permissionString = PermissionsUtil.DEL_SENSOR_MAIN;
 
-	        		if(SecurityUtil.hasPermission(PermissionsUtil.LSM_ALL, getServletContext(), token, clientId)
-							||SecurityUtil.hasPermission(permissionString, getServletContext(), token, clientId)){
+	        		if(SecurityUtil.hasAnyPermission(new String[] { PermissionsUtil.LSM_ALL, permissionString }, getServletContext(), token, clientId)){
 	        			sensorManager.sensorDelete(graphURL,infos);
 	        		}else{
 			 			result ="User "+clientId+" doesn't have permission "+permissionString+" to operate this funtion";
@@ -180,8 +213,7 @@ public class TriplesServlet extends HttpServlet {
 						permissionString = PermissionsUtil.DEL_READING_DEMO;
 					else permissionString = PermissionsUtil.DEL_READING_MAIN;
 
-			 		if(SecurityUtil.hasPermission(PermissionsUtil.LSM_ALL, getServletContext(), token, clientId)
-							||SecurityUtil.hasPermission(permissionString, getServletContext(), token, clientId)){
+			 		if(SecurityUtil.hasAnyPermission(new String[] { PermissionsUtil.LSM_ALL, permissionString }, getServletContext(), token, clientId)){
 			 			sensorManager.deleteAllReadings(graphURL,infos);
 			 		}else{
 			 			result ="User "+clientId+" doesn't have permission "+permissionString+" to operate this funtion";
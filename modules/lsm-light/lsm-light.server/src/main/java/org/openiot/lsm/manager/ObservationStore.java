@@ -0,0 +1,479 @@
+package org.openiot.lsm.manager;
+
+/**
+ *    Copyright (c) 2011-2014, OpenIoT
+ *
+ *    This file is part of OpenIoT.
+ *
+ *    OpenIoT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3 of the License.
+ *
+ *    OpenIoT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Contact: OpenIoT mailto: info@openiot.eu
+ */
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.openiot.commons.util.PropertyManagement;
+import org.openiot.lsm.beans.Observation;
+import org.openiot.lsm.pooling.ConnectionManager;
+import org.openiot.lsm.utils.DateUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sidecar of the data graphs answering the most frequent observation queries
+ * (newest observation, observations and readings of the last days of a
+ * sensor) without SPARQL. The RDF graphs stay the system of record: the
+ * series of a sensor is loaded from its data graph the first time it is
+ * asked for, then kept up to date by the observation insert path (see
+ * {@link #addObservation}) and dropped whenever the graph is changed in
+ * another way (raw triples, deletes), to be loaded again when next asked for.
+ *
+ * Each series keeps the newest observation of the sensor and the observations
+ * of the last lsm-light.server.timeseries.retentionDays days (default 7, 0 to
+ * keep everything), in one partition per day holding the columns of the
+ * observations (time, id, feature of interest) and of their readings
+ * (observation, property, value). Queries that reach before the kept days are
+ * left to SPARQL. At most lsm-light.server.timeseries.maxSensors series (default
+ * 10000) are kept, the least recently used being dropped first. A series is
+ * loaded again from the data graph when it is older than
+ * lsm-light.server.timeseries.maxAgeSeconds (default 300, 0 to never reload),
+ * so the changes made to the graph outside of this server are seen after at
+ * most that delay.
+ */
+public class ObservationStore {
+	final static Logger logger = LoggerFactory.getLogger(ObservationStore.class);
+
+	public static final long DAY = 24L * 60 * 60 * 1000;
+
+	private static final String TIME_FORMAT = "yyyy-MM-dd HH:mm:ss.SSS";
+
+	private static final ObservationStore instance = new ObservationStore(new PropertyManagement());
+
+	private final boolean enabled;
+	private final long retention;
+	private final int maxSensors;
+	private final long maxAge;
+
+	// graph + " " + sensor -> series, least recently used first
+	private final LinkedHashMap<String, Series> series = new LinkedHashMap<String, Series>(16, 0.75f, true);
+
+	ObservationStore(PropertyManagement propertyManagement) {
+		this(Boolean.parseBoolean(propertyManagement.getProperty("lsm-light.server.timeseries.enabled", "true")), Long.parseLong(propertyManagement
+				.getProperty("lsm-light.server.timeseries.retentionDays", "7")) * DAY, Integer.parseInt(propertyManagement.getProperty(
+				"lsm-light.server.timeseries.maxSensors", "10000")), Long.parseLong(propertyManagement.getProperty(
+				"lsm-light.server.timeseries.maxAgeSeconds", "300")) * 1000);
+	}
+
+	ObservationStore(boolean enabled, long retention, int maxSensors, long maxAge) {
+		this.enabled = enabled;
+		this.retention = retention;
+		this.maxSensors = maxSensors;
+		this.maxAge = maxAge;
+	}
+
+	public static ObservationStore getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Returns the loaded series of the sensor (loading it from the data graph
+	 * if needed), or null if the store is disabled or the series can't be
+	 * loaded.
+	 */
+	Series getSeries(String dataGraph, String sensorId) {
+		if (!enabled || dataGraph == null || sensorId == null)
+			return null;
+		Series s;
+		synchronized (series) {
+			String key = dataGraph + " " + sensorId;
+			s = series.get(key);
+			if (s == null) {
+				s = new Series(dataGraph, sensorId);
+				series.put(key, s);
+				if (series.size() > maxSensors) {
+					Iterator<Series> eldest = series.values().iterator();
+					eldest.next();
+					eldest.remove();
+				}
+			}
+		}
+		synchronized (s) {
+			if ((!s.loaded || s.expired(System.currentTimeMillis())) && !s.load())
+				return null;
+			s.evict();
+			return s;
+		}
+	}
+
+	/**
+	 * Adds an observation inserted in the data graph. The readings are given
+	 * as property, value pairs.
+	 */
+	public void addObservation(String dataGraph, String sensorId, String observationURL, String featureOfInterest, Date time, List<String[]> readings) {
+		if (!enabled || dataGraph == null || sensorId == null || time == null)
+			return;
+		Series s;
+		synchronized (series) {
+			s = series.get(dataGraph + " " + sensorId);
+		}
+		if (s == null)
+			return;
+		synchronized (s) {
+			// if the series is being loaded, the load may have seen the
+			// observation already, it is then ignored here
+			if (s.loaded)
+				s.add(time.getTime(), observationURL, featureOfInterest, readings);
+		}
+	}
+
+	/**
+	 * Forgets the series of the sensor in the graph (in all the graphs if
+	 * dataGraph is null).
+	 */
+	public void invalidateSensor(String dataGraph, String sensorId) {
+		invalidate(dataGraph, sensorId);
+	}
+
+	/**
+	 * Forgets the series of all the sensors of the graph.
+	 */
+	public void invalidateGraph(String dataGraph) {
+		invalidate(dataGraph, null);
+	}
+
+	private void invalidate(String dataGraph, String sensorId) {
+		if (!enabled)
+			return;
+		List<Series> removed = new ArrayList<Series>();
+		synchronized (series) {
+			for (Iterator<Series> it = series.values().iterator(); it.hasNext();) {
+				Series s = it.next();
+				if ((dataGraph == null || dataGraph.equals(s.dataGraph)) && (sensorId == null || sensorId.equals(s.sensorId))) {
+					it.remove();
+					removed.add(s);
+				}
+			}
+		}
+		for (Series s : removed) {
+			synchronized (s) {
+				s.loaded = false;
+			}
+		}
+	}
+
+	private static long day(long time) {
+		return time >= 0 ? time / DAY : (time + 1) / DAY - 1;
+	}
+
+	/**
+	 * The observations of one sensor in one data graph.
+	 */
+	class Series {
+		final String dataGraph;
+		final String sensorId;
+
+		boolean loaded = false;
+		long loadedAt;
+
+		// the series holds all the observations at or after this time
+		long coveredFrom;
+
+		String newestId;
+		long newestTime = Long.MIN_VALUE;
+		String newestFoi;
+
+		final TreeMap<Long, Partition> partitions = new TreeMap<Long, Partition>();
+
+		Series(String dataGraph, String sensorId) {
+			this.dataGraph = dataGraph;
+			this.sensorId = sensorId;
+		}
+
+		/**
+		 * Loads the kept days and the newest observation from the data graph,
+		 * called with the lock of the series (so the observations added
+		 * meanwhile are added after the load).
+		 */
+		boolean load() {
+			long from = retention > 0 ? System.currentTimeMillis() - retention : Long.MIN_VALUE;
+			String timeFilter = retention > 0 ? "filter( ?time >= \"" + DateUtil.date2StandardString(new Date(from)) + "\"^^xsd:dateTime)." : "";
+			String sql = "sparql select ?obs ?time ?foi ?type ?name ?value" + " from <" + dataGraph + "> \n" + "where{ "
+					+ "?obs <http://purl.oclc.org/NET/ssnx/ssn#observedBy> <" + sensorId + ">."
+					+ "?obs <http://purl.oclc.org/NET/ssnx/ssn#observationResultTime> ?time." + timeFilter
+					+ "OPTIONAL{?obs <http://purl.oclc.org/NET/ssnx/ssn#featureOfInterest> ?foi.}"
+					+ "OPTIONAL{?s <http://openiot.eu/ontology/ns/isObservedValueOf> ?obs." + "?s rdf:type ?type."
+					+ "?s <http://openiot.eu/ontology/ns/value> ?value." + "OPTIONAL{?s <http://www.w3.org/2000/01/rdf-schema#label> ?name.}}"
+					+ "}order by ?time";
+			String newestSql = "sparql select ?obs ?time ?foi" + " from <" + dataGraph + "> \n" + "where{ " + "?obs <http://purl.oclc.org/NET/ssnx/ssn#observedBy> <"
+					+ sensorId + ">." + "?obs <http://purl.oclc.org/NET/ssnx/ssn#observationResultTime> ?time."
+					+ "?obs <http://purl.oclc.org/NET/ssnx/ssn#featureOfInterest> ?foi." + "}order by desc(?time) limit 1";
+			partitions.clear();
+			newestId = null;
+			newestTime = Long.MIN_VALUE;
+			newestFoi = null;
+			Connection conn = null;
+			try {
+				conn = ConnectionManager.getConnectionPool().getConnection();
+				Statement st = conn.createStatement();
+				logger.debug("loading the series of {} from:\n{}", sensorId, sql);
+				// observation -> time, foi, readings
+				LinkedHashMap<String, Object[]> observations = new LinkedHashMap<String, Object[]>();
+				if (st.execute(sql)) {
+					ResultSet rs = st.getResultSet();
+					while (rs.next()) {
+						String obs = rs.getString("obs");
+						Object[] o = observations.get(obs);
+						if (o == null) {
+							o = new Object[] { DateUtil.string2Date(rs.getString("time"), TIME_FORMAT), rs.getString("foi"), new ArrayList<String[]>() };
+							observations.put(obs, o);
+						}
+						String value = rs.getString("value");
+						String type = rs.getString("type");
+						if (value != null && type != null) {
+							String sign = rs.getString("name") == null ? type : rs.getString("name");
+							((List<String[]>) o[2]).add(new String[] { sign, value });
+						}
+					}
+					ConnectionManager.attemptClose(rs);
+				}
+				if (st.execute(newestSql)) {
+					ResultSet rs = st.getResultSet();
+					while (rs.next()) {
+						newestId = rs.getString(1);
+						newestTime = DateUtil.string2Date(rs.getString(2), TIME_FORMAT).getTime();
+						newestFoi = rs.getString(3);
+					}
+					ConnectionManager.attemptClose(rs);
+				}
+				ConnectionManager.attemptClose(st);
+				ConnectionManager.attemptClose(conn);
+				coveredFrom = from;
+				for (Map.Entry<String, Object[]> e : observations.entrySet()) {
+					Object[] o = e.getValue();
+					if (o[0] != null)
+						add(((Date) o[0]).getTime(), e.getKey(), (String) o[1], (List<String[]>) o[2]);
+				}
+			} catch (Exception e) {
+				logger.warn("fail to load the series of " + sensorId + ", using SPARQL", e);
+				ConnectionManager.attemptClose(conn);
+				partitions.clear();
+				loaded = false;
+				return false;
+			}
+			loaded = true;
+			loadedAt = System.currentTimeMillis();
+			logger.debug("loaded {} observations of {}", size(), sensorId);
+			return true;
+		}
+
+		void add(long time, String observationURL, String featureOfInterest, List<String[]> readings) {
+			if (time >= newestTime) {
+				newestId = observationURL;
+				newestTime = time;
+				newestFoi = featureOfInterest;
+			}
+			if (time < coveredFrom)
+				return;
+			Long day = Long.valueOf(day(time));
+			Partition p = partitions.get(day);
+			if (p == null) {
+				p = new Partition();
+				partitions.put(day, p);
+			}
+			p.add(time, observationURL, featureOfInterest, readings);
+		}
+
+		/**
+		 * True if the series was loaded longer than maxAgeSeconds ago and
+		 * should be loaded again.
+		 */
+		boolean expired(long now) {
+			return maxAge > 0 && now - loadedAt > maxAge;
+		}
+
+		/**
+		 * Drops the days that are not kept anymore.
+		 */
+		void evict() {
+			if (retention <= 0)
+				return;
+			long firstDay = day(System.currentTimeMillis() - retention);
+			while (!partitions.isEmpty() && partitions.firstKey() < firstDay) {
+				partitions.remove(partitions.firstKey());
+				coveredFrom = Math.max(coveredFrom, firstDay * DAY);
+			}
+		}
+
+		int size() {
+			int size = 0;
+			for (Partition p : partitions.values())
+				size += p.size;
+			return size;
+		}
+
+		/**
+		 * True if the series holds all the observations at or after the time.
+		 */
+		synchronized boolean covers(long from) {
+			return from >= coveredFrom;
+		}
+
+		synchronized Observation getNewestObservation() {
+			if (newestId == null)
+				return null;
+			Observation observation = new Observation();
+			observation.setId(newestId);
+			observation.setSensor(sensorId);
+			observation.setTimes(new Date(newestTime));
+			observation.setFeatureOfInterest(newestFoi);
+			return observation;
+		}
+
+		/**
+		 * The ids of the observations whose time is in [from, to], in time order.
+		 */
+		synchronized List<String> getObservationIds(long from, long to) {
+			List<long[]> refs = select(from, to);
+			List<String> ids = new ArrayList<String>(refs.size());
+			for (long[] ref : refs)
+				ids.add(partitions.get(ref[1]).obsIds[(int) ref[2]]);
+			return ids;
+		}
+
+		/**
+		 * The observations whose time is in [from, to], the newest first.
+		 */
+		synchronized List<Observation> getObservations(long from, long to) {
+			List<long[]> refs = select(from, to);
+			List<Observation> observations = new ArrayList<Observation>(refs.size());
+			for (int i = refs.size() - 1; i >= 0; i--) {
+				Partition p = partitions.get(refs.get(i)[1]);
+				int j = (int) refs.get(i)[2];
+				Observation observation = new Observation();
+				observation.setId(p.obsIds[j]);
+				observation.setSensor(sensorId);
+				observation.setTimes(new Date(p.times[j]));
+				observation.setFeatureOfInterest(p.fois[j]);
+				observations.add(observation);
+			}
+			return observations;
+		}
+
+		/**
+		 * The readings of the observations whose time is in [from, to], as
+		 * property, value, time maps in time order.
+		 */
+		synchronized ArrayList getReadings(long from, long to) {
+			ArrayList arr = new ArrayList();
+			for (long[] ref : select(from, to)) {
+				Partition p = partitions.get(ref[1]);
+				int j = (int) ref[2];
+				for (int r = p.firstReading[j]; r < p.firstReading[j] + p.readingCount[j]; r++) {
+					LinkedHashMap<String, String> reading = new LinkedHashMap<String, String>();
+					reading.put("property", p.properties[r].substring(p.properties[r].lastIndexOf("#") + 1));
+					reading.put("value", p.values[r]);
+					reading.put("time", DateUtil.date2FormatString(new Date(p.times[j]), TIME_FORMAT));
+					arr.add(reading);
+				}
+			}
+			return arr;
+		}
+
+		/**
+		 * (time, day, index) of the observations whose time is in [from, to],
+		 * in time order.
+		 */
+		List<long[]> select(long from, long to) {
+			List<long[]> refs = new ArrayList<long[]>();
+			Map<Long, Partition> days = (from == Long.MIN_VALUE && to == Long.MAX_VALUE) ? partitions : partitions.subMap(
+					day(from), true, day(to), true);
+			for (Map.Entry<Long, Partition> e : days.entrySet()) {
+				Partition p = e.getValue();
+				for (int i = 0; i < p.size; i++) {
+					if (p.times[i] >= from && p.times[i] <= to)
+						refs.add(new long[] { p.times[i], e.getKey(), i });
+				}
+			}
+			Collections.sort(refs, new Comparator<long[]>() {
+				public int compare(long[] a, long[] b) {
+					return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+				}
+			});
+			return refs;
+		}
+	}
+
+	/**
+	 * The observations of one day, stored by column. The readings of the
+	 * observation i are readings firstReading[i] to firstReading[i] +
+	 * readingCount[i] - 1. An observation already in the partition is not
+	 * added again.
+	 */
+	static class Partition {
+		int size = 0;
+		final HashMap<String, Integer> index = new HashMap<String, Integer>();
+		long[] times = new long[16];
+		String[] obsIds = new String[16];
+		String[] fois = new String[16];
+		int[] firstReading = new int[16];
+		int[] readingCount = new int[16];
+
+		int readings = 0;
+		String[] properties = new String[16];
+		String[] values = new String[16];
+
+		void add(long time, String observationURL, String featureOfInterest, List<String[]> obsReadings) {
+			if (observationURL != null && index.containsKey(observationURL))
+				return;
+			if (size == times.length) {
+				int capacity = size * 2;
+				times = Arrays.copyOf(times, capacity);
+				obsIds = Arrays.copyOf(obsIds, capacity);
+				fois = Arrays.copyOf(fois, capacity);
+				firstReading = Arrays.copyOf(firstReading, capacity);
+				readingCount = Arrays.copyOf(readingCount, capacity);
+			}
+			int count = obsReadings == null ? 0 : obsReadings.size();
+			if (readings + count > properties.length) {
+				int capacity = Math.max(properties.length * 2, readings + count);
+				properties = Arrays.copyOf(properties, capacity);
+				values = Arrays.copyOf(values, capacity);
+			}
+			times[size] = time;
+			obsIds[size] = observationURL;
+			fois[size] = featureOfInterest;
+			firstReading[size] = readings;
+			readingCount[size] = count;
+			if (observationURL != null)
+				index.put(observationURL, size);
+			for (int i = 0; i < count; i++) {
+				properties[readings] = obsReadings.get(i)[0];
+				values[readings] = obsReadings.get(i)[1];
+				readings++;
+			}
+			size++;
+		}
+	}
+}
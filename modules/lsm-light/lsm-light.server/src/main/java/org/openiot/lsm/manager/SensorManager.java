@@ -113,24 +113,22 @@ public class SensorManager {
 		}
 	}
 
-	public void insertTriplesToGraph(String graphName, String triples) {
-		// TODO Auto-generated method stub
-		Connection conn = null;
-		try {
-			logger.info("insert triples into graph " + graphName);
-			logger.debug("triples:\n" + triples);
-			conn = ConnectionManager.getConnectionPool().getConnection();
-			String sql = "sparql insert into graph <" + graphName + ">{" + triples + "}";
-			PreparedStatement ps = conn.prepareStatement(sql);
-			boolean i = ps.execute(sql);
+	/**
+	 * Inserts the triples in chunks when they are too many for one statement,
+	 * see {@link TripleLoader}.
+	 *
+	 * @return true if the triples were inserted
+	 */
+	public boolean insertTriplesToGraph(String graphName, String triples) {
+		logger.info("insert triples into graph " + graphName);
+		logger.debug("triples:\n" + triples);
+		TripleLoader.Report report = TripleLoader.getInstance().load(graphName, triples);
+		if (report.isSuccess()) {
 			logger.info("Insert triples to graph " + graphName + " successfully");
-			ConnectionManager.attemptClose(ps);
-			ConnectionManager.attemptClose(conn);
-		} catch (Exception e) {
-			// e.printStackTrace();
-			logger.warn("Fail to insert triples into graph " + graphName, e);
-			ConnectionManager.attemptClose(conn);
+			return true;
 		}
+		logger.warn("Fail to insert triples into " + report);
+		return false;
 	}
 
 	public void clearGraph(String graphName) {
@@ -155,6 +153,7 @@ public class SensorManager {
 			logger.error("Fail to clear graph", e);
 			ConnectionManager.attemptClose(conn);
 		}
+		ObservationStore.getInstance().invalidateGraph(graphName);
 	}
 
 	public void deleteTriples(String graphName, String triples) {
@@ -180,6 +179,7 @@ public class SensorManager {
 			logger.error("Fail to delete triples", e);
 			ConnectionManager.attemptClose(conn);
 		}
+		ObservationStore.getInstance().invalidateGraph(graphName);
 	}
 
 	public void deleteAllReadings(String graphURL, String sensorURL) {
@@ -211,6 +211,7 @@ public class SensorManager {
 			e.printStackTrace();
 			ConnectionManager.attemptClose(conn);
 		}
+		ObservationStore.getInstance().invalidateSensor(graphURL, sensorURL);
 	}
 
 	public void deleteAllReadings(String sensorURL, String dateOperator, Date fromTime, Date toTime) {
@@ -266,6 +267,7 @@ public class SensorManager {
 			logger.error("fail to execute query:" + sql, e);
 			ConnectionManager.attemptClose(conn);
 		}
+		ObservationStore.getInstance().invalidateSensor(dataGraph, sensorURL);
 	}
 
 	public void updateGraph(String graphURL, String updatePatterns, String deletePatterns) {
@@ -473,6 +475,9 @@ public class SensorManager {
 
 	// **********************observation table***************************/
 	public Observation getNewestObservationForOneSensor(String sensorId) {
+		ObservationStore.Series series = ObservationStore.getInstance().getSeries(dataGraph, sensorId);
+		if (series != null)
+			return series.getNewestObservation();
 		Observation observation = null;
 		Connection conn = null;
 		String sql = "sparql select ?obs ?time ?foi" + " from <" + dataGraph + "> \n" + "where{ " + "?obs <http://purl.oclc.org/NET/ssnx/ssn#observedBy> <"
@@ -504,6 +509,12 @@ public class SensorManager {
 
 	public List<String> getObservationsWithTimeCriteria(String sensorId, String dateOperator, Date fromTime, Date toTime) {
 		// TODO Auto-generated method stub
+		long[] range = timeRange(dateOperator, fromTime, toTime);
+		if (range != null) {
+			ObservationStore.Series series = ObservationStore.getInstance().getSeries(dataGraph, sensorId);
+			if (series != null && series.covers(range[0]))
+				return series.getObservationIds(range[0], range[1]);
+		}
 		String sql;
 		Connection conn = null;
 		if (toTime != null) {
@@ -537,8 +548,43 @@ public class SensorManager {
 		return observations;
 	}
 
+	/**
+	 * The [from, to] range of the times matching "?time dateOperator fromTime"
+	 * (and "?time <= toTime" if given), or null for an unknown operator.
+	 */
+	private static long[] timeRange(String dateOperator, Date fromTime, Date toTime) {
+		if (dateOperator == null || fromTime == null)
+			return null;
+		long from = Long.MIN_VALUE, to = Long.MAX_VALUE;
+		switch (dateOperator.trim()) {
+		case ">":
+			from = fromTime.getTime() + 1;
+			break;
+		case ">=":
+			from = fromTime.getTime();
+			break;
+		case "=":
+			from = to = fromTime.getTime();
+			break;
+		case "<":
+			to = fromTime.getTime() - 1;
+			break;
+		case "<=":
+			to = fromTime.getTime();
+			break;
+		default:
+			return null;
+		}
+		if (toTime != null)
+			to = Math.min(to, toTime.getTime());
+		return new long[] { from, to };
+	}
+
 	public List<Observation> getObservationsForOneSensor(String sensorId) {
 		// TODO Auto-generated method stub
+		ObservationStore.Series series = ObservationStore.getInstance().getSeries(dataGraph, sensorId);
+		if (series != null && series.covers(Long.MIN_VALUE))
+			return series.getObservations(Long.MIN_VALUE, Long.MAX_VALUE);
 		List<Observation> observations = new ArrayList<Observation>();
 		Connection conn = null;
 		String sql = "sparql select ?obs ?time ?foi" + " from <" + dataGraph + "> \n" + "where{ " + "?obs <http://purl.oclc.org/NET/ssnx/ssn#observedBy> <"
@@ -726,6 +772,9 @@ public class SensorManager {
 
 	public ArrayList getSensorHistoricalData(String sensorURL, Date fromTime) {
 		// TODO Auto-generated method stub
+		ObservationStore.Series series = fromTime == null ? null : ObservationStore.getInstance().getSeries(dataGraph, sensorURL);
+		if (series != null && series.covers(fromTime.getTime() + 1))
+			return series.getReadings(fromTime.getTime() + 1, Long.MAX_VALUE);
 		Connection conn = null;
 		LinkedHashMap<String, String> reading = new LinkedHashMap<>();
 		ArrayList arr = new ArrayList<>();
@@ -0,0 +1,463 @@
+package org.openiot.lsm.manager;
+
+/**
+ *    Copyright (c) 2011-2014, OpenIoT
+ *
+ *    This file is part of OpenIoT.
+ *
+ *    OpenIoT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3 of the License.
+ *
+ *    OpenIoT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Contact: OpenIoT mailto: info@openiot.eu
+ */
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openiot.commons.util.PropertyManagement;
+import org.openiot.lsm.pooling.ConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Inserts large sets of triples into a graph in bounded chunks, each chunk
+ * being one "sparql insert into graph" statement run on its own pooled
+ * connection, so that a big payload neither builds one giant SQL string nor
+ * hits the statement size limits of Virtuoso.
+ *
+ * The triples (N-Triples, or Turtle without prefixes) are read as a stream
+ * and split on the statement terminators outside of IRIs, literals and
+ * comments. A chunk holds at most lsm-light.server.bulkload.chunkTriples
+ * triples (default 5000) or about lsm-light.server.bulkload.chunkBytes
+ * characters (default 1000000). The chunks run in parallel on
+ * lsm-light.server.bulkload.threads threads (default 4), at most twice as
+ * many chunks being buffered, and each one is tried
+ * lsm-light.server.bulkload.retries more times (default 2) before being
+ * reported as failed. A payload of one chunk runs in the calling thread.
+ *
+ * As a blank node label only names a node within one statement, the triples
+ * from the first blank node on are never split.
+ */
+public class TripleLoader {
+	final static Logger logger = LoggerFactory.getLogger(TripleLoader.class);
+
+	private static final TripleLoader instance = new TripleLoader(new PropertyManagement());
+
+	private final int threads;
+	private final int chunkTriples;
+	private final int chunkBytes;
+	private final int retries;
+
+	private ExecutorService executor;
+
+	TripleLoader(PropertyManagement propertyManagement) {
+		threads = Math.max(1, Integer.parseInt(propertyManagement.getProperty("lsm-light.server.bulkload.threads", "4")));
+		chunkTriples = Math.max(1, Integer.parseInt(propertyManagement.getProperty("lsm-light.server.bulkload.chunkTriples", "5000")));
+		chunkBytes = Math.max(1, Integer.parseInt(propertyManagement.getProperty("lsm-light.server.bulkload.chunkBytes", "1000000")));
+		retries = Math.max(0, Integer.parseInt(propertyManagement.getProperty("lsm-light.server.bulkload.retries", "2")));
+	}
+
+	public static TripleLoader getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Stops the loading threads, the loads still running are finished.
+	 */
+	public static void shutdown() {
+		synchronized (instance) {
+			if (instance.executor != null) {
+				instance.executor.shutdown();
+				instance.executor = null;
+			}
+		}
+	}
+
+	public Report load(String graphName, String triples) {
+		try {
+			return load(graphName, new StringReader(triples));
+		} catch (IOException e) {
+			// a StringReader doesn't fail
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Inserts the triples read from the reader into the graph, and waits until
+	 * all the chunks are inserted or failed.
+	 *
+	 * @throws IOException
+	 *             if the reader fails, the chunks read until then are still
+	 *             inserted
+	 */
+	public Report load(String graphName, Reader triples) throws IOException {
+		long start = System.currentTimeMillis();
+		Report report = new Report(graphName);
+		Splitter splitter = new Splitter(triples);
+		Chunk first = splitter.next(0);
+		if (first == null)
+			return report;
+		Chunk second = splitter.next(first.firstTriple + first.triples);
+		if (second == null) {
+			report.add(first, insert(graphName, first));
+			report.time = System.currentTimeMillis() - start;
+			return report;
+		}
+
+		ExecutorService executor = getExecutor();
+		Semaphore buffered = new Semaphore(threads * 2);
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		List<Future<String>> results = new ArrayList<Future<String>>();
+		try {
+			submit(graphName, first, executor, buffered, chunks, results);
+			Chunk chunk = second;
+			while (chunk != null) {
+				submit(graphName, chunk, executor, buffered, chunks, results);
+				chunk = splitter.next(chunk.firstTriple + chunk.triples);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading triples into graph " + graphName, e);
+		} finally {
+			for (int i = 0; i < results.size(); i++)
+				report.add(chunks.get(i), waitFor(results.get(i)));
+			report.time = System.currentTimeMillis() - start;
+		}
+		return report;
+	}
+
+	private void submit(final String graphName, final Chunk chunk, ExecutorService executor, final Semaphore buffered, List<Chunk> chunks,
+			List<Future<String>> results) throws InterruptedException {
+		buffered.acquire();
+		results.add(executor.submit(new Callable<String>() {
+			public String call() {
+				try {
+					return insert(graphName, chunk);
+				} finally {
+					buffered.release();
+				}
+			}
+		}));
+		chunks.add(chunk);
+	}
+
+	private static String waitFor(Future<String> result) {
+		try {
+			return result.get();
+		} catch (ExecutionException e) {
+			return String.valueOf(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return "interrupted";
+		}
+	}
+
+	/**
+	 * Runs the insert of one chunk, trying again on failure.
+	 *
+	 * @return null if the chunk was inserted, the last error otherwise
+	 */
+	private String insert(String graphName, Chunk chunk) {
+		String sql = "sparql insert into graph <" + graphName + ">{" + chunk.text + "}";
+		String error = null;
+		for (int attempt = 0; attempt <= retries; attempt++) {
+			if (attempt > 0) {
+				logger.debug("Retrying chunk {} of graph {}: {}", chunk.index, graphName, error);
+				try {
+					Thread.sleep(100L << Math.min(attempt, 6));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return error;
+				}
+			}
+			Connection conn = null;
+			Statement st = null;
+			try {
+				conn = ConnectionManager.getConnectionPool().getConnection();
+				st = conn.createStatement();
+				st.execute(sql);
+				return null;
+			} catch (Exception e) {
+				error = e.toString();
+			} finally {
+				ConnectionManager.attemptClose(st);
+				ConnectionManager.attemptClose(conn);
+			}
+		}
+		return error;
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			final AtomicInteger count = new AtomicInteger();
+			executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "lsm-triple-loader-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * The outcome of a load: the number of chunks and triples, and the chunks
+	 * which failed.
+	 */
+	public static class Report {
+		private final String graphName;
+		private int chunks;
+		private long triples;
+		private long time;
+		private final List<Failure> failures = new ArrayList<Failure>();
+
+		Report(String graphName) {
+			this.graphName = graphName;
+		}
+
+		void add(Chunk chunk, String error) {
+			chunks++;
+			triples += chunk.triples;
+			if (error != null) {
+				Failure failure = new Failure(chunk.index, chunk.firstTriple, chunk.triples, error);
+				failures.add(failure);
+				logger.warn("Fail to insert {} into graph {}", failure, graphName);
+			}
+		}
+
+		public boolean isSuccess() {
+			return failures.isEmpty();
+		}
+
+		public int getChunks() {
+			return chunks;
+		}
+
+		public long getTriples() {
+			return triples;
+		}
+
+		/**
+		 * @return the time of the load in milliseconds
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		public List<Failure> getFailures() {
+			return failures;
+		}
+
+		public String toString() {
+			return "graph " + graphName + ": " + triples + " triples in " + chunks + " chunks, " + failures.size() + " failed, " + time + " ms";
+		}
+	}
+
+	public static class Failure {
+		private final int chunk;
+		private final long firstTriple;
+		private final int triples;
+		private final String error;
+
+		Failure(int chunk, long firstTriple, int triples, String error) {
+			this.chunk = chunk;
+			this.firstTriple = firstTriple;
+			this.triples = triples;
+			this.error = error;
+		}
+
+		public int getChunk() {
+			return chunk;
+		}
+
+		/**
+		 * @return the index of the first triple of the chunk in the payload
+		 */
+		public long getFirstTriple() {
+			return firstTriple;
+		}
+
+		public int getTriples() {
+			return triples;
+		}
+
+		public String getError() {
+			return error;
+		}
+
+		public String toString() {
+			return "chunk " + chunk + " (triples " + firstTriple + " to " + (firstTriple + triples - 1) + "): " + error;
+		}
+	}
+
+	static class Chunk {
+		final int index;
+		final long firstTriple;
+		final int triples;
+		final String text;
+
+		Chunk(int index, long firstTriple, int triples, String text) {
+			this.index = index;
+			this.firstTriple = firstTriple;
+			this.triples = triples;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * Cuts the triples read from a reader into chunks, on the terminating dots
+	 * outside of IRIs, literals and comments.
+	 */
+	class Splitter {
+		private static final int DEFAULT = 0, IRI = 1, QUOTES = 2, STRING = 3, LONG_STRING = 4, COMMENT = 5;
+
+		private final Reader in;
+		private final char[] buffer = new char[8192];
+		private int position;
+		private int length;
+
+		private final StringBuilder text = new StringBuilder();
+		private int state = DEFAULT;
+		private char quote;
+		private int quotes;
+		private boolean escaped;
+		private boolean dot;
+		private char previous;
+		private boolean blankNode;
+		private int triples;
+		private int index;
+
+		Splitter(Reader in) {
+			this.in = in;
+		}
+
+		/**
+		 * @return the next chunk, or null at the end of the triples
+		 */
+		Chunk next(long firstTriple) throws IOException {
+			while (true) {
+				if (position == length) {
+					length = in.read(buffer);
+					position = 0;
+					if (length < 0) {
+						length = 0;
+						if (dot)
+							triples++;
+						dot = false;
+						return text.toString().trim().length() == 0 ? null : chunk(firstTriple);
+					}
+				}
+				char c = buffer[position++];
+				if (dot) {
+					dot = false;
+					// the dot of "1.5" or of a prefixed name doesn't end a triple
+					if (!Character.isLetterOrDigit(c)) {
+						triples++;
+						if (!blankNode && (triples >= chunkTriples || text.length() >= chunkBytes)) {
+							Chunk chunk = chunk(firstTriple);
+							text.append(c);
+							scan(c);
+							return chunk;
+						}
+					}
+				}
+				text.append(c);
+				scan(c);
+			}
+		}
+
+		private Chunk chunk(long firstTriple) {
+			Chunk chunk = new Chunk(index++, firstTriple, triples, text.toString());
+			text.setLength(0);
+			triples = 0;
+			return chunk;
+		}
+
+		private void scan(char c) {
+			switch (state) {
+			case DEFAULT:
+				if (c == '<')
+					state = IRI;
+				else if (c == '"' || c == '\'') {
+					state = QUOTES;
+					quote = c;
+					quotes = 1;
+				} else if (c == '#')
+					state = COMMENT;
+				else if (c == '.')
+					dot = true;
+				else if (c == '[' || (c == ':' && previous == '_'))
+					blankNode = true;
+				break;
+			case IRI:
+				if (c == '>')
+					state = DEFAULT;
+				break;
+			case QUOTES:
+				if (c == quote) {
+					if (++quotes == 3) {
+						state = LONG_STRING;
+						quotes = 0;
+					}
+				} else if (quotes == 2) {
+					// empty literal
+					state = DEFAULT;
+					scan(c);
+					return;
+				} else {
+					state = STRING;
+					scan(c);
+					return;
+				}
+				break;
+			case STRING:
+				if (escaped)
+					escaped = false;
+				else if (c == '\\')
+					escaped = true;
+				else if (c == quote)
+					state = DEFAULT;
+				break;
+			case LONG_STRING:
+				if (escaped)
+					escaped = false;
+				else if (c == '\\') {
+					escaped = true;
+					quotes = 0;
+				} else if (c == quote) {
+					if (++quotes == 3)
+						state = DEFAULT;
+				} else
+					quotes = 0;
+				break;
+			case COMMENT:
+				if (c == '\n' || c == '\r')
+					state = DEFAULT;
+				break;
+			}
+			previous = c;
+		}
+	}
+}
@@ -22,6 +22,7 @@ import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Set;
 
 import org.openiot.commons.util.PropertyManagement;
 import org.slf4j.Logger;
@@ -39,6 +40,25 @@ public class ConnectionManager {
 	final static Logger logger = LoggerFactory.getLogger(ConnectionManager.class);
 	static public PropertyManagement propertyManagement = null;
 	
+	//rebuilds the pool when its settings are changed in the properties file
+	private static final PropertyManagement.ReloadListener reloadListener = new PropertyManagement.ReloadListener() {
+		public void propertiesReloaded(Set<String> changedKeys) {
+			for (String key : changedKeys) {
+				if (key.startsWith("lsm-light.server.connection.") || key.equals("lsm-light.server.minConnection")
+						|| key.equals("lsm-light.server.maxConnection")) {
+					logger.info("Connection pool settings changed, rebuilding the pool");
+					BoneCP oldPool = SQLPooled;
+					init();
+					if (oldPool != null && oldPool != SQLPooled) {
+						//connections still in use are closed when given back
+						oldPool.shutdown();
+					}
+					return;
+				}
+			}
+		}
+	};
+	
 	public static BoneCP getConnectionPool(){
 		return SQLPooled;
 	}
@@ -50,6 +70,8 @@ public class ConnectionManager {
 	public static void init(){
 //		  Properties prop = new Properties();
 		  propertyManagement = new PropertyManagement();
+		  PropertyManagement.removeReloadListener(reloadListener);
+		  PropertyManagement.addReloadListener(reloadListener);
 	
 	      try {	    	  	       	    	  
 	    	  //load a LSM Database Connector properties file
@@ -87,6 +109,7 @@ public class ConnectionManager {
 		} 
 	}
 	public static void shutdownConnPool() {		 
+		PropertyManagement.removeReloadListener(reloadListener);
 		try {
 			BoneCP connectionPool = ConnectionManager.getConnectionPool();
 			logger.info("contextDestroyed....");
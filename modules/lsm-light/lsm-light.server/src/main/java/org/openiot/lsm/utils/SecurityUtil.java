@@ -50,6 +50,19 @@ public class SecurityUtil {
 	 * @return
 	 */
 	public static boolean hasPermission(String perm, ServletContext context, String accessToken, String clientId, boolean lsmIsTarget) {
+		return hasAnyPermission(new String[] { perm }, context, accessToken, clientId, lsmIsTarget);
+	}
+
+	public static boolean hasAnyPermission(String[] perms, ServletContext context, String accessToken, String clientId) {
+		return hasAnyPermission(perms, context, accessToken, clientId, true);
+	}
+
+	/**
+	 * Same as {@link #hasPermission(String, ServletContext, String, String, boolean)}, but succeeds
+	 * if <code>accessToken</code> has any of the permissions <code>perms</code>. All the
+	 * permissions are checked against a single retrieval of the authorization information.
+	 */
+	public static boolean hasAnyPermission(String[] perms, ServletContext context, String accessToken, String clientId, boolean lsmIsTarget) {
 		OAuthorizationCredentials credentials = (OAuthorizationCredentials) context.getAttribute(CREDENTIALS);
 		if (credentials == null) {
 			credentials = login(context);
@@ -61,9 +74,9 @@ public class SecurityUtil {
 						callerCredentials);
 				boolean hasPermission;
 				if (lsmIsTarget)
-					hasPermission = acUtil.hasPermission(perm, credentialsToTest);
+					hasPermission = acUtil.hasAnyPermission(perms, credentialsToTest);
 				else
-					hasPermission = acUtil.hasPermission(perm, clientId, credentialsToTest);
+					hasPermission = acUtil.hasAnyPermission(perms, clientId, credentialsToTest);
 
 				if (acUtil.getAuthorizationManager().isCachingEnabled()) {
 					// check if the LSM access token has expired (this step should be done only if
@@ -76,7 +89,7 @@ public class SecurityUtil {
 							// LSM access token has expired
 							logger.debug("LSM access token has expired. Attempting to log in CAS.");
 							context.setAttribute(CREDENTIALS, null);
-							return hasPermission(perm, context, accessToken, clientId);
+							return hasAnyPermission(perms, context, accessToken, clientId);
 						} else if (accessToken.equals(expiredAT)) {
 							// The access token of the requester is expired
 							logger.debug("The access token of the requester has expired: {} ", expiredAT);
@@ -92,7 +105,7 @@ public class SecurityUtil {
 					// LSM access token has expired
 					logger.debug("LSM access token has expired. Attempting to log in CAS.");
 					context.setAttribute(CREDENTIALS, null);
-					return hasPermission(perm, context, accessToken, clientId, lsmIsTarget);
+					return hasAnyPermission(perms, context, accessToken, clientId, lsmIsTarget);
 				}
 			}
 		}
@@ -0,0 +1,147 @@
+package org.openiot.lsm.manager;
+
+/**
+ *    Copyright (c) 2011-2014, OpenIoT
+ *
+ *    This file is part of OpenIoT.
+ *
+ *    OpenIoT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3 of the License.
+ *
+ *    OpenIoT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Contact: OpenIoT mailto: info@openiot.eu
+ */
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ObservationStoreTest {
+
+	private static final String GRAPH = "http://lsm.deri.ie/OpenIoT/test/sensordata#";
+	private static final String SENSOR = "http://lsm.deri.ie/resource/test-sensor";
+
+	private static ObservationStore.Series loadedSeries(ObservationStore store, long coveredFrom) {
+		ObservationStore.Series s = store.new Series(GRAPH, SENSOR);
+		s.loaded = true;
+		s.loadedAt = System.currentTimeMillis();
+		s.coveredFrom = coveredFrom;
+		return s;
+	}
+
+	private static List<String[]> readings(String... propertyValues) {
+		List<String[]> readings = new ArrayList<String[]>();
+		for (int i = 0; i < propertyValues.length; i += 2)
+			readings.add(new String[] { propertyValues[i], propertyValues[i + 1] });
+		return readings;
+	}
+
+	@Test
+	public void partitionSkipsKnownObservationsAndGrows() {
+		ObservationStore.Partition p = new ObservationStore.Partition();
+		for (int i = 0; i < 40; i++)
+			p.add(i, "obs" + i, "foi", readings("temperature", String.valueOf(i), "humidity", String.valueOf(-i)));
+		p.add(100, "obs3", "foi", readings("temperature", "300"));
+
+		assertEquals(40, p.size);
+		assertEquals(80, p.readings);
+		assertEquals(3, p.times[3]);
+		assertEquals(6, p.firstReading[3]);
+		assertEquals(2, p.readingCount[3]);
+		assertEquals("3", p.values[p.firstReading[3]]);
+		assertEquals("-3", p.values[p.firstReading[3] + 1]);
+	}
+
+	@Test
+	public void selectReturnsTheObservationsInRangeInTimeOrder() {
+		ObservationStore store = new ObservationStore(true, 0, 10, 0);
+		ObservationStore.Series s = loadedSeries(store, Long.MIN_VALUE);
+		long day = ObservationStore.DAY;
+		// added out of order and over three days
+		s.add(2 * day + 10, "c", null, null);
+		s.add(day - 1, "a", null, null);
+		s.add(day, "b", null, null);
+		s.add(2 * day + 5, "b2", null, null);
+		s.add(-1, "before", null, null);
+
+		assertEquals(4, s.partitions.size());
+		assertEquals(Arrays.asList("before", "a", "b", "b2", "c"), s.getObservationIds(Long.MIN_VALUE, Long.MAX_VALUE));
+		// bounds are inclusive
+		assertEquals(Arrays.asList("a", "b", "b2"), s.getObservationIds(day - 1, 2 * day + 5));
+		assertEquals(Arrays.asList("b"), s.getObservationIds(day, day));
+		assertTrue(s.getObservationIds(day + 1, 2 * day).isEmpty());
+
+		List<long[]> refs = s.select(0, Long.MAX_VALUE);
+		assertEquals(4, refs.size());
+		assertEquals(day - 1, refs.get(0)[0]);
+		assertEquals(0, refs.get(0)[1]);
+		assertEquals(2, refs.get(3)[1]);
+	}
+
+	@Test
+	public void observationsAreNewestFirstAndReadingsInTimeOrder() {
+		ObservationStore store = new ObservationStore(true, 0, 10, 0);
+		ObservationStore.Series s = loadedSeries(store, Long.MIN_VALUE);
+		s.add(2000, "second", "foi2", readings("http://lsm.deri.ie/ont/lsm.owl#Temperature", "21"));
+		s.add(1000, "first", "foi1", readings("http://lsm.deri.ie/ont/lsm.owl#Temperature", "20"));
+
+		assertEquals("second", s.getObservations(0, 3000).get(0).getId());
+		assertEquals("first", s.getObservations(0, 3000).get(1).getId());
+		assertEquals("second", s.getNewestObservation().getId());
+		assertEquals("foi2", s.getNewestObservation().getFeatureOfInterest());
+
+		List<?> readings = s.getReadings(0, 3000);
+		assertEquals(2, readings.size());
+		assertEquals("Temperature", ((Map<?, ?>) readings.get(0)).get("property"));
+		assertEquals("20", ((Map<?, ?>) readings.get(0)).get("value"));
+	}
+
+	@Test
+	public void evictDropsTheDaysBeforeTheRetention() {
+		long day = ObservationStore.DAY;
+		long now = System.currentTimeMillis();
+		ObservationStore store = new ObservationStore(true, 2 * day, 10, 0);
+		ObservationStore.Series s = loadedSeries(store, now - 10 * day);
+		s.add(now - 5 * day, "old", null, null);
+		s.add(now - 3 * day, "older than retention", null, null);
+		s.add(now - day, "kept", null, null);
+		s.add(now, "newest", null, null);
+
+		assertEquals(4, s.size());
+
+		s.evict();
+		assertEquals(2, s.size());
+		assertEquals(Arrays.asList("kept", "newest"), s.getObservationIds(Long.MIN_VALUE, Long.MAX_VALUE));
+		assertFalse(s.covers(now - 5 * day));
+		assertTrue(s.covers(now - day));
+		assertEquals("newest", s.getNewestObservation().getId());
+
+		// an observation before the kept days only updates the newest one
+		s.add(now - 4 * day, "late", null, null);
+		assertEquals(2, s.size());
+	}
+
+	@Test
+	public void seriesExpiresAfterTheMaxAge() {
+		ObservationStore.Series s = loadedSeries(new ObservationStore(true, 0, 10, 1000), Long.MIN_VALUE);
+		assertFalse(s.expired(s.loadedAt + 1000));
+		assertTrue(s.expired(s.loadedAt + 1001));
+
+		ObservationStore.Series never = loadedSeries(new ObservationStore(true, 0, 10, 0), Long.MIN_VALUE);
+		assertFalse(never.expired(never.loadedAt + 365 * ObservationStore.DAY));
+	}
+}
@@ -0,0 +1,141 @@
+package org.openiot.lsm.manager;
+
+/**
+ *    Copyright (c) 2011-2014, OpenIoT
+ *
+ *    This file is part of OpenIoT.
+ *
+ *    OpenIoT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3 of the License.
+ *
+ *    OpenIoT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Contact: OpenIoT mailto: info@openiot.eu
+ */
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.Statement;
+
+import org.openiot.lsm.pooling.ConnectionManager;
+
+/**
+ * Compares the chunked TripleLoader with the single "sparql insert" statement
+ * used before, on the Virtuoso configured in openiot.properties.
+ *
+ * Parameters (system properties): triples (default 10000000), graph (default
+ * http://lsm.deri.ie/benchmark/triples, cleared before each run) and
+ * singleStatement (default true, false to skip the single statement run,
+ * which builds the whole payload in memory).
+ */
+public class TripleLoaderBenchmark {
+
+	private static final String PREFIX = "http://lsm.deri.ie/resource/benchmark/";
+
+	/**
+	 * Generates observation-like triples without keeping them in memory.
+	 */
+	static class TriplesReader extends Reader {
+		private final long total;
+		private long generated;
+		private String current = "";
+		private int offset;
+
+		TriplesReader(long total) {
+			this.total = total;
+		}
+
+		private boolean fill() {
+			if (offset < current.length())
+				return true;
+			if (generated >= total)
+				return false;
+			long id = generated / 4;
+			switch ((int) (generated % 4)) {
+			case 0:
+				current = "<" + PREFIX + id + "> <http://www.w3.org/1999/02/22-rdf-syntax-ns#type> <http://purl.oclc.org/NET/ssnx/ssn#ObservationValue>.\n";
+				break;
+			case 1:
+				current = "<" + PREFIX + id + "> <http://openiot.eu/ontology/ns/isObservedValueOf> <" + PREFIX + "observation" + (id / 10) + ">.\n";
+				break;
+			case 2:
+				current = "<" + PREFIX + id + "> <http://openiot.eu/ontology/ns/value> \"" + (id % 1000) / 10.0 + "\"^^<http://www.w3.org/2001/XMLSchema#double>.\n";
+				break;
+			default:
+				current = "<" + PREFIX + id + "> <http://www.w3.org/2000/01/rdf-schema#label> \"value " + id + "\".\n";
+			}
+			generated++;
+			offset = 0;
+			return true;
+		}
+
+		public int read(char[] cbuf, int off, int len) {
+			int n = 0;
+			while (n < len && fill()) {
+				int count = Math.min(len - n, current.length() - offset);
+				current.getChars(offset, offset + count, cbuf, off + n);
+				offset += count;
+				n += count;
+			}
+			return n == 0 && len > 0 ? -1 : n;
+		}
+
+		public void close() {
+		}
+	}
+
+	private static String readAll(Reader reader) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		char[] buffer = new char[8192];
+		int n;
+		while ((n = reader.read(buffer)) > 0)
+			sb.append(buffer, 0, n);
+		return sb.toString();
+	}
+
+	public static void main(String[] args) throws Exception {
+		long triples = Long.parseLong(System.getProperty("triples", "10000000"));
+		String graph = System.getProperty("graph", "http://lsm.deri.ie/benchmark/triples");
+		ConnectionManager.init();
+		SensorManager sensorManager = new SensorManager();
+
+		if (Boolean.parseBoolean(System.getProperty("singleStatement", "true"))) {
+			sensorManager.clearGraph(graph);
+			long start = System.currentTimeMillis();
+			String payload = readAll(new TriplesReader(triples));
+			long built = System.currentTimeMillis();
+			Connection conn = null;
+			Statement st = null;
+			String result = "ok";
+			try {
+				conn = ConnectionManager.getConnectionPool().getConnection();
+				st = conn.createStatement();
+				st.execute("sparql insert into graph <" + graph + ">{" + payload + "}");
+			} catch (Exception e) {
+				result = e.toString();
+			} finally {
+				ConnectionManager.attemptClose(st);
+				ConnectionManager.attemptClose(conn);
+			}
+			long end = System.currentTimeMillis();
+			System.out.println("single statement: " + triples + " triples, " + payload.length() + " chars built in " + (built - start)
+					+ " ms, inserted in " + (end - built) + " ms, " + result);
+		}
+
+		sensorManager.clearGraph(graph);
+		TripleLoader.Report report = TripleLoader.getInstance().load(graph, new TriplesReader(triples));
+		System.out.println("TripleLoader: " + report + (report.getTime() > 0 ? ", " + report.getTriples() * 1000 / report.getTime() + " triples/s" : ""));
+		for (TripleLoader.Failure failure : report.getFailures())
+			System.out.println("  " + failure);
+
+		sensorManager.clearGraph(graph);
+		TripleLoader.shutdown();
+		ConnectionManager.shutdownConnPool();
+	}
+}
@@ -59,7 +59,7 @@ import org.xml.sax.InputSource;
 public class PollForReportImpl 
 {	
 	
-	private static class Queries
+	static class Queries
 	{
 		public static class QueryData
 		{
@@ -271,6 +271,16 @@ public class PollForReportImpl
 	
 	//cosntructor
 	public PollForReportImpl(String serviceID) 
+	{		
+		this(serviceID, true);
+	}	
+	
+	/**
+	 * @param useMaterialized
+	 *            return the latest report of the {@link ReportMaterializer}
+	 *            if there is one instead of evaluating the queries
+	 */
+	PollForReportImpl(String serviceID, boolean useMaterialized) 
 	{		
 		PropertyManagement propertyManagement = new PropertyManagement();
 		openiotFunctionalGraph = propertyManagement.getSdumLsmFunctionalGraph();
@@ -279,7 +289,11 @@ public class PollForReportImpl
 		
 		this.serviceID=serviceID;
 		
-		pollForReport();		
+		if (useMaterialized)
+			sdumServiceResultSet = ReportMaterializer.getLatestReport(serviceID);
+		
+		if (sdumServiceResultSet == null)
+			pollForReport();		
 	}	
 	
 	
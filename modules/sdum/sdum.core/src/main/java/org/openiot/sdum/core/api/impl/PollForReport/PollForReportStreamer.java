@@ -0,0 +1,503 @@
+package org.openiot.sdum.core.api.impl.PollForReport;
+
+
+/**
+ *    Copyright (c) 2011-2014, OpenIoT
+ *
+ *    This file is part of OpenIoT.
+ *
+ *    OpenIoT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3 of the License.
+ *
+ *    OpenIoT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Contact: OpenIoT mailto: info@openiot.eu
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.core.StreamingOutput;
+
+import org.openiot.commons.util.PropertyManagement;
+import org.openiot.sdum.core.utils.sparql.SesameSPARQLClient;
+import org.openrdf.model.Value;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryLanguage;
+import org.openrdf.query.TupleQueryResult;
+import org.openrdf.repository.RepositoryConnection;
+import org.openrdf.repository.RepositoryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streaming variant of {@link PollForReportImpl}: the rows of every query of
+ * the service are written to the response while they are read from the SPARQL
+ * end point, instead of building the whole JAXB result set in memory first.
+ *
+ * Every query is paged the same way: the first offset rows are skipped and at
+ * most limit rows are written, followed by a "more" flag telling whether the
+ * query had rows after the page.
+ *
+ * The json format is:
+ *
+ * <pre>
+ * {"serviceID":"..","offset":0,"limit":1000,
+ *  "queries":[{"queryID":"..","variables":["a","b"],"rows":[["1",null],...],"more":false}, ...],
+ *  "presentation":[{"widgetID":"..","attrs":{"name":"value", ...}}, ...]}
+ * </pre>
+ *
+ * (a query that failed has an "error" member instead of "more"). The binary
+ * format holds the same data, written with a DataOutputStream:
+ *
+ * <pre>
+ * int MAGIC, byte VERSION, str serviceID, int offset, int limit
+ * per query:  byte 1, str queryID, int variableCount, str variable...,
+ *             per row: byte 1, str value... (one per variable),
+ *             byte 0, byte 0 (complete) | 1 (more) | 2 (failed, followed by str error)
+ * byte 0
+ * per widget: byte 1, str widgetID, int attrCount, str name, str value...
+ * byte 0
+ * </pre>
+ *
+ * where str is an int length (-1 for null) followed by the UTF-8 bytes.
+ */
+public class PollForReportStreamer implements StreamingOutput
+{
+	public static final String FORMAT_JSON = "json";
+	public static final String FORMAT_BINARY = "binary";
+
+	/** "SDUM" */
+	public static final int MAGIC = 0x5344554D;
+	public static final byte VERSION = 1;
+
+	/** rows per query written when no limit is asked for */
+	public static final int DEFAULT_LIMIT = 1000;
+	/** upper bound of the asked limit */
+	public static final int MAX_LIMIT = 50000;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	final static Logger logger = LoggerFactory.getLogger(PollForReportStreamer.class);
+
+	private String openiotFunctionalGraph;
+	private String serviceID;
+	private boolean binary;
+	private int offset;
+	private int limit;
+
+	/**
+	 * @param format json or binary (json if null)
+	 * @param offset rows skipped in every query (0 if null)
+	 * @param limit maximum rows written for every query (DEFAULT_LIMIT if null, at most MAX_LIMIT)
+	 */
+	public PollForReportStreamer(String serviceID, String format, Integer offset, Integer limit)
+	{
+		PropertyManagement propertyManagement = new PropertyManagement();
+		openiotFunctionalGraph = propertyManagement.getSdumLsmFunctionalGraph();
+
+		logger.debug("Recieved Parameters: serviceID= {}, format= {}, offset= {}, limit= {}", new Object[]{serviceID, format, offset, limit});
+
+		if (format != null && !FORMAT_JSON.equalsIgnoreCase(format) && !FORMAT_BINARY.equalsIgnoreCase(format))
+		{
+			throw new IllegalArgumentException("Unknown format: " + format);
+		}
+
+		this.serviceID = serviceID;
+		this.binary = FORMAT_BINARY.equalsIgnoreCase(format);
+		this.offset = (offset == null) ? 0 : Math.max(0, offset);
+		this.limit = (limit == null) ? DEFAULT_LIMIT : Math.max(0, Math.min(MAX_LIMIT, limit));
+	}
+
+
+	public String getMediaType()
+	{
+		return binary ? "application/octet-stream" : "application/json";
+	}
+
+
+	@Override
+	public void write(OutputStream output) throws IOException
+	{
+		SesameSPARQLClient sparqlCl = null;
+		try {
+			sparqlCl = new SesameSPARQLClient();
+		} catch (RepositoryException e) {
+			logger.error("Init sparql repository error. ",e);
+			throw new IOException("Init sparql repository error", e);
+		}
+
+		TupleQueryResult qres = sparqlCl.sparqlToQResult(PollForReportImpl.Queries.getQueryListOfOSMO(openiotFunctionalGraph,serviceID));
+		ArrayList<PollForReportImpl.Queries.QueryData> queryDataList = PollForReportImpl.Queries.parseOSMOQueryData(qres);
+		if (queryDataList == null)
+		{
+			queryDataList = new ArrayList<PollForReportImpl.Queries.QueryData>();
+		}
+
+		RowWriter rowWriter = binary ? new BinaryRowWriter(output) : new JsonRowWriter(output);
+
+		rowWriter.start(serviceID, offset, limit);
+
+		for (PollForReportImpl.Queries.QueryData queryData : queryDataList)
+		{
+			streamQuery(sparqlCl, queryData, rowWriter);
+		}
+
+		TupleQueryResult qres3 = sparqlCl.sparqlToQResult(PollForReportImpl.Queries.getWPresentationFromOSMO(openiotFunctionalGraph,this.serviceID));
+		ArrayList<PollForReportImpl.Queries.ServicePresentationData> srvcPreDatas = PollForReportImpl.Queries.parseWPresentationFromService(qres3);
+
+		//widgetID -> name, value pairs, in the order they were found
+		Map<String, List<String[]>> widgets = new LinkedHashMap<String, List<String[]>>();
+		if (srvcPreDatas != null)
+		{
+			for (PollForReportImpl.Queries.ServicePresentationData srvcPreData : srvcPreDatas)
+			{
+				List<String[]> attrs = widgets.get(srvcPreData.getWidgetID());
+				if (attrs == null)
+				{
+					attrs = new ArrayList<String[]>();
+					widgets.put(srvcPreData.getWidgetID(), attrs);
+				}
+				attrs.add(new String[]{srvcPreData.getWidgetAttrName(), srvcPreData.getWidgetAttrDesc()});
+			}
+		}
+
+		rowWriter.presentation(widgets);
+		rowWriter.end();
+	}
+
+
+	//helper methods
+
+	/**
+	 * Writes one page of the rows of the query. The connection is kept open
+	 * until the rows are read (or the page is full, in which case the rest of
+	 * the result is not read at all).
+	 */
+	private void streamQuery(SesameSPARQLClient sparqlCl, PollForReportImpl.Queries.QueryData queryData, RowWriter rowWriter) throws IOException
+	{
+		boolean started = false;
+		try
+		{
+			RepositoryConnection con = sparqlCl.getTherepository().getConnection();
+			try
+			{
+				TupleQueryResult result = con.prepareTupleQuery(QueryLanguage.SPARQL, queryData.getQueryString()).evaluate();
+				try
+				{
+					List<String> variables = result.getBindingNames();
+					rowWriter.startQuery(queryData.getId(), variables);
+					started = true;
+
+					String[] row = new String[variables.size()];
+					int skipped = 0;
+					int written = 0;
+					while (result.hasNext())
+					{
+						BindingSet b = result.next();
+						if (skipped < offset)
+						{
+							skipped++;
+							continue;
+						}
+						if (written == limit)
+						{
+							rowWriter.endQuery(true);
+							return;
+						}
+						for (int i = 0; i < row.length; i++)
+						{
+							Value value = b.getValue(variables.get(i));
+							row[i] = (value == null) ? null : value.stringValue();
+						}
+						rowWriter.row(row);
+						written++;
+					}
+					rowWriter.endQuery(false);
+				}
+				finally
+				{
+					result.close();
+				}
+			}
+			finally
+			{
+				con.close();
+			}
+		}
+		catch (IOException e)
+		{
+			//the client went away
+			throw e;
+		}
+		catch (Exception e)
+		{
+			logger.error("Query " + queryData.getId() + " of service " + serviceID + " failed", e);
+			if (!started)
+			{
+				rowWriter.startQuery(queryData.getId(), new ArrayList<String>());
+			}
+			rowWriter.failQuery(String.valueOf(e.getMessage()));
+		}
+	}
+
+
+	private interface RowWriter
+	{
+		void start(String serviceID, int offset, int limit) throws IOException;
+		void startQuery(String queryID, List<String> variables) throws IOException;
+		void row(String[] values) throws IOException;
+		void endQuery(boolean more) throws IOException;
+		void failQuery(String error) throws IOException;
+		void presentation(Map<String, List<String[]>> widgets) throws IOException;
+		void end() throws IOException;
+	}
+
+
+	private static class JsonRowWriter implements RowWriter
+	{
+		private Writer out;
+		private boolean firstQuery = true;
+		private boolean firstRow;
+
+		JsonRowWriter(OutputStream output)
+		{
+			out = new BufferedWriter(new OutputStreamWriter(output, UTF8), 8192);
+		}
+
+		public void start(String serviceID, int offset, int limit) throws IOException
+		{
+			out.write("{\"serviceID\":");
+			string(serviceID);
+			out.write(",\"offset\":" + offset + ",\"limit\":" + limit + ",\"queries\":[");
+		}
+
+		public void startQuery(String queryID, List<String> variables) throws IOException
+		{
+			if (!firstQuery)
+			{
+				out.write(',');
+			}
+			firstQuery = false;
+			out.write("{\"queryID\":");
+			string(queryID);
+			out.write(",\"variables\":[");
+			for (int i = 0; i < variables.size(); i++)
+			{
+				if (i > 0)
+				{
+					out.write(',');
+				}
+				string(variables.get(i));
+			}
+			out.write("],\"rows\":[");
+			firstRow = true;
+		}
+
+		public void row(String[] values) throws IOException
+		{
+			out.write(firstRow ? "[" : ",[");
+			firstRow = false;
+			for (int i = 0; i < values.length; i++)
+			{
+				if (i > 0)
+				{
+					out.write(',');
+				}
+				string(values[i]);
+			}
+			out.write(']');
+		}
+
+		public void endQuery(boolean more) throws IOException
+		{
+			out.write("],\"more\":" + more + "}");
+		}
+
+		public void failQuery(String error) throws IOException
+		{
+			out.write("],\"error\":");
+			string(error);
+			out.write('}');
+		}
+
+		public void presentation(Map<String, List<String[]>> widgets) throws IOException
+		{
+			out.write("],\"presentation\":[");
+			boolean firstWidget = true;
+			for (Map.Entry<String, List<String[]>> widget : widgets.entrySet())
+			{
+				out.write(firstWidget ? "{\"widgetID\":" : ",{\"widgetID\":");
+				firstWidget = false;
+				string(widget.getKey());
+				out.write(",\"attrs\":{");
+				boolean firstAttr = true;
+				for (String[] attr : widget.getValue())
+				{
+					if (!firstAttr)
+					{
+						out.write(',');
+					}
+					firstAttr = false;
+					string(attr[0] == null ? "" : attr[0]);
+					out.write(':');
+					string(attr[1]);
+				}
+				out.write("}}");
+			}
+			out.write(']');
+		}
+
+		public void end() throws IOException
+		{
+			out.write('}');
+			out.flush();
+		}
+
+		private void string(String s) throws IOException
+		{
+			if (s == null)
+			{
+				out.write("null");
+				return;
+			}
+			out.write('"');
+			for (int i = 0; i < s.length(); i++)
+			{
+				char c = s.charAt(i);
+				switch (c)
+				{
+				case '"':
+					out.write("\\\"");
+					break;
+				case '\\':
+					out.write("\\\\");
+					break;
+				case '\n':
+					out.write("\\n");
+					break;
+				case '\r':
+					out.write("\\r");
+					break;
+				case '\t':
+					out.write("\\t");
+					break;
+				default:
+					if (c < 0x20)
+					{
+						out.write(String.format("\\u%04x", (int) c));
+					}
+					else
+					{
+						out.write(c);
+					}
+				}
+			}
+			out.write('"');
+		}
+	}
+
+
+	private static class BinaryRowWriter implements RowWriter
+	{
+		private DataOutputStream out;
+
+		BinaryRowWriter(OutputStream output)
+		{
+			out = new DataOutputStream(new BufferedOutputStream(output, 8192));
+		}
+
+		public void start(String serviceID, int offset, int limit) throws IOException
+		{
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			string(serviceID);
+			out.writeInt(offset);
+			out.writeInt(limit);
+		}
+
+		public void startQuery(String queryID, List<String> variables) throws IOException
+		{
+			out.writeByte(1);
+			string(queryID);
+			out.writeInt(variables.size());
+			for (String variable : variables)
+			{
+				string(variable);
+			}
+		}
+
+		public void row(String[] values) throws IOException
+		{
+			out.writeByte(1);
+			for (String value : values)
+			{
+				string(value);
+			}
+		}
+
+		public void endQuery(boolean more) throws IOException
+		{
+			out.writeByte(0);
+			out.writeByte(more ? 1 : 0);
+		}
+
+		public void failQuery(String error) throws IOException
+		{
+			out.writeByte(0);
+			out.writeByte(2);
+			string(error);
+		}
+
+		public void presentation(Map<String, List<String[]>> widgets) throws IOException
+		{
+			out.writeByte(0);
+			for (Map.Entry<String, List<String[]>> widget : widgets.entrySet())
+			{
+				out.writeByte(1);
+				string(widget.getKey());
+				out.writeInt(widget.getValue().size());
+				for (String[] attr : widget.getValue())
+				{
+					string(attr[0]);
+					string(attr[1]);
+				}
+			}
+		}
+
+		public void end() throws IOException
+		{
+			out.writeByte(0);
+			out.flush();
+		}
+
+		private void string(String s) throws IOException
+		{
+			if (s == null)
+			{
+				out.writeInt(-1);
+				return;
+			}
+			byte[] bytes = s.getBytes(UTF8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package org.openiot.sdum.core.api.impl.PollForReport;
+
+/**
+ *    Copyright (c) 2011-2014, OpenIoT
+ *
+ *    This file is part of OpenIoT.
+ *
+ *    OpenIoT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3 of the License.
+ *
+ *    OpenIoT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Contact: OpenIoT mailto: info@openiot.eu
+ */
+
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * The fire times of an OSMO QuerySchedule (second, minute, hour, dayOfMonth,
+ * month, dayOfWeek).
+ *
+ * Every field is a comma separated list of values, ranges ("a-b" or "[a-b]")
+ * and "*", each optionally followed by a step ("/n"). A missing field matches
+ * every value, except the second which defaults to 0 so that a schedule does
+ * not fire every second by accident. dayOfWeek goes from 1 (Monday) to 7
+ * (Sunday). A time matches when all the fields match.
+ *
+ * The fields are matched against the local time of the given time zone. When
+ * daylight saving time starts, the times that do not exist are skipped. When it
+ * ends, the times that occur twice fire only once, unless the schedule fires
+ * every hour (then the repeated hour is a new hour).
+ *
+ */
+public class QueryScheduleExpression
+{
+	//give up looking for the next fire time after that many years (e.g. 31/02)
+	private static final int MAX_YEARS = 5;
+
+	private final BitSet seconds;
+	private final BitSet minutes;
+	private final BitSet hours;
+	private final BitSet daysOfMonth;
+	private final BitSet months;
+	private final BitSet daysOfWeek;
+
+
+	/**
+	 * @throws IllegalArgumentException if a field can not be parsed
+	 */
+	public QueryScheduleExpression(String second, String minute, String hour, String dayOfMonth, String month, String dayOfWeek)
+	{
+		seconds = parse(isEmpty(second) ? "0" : second, 0, 59, "second");
+		minutes = parse(minute, 0, 59, "minute");
+		hours = parse(hour, 0, 23, "hour");
+		daysOfMonth = parse(dayOfMonth, 1, 31, "dayOfMonth");
+		months = parse(month, 1, 12, "month");
+		daysOfWeek = parse(dayOfWeek, 1, 7, "dayOfWeek");
+	}
+
+
+	/**
+	 * @return the first fire time strictly after the given time (in
+	 *         milliseconds, on a whole second) in the default time zone, or -1
+	 *         if there is none
+	 */
+	public long next(long after)
+	{
+		return next(after, TimeZone.getDefault());
+	}
+
+
+	/**
+	 * @return the first fire time strictly after the given time (in
+	 *         milliseconds, on a whole second) in the given time zone, or -1
+	 *         if there is none
+	 */
+	public long next(long after, TimeZone timeZone)
+	{
+		//the time of day is only moved with add(), which works on the instant,
+		//set() would resolve a local time repeated by DST to its second occurrence
+		Calendar c = Calendar.getInstance(timeZone);
+		c.setTimeInMillis(after);
+		c.add(Calendar.MILLISECOND, -c.get(Calendar.MILLISECOND));
+		c.add(Calendar.SECOND, 1);
+		boolean everyHour = hours.cardinality() == 24;
+
+		int maxYear = c.get(Calendar.YEAR) + MAX_YEARS;
+		while (c.get(Calendar.YEAR) <= maxYear)
+		{
+			if (!months.get(c.get(Calendar.MONTH) + 1))
+			{
+				c.set(Calendar.DAY_OF_MONTH, 1);
+				startOfDay(c);
+				c.add(Calendar.MONTH, 1);
+			}
+			else if (!daysOfMonth.get(c.get(Calendar.DAY_OF_MONTH)) || !daysOfWeek.get(isoDayOfWeek(c)))
+			{
+				startOfDay(c);
+				c.add(Calendar.DAY_OF_MONTH, 1);
+			}
+			else if (!hours.get(c.get(Calendar.HOUR_OF_DAY)))
+			{
+				c.add(Calendar.SECOND, -c.get(Calendar.SECOND));
+				c.add(Calendar.MINUTE, 60 - c.get(Calendar.MINUTE));
+			}
+			else if (!minutes.get(c.get(Calendar.MINUTE)))
+			{
+				c.add(Calendar.SECOND, 60 - c.get(Calendar.SECOND));
+			}
+			else if (!seconds.get(c.get(Calendar.SECOND)))
+			{
+				c.add(Calendar.SECOND, 1);
+			}
+			else if (!everyHour && isRepeated(c))
+			{
+				c.add(Calendar.SECOND, 1);
+			}
+			else
+			{
+				return c.getTimeInMillis();
+			}
+		}
+		return -1;
+	}
+
+
+	//helper methods
+
+	private static void startOfDay(Calendar c)
+	{
+		c.set(Calendar.HOUR_OF_DAY, 0);
+		c.set(Calendar.MINUTE, 0);
+		c.set(Calendar.SECOND, 0);
+	}
+
+	//true if the same local time already occurred before the end of DST
+	private static boolean isRepeated(Calendar c)
+	{
+		TimeZone timeZone = c.getTimeZone();
+		long time = c.getTimeInMillis();
+		int offset = timeZone.getOffset(time);
+		int shift = timeZone.getOffset(time - 6 * 60 * 60 * 1000L) - offset;
+		return shift > 0 && timeZone.getOffset(time - shift) == offset + shift;
+	}
+
+	//Calendar.SUNDAY is 1, Calendar.SATURDAY is 7
+	private static int isoDayOfWeek(Calendar c)
+	{
+		return (c.get(Calendar.DAY_OF_WEEK) + 5) % 7 + 1;
+	}
+
+	private static boolean isEmpty(String field)
+	{
+		return field == null || field.trim().length() == 0;
+	}
+
+	private static BitSet parse(String field, int min, int max, String name)
+	{
+		BitSet bits = new BitSet(max + 1);
+		if (isEmpty(field))
+		{
+			bits.set(min, max + 1);
+			return bits;
+		}
+
+		for (String part : field.split(","))
+		{
+			part = part.trim().replace("[", "").replace("]", "");
+			int step = 1;
+			int slash = part.indexOf('/');
+			if (slash >= 0)
+			{
+				step = number(part.substring(slash + 1), 1, max, name, field);
+				part = part.substring(0, slash);
+			}
+
+			int from;
+			int to;
+			if (part.equals("*") || part.equals("?"))
+			{
+				from = min;
+				to = max;
+			}
+			else if (part.indexOf('-') > 0)
+			{
+				from = number(part.substring(0, part.indexOf('-')), min, max, name, field);
+				to = number(part.substring(part.indexOf('-') + 1), min, max, name, field);
+			}
+			else
+			{
+				from = number(part, min, max, name, field);
+				to = slash >= 0 ? max : from;
+			}
+			if (from > to)
+				throw new IllegalArgumentException("Empty range in " + name + ": " + field);
+
+			for (int i = from; i <= to; i += step)
+				bits.set(i);
+		}
+		return bits;
+	}
+
+	private static int number(String str, int min, int max, String name, String field)
+	{
+		int value;
+		try {
+			value = Integer.parseInt(str.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid " + name + ": " + field);
+		}
+		if (value < min || value > max)
+			throw new IllegalArgumentException("Out of range " + name + " (" + min + "-" + max + "): " + field);
+		return value;
+	}
+}
@@ -0,0 +1,536 @@
+package org.openiot.sdum.core.api.impl.PollForReport;
+
+/**
+ *    Copyright (c) 2011-2014, OpenIoT
+ *
+ *    This file is part of OpenIoT.
+ *
+ *    OpenIoT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3 of the License.
+ *
+ *    OpenIoT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Contact: OpenIoT mailto: info@openiot.eu
+ */
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openiot.commons.sdum.serviceresultset.model.PresentationAttr;
+import org.openiot.commons.sdum.serviceresultset.model.SdumServiceResultSet;
+import org.openiot.commons.sdum.serviceresultset.model.Widget;
+import org.openiot.commons.sparql.protocoltypes.model.QueryResult;
+import org.openiot.commons.sparql.result.model.Binding;
+import org.openiot.commons.sparql.result.model.Result;
+import org.openiot.commons.util.PropertyManagement;
+import org.openiot.sdum.core.utils.sparql.SesameSPARQLClient;
+
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.TupleQueryResult;
+import org.openrdf.repository.RepositoryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the queries of every OSMO that has a QuerySchedule in its
+ * QueryControls on that schedule and keeps the latest report of each of them,
+ * so that pollForReport answers from memory and the load on the triple store
+ * depends on the schedules and not on the number of clients polling.
+ *
+ * The schedules are read from the functional graph every
+ * sdum.materializer.refreshSeconds (so registered, updated and removed
+ * services are picked up), at most sdum.materializer.threads services are
+ * evaluated at the same time, and every run is delayed by a random jitter of
+ * up to sdum.materializer.jitterMillis so services sharing a schedule do not
+ * all hit the triple store at once. A run that is still going when the next
+ * one is due makes that one skipped. A report equal to the previous one does
+ * not replace it, and an empty report is only kept if the QueryControls ask
+ * for reportIfEmpty.
+ *
+ * Services without a schedule (or before their first run) are still evaluated
+ * on demand by {@link PollForReportImpl}, and so are the services whose report
+ * was not confirmed by the last run that was due (failed, skipped or late run).
+ *
+ */
+public class ReportMaterializer
+{
+	public static final String ENABLED = "sdum.materializer.enabled";
+	public static final String THREADS = "sdum.materializer.threads";
+	public static final String JITTER = "sdum.materializer.jitterMillis";
+	public static final String REFRESH = "sdum.materializer.refreshSeconds";
+
+	//time allowed past the due time of a run before the report is stale
+	private static final long STALE_GRACE_MILLIS = 5000;
+
+	final static Logger logger = LoggerFactory.getLogger(ReportMaterializer.class);
+
+	private static ReportMaterializer instance;
+
+	private final ScheduledThreadPoolExecutor executor;
+	private final Map<String, ServiceJob> jobs = new ConcurrentHashMap<String, ServiceJob>();
+	private final Random random = new Random();
+	private final String openiotFunctionalGraph;
+	private volatile int jitterMillis;
+
+
+	/**
+	 * @return the materializer, started on the first call unless
+	 *         sdum.materializer.enabled is false (then null)
+	 */
+	public static synchronized ReportMaterializer getInstance()
+	{
+		if (instance == null)
+		{
+			PropertyManagement propertyManagement = new PropertyManagement();
+			if (!Boolean.parseBoolean(propertyManagement.getProperty(ENABLED, "true")))
+				return null;
+
+			instance = new ReportMaterializer(propertyManagement);
+			instance.start(propertyManagement);
+		}
+		return instance;
+	}
+
+	/**
+	 * @return the latest materialized report of the service, or null if the
+	 *         service is not scheduled, has not been run yet or its report is
+	 *         stale (see {@link #isStale})
+	 */
+	public static SdumServiceResultSet getLatestReport(String serviceID)
+	{
+		ReportMaterializer materializer = getInstance();
+		if (materializer == null || serviceID == null)
+			return null;
+
+		ServiceJob job = materializer.jobs.get(serviceID);
+		if (job == null || job.report == null)
+			return null;
+		if (materializer.isStale(job, System.currentTimeMillis()))
+		{
+			logger.debug("The report of {} from {} is stale", serviceID, time(job.reportTime));
+			return null;
+		}
+		return job.report;
+	}
+
+	/**
+	 * @return the time of the latest materialized report of the service (the
+	 *         start of the run that produced it), or 0 if there is none
+	 */
+	public static long getLatestReportTime(String serviceID)
+	{
+		ReportMaterializer materializer = getInstance();
+		ServiceJob job = materializer == null || serviceID == null ? null : materializer.jobs.get(serviceID);
+		return job == null || job.report == null ? 0 : job.reportTime;
+	}
+
+	/**
+	 * @return one line of execution stats per scheduled service
+	 */
+	public String getStats()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("scheduledServices=").append(jobs.size())
+			.append(" threads=").append(executor.getCorePoolSize())
+			.append(" active=").append(executor.getActiveCount())
+			.append(" queued=").append(executor.getQueue().size()).append("\n");
+
+		for (ServiceJob job : new TreeMap<String, ServiceJob>(jobs).values())
+		{
+			sb.append(job.serviceID)
+				.append(" runs=").append(job.runs.get())
+				.append(" failures=").append(job.failures.get())
+				.append(" skipped=").append(job.skipped.get())
+				.append(" empty=").append(job.empty.get())
+				.append(" unchanged=").append(job.unchanged.get())
+				.append(" lastRun=").append(time(job.lastRun))
+				.append(" lastDurationMs=").append(job.lastDuration)
+				.append(" reportTime=").append(time(job.reportTime))
+				.append(" checkTime=").append(time(job.checkTime))
+				.append(" nextRun=").append(time(job.nextRun))
+				.append("\n");
+		}
+		return sb.toString();
+	}
+
+
+	private ReportMaterializer(PropertyManagement propertyManagement)
+	{
+		openiotFunctionalGraph = propertyManagement.getSdumLsmFunctionalGraph();
+
+		int threads = Integer.parseInt(propertyManagement.getProperty(THREADS, "4"));
+		executor = new ScheduledThreadPoolExecutor(Math.max(1, threads), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "sdum-materializer-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		executor.setRemoveOnCancelPolicy(true);
+	}
+
+	private void start(PropertyManagement propertyManagement)
+	{
+		long refreshSeconds = Long.parseLong(propertyManagement.getProperty(REFRESH, "60"));
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					refresh();
+				} catch (Exception e) {
+					logger.error("Refreshing the query schedules failed", e);
+				}
+			}
+		}, 0, Math.max(1, refreshSeconds), TimeUnit.SECONDS);
+	}
+
+
+	//helper methods
+
+	/**
+	 * Reads the schedules from the functional graph and (re)schedules the
+	 * services that were added or changed, and drops the ones removed.
+	 */
+	private void refresh()
+	{
+		jitterMillis = Integer.parseInt(new PropertyManagement().getProperty(JITTER, "2000"));
+
+		Map<String, ScheduleData> schedules = loadSchedules();
+		if (schedules == null)
+			return;
+
+		for (String serviceID : jobs.keySet())
+		{
+			if (!schedules.containsKey(serviceID))
+			{
+				jobs.remove(serviceID).cancel();
+				logger.info("Stopped materializing the reports of {}", serviceID);
+			}
+		}
+
+		for (ScheduleData data : schedules.values())
+		{
+			QueryScheduleExpression expression;
+			try {
+				expression = new QueryScheduleExpression(data.second, data.minute, data.hour, data.dayOfMonth, data.month, data.dayOfWeek);
+			} catch (IllegalArgumentException e) {
+				logger.warn("Invalid query schedule of {}: {}", data.serviceID, e.getMessage());
+				ServiceJob job = jobs.remove(data.serviceID);
+				if (job != null)
+					job.cancel();
+				continue;
+			}
+
+			ServiceJob job = jobs.get(data.serviceID);
+			if (job == null)
+			{
+				job = new ServiceJob(data.serviceID);
+				jobs.put(data.serviceID, job);
+				logger.info("Materializing the reports of {} on {}", data.serviceID, data.key());
+			}
+			job.reportIfEmpty = data.reportIfEmpty;
+			if (!data.key().equals(job.scheduleKey))
+			{
+				job.schedule = expression;
+				job.scheduleKey = data.key();
+				scheduleNext(job);
+			}
+		}
+	}
+
+	private void scheduleNext(final ServiceJob job)
+	{
+		synchronized (job)
+		{
+			if (job.future != null)
+				job.future.cancel(false);
+			if (job.cancelled)
+				return;
+
+			long now = System.currentTimeMillis();
+			long next = job.schedule.next(now);
+			job.nextRun = next;
+			if (next < 0)
+			{
+				job.future = null;
+				return;
+			}
+
+			int jitter = jitterMillis;
+			long delay = next - now + (jitter > 0 ? random.nextInt(jitter) : 0);
+			job.future = executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					scheduleNext(job);
+					execute(job);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void execute(ServiceJob job)
+	{
+		if (!job.running.compareAndSet(false, true))
+		{
+			job.skipped.incrementAndGet();
+			logger.debug("Skipped a run of {}, the previous one is still running", job.serviceID);
+			return;
+		}
+		try
+		{
+			long start = System.currentTimeMillis();
+			job.lastRun = start;
+			SdumServiceResultSet report = new PollForReportImpl(job.serviceID, false).getSdumServiceResultSet();
+			job.lastDuration = System.currentTimeMillis() - start;
+			job.runs.incrementAndGet();
+
+			if (report == null)
+			{
+				job.failures.incrementAndGet();
+				return;
+			}
+			if (isEmpty(report) && !job.reportIfEmpty)
+			{
+				job.empty.incrementAndGet();
+				job.checkTime = start;
+				return;
+			}
+
+			long fingerprint = fingerprint(report);
+			if (job.report != null && fingerprint == job.fingerprint)
+			{
+				job.unchanged.incrementAndGet();
+				job.checkTime = start;
+				return;
+			}
+			job.fingerprint = fingerprint;
+			job.report = report;
+			job.reportTime = start;
+			job.checkTime = start;
+		}
+		catch (Exception e)
+		{
+			job.failures.incrementAndGet();
+			logger.error("Materializing the report of " + job.serviceID + " failed", e);
+		}
+		finally
+		{
+			job.running.set(false);
+		}
+	}
+
+	/**
+	 * A report is stale once the run following the last one that produced or
+	 * confirmed it was due (including the jitter and the time a run takes)
+	 * and has not confirmed it, i.e. it failed, was skipped or is late.
+	 */
+	private boolean isStale(ServiceJob job, long now)
+	{
+		QueryScheduleExpression schedule = job.schedule;
+		if (schedule == null)
+			return true;
+		long due = schedule.next(job.checkTime);
+		return due >= 0 && now > due + jitterMillis + job.lastDuration + STALE_GRACE_MILLIS;
+	}
+
+	private static boolean isEmpty(SdumServiceResultSet report)
+	{
+		for (QueryResult queryResult : report.getQueryResult())
+		{
+			if (queryResult.getSparql() != null && queryResult.getSparql().getResults() != null
+					&& !queryResult.getSparql().getResults().getResult().isEmpty())
+				return false;
+		}
+		return true;
+	}
+
+	private static long fingerprint(SdumServiceResultSet report)
+	{
+		long h = 17;
+		for (QueryResult queryResult : report.getQueryResult())
+		{
+			h = 31 * h + 1;
+			if (queryResult.getSparql() == null || queryResult.getSparql().getResults() == null)
+				continue;
+			for (Result result : queryResult.getSparql().getResults().getResult())
+			{
+				h = 31 * h + 2;
+				for (Binding binding : result.getBinding())
+				{
+					h = 31 * h + hash(binding.getName());
+					h = 31 * h + (binding.getLiteral() == null ? 0 : hash(binding.getLiteral().getContent()));
+				}
+			}
+		}
+		if (report.getRequestPresentation() != null)
+		{
+			for (Widget widget : report.getRequestPresentation().getWidget())
+			{
+				h = 31 * h + hash(widget.getWidgetID());
+				for (PresentationAttr attr : widget.getPresentationAttr())
+					h = 31 * h + hash(attr.getName()) * 7 + hash(attr.getValue());
+			}
+		}
+		return h;
+	}
+
+	private static int hash(String str)
+	{
+		return str == null ? 0 : str.hashCode();
+	}
+
+	private static String time(long millis)
+	{
+		return millis <= 0 ? "-" : String.valueOf(new Date(millis));
+	}
+
+	private Map<String, ScheduleData> loadSchedules()
+	{
+		SesameSPARQLClient sparqlCl = null;
+		try {
+			sparqlCl = new SesameSPARQLClient();
+		} catch (RepositoryException e) {
+			logger.error("Init sparql repository error. ", e);
+			return null;
+		}
+
+		TupleQueryResult qres = sparqlCl.sparqlToQResult(getScheduledOSMOs(openiotFunctionalGraph));
+		if (qres == null)
+			return null;
+
+		Map<String, ScheduleData> schedules = new HashMap<String, ScheduleData>();
+		try
+		{
+			while (qres.hasNext())
+			{
+				BindingSet b = qres.next();
+				Set<String> names = b.getBindingNames();
+				ScheduleData data = new ScheduleData();
+				for (String n : names)
+				{
+					String str = (b.getValue(n) == null) ? null : b.getValue(n).stringValue();
+					if (n.equals("osmoID"))
+						data.serviceID = str;
+					else if (n.equals("qschedSecond"))
+						data.second = str;
+					else if (n.equals("qschedMinute"))
+						data.minute = str;
+					else if (n.equals("qschedHour"))
+						data.hour = str;
+					else if (n.equals("qschedDayOfMonth"))
+						data.dayOfMonth = str;
+					else if (n.equals("qschedMonth"))
+						data.month = str;
+					else if (n.equals("qschedDayOfWeek"))
+						data.dayOfWeek = str;
+					else if (n.equals("queryContrlsIfEmpty"))
+						data.reportIfEmpty = Boolean.parseBoolean(str);
+				}
+				if (data.serviceID != null)
+					schedules.put(data.serviceID, data);
+			}
+			return schedules;
+		}
+		catch (Exception e)
+		{
+			logger.error("Reading the query schedules failed", e);
+			return null;
+		}
+	}
+
+	private static String getScheduledOSMOs(String openiotFunctionalGraph)
+	{
+		return "SELECT ?osmoID ?qschedSecond ?qschedMinute ?qschedHour ?qschedDayOfMonth ?qschedMonth ?qschedDayOfWeek ?queryContrlsIfEmpty "
+				+"from <"+openiotFunctionalGraph+"> "
+				+"WHERE "
+				+"{"
+				+"?queryContrlsID <http://openiot.eu/ontology/ns/querycontrolsOfOSMO> ?osmoID . "
+				+"?querScheduleID <http://openiot.eu/ontology/ns/queryscheduleOfQueryControls> ?queryContrlsID . "
+				+"optional { ?queryContrlsID <http://openiot.eu/ontology/ns/querycontrolsReportIfEmpty> ?queryContrlsIfEmpty . }"
+				+"optional { ?querScheduleID <http://openiot.eu/ontology/ns/queryscheduleSecond> ?qschedSecond . }"
+				+"optional { ?querScheduleID <http://openiot.eu/ontology/ns/queryscheduleMinute> ?qschedMinute . }"
+				+"optional { ?querScheduleID <http://openiot.eu/ontology/ns/queryscheduleHour> ?qschedHour . }"
+				+"optional { ?querScheduleID <http://openiot.eu/ontology/ns/queryscheduleDayOfMonth> ?qschedDayOfMonth . }"
+				+"optional { ?querScheduleID <http://openiot.eu/ontology/ns/queryscheduleMonth> ?qschedMonth . }"
+				+"optional { ?querScheduleID <http://openiot.eu/ontology/ns/queryscheduleDayOfWeek> ?qschedDayOfWeek . }"
+				+"}";
+	}
+
+
+	private static class ScheduleData
+	{
+		String serviceID;
+		String second;
+		String minute;
+		String hour;
+		String dayOfMonth;
+		String month;
+		String dayOfWeek;
+		boolean reportIfEmpty;
+
+		String key()
+		{
+			return second + " " + minute + " " + hour + " " + dayOfMonth + " " + month + " " + dayOfWeek;
+		}
+	}
+
+	private static class ServiceJob
+	{
+		final String serviceID;
+		volatile QueryScheduleExpression schedule;
+		volatile String scheduleKey;
+		volatile boolean reportIfEmpty;
+		volatile boolean cancelled;
+		ScheduledFuture<?> future;
+		final AtomicBoolean running = new AtomicBoolean();
+
+		volatile SdumServiceResultSet report;
+		volatile long fingerprint;
+		volatile long reportTime;
+		//start of the last run that produced or confirmed the report
+		volatile long checkTime;
+
+		final AtomicLong runs = new AtomicLong();
+		final AtomicLong failures = new AtomicLong();
+		final AtomicLong skipped = new AtomicLong();
+		final AtomicLong empty = new AtomicLong();
+		final AtomicLong unchanged = new AtomicLong();
+		volatile long lastRun;
+		volatile long lastDuration;
+		volatile long nextRun;
+
+		ServiceJob(String serviceID)
+		{
+			this.serviceID = serviceID;
+		}
+
+		synchronized void cancel()
+		{
+			cancelled = true;
+			if (future != null)
+				future.cancel(false);
+		}
+	}
+}
@@ -25,6 +25,7 @@ import java.util.HashSet;
 import javax.ws.rs.ApplicationPath;
 import javax.ws.rs.core.Application;
 
+import org.openiot.sdum.core.api.impl.PollForReport.ReportMaterializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -56,6 +57,9 @@ public class JaxRsActivator extends Application {
 	public JaxRsActivator() {
 		singletons.add(new ServiceDeliveryUtilityManagerRsControler());
 
+		// starts running the scheduled services
+		ReportMaterializer.getInstance();
+
 
 
 		// print Logger's internal state (not required for initialization)
@@ -24,9 +24,11 @@ import java.util.List;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Response;
 
 import org.openiot.commons.descriptiveids.model.DescreptiveIDs;
 import org.openiot.commons.osdspec.model.OAMO;
@@ -38,6 +40,8 @@ import org.openiot.sdum.core.api.impl.GetAvailableAppIDs.GetAvailableAppIDsImpl;
 import org.openiot.sdum.core.api.impl.GetService.GetServiceImpl;
 import org.openiot.sdum.core.api.impl.GetApplication.GetApplicationImpl;
 import org.openiot.sdum.core.api.impl.PollForReport.PollForReportImpl;
+import org.openiot.sdum.core.api.impl.PollForReport.PollForReportStreamer;
+import org.openiot.sdum.core.api.impl.PollForReport.ReportMaterializer;
 
 
 
@@ -74,6 +78,8 @@ public class ServiceDeliveryUtilityManagerRsControler {
 				+ "subscribeForReport(serviceID: String, dest: URI): String\n"
 				+ "unsubscribe (serviceID: String): boolean\n"
 				+ "pollForReport (serviceID: String): SdumServiceResultSet\n"
+				+ "pollForReportStream (serviceID: String, format: json|binary, offset: int, limit: int, gzip: boolean): rows\n"
+				+ "pollForReportStats (): String\n"
 				+ "getSubscribers(serviceID: String): List<URI>\n"
 				+ "getUtilityUsage(userID: String): UtilityUsage\n"
 				+ "getServiceUsage(serviceID: String): ServiceUsage\n"
@@ -123,6 +129,66 @@ public class ServiceDeliveryUtilityManagerRsControler {
 		return pollForReportImpl.getSdumServiceResultSet();
 
 	}
+
+	/**
+	 * Invokes a previously defined Service having the specified serviceID and
+	 * streams the rows of its queries, as they are read, in a compact json or
+	 * binary format (see {@link PollForReportStreamer}). Every query is paged
+	 * with offset/limit. The response is gzipped if asked for or if the client
+	 * accepts it.
+	 * 
+	 * @param applicationID
+	 * @return
+	 */
+	@GET
+	@Path("/pollforreport/stream")
+	@Produces({ "application/json", "application/octet-stream" })
+	public Response pollForReportStream(@QueryParam("serviceID") String applicationID, @QueryParam("clientId") String clientId, @QueryParam("token") String token,
+			@QueryParam("format") String format, @QueryParam("offset") Integer offset, @QueryParam("limit") Integer limit,
+			@QueryParam("gzip") Boolean gzip, @HeaderParam("Accept-Encoding") String acceptEncoding) {
+
+		if(!SecurityUtil.hasPermission(PermissionsUtil.SDUM_ALL, token, clientId)){
+			logger.info("Missing required permissions");
+			return Response.status(Response.Status.FORBIDDEN).build();
+		}
+
+		PollForReportStreamer pollForReportStreamer;
+		try {
+			pollForReportStreamer = new PollForReportStreamer(applicationID, format, offset, limit);
+		} catch (IllegalArgumentException e) {
+			return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).type("text/plain").build();
+		}
+
+		Response.ResponseBuilder response = Response.ok(pollForReportStreamer, pollForReportStreamer.getMediaType());
+		if (Boolean.TRUE.equals(gzip) || (gzip == null && acceptEncoding != null && acceptEncoding.contains("gzip"))) {
+			// compressed by the resteasy GZIPEncodingInterceptor
+			response.header("Content-Encoding", "gzip");
+		}
+		return response.build();
+	}
+
+	/**
+	 * Returns the execution stats of the services whose reports are
+	 * materialized on their QuerySchedule (see {@link ReportMaterializer}).
+	 * 
+	 * @return
+	 */
+	@GET
+	@Path("/pollforreport/stats")
+	@Produces("text/plain")
+	public Response pollForReportStats(@QueryParam("clientId") String clientId, @QueryParam("token") String token) {
+
+		if(!SecurityUtil.hasPermission(PermissionsUtil.SDUM_ALL, token, clientId)){
+			logger.info("Missing required permissions");
+			return Response.status(Response.Status.FORBIDDEN).build();
+		}
+
+		ReportMaterializer reportMaterializer = ReportMaterializer.getInstance();
+		if (reportMaterializer == null) {
+			return Response.ok("Report materialization is disabled\n").build();
+		}
+		return Response.ok(reportMaterializer.getStats()).build();
+	}
 	
 		
 	/**
@@ -0,0 +1,154 @@
+package org.openiot.sdum.core.api.impl.PollForReport;
+
+/**
+ *    Copyright (c) 2011-2014, OpenIoT
+ *
+ *    This file is part of OpenIoT.
+ *
+ *    OpenIoT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3 of the License.
+ *
+ *    OpenIoT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Contact: OpenIoT mailto: info@openiot.eu
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+public class QueryScheduleExpressionTest
+{
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+	private static final TimeZone NEW_YORK = TimeZone.getTimeZone("America/New_York");
+
+
+	private static long time(String time, TimeZone timeZone) throws ParseException
+	{
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS Z");
+		format.setTimeZone(timeZone);
+		return format.parse(time).getTime();
+	}
+
+	private static String format(long time, TimeZone timeZone)
+	{
+		if (time < 0)
+			return "none";
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss Z");
+		format.setTimeZone(timeZone);
+		return format.format(new Date(time));
+	}
+
+	private static String next(QueryScheduleExpression expression, String after, TimeZone timeZone) throws ParseException
+	{
+		return format(expression.next(time(after, timeZone), timeZone), timeZone);
+	}
+
+
+	@Test
+	public void nextIsStrictlyAfterOnAWholeSecond() throws ParseException
+	{
+		QueryScheduleExpression everySecond = new QueryScheduleExpression("*", null, null, null, null, null);
+		assertEquals("2014-05-06 10:20:31 +0000", next(everySecond, "2014-05-06 10:20:30.000 +0000", UTC));
+		assertEquals("2014-05-06 10:20:31 +0000", next(everySecond, "2014-05-06 10:20:30.999 +0000", UTC));
+
+		//the second defaults to 0
+		QueryScheduleExpression everyMinute = new QueryScheduleExpression(null, null, null, null, null, null);
+		assertEquals("2014-05-06 10:21:00 +0000", next(everyMinute, "2014-05-06 10:20:00.000 +0000", UTC));
+	}
+
+	@Test
+	public void steps() throws ParseException
+	{
+		QueryScheduleExpression every15Seconds = new QueryScheduleExpression("*/15", null, null, null, null, null);
+		assertEquals("2014-05-06 10:20:15 +0000", next(every15Seconds, "2014-05-06 10:20:07.000 +0000", UTC));
+		assertEquals("2014-05-06 10:21:00 +0000", next(every15Seconds, "2014-05-06 10:20:45.000 +0000", UTC));
+
+		//a single value with a step runs up to the maximum
+		QueryScheduleExpression from10Every20Minutes = new QueryScheduleExpression("0", "10/20", null, null, null, null);
+		assertEquals("2014-05-06 10:50:00 +0000", next(from10Every20Minutes, "2014-05-06 10:30:00.000 +0000", UTC));
+		assertEquals("2014-05-06 11:10:00 +0000", next(from10Every20Minutes, "2014-05-06 10:50:00.000 +0000", UTC));
+	}
+
+	@Test
+	public void rangesAndLists() throws ParseException
+	{
+		QueryScheduleExpression range = new QueryScheduleExpression("0", "0-10/5", "[8-9]", null, null, null);
+		assertEquals("2014-05-06 08:00:00 +0000", next(range, "2014-05-06 07:59:59.000 +0000", UTC));
+		assertEquals("2014-05-06 08:10:00 +0000", next(range, "2014-05-06 08:05:00.000 +0000", UTC));
+		assertEquals("2014-05-06 09:00:00 +0000", next(range, "2014-05-06 08:10:00.000 +0000", UTC));
+		assertEquals("2014-05-07 08:00:00 +0000", next(range, "2014-05-06 09:10:00.000 +0000", UTC));
+
+		//weekdays at noon and midnight, 2014-05-09 is a Friday
+		QueryScheduleExpression weekdays = new QueryScheduleExpression("0", "0", "0,12", null, null, "1-5");
+		assertEquals("2014-05-09 12:00:00 +0000", next(weekdays, "2014-05-09 00:00:00.000 +0000", UTC));
+		assertEquals("2014-05-12 00:00:00 +0000", next(weekdays, "2014-05-09 12:00:00.000 +0000", UTC));
+	}
+
+	@Test
+	public void daysThatDoNotExistInEveryMonth() throws ParseException
+	{
+		QueryScheduleExpression the31st = new QueryScheduleExpression("0", "0", "0", "31", null, null);
+		assertEquals("2014-05-31 00:00:00 +0000", next(the31st, "2014-04-01 00:00:00.000 +0000", UTC));
+
+		QueryScheduleExpression leapDay = new QueryScheduleExpression("0", "0", "0", "29", "2", null);
+		assertEquals("2016-02-29 00:00:00 +0000", next(leapDay, "2014-03-01 00:00:00.000 +0000", UTC));
+
+		QueryScheduleExpression the31stOfFebruary = new QueryScheduleExpression("0", "0", "0", "31", "2", null);
+		assertEquals("none", next(the31stOfFebruary, "2014-01-01 00:00:00.000 +0000", UTC));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void outOfRangeValue()
+	{
+		new QueryScheduleExpression("0", "60", null, null, null, null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void emptyRange()
+	{
+		new QueryScheduleExpression("0", null, "10-8", null, null, null);
+	}
+
+	@Test
+	public void daylightSavingTimeStart() throws ParseException
+	{
+		//2014-03-09 02:00 EST is 03:00 EDT, 02:30 does not exist that day
+		QueryScheduleExpression daily = new QueryScheduleExpression("0", "30", "2", null, null, null);
+		assertEquals("2014-03-10 02:30:00 -0400", next(daily, "2014-03-08 12:00:00.000 -0500", NEW_YORK));
+
+		QueryScheduleExpression every30Minutes = new QueryScheduleExpression("0", "*/30", null, null, null, null);
+		assertEquals("2014-03-09 01:30:00 -0500", next(every30Minutes, "2014-03-09 01:00:00.000 -0500", NEW_YORK));
+		assertEquals("2014-03-09 03:00:00 -0400", next(every30Minutes, "2014-03-09 01:30:00.000 -0500", NEW_YORK));
+	}
+
+	@Test
+	public void daylightSavingTimeEnd() throws ParseException
+	{
+		//2014-11-02 02:00 EDT is 01:00 EST, 01:00 to 01:59 occur twice that day
+		QueryScheduleExpression daily = new QueryScheduleExpression("0", "30", "1", null, null, null);
+		assertEquals("2014-11-02 01:30:00 -0400", next(daily, "2014-11-01 12:00:00.000 -0400", NEW_YORK));
+		assertEquals("2014-11-03 01:30:00 -0500", next(daily, "2014-11-02 01:30:00.000 -0400", NEW_YORK));
+
+		//a schedule that fires every hour also fires in the repeated hour
+		QueryScheduleExpression hourly = new QueryScheduleExpression("0", "45", null, null, null, null);
+		assertEquals("2014-11-02 01:45:00 -0400", next(hourly, "2014-11-02 01:00:00.000 -0400", NEW_YORK));
+		assertEquals("2014-11-02 01:45:00 -0500", next(hourly, "2014-11-02 01:50:00.000 -0400", NEW_YORK));
+		assertEquals("2014-11-02 02:45:00 -0500", next(hourly, "2014-11-02 01:45:00.000 -0500", NEW_YORK));
+
+		QueryScheduleExpression everyMinute = new QueryScheduleExpression("30", null, null, null, null, null);
+		assertEquals("2014-11-02 01:00:30 -0500", next(everyMinute, "2014-11-02 01:59:50.000 -0400", NEW_YORK));
+	}
+}
@@ -35,6 +35,7 @@ import org.apache.shiro.mgt.CachingSecurityManager;
 import org.apache.shiro.mgt.RealmSecurityManager;
 import org.apache.shiro.mgt.SecurityManager;
 import org.apache.shiro.mgt.SessionsSecurityManager;
+import org.apache.shiro.realm.AuthorizingRealm;
 import org.apache.shiro.realm.Realm;
 import org.apache.shiro.session.Session;
 import org.apache.shiro.session.SessionListener;
@@ -166,6 +167,28 @@ public abstract class AccessControlUtil {
 		return getAuthorizationManager().hasPermission(permStr, targetClientId, credentials);
 	}
 
+	/**
+	 * @param permStrs
+	 * @param credentials
+	 * @return true if the user with the provided <code>credentials</code> has at least one of the
+	 *         specified permissions. The permissions are checked against a single retrieval of the
+	 *         authorization information.
+	 */
+	public boolean hasAnyPermission(String[] permStrs, OAuthorizationCredentials credentials) {
+		return getAuthorizationManager().hasAnyPermission(permStrs, credentials);
+	}
+
+	/**
+	 * @param permStrs
+	 * @param targetClientId
+	 * @param credentials
+	 * @return true if the user with the provided <code>credentials</code> has at least one of the
+	 *         specified permissions on service <code>targetClientId</code>
+	 */
+	public boolean hasAnyPermission(String[] permStrs, String targetClientId, OAuthorizationCredentials credentials) {
+		return getAuthorizationManager().hasAnyPermission(permStrs, targetClientId, credentials);
+	}
+
 	/**
 	 * @param role
 	 * @return true if the user has the specified role
@@ -224,7 +247,9 @@ public abstract class AccessControlUtil {
 			authorizationManager = new AuthorizationManager();
 			authorizationManager.setClient(getClient());
 			authorizationManager.setPermissionsURL(acRealm.getPermissionsURL());
-			authorizationManager.setCacheManager(((CachingSecurityManager) SecurityUtils.getSecurityManager()).getCacheManager());
+			// only cache what the realm itself would cache
+			if (!(acRealm instanceof AuthorizingRealm) || ((AuthorizingRealm) acRealm).isAuthorizationCachingEnabled())
+				authorizationManager.setCacheManager(((CachingSecurityManager) SecurityUtils.getSecurityManager()).getCacheManager());
 			acRealm.addClearCacheListener(authorizationManager);
 		}
 		return authorizationManager;
@@ -28,12 +28,21 @@ import static org.openiot.security.client.SecurityConstants.TARGET_CLIENT_ID;
 import static org.openiot.security.client.SecurityConstants.USER_ACCESS_TOKEN;
 import static org.openiot.security.client.SecurityConstants.*;
 
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
@@ -74,6 +83,12 @@ import com.fasterxml.jackson.databind.JsonNode;
  * </ul>
  * If the target service is different than the current service, the user must have the required
  * permission for retrieving authorization information on the target service.
+ * <p>
+ * The complete permission map of a token is retrieved with a single request and compiled into a
+ * {@link PermissionMatcher}. Concurrent lookups of the same token on the same service share one
+ * request. When caching is enabled, the cache holds the role/permission strings of each token
+ * (plain serializable data), the matchers compiled from them are kept locally, and denied
+ * permissions are remembered for <code>negativeCacheTimeout</code> milliseconds.
  * 
  * @author Mehdi Riahi
  * 
@@ -85,7 +100,9 @@ public class AuthorizationManager implements ClearCacheListener {
 
 	private static Logger logger = LoggerFactory.getLogger(AuthorizationManager.class);
 
-	private Cache<CacheKey, Map<String, Set<Permission>>> cacheManager;
+	private static final int MAX_COMPILED_MATCHERS = 1000;
+
+	private Cache<CacheKey, HashMap<String, ArrayList<String>>> cacheManager;
 
 	private BaseOAuth20Client<?> client;
 
@@ -95,6 +112,33 @@ public class AuthorizationManager implements ClearCacheListener {
 
 	private PermissionResolver permissionResolver = new WildcardPermissionResolver();
 
+	private final ConcurrentHashMap<CacheKey, FutureTask<PermissionMatcher>> pendingRequests = new ConcurrentHashMap<CacheKey, FutureTask<PermissionMatcher>>();
+
+	// matchers compiled from the cached permission strings, reused while the cache returns the same
+	// instance
+	private final Map<CacheKey, CompiledMatcher> compiledMatchers = Collections.synchronizedMap(new LinkedHashMap<CacheKey, CompiledMatcher>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<CacheKey, CompiledMatcher> eldest) {
+			return size() > MAX_COMPILED_MATCHERS;
+		}
+	});
+
+	private final ConcurrentHashMap<CacheKey, ConcurrentHashMap<String, Long>> deniedPermissions = new ConcurrentHashMap<CacheKey, ConcurrentHashMap<String, Long>>();
+
+	private long negativeCacheTimeout = 30 * 1000;
+
+	private int negativeCacheMaxSize = 10000;
+
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong cacheMisses = new AtomicLong();
+	private final AtomicLong coalescedRequests = new AtomicLong();
+	private final AtomicLong negativeCacheHits = new AtomicLong();
+	private final AtomicLong permissionRequests = new AtomicLong();
+	private final AtomicLong permissionRequestTime = new AtomicLong();
+	private final AtomicLong maxPermissionRequestTime = new AtomicLong();
+
 	public AuthorizationManager() {
 
 	}
@@ -102,7 +146,7 @@ public class AuthorizationManager implements ClearCacheListener {
 	public void setCacheManager(CacheManager cacheManager) {
 		if (cacheManager != null) {
 			logger.debug("Setting the cache manager to {}", cacheManager.getClass().getCanonicalName());
-			this.cacheManager = cacheManager.<CacheKey, Map<String, Set<Permission>>> getCache("AuthorizationManager-Cache");
+			this.cacheManager = cacheManager.<CacheKey, HashMap<String, ArrayList<String>>> getCache("AuthorizationManager-Cache");
 			cachingEnabled = true;
 		}
 	}
@@ -115,6 +159,19 @@ public class AuthorizationManager implements ClearCacheListener {
 		return cachingEnabled;
 	}
 
+	/**
+	 * @param negativeCacheTimeout
+	 *            the time in milliseconds a denied permission is remembered. A value of 0 disables
+	 *            negative caching, which is also disabled when caching is.
+	 */
+	public void setNegativeCacheTimeout(long negativeCacheTimeout) {
+		this.negativeCacheTimeout = negativeCacheTimeout;
+	}
+
+	public void setNegativeCacheMaxSize(int negativeCacheMaxSize) {
+		this.negativeCacheMaxSize = negativeCacheMaxSize;
+	}
+
 	public void setClient(BaseOAuth20Client<?> client) {
 		this.client = client;
 	}
@@ -127,8 +184,11 @@ public class AuthorizationManager implements ClearCacheListener {
 	 *         <code>credentials</code> are expired
 	 */
 	public String getExpiredAccessToken(OAuthorizationCredentials credentials) {
+		final CacheKey key = new CacheKey(credentials.getClientId(), credentials);
 		if (cachingEnabled)
-			cacheManager.remove(new CacheKey(credentials.getClientId(), credentials));
+			cacheManager.remove(key);
+		compiledMatchers.remove(key);
+		deniedPermissions.remove(key);
 		try {
 			getAuthorizationInfo(credentials, credentials.getClientId());
 		} catch (AccessTokenExpiredException e) {
@@ -148,22 +208,45 @@ public class AuthorizationManager implements ClearCacheListener {
 	}
 
 	public boolean hasPermission(String permStr, String targetClientId, OAuthorizationCredentials credentials) {
+		return hasAnyPermission(new String[] { permStr }, targetClientId, credentials);
+	}
+
+	public boolean hasAnyPermission(String[] permStrs, OAuthorizationCredentials credentials) {
 		if (credentials == null)
 			return false;
-		Permission perm = permissionResolver.resolvePermission(permStr);
+		return hasAnyPermission(permStrs, credentials.getClientId(), credentials);
+	}
 
-		Map<String, Set<Permission>> authorizationInfo = getAuthorizationInfo(credentials, targetClientId == null ? credentials.getClientId() : targetClientId);
-		boolean hasPerm = false;
-		for (Set<Permission> permSet : authorizationInfo.values()) {
-			if (hasPerm)
-				break;
-			for (Permission permission : permSet)
-				if (permission.implies(perm)) {
-					hasPerm = true;
-					break;
-				}
-		}
-		return hasPerm;
+	/**
+	 * Checks the permissions against a single retrieval of the authorization information.
+	 * 
+	 * @param permStrs
+	 * @param targetClientId
+	 * @param credentials
+	 * @return true if the user with the provided <code>credentials</code> has at least one of the
+	 *         permissions on service <code>targetClientId</code>
+	 */
+	public boolean hasAnyPermission(String[] permStrs, String targetClientId, OAuthorizationCredentials credentials) {
+		if (credentials == null)
+			return false;
+		final String clientId = targetClientId == null ? credentials.getClientId() : targetClientId;
+		final CacheKey key = new CacheKey(clientId, credentials);
+
+		final List<String> toCheck = new ArrayList<String>(permStrs.length);
+		for (String permStr : permStrs)
+			if (!isDenied(key, permStr))
+				toCheck.add(permStr);
+		if (toCheck.isEmpty())
+			return false;
+
+		final PermissionMatcher matcher = getPermissionMatcher(credentials, clientId);
+		for (String permStr : toCheck)
+			if (matcher.implies(permStr))
+				return true;
+
+		for (String permStr : toCheck)
+			deny(key, permStr);
+		return false;
 	}
 
 	public boolean hasRole(String role, OAuthorizationCredentials credentials) {
@@ -180,25 +263,127 @@ public class AuthorizationManager implements ClearCacheListener {
 	}
 
 	protected Map<String, Set<Permission>> getAuthorizationInfo(final OAuthorizationCredentials credentials, final String targetClientId) {
-		Map<String, Set<Permission>> authorizationInfo = null;
+		return getPermissionMatcher(credentials, targetClientId).getRoles();
+	}
 
-		CacheKey key = new CacheKey(targetClientId, credentials);
-		if (cachingEnabled)
-			authorizationInfo = cacheManager.get(key);
+	/**
+	 * Returns the compiled authorization information from the cache or retrieves it from the
+	 * server. Concurrent callers asking for the same key wait for a single request.
+	 */
+	protected PermissionMatcher getPermissionMatcher(final OAuthorizationCredentials credentials, final String targetClientId) {
+		final CacheKey key = new CacheKey(targetClientId, credentials);
+		if (cachingEnabled) {
+			final HashMap<String, ArrayList<String>> cached = cacheManager.get(key);
+			if (cached != null) {
+				cacheHits.incrementAndGet();
+				final CompiledMatcher compiled = compiledMatchers.get(key);
+				if (compiled != null && compiled.source == cached)
+					return compiled.matcher;
+				final PermissionMatcher matcher = PermissionMatcher.fromPermissionStrings(cached, permissionResolver);
+				compiledMatchers.put(key, new CompiledMatcher(cached, matcher));
+				return matcher;
+			}
+		}
+		cacheMisses.incrementAndGet();
+
+		final FutureTask<PermissionMatcher> task = new FutureTask<PermissionMatcher>(new Callable<PermissionMatcher>() {
+			@Override
+			public PermissionMatcher call() throws Exception {
+				final long t0 = System.currentTimeMillis();
+				try {
+					final PermissionMatcher matcher = getAuthorizationInfoInternal(credentials, targetClientId);
+					if (cachingEnabled) {
+						final HashMap<String, ArrayList<String>> permissionStrings = matcher.getPermissionStrings();
+						cacheManager.put(key, permissionStrings);
+						compiledMatchers.put(key, new CompiledMatcher(permissionStrings, matcher));
+					}
+					return matcher;
+				} finally {
+					final long elapsed = System.currentTimeMillis() - t0;
+					permissionRequests.incrementAndGet();
+					permissionRequestTime.addAndGet(elapsed);
+					long max = maxPermissionRequestTime.get();
+					while (elapsed > max && !maxPermissionRequestTime.compareAndSet(max, elapsed))
+						max = maxPermissionRequestTime.get();
+				}
+			}
+		});
+
+		FutureTask<PermissionMatcher> pending = pendingRequests.putIfAbsent(key, task);
+		if (pending == null) {
+			pending = task;
+			try {
+				task.run();
+			} finally {
+				pendingRequests.remove(key, task);
+			}
+		} else
+			coalescedRequests.incrementAndGet();
+
+		try {
+			return pending.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for permissions", e);
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IllegalStateException(cause);
+		}
+	}
 
-		if (authorizationInfo == null) {
-			authorizationInfo = getAuthorizationInfoInternal(credentials, targetClientId);
+	private boolean isDenied(CacheKey key, String permStr) {
+		if (!cachingEnabled || negativeCacheTimeout <= 0)
+			return false;
+		final ConcurrentHashMap<String, Long> denied = deniedPermissions.get(key);
+		if (denied == null)
+			return false;
+		final Long expiry = denied.get(permStr);
+		if (expiry == null)
+			return false;
+		if (expiry < System.currentTimeMillis()) {
+			denied.remove(permStr, expiry);
+			return false;
+		}
+		negativeCacheHits.incrementAndGet();
+		return true;
+	}
 
-			if (cachingEnabled)
-				cacheManager.put(key, authorizationInfo);
+	private void deny(CacheKey key, String permStr) {
+		if (!cachingEnabled || negativeCacheTimeout <= 0)
+			return;
+		if (deniedPermissions.size() >= negativeCacheMaxSize)
+			evictExpiredDenials();
+		ConcurrentHashMap<String, Long> denied = deniedPermissions.get(key);
+		if (denied == null) {
+			final ConcurrentHashMap<String, Long> created = new ConcurrentHashMap<String, Long>();
+			denied = deniedPermissions.putIfAbsent(key, created);
+			if (denied == null)
+				denied = created;
 		}
+		denied.put(permStr, System.currentTimeMillis() + negativeCacheTimeout);
+	}
 
-		return authorizationInfo;
+	private void evictExpiredDenials() {
+		final long now = System.currentTimeMillis();
+		for (Iterator<ConcurrentHashMap<String, Long>> iter = deniedPermissions.values().iterator(); iter.hasNext();) {
+			final ConcurrentHashMap<String, Long> denied = iter.next();
+			for (Iterator<Long> expiries = denied.values().iterator(); expiries.hasNext();)
+				if (expiries.next() < now)
+					expiries.remove();
+			if (denied.isEmpty())
+				iter.remove();
+		}
+		if (deniedPermissions.size() >= negativeCacheMaxSize)
+			deniedPermissions.clear();
 	}
 
-	protected Map<String, Set<Permission>> getAuthorizationInfoInternal(final OAuthorizationCredentials credentials, final String targetClientId)
+	protected PermissionMatcher getAuthorizationInfoInternal(final OAuthorizationCredentials credentials, final String targetClientId)
 			throws AccessTokenExpiredException {
-		Map<String, Set<Permission>> map = new HashMap<String, Set<Permission>>();
+		PermissionMatcher map = new PermissionMatcher(permissionResolver);
 
 		final String body = sendRequestForPermissions(credentials, targetClientId);
 		JsonNode json = JsonHelper.getFirstNode(body);
@@ -228,15 +413,15 @@ public class AuthorizationManager implements ClearCacheListener {
 
 							logger.debug("next role: {}", next.getKey());
 
-							final HashSet<Permission> permissionsSet = new HashSet<Permission>();
-							map.put(next.getKey(), permissionsSet);
+							final List<String> permissions = new ArrayList<String>();
 							Iterator<JsonNode> permIter = next.getValue().iterator();
 							while (permIter.hasNext()) {
 								json = permIter.next();
 								String permission = json.asText();
-								permissionsSet.add(permissionResolver.resolvePermission(permission));
+								permissions.add(permission);
 								logger.debug("next permission: {}", permission);
 							}
+							map.addRole(next.getKey(), permissions);
 						}
 					}
 				}
@@ -288,8 +473,50 @@ public class AuthorizationManager implements ClearCacheListener {
 		return body;
 	}
 
+	public long getCacheHitCount() {
+		return cacheHits.get();
+	}
+
+	public long getCacheMissCount() {
+		return cacheMisses.get();
+	}
+
+	public long getCoalescedRequestCount() {
+		return coalescedRequests.get();
+	}
+
+	public long getNegativeCacheHitCount() {
+		return negativeCacheHits.get();
+	}
+
+	public long getPermissionRequestCount() {
+		return permissionRequests.get();
+	}
+
+	/**
+	 * @return the average time in milliseconds spent retrieving permissions from the server
+	 */
+	public double getAveragePermissionRequestTime() {
+		final long count = permissionRequests.get();
+		return count == 0 ? 0 : (double) permissionRequestTime.get() / count;
+	}
+
+	public long getMaxPermissionRequestTime() {
+		return maxPermissionRequestTime.get();
+	}
+
+	public String getStatistics() {
+		return "hits=" + cacheHits.get() + ", misses=" + cacheMisses.get() + ", coalesced=" + coalescedRequests.get() + ", negativeHits="
+				+ negativeCacheHits.get() + ", requests=" + permissionRequests.get() + ", avgRequestTime=" + getAveragePermissionRequestTime()
+				+ "ms, maxRequestTime=" + maxPermissionRequestTime.get() + "ms";
+	}
+
 	@Override
 	public void clearCache(PrincipalCollection principals) {
+		if (principals == null) {
+			deniedPermissions.clear();
+			compiledMatchers.clear();
+		}
 		if (cachingEnabled) {
 			if (principals == null) {
 				logger.debug("Clearing cache");
@@ -304,6 +531,16 @@ public class AuthorizationManager implements ClearCacheListener {
 	}
 
 	private void clearCacheForToken(String accessToken) {
+		for (Iterator<CacheKey> iter = deniedPermissions.keySet().iterator(); iter.hasNext();)
+			if (iter.next().credentials.containsToken(accessToken))
+				iter.remove();
+		synchronized (compiledMatchers) {
+			for (Iterator<CacheKey> iter = compiledMatchers.keySet().iterator(); iter.hasNext();)
+				if (iter.next().credentials.containsToken(accessToken))
+					iter.remove();
+		}
+		if (!cachingEnabled)
+			return;
 		Set<CacheKey> keys = cacheManager.keys();
 		for (CacheKey key : keys) {
 			if (key.credentials.containsToken(accessToken))
@@ -311,7 +548,19 @@ public class AuthorizationManager implements ClearCacheListener {
 		}
 	}
 
-	private static class CacheKey {
+	private static class CompiledMatcher {
+		final Map<String, ArrayList<String>> source;
+		final PermissionMatcher matcher;
+
+		CompiledMatcher(Map<String, ArrayList<String>> source, PermissionMatcher matcher) {
+			this.source = source;
+			this.matcher = matcher;
+		}
+	}
+
+	private static class CacheKey implements Serializable {
+		private static final long serialVersionUID = 1L;
+
 		String targetClientId;
 		OAuthorizationCredentials credentials;
 
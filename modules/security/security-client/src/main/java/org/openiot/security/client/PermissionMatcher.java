@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) 2011-2014, OpenIoT
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it either under the terms of the GNU Lesser General Public
+ * License version 2.1 as published by the Free Software Foundation
+ * (the "LGPL"). If you do not alter this
+ * notice, a recipient may use your version of this file under the LGPL.
+ *
+ * You should have received a copy of the LGPL along with this library
+ * in the file COPYING-LGPL-2.1; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ * This software is distributed on an "AS IS" basis, WITHOUT WARRANTY
+ * OF ANY KIND, either express or implied. See the LGPL  for
+ * the specific language governing rights and limitations.
+ *
+ * Contact: OpenIoT mailto: info@openiot.eu
+ */
+
+package org.openiot.security.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.shiro.authz.Permission;
+import org.apache.shiro.authz.permission.PermissionResolver;
+
+/**
+ * The complete role/permission map of a token, compiled for fast evaluation. Permission strings
+ * without wildcards are answered by a hash lookup, a "*" permission short-cuts every check, and
+ * the remaining wildcard permissions are evaluated once per permission string and memoized (up to
+ * <code>MAX_DECISIONS</code> permission strings).
+ * 
+ * The matcher is not serializable: the AuthorizationManager cache holds the plain role/permission
+ * strings map returned by {@link #getPermissionStrings()}, and the matcher is rebuilt from it with
+ * {@link #fromPermissionStrings(Map, PermissionResolver)}.
+ */
+public class PermissionMatcher {
+
+	private static final String WILDCARD_TOKEN = "*";
+
+	private static final int MAX_DECISIONS = 1024;
+
+	private final PermissionResolver permissionResolver;
+
+	private final HashMap<String, ArrayList<String>> permissionStrings = new HashMap<String, ArrayList<String>>();
+
+	private final Map<String, Set<Permission>> roles = new HashMap<String, Set<Permission>>();
+
+	private final Set<String> literals = new HashSet<String>();
+
+	private final List<Permission> wildcards = new ArrayList<Permission>();
+
+	private final List<Permission> prefixes = new ArrayList<Permission>();
+
+	private boolean all = false;
+
+	private final Map<String, Boolean> decisions = Collections.synchronizedMap(new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > MAX_DECISIONS;
+		}
+	});
+
+	public PermissionMatcher(PermissionResolver permissionResolver) {
+		this.permissionResolver = permissionResolver;
+	}
+
+	/**
+	 * Adds a role with its permission strings.
+	 * 
+	 * @param role
+	 * @param permissions
+	 */
+	public void addRole(String role, Collection<String> permissions) {
+		final Set<Permission> permissionsSet = new HashSet<Permission>();
+		for (String permStr : permissions) {
+			final Permission permission = permissionResolver.resolvePermission(permStr);
+			permissionsSet.add(permission);
+			final String normalized = permStr.trim().toLowerCase();
+			if (WILDCARD_TOKEN.equals(normalized))
+				all = true;
+			else if (normalized.contains(WILDCARD_TOKEN) || normalized.contains(",")) {
+				wildcards.add(permission);
+			} else {
+				literals.add(normalized);
+				prefixes.add(permission);
+			}
+		}
+		roles.put(role, permissionsSet);
+		permissionStrings.put(role, new ArrayList<String>(permissions));
+		decisions.clear();
+	}
+
+	/**
+	 * @param permStr
+	 * @return true if any of the roles grants the permission <code>permStr</code>
+	 */
+	public boolean implies(String permStr) {
+		if (all)
+			return true;
+		if (permStr == null)
+			return false;
+
+		Boolean decision = decisions.get(permStr);
+		if (decision == null) {
+			decision = evaluate(permStr);
+			decisions.put(permStr, decision);
+		}
+		return decision;
+	}
+
+	private boolean evaluate(String permStr) {
+		if (literals.contains(permStr.trim().toLowerCase()))
+			return true;
+
+		final Permission perm = permissionResolver.resolvePermission(permStr);
+		for (Permission permission : wildcards)
+			if (permission.implies(perm))
+				return true;
+
+		// Literal permissions may still imply a more specific permission (e.g. "a:b" implies
+		// "a:b:c")
+		for (Permission permission : prefixes)
+			if (permission.implies(perm))
+				return true;
+
+		return false;
+	}
+
+	/**
+	 * @return the resolved permissions of each role
+	 */
+	public Map<String, Set<Permission>> getRoles() {
+		return Collections.unmodifiableMap(roles);
+	}
+
+	/**
+	 * @return a copy of the permission strings of each role, which can be serialized
+	 */
+	public HashMap<String, ArrayList<String>> getPermissionStrings() {
+		final HashMap<String, ArrayList<String>> copy = new HashMap<String, ArrayList<String>>();
+		for (Map.Entry<String, ArrayList<String>> entry : permissionStrings.entrySet())
+			copy.put(entry.getKey(), new ArrayList<String>(entry.getValue()));
+		return copy;
+	}
+
+	/**
+	 * Creates a matcher from a role/permission strings map.
+	 * 
+	 * @param permissionStrings
+	 * @param permissionResolver
+	 * @return
+	 */
+	static PermissionMatcher fromPermissionStrings(Map<String, ? extends Collection<String>> permissionStrings, PermissionResolver permissionResolver) {
+		final PermissionMatcher matcher = new PermissionMatcher(permissionResolver);
+		for (Map.Entry<String, ? extends Collection<String>> entry : permissionStrings.entrySet())
+			matcher.addRole(entry.getKey(), entry.getValue());
+		return matcher;
+	}
+
+}
@@ -66,6 +66,14 @@ public class LSMOAuthManager {
 		lsmOAuthHttpManager = new LSMOAuthHttpManager(lSMOauthGraphURL);
 	}
 
+	/**
+	 * Creates a manager which is not connected to LSM, for the tests which
+	 * override the methods they use.
+	 */
+	LSMOAuthManager(final String lSMOauthGraphURL) {
+		this.lSMOauthGraphURL = lSMOauthGraphURL;
+	}
+
 	public String getLSMOauthGraphURL() {
 		return lSMOauthGraphURL;
 	}
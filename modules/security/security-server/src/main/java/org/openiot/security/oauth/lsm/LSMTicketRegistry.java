@@ -22,55 +22,157 @@ package org.openiot.security.oauth.lsm;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jasig.cas.ticket.ServiceTicket;
 import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
 import org.jasig.cas.ticket.registry.AbstractDistributedTicketRegistry;
 import org.openiot.lsm.security.oauth.LSMServiceTicketImpl;
 import org.openiot.lsm.security.oauth.LSMTicketGrantingTicketImpl;
 
+/**
+ * Ticket registry backed by LSM.
+ * 
+ * When <code>clustered</code> is set (the default), every read and write goes
+ * through LSM, so that all the CAS nodes sharing the triple store see the same
+ * tickets.
+ * 
+ * Otherwise the registry is meant for a single CAS node: tickets are kept in a
+ * local concurrent map which serves all reads and writes, and every change is
+ * written behind to LSM, in order, by a single background thread. LSM remains
+ * the durable copy, read on a local miss (e.g. after a restart). Tickets
+ * changed by another node are not seen, so this mode must not be used with
+ * several nodes. The expired local tickets are deleted every
+ * <code>expirationInterval</code> seconds, as the
+ * {@link org.jasig.cas.ticket.registry.support.DefaultTicketRegistryCleaner}
+ * would do, so that they do not stay in memory until its next run.
+ * 
+ * In both modes {@link #getTickets()} enumerates the tickets stored in LSM, so
+ * that the {@link org.jasig.cas.ticket.registry.support.DefaultTicketRegistryCleaner}
+ * also expires the tickets that were never loaded in memory.
+ */
 public class LSMTicketRegistry extends AbstractDistributedTicketRegistry {
 
 	private String ticketGrantingTicketPrefix = "TGT";
-	private LSMOAuthManager manager = LSMOAuthManager.getInstance();
+	private final LSMOAuthManager manager;
+
+	private final ConcurrentHashMap<String, Ticket> cache = new ConcurrentHashMap<String, Ticket>();
+
+	/** Ids of the tickets deleted locally whose deletion is not written to LSM yet */
+	private final Set<String> pendingDeletes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/** Whether several CAS nodes share the registry: no local tier, all operations go to LSM */
+	private boolean clustered = true;
+
+	/** Whether a local miss is looked up in LSM */
+	private boolean readThrough = true;
+
+	/** Maximum number of pending LSM writes before callers wait */
+	private int writeBehindQueueSize = 10000;
+
+	/** Maximum time to wait for pending LSM writes on shutdown, in seconds */
+	private int shutdownTimeout = 30;
+
+	/** Interval between two deletions of the expired local tickets, in seconds (0 disables them) */
+	private int expirationInterval = 60;
+
+	private ExecutorService writer;
+
+	private volatile ScheduledExecutorService expirer;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong lsmLoads = new AtomicLong();
+	private final AtomicLong lsmWrites = new AtomicLong();
+	private final AtomicLong lsmWriteFailures = new AtomicLong();
+	private final AtomicLong added = new AtomicLong();
+	private final AtomicLong deleted = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+
+	public LSMTicketRegistry() {
+		this(LSMOAuthManager.getInstance());
+	}
+
+	LSMTicketRegistry(final LSMOAuthManager manager) {
+		this.manager = manager;
+	}
 
 	protected void updateTicket(final Ticket ticket) {
-		if (ticket instanceof LSMTicketGrantingTicketImpl) {
-			LSMTicketGrantingTicketImpl tgt = (LSMTicketGrantingTicketImpl) ticket;
-			manager.deleteTicketGranting(tgt.getId());
-			manager.addTicketGrangtingTicket(tgt);
-		} else {
-			LSMServiceTicketImpl serviceTicket = (LSMServiceTicketImpl) ticket;
-			manager.deleteServiceTicketImpl(serviceTicket.getId());
-			manager.addServiceTicketImpl(serviceTicket);
-		}
+		if (!clustered)
+			cache.put(ticket.getId(), ticket);
+		writeBehind(new Runnable() {
+			public void run() {
+				if (ticket instanceof LSMTicketGrantingTicketImpl) {
+					LSMTicketGrantingTicketImpl tgt = (LSMTicketGrantingTicketImpl) ticket;
+					manager.deleteTicketGranting(tgt.getId());
+					manager.addTicketGrangtingTicket(tgt);
+				} else {
+					LSMServiceTicketImpl serviceTicket = (LSMServiceTicketImpl) ticket;
+					manager.deleteServiceTicketImpl(serviceTicket.getId());
+					manager.addServiceTicketImpl(serviceTicket);
+				}
+			}
+		});
 
 		log.debug("Updated ticket [{}].", ticket);
 	}
 
 	public void addTicket(final Ticket ticket) {
-		boolean added = true;
+		if (clustered) {
+			if (addLSMTicket(ticket)) {
+				added.incrementAndGet();
+				log.debug("Added ticket [{}] to registry.", ticket);
+			} else
+				log.debug("Ticket [{}] cannot be added to the registery. It already exists.", ticket);
+			return;
+		}
+
+		if (cache.putIfAbsent(ticket.getId(), ticket) != null) {
+			log.debug("Ticket [{}] cannot be added to the registery. It already exists.", ticket);
+			return;
+		}
+		added.incrementAndGet();
+		startExpiration();
+
+		writeBehind(new Runnable() {
+			public void run() {
+				addLSMTicket(ticket);
+			}
+		});
+
+		log.debug("Added ticket [{}] to registry.", ticket);
+	}
+
+	private boolean addLSMTicket(final Ticket ticket) {
 		if (ticket instanceof LSMTicketGrantingTicketImpl) {
 			LSMTicketGrantingTicketImpl tgt = (LSMTicketGrantingTicketImpl) ticket;
-			if (manager.getTicketGranting(tgt.getId()) == null)
-				manager.addTicketGrangtingTicket(tgt);
-			else
-				added = false;
-
+			if (manager.getTicketGranting(tgt.getId()) != null)
+				return false;
+			manager.addTicketGrangtingTicket(tgt);
 		} else {
 			LSMServiceTicketImpl serviceTicket = (LSMServiceTicketImpl) ticket;
-			if (manager.getServiceTicketImpl(serviceTicket.getId()) == null)
-				manager.addServiceTicketImpl(serviceTicket);
-			else
-				added = false;
+			if (manager.getServiceTicketImpl(serviceTicket.getId()) != null)
+				return false;
+			manager.addServiceTicketImpl(serviceTicket);
 		}
-
-		if (added)
-			log.debug("Added ticket [{}] to registry.", ticket);
-		else
-			log.debug("Ticket [{}] cannot be added to the registery. It already exists.", ticket);
+		return true;
 	}
 
 	public boolean deleteTicket(final String ticketId) {
@@ -81,16 +183,60 @@ public class LSMTicketRegistry extends AbstractDistributedTicketRegistry {
 		}
 
 		if (ticket instanceof ServiceTicket) {
-			removeTicket(ticket);
+			if (clustered) {
+				removeTicket(ticket);
+				deleted.incrementAndGet();
+			} else {
+				pendingDeletes.add(ticketId);
+				cache.remove(ticketId);
+				deleted.incrementAndGet();
+				writeBehind(new Runnable() {
+					public void run() {
+						removeTicket(ticket);
+						pendingDeletes.remove(ticketId);
+					}
+				});
+			}
 			log.debug("Deleted ticket [{}] from the registry.", ticket);
 			return true;
 		}
 
-		deleteTicketAndChildren(ticket);
+		if (clustered) {
+			deleteTicketAndChildren(ticket);
+		} else {
+			final List<String> ids = new ArrayList<String>();
+			deleteLocalTicketAndChildren(ticket, ids);
+			writeBehind(new Runnable() {
+				public void run() {
+					deleteTicketAndChildren(ticket);
+					pendingDeletes.removeAll(ids);
+				}
+			});
+		}
 		log.debug("Deleted ticket [{}] and its children from the registry.", ticket);
 		return true;
 	}
 
+	private void deleteLocalTicketAndChildren(final Ticket ticket, final List<String> ids) {
+		for (final Ticket t : cache.values()) {
+			final TicketGrantingTicket parent = t.getGrantingTicket();
+			if (parent != null && ticket.getId().equals(parent.getId())) {
+				if (t instanceof ServiceTicket) {
+					pendingDeletes.add(t.getId());
+					ids.add(t.getId());
+					if (cache.remove(t.getId()) != null)
+						deleted.incrementAndGet();
+				} else
+					deleteLocalTicketAndChildren(t, ids);
+			}
+		}
+
+		pendingDeletes.add(ticket.getId());
+		ids.add(ticket.getId());
+		if (cache.remove(ticket.getId()) != null)
+			deleted.incrementAndGet();
+	}
+
 	private void deleteTicketAndChildren(final Ticket ticket) {
 		final List<LSMTicketGrantingTicketImpl> ticketGrantingTicketImpls = manager.getAllTicketsOfTicketGrantingTicket(ticket.getId());
 
@@ -129,40 +275,239 @@ public class LSMTicketRegistry extends AbstractDistributedTicketRegistry {
 	}
 
 	private Ticket getRawTicket(final String ticketId) {
+		if (ticketId == null)
+			return null;
+
+		if (clustered)
+			return getLSMTicket(ticketId);
+
+		final Ticket cached = cache.get(ticketId);
+		if (cached != null) {
+			hits.incrementAndGet();
+			return cached;
+		}
+		misses.incrementAndGet();
+
+		// a ticket deleted locally may still be in LSM
+		if (!readThrough || pendingDeletes.contains(ticketId))
+			return null;
+
+		final Ticket ticket = getLSMTicket(ticketId);
+		if (ticket == null || pendingDeletes.contains(ticketId))
+			return null;
+		startExpiration();
+		final Ticket previous = cache.putIfAbsent(ticketId, ticket);
+		return previous != null ? previous : ticket;
+	}
+
+	private Ticket getLSMTicket(final String ticketId) {
 		try {
+			final Ticket ticket;
 			if (ticketId.startsWith(this.ticketGrantingTicketPrefix))
-				return manager.getTicketGranting(ticketId);
+				ticket = manager.getTicketGranting(ticketId);
 			else
-				return manager.getServiceTicketImpl(ticketId);
+				ticket = manager.getServiceTicketImpl(ticketId);
+
+			if (ticket != null)
+				lsmLoads.incrementAndGet();
+			return ticket;
 		} catch (final Exception e) {
 			log.error("Error getting ticket {} from registry.", ticketId, e);
 		}
 		return null;
 	}
 
+	/**
+	 * @return the tickets stored in LSM and, when not clustered, the local
+	 *         tickets not written to LSM yet
+	 */
 	public Collection<Ticket> getTickets() {
-		final List<LSMTicketGrantingTicketImpl> tgts = manager.getAllTicketGrantingTickets();
+		final Map<String, Ticket> tickets = new LinkedHashMap<String, Ticket>();
+		for (final Ticket t : manager.getAllTicketGrantingTickets())
+			tickets.put(t.getId(), t);
+		for (final Ticket t : manager.getAllServiceTickets())
+			tickets.put(t.getId(), t);
+
+		if (!clustered) {
+			// the local copies are the most recent ones
+			tickets.putAll(cache);
+			tickets.keySet().removeAll(pendingDeletes);
+		}
+		return Collections.unmodifiableCollection(new ArrayList<Ticket>(tickets.values()));
+	}
+
+	/**
+	 * Deletes the expired local tickets, and writes their deletion behind to
+	 * LSM. As the {@link org.jasig.cas.ticket.registry.support.DefaultTicketRegistryCleaner},
+	 * an expired ticket granting ticket is expired first to log the user out
+	 * of its services. Does nothing when clustered.
+	 */
+	public void expireTickets() {
+		for (final Ticket ticket : cache.values()) {
+			// already deleted with its ticket granting ticket
+			if (!ticket.isExpired() || !cache.containsKey(ticket.getId()))
+				continue;
+			if (ticket instanceof TicketGrantingTicket)
+				((TicketGrantingTicket) ticket).expire();
+			if (deleteTicket(ticket.getId())) {
+				expired.incrementAndGet();
+				log.debug("Expired ticket [{}].", ticket);
+			}
+		}
+	}
 
-		final List<LSMServiceTicketImpl> sts = manager.getAllServiceTickets();
+	private void startExpiration() {
+		if (expirer != null || expirationInterval <= 0)
+			return;
+		synchronized (this) {
+			if (expirer != null)
+				return;
+			expirer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					final Thread thread = new Thread(r, "lsm-ticket-expirer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			expirer.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						expireTickets();
+					} catch (final Exception e) {
+						log.error("Error expiring the local tickets.", e);
+					}
+				}
+			}, expirationInterval, expirationInterval, TimeUnit.SECONDS);
+		}
+	}
 
-		final List<Ticket> tickets = new ArrayList<Ticket>();
-		tickets.addAll(tgts);
-		tickets.addAll(sts);
+	/**
+	 * Submits the given LSM operation to the write-behind thread, or runs it in
+	 * the calling thread when clustered. When the queue is full the caller
+	 * waits, so that the operations are written in order. Once the registry
+	 * has been shut down the operations run in the calling thread.
+	 */
+	private void writeBehind(final Runnable operation) {
+		final Runnable task = new Runnable() {
+			public void run() {
+				try {
+					operation.run();
+					lsmWrites.incrementAndGet();
+				} catch (final Exception e) {
+					lsmWriteFailures.incrementAndGet();
+					log.error("Error writing ticket change to LSM.", e);
+				}
+			}
+		};
 
-		return tickets;
+		final ExecutorService executor = clustered ? null : getWriter();
+		if (executor == null || executor.isShutdown()) {
+			task.run();
+			return;
+		}
+		try {
+			executor.execute(task);
+		} catch (final RejectedExecutionException e) {
+			// shut down meanwhile
+			task.run();
+		}
+	}
+
+	private synchronized ExecutorService getWriter() {
+		if (writer == null && writeBehindQueueSize > 0) {
+			writer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(writeBehindQueueSize), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					final Thread thread = new Thread(r, "lsm-ticket-writer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			}, new RejectedExecutionHandler() {
+				// waits for room in the queue rather than running the task in
+				// the caller, which would reorder the writes
+				public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor) {
+					if (executor.isShutdown())
+						throw new RejectedExecutionException("Ticket registry shut down");
+					try {
+						executor.getQueue().put(r);
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new RejectedExecutionException(e);
+					}
+				}
+			});
+		}
+		return writer;
+	}
+
+	/**
+	 * Flushes the pending LSM writes. Invoked by Spring on context shutdown.
+	 */
+	public void destroy() {
+		final ExecutorService executor;
+		synchronized (this) {
+			executor = writer;
+			if (expirer != null)
+				expirer.shutdownNow();
+		}
+		if (executor == null)
+			return;
+
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(shutdownTimeout, TimeUnit.SECONDS))
+				log.warn("Timed out while writing pending ticket changes to LSM.");
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		log.info("Ticket registry statistics: {}", getStatistics());
 	}
 
 	public void setTicketGrantingTicketPrefix(final String ticketGrantingTicketPrefix) {
 		this.ticketGrantingTicketPrefix = ticketGrantingTicketPrefix;
 	}
 
+	/**
+	 * @param clustered
+	 *            false to serve the tickets from memory and write them behind
+	 *            to LSM, which is only correct with a single CAS node
+	 */
+	public void setClustered(final boolean clustered) {
+		this.clustered = clustered;
+	}
+
+	public void setReadThrough(final boolean readThrough) {
+		this.readThrough = readThrough;
+	}
+
+	/**
+	 * @param writeBehindQueueSize
+	 *            the number of LSM writes that may be pending. A value of 0
+	 *            disables write-behind and writes to LSM synchronously.
+	 */
+	public void setWriteBehindQueueSize(final int writeBehindQueueSize) {
+		this.writeBehindQueueSize = writeBehindQueueSize;
+	}
+
+	public void setShutdownTimeout(final int shutdownTimeout) {
+		this.shutdownTimeout = shutdownTimeout;
+	}
+
+	/**
+	 * @param expirationInterval
+	 *            the interval between two deletions of the expired local
+	 *            tickets, in seconds. A value of 0 leaves them to the
+	 *            registry cleaner.
+	 */
+	public void setExpirationInterval(final int expirationInterval) {
+		this.expirationInterval = expirationInterval;
+	}
+
 	@Override
 	protected boolean needsCallback() {
 		return false;
 	}
 
 	public int sessionCount() {
-
 		return manager.getTicketGrantingTicketsCount();
 	}
 
@@ -170,4 +515,50 @@ public class LSMTicketRegistry extends AbstractDistributedTicketRegistry {
 		return manager.getServiceTicketsCount();
 	}
 
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getLsmLoadCount() {
+		return lsmLoads.get();
+	}
+
+	public long getLsmWriteCount() {
+		return lsmWrites.get();
+	}
+
+	public long getLsmWriteFailureCount() {
+		return lsmWriteFailures.get();
+	}
+
+	public long getAddedCount() {
+		return added.get();
+	}
+
+	public long getDeletedCount() {
+		return deleted.get();
+	}
+
+	public long getExpiredCount() {
+		return expired.get();
+	}
+
+	public int getPendingWriteCount() {
+		final ExecutorService executor;
+		synchronized (this) {
+			executor = writer;
+		}
+		return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getQueue().size() : 0;
+	}
+
+	public String getStatistics() {
+		return "size=" + cache.size() + ", hits=" + hits.get() + ", misses=" + misses.get() + ", lsmLoads=" + lsmLoads.get() + ", added="
+				+ added.get() + ", deleted=" + deleted.get() + ", expired=" + expired.get() + ", lsmWrites=" + lsmWrites.get() + ", lsmWriteFailures=" + lsmWriteFailures.get()
+				+ ", pendingWrites=" + getPendingWriteCount();
+	}
+
 }
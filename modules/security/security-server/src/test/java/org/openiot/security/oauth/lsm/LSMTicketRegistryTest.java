@@ -0,0 +1,320 @@
+/**
+ * Copyright (c) 2011-2014, OpenIoT
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it either under the terms of the GNU Lesser General Public
+ * License version 2.1 as published by the Free Software Foundation
+ * (the "LGPL"). If you do not alter this
+ * notice, a recipient may use your version of this file under the LGPL.
+ *
+ * You should have received a copy of the LGPL along with this library
+ * in the file COPYING-LGPL-2.1; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ *
+ * This software is distributed on an "AS IS" basis, WITHOUT WARRANTY
+ * OF ANY KIND, either express or implied. See the LGPL  for
+ * the specific language governing rights and limitations.
+ *
+ * Contact: OpenIoT mailto: info@openiot.eu
+ */
+
+package org.openiot.security.oauth.lsm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.support.NeverExpiresExpirationPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openiot.lsm.security.oauth.LSMServiceTicketImpl;
+import org.openiot.lsm.security.oauth.LSMTicketGrantingTicketImpl;
+
+public class LSMTicketRegistryTest {
+
+	private InMemoryLSM lsm;
+
+	private LSMTicketRegistry registry;
+
+	@Before
+	public void setUp() {
+		lsm = new InMemoryLSM();
+		registry = new LSMTicketRegistry(lsm);
+		registry.setClustered(false);
+		registry.setExpirationInterval(0);
+	}
+
+	@After
+	public void tearDown() {
+		lsm.release();
+		registry.destroy();
+	}
+
+	@Test
+	public void testTicketsAreServedBeforeTheyAreWritten() {
+		final LSMTicketGrantingTicketImpl tgt = tgt("TGT-1");
+		final LSMServiceTicketImpl st = st("ST-1", tgt);
+		registry.addTicket(tgt);
+		registry.addTicket(st);
+
+		// the registry hands out delegators of the stored tickets
+		assertEquals("TGT-1", registry.getTicket("TGT-1").getId());
+		assertEquals("ST-1", registry.getTicket("ST-1").getId());
+		assertTrue(lsm.tickets.isEmpty());
+		assertEquals(2, registry.getTickets().size());
+
+		flush();
+		assertEquals(Arrays.asList("add TGT-1", "add ST-1"), lsm.operations);
+		assertSame(st, lsm.tickets.get("ST-1"));
+	}
+
+	@Test
+	public void testDeleteIsWrittenAfterTheAdd() {
+		final LSMTicketGrantingTicketImpl tgt = tgt("TGT-1");
+		registry.addTicket(tgt);
+		registry.addTicket(st("ST-1", tgt));
+		assertTrue(registry.deleteTicket("ST-1"));
+
+		assertNull(registry.getTicket("ST-1"));
+		assertFalse(registry.deleteTicket("ST-1"));
+		assertEquals(1, registry.getTickets().size());
+
+		flush();
+		assertEquals(Arrays.asList("add TGT-1", "add ST-1", "delete ST-1"), lsm.operations);
+		assertNull(lsm.tickets.get("ST-1"));
+		assertNotNull(lsm.tickets.get("TGT-1"));
+	}
+
+	@Test
+	public void testUpdateIsWrittenInOrder() {
+		final LSMTicketGrantingTicketImpl tgt = tgt("TGT-1");
+		registry.addTicket(tgt);
+		registry.updateTicket(tgt);
+		registry.deleteTicket("TGT-1");
+
+		flush();
+		assertEquals(Arrays.asList("add TGT-1", "delete TGT-1", "add TGT-1", "delete TGT-1"), lsm.operations);
+		assertTrue(lsm.tickets.isEmpty());
+	}
+
+	@Test
+	public void testDeletedTicketIsNotReadBackFromLsm() {
+		final LSMTicketGrantingTicketImpl tgt = tgt("TGT-1");
+		lsm.tickets.put("TGT-1", tgt);
+		lsm.tickets.put("ST-1", st("ST-1", tgt));
+
+		// loaded from LSM, deleted locally while the deletion is not written yet
+		assertTrue(registry.deleteTicket("ST-1"));
+		assertNotNull(lsm.tickets.get("ST-1"));
+		assertNull(registry.getTicket("ST-1"));
+		for (final Ticket ticket : registry.getTickets())
+			assertFalse("ST-1".equals(ticket.getId()));
+
+		flush();
+		assertEquals(Arrays.asList("delete ST-1"), lsm.operations);
+		assertNull(lsm.tickets.get("ST-1"));
+		assertEquals(1, registry.getLsmLoadCount());
+	}
+
+	@Test
+	public void testDeletingATicketGrantingTicketDeletesItsChildren() {
+		final LSMTicketGrantingTicketImpl tgt = tgt("TGT-1");
+		final LSMTicketGrantingTicketImpl proxy = tgt("TGT-2", tgt);
+		registry.addTicket(tgt);
+		registry.addTicket(proxy);
+		registry.addTicket(st("ST-1", tgt));
+		registry.addTicket(st("ST-2", proxy));
+		registry.addTicket(st("ST-3", tgt("TGT-3")));
+
+		assertTrue(registry.deleteTicket("TGT-1"));
+		for (final String id : new String[] { "TGT-1", "TGT-2", "ST-1", "ST-2" })
+			assertNull(id, registry.getTicket(id));
+		assertNotNull(registry.getTicket("ST-3"));
+
+		flush();
+		assertEquals(Collections.singleton("ST-3"), lsm.tickets.keySet());
+	}
+
+	@Test
+	public void testExpiredTicketsAreDeleted() {
+		final LSMTicketGrantingTicketImpl valid = tgt("TGT-1");
+		final LSMTicketGrantingTicketImpl expired = tgt("TGT-2");
+		registry.addTicket(valid);
+		registry.addTicket(st("ST-1", valid));
+		registry.addTicket(expired);
+		registry.addTicket(st("ST-2", expired));
+		expired.setExpired(true);
+
+		registry.expireTickets();
+		assertNotNull(registry.getTicket("TGT-1"));
+		assertNotNull(registry.getTicket("ST-1"));
+		assertNull(registry.getTicket("TGT-2"));
+		assertNull(registry.getTicket("ST-2"));
+		assertTrue(registry.getExpiredCount() > 0);
+		assertEquals(2, registry.getTickets().size());
+
+		flush();
+		assertEquals(2, lsm.tickets.size());
+		assertNotNull(lsm.tickets.get("TGT-1"));
+		assertNotNull(lsm.tickets.get("ST-1"));
+	}
+
+	@Test
+	public void testExpirationRunsInTheBackground() throws InterruptedException {
+		registry = new LSMTicketRegistry(lsm);
+		registry.setClustered(false);
+		registry.setExpirationInterval(1);
+		final LSMTicketGrantingTicketImpl tgt = tgt("TGT-1");
+		registry.addTicket(tgt);
+		tgt.setExpired(true);
+		lsm.release();
+
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (!lsm.tickets.isEmpty() || lsm.operations.size() < 2) {
+			assertTrue("The expired ticket was not deleted", System.currentTimeMillis() < deadline);
+			Thread.sleep(50);
+		}
+		assertEquals(Arrays.asList("add TGT-1", "delete TGT-1"), lsm.operations);
+		assertEquals(1, registry.getExpiredCount());
+	}
+
+	private void flush() {
+		lsm.release();
+		registry.destroy();
+	}
+
+	private static LSMTicketGrantingTicketImpl tgt(final String id) {
+		return tgt(id, null);
+	}
+
+	private static LSMTicketGrantingTicketImpl tgt(final String id, final LSMTicketGrantingTicketImpl parent) {
+		final LSMTicketGrantingTicketImpl tgt = new LSMTicketGrantingTicketImpl();
+		tgt.setId(id);
+		tgt.setTicketGrantingTicket(parent);
+		tgt.setExpirationPolicy(new NeverExpiresExpirationPolicy());
+		return tgt;
+	}
+
+	private static LSMServiceTicketImpl st(final String id, final LSMTicketGrantingTicketImpl parent) {
+		final LSMServiceTicketImpl st = new LSMServiceTicketImpl();
+		st.setId(id);
+		st.setTicketGrantingTicket(parent);
+		st.setExpirationPolicy(new NeverExpiresExpirationPolicy());
+		return st;
+	}
+
+	/**
+	 * The tickets of LSM in memory. The writes wait until {@link #release()},
+	 * so that the tests see the registry before the writes behind reach LSM.
+	 */
+	private static class InMemoryLSM extends LSMOAuthManager {
+
+		final Map<String, Ticket> tickets = new ConcurrentHashMap<String, Ticket>();
+
+		final List<String> operations = Collections.synchronizedList(new ArrayList<String>());
+
+		private final CountDownLatch writes = new CountDownLatch(1);
+
+		InMemoryLSM() {
+			super("http://lsm.test/OAuth#");
+		}
+
+		void release() {
+			writes.countDown();
+		}
+
+		private void write(final String operation, final String id, final Ticket ticket) {
+			try {
+				writes.await();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			operations.add(operation + " " + id);
+			if (ticket != null)
+				tickets.put(id, ticket);
+			else
+				tickets.remove(id);
+		}
+
+		@Override
+		public LSMServiceTicketImpl getServiceTicketImpl(final String ticketId) {
+			final Ticket ticket = tickets.get(ticketId);
+			return ticket instanceof LSMServiceTicketImpl ? (LSMServiceTicketImpl) ticket : null;
+		}
+
+		@Override
+		public void deleteServiceTicketImpl(final String ticketId) {
+			write("delete", ticketId, null);
+		}
+
+		@Override
+		public void addServiceTicketImpl(final LSMServiceTicketImpl serviceTicketImpl) {
+			write("add", serviceTicketImpl.getId(), serviceTicketImpl);
+		}
+
+		@Override
+		public LSMTicketGrantingTicketImpl getTicketGranting(final String grantId) {
+			final Ticket ticket = tickets.get(grantId);
+			return ticket instanceof LSMTicketGrantingTicketImpl ? (LSMTicketGrantingTicketImpl) ticket : null;
+		}
+
+		@Override
+		public void deleteTicketGranting(final String grantId) {
+			write("delete", grantId, null);
+		}
+
+		@Override
+		public void addTicketGrangtingTicket(final LSMTicketGrantingTicketImpl ticketGranting) {
+			write("add", ticketGranting.getId(), ticketGranting);
+		}
+
+		@Override
+		public List<LSMTicketGrantingTicketImpl> getAllTicketsOfTicketGrantingTicket(final String grantId) {
+			final List<LSMTicketGrantingTicketImpl> children = new ArrayList<LSMTicketGrantingTicketImpl>();
+			for (final LSMTicketGrantingTicketImpl t : getAllTicketGrantingTickets())
+				if (t.getGrantingTicket() != null && grantId.equals(t.getGrantingTicket().getId()))
+					children.add(t);
+			return children;
+		}
+
+		@Override
+		public List<LSMServiceTicketImpl> getAllServiceTicketsOfTicketGrantingTicket(final String grantId) {
+			final List<LSMServiceTicketImpl> children = new ArrayList<LSMServiceTicketImpl>();
+			for (final LSMServiceTicketImpl t : getAllServiceTickets())
+				if (grantId.equals(t.getGrantingTicket().getId()))
+					children.add(t);
+			return children;
+		}
+
+		@Override
+		public List<LSMTicketGrantingTicketImpl> getAllTicketGrantingTickets() {
+			final List<LSMTicketGrantingTicketImpl> all = new ArrayList<LSMTicketGrantingTicketImpl>();
+			for (final Ticket t : tickets.values())
+				if (t instanceof LSMTicketGrantingTicketImpl)
+					all.add((LSMTicketGrantingTicketImpl) t);
+			return all;
+		}
+
+		@Override
+		public List<LSMServiceTicketImpl> getAllServiceTickets() {
+			final List<LSMServiceTicketImpl> all = new ArrayList<LSMServiceTicketImpl>();
+			for (final Ticket t : tickets.values())
+				if (t instanceof LSMServiceTicketImpl)
+					all.add((LSMServiceTicketImpl) t);
+			return all;
+		}
+	}
+}
@@ -25,6 +25,7 @@
 package org.openiot.gsn;
 
 import org.openiot.gsn.beans.StreamElement;
+import org.openiot.gsn.storage.RollupManager;
 import org.openiot.gsn.storage.StorageManager;
 import org.openiot.gsn.vsensor.AbstractVirtualSensor;
 
@@ -68,6 +69,7 @@ public class ContainerImpl  {
 		StorageManager storageMan = Main.getStorage(sensor.getVirtualSensorConfiguration().getName());
 		synchronized ( psLock ) {
 			storageMan.executeInsert( name ,sensor.getVirtualSensorConfiguration().getOutputStructure(), data );
+			RollupManager.getInstance().update( name , data );
 		}
 		
 		for (VirtualSensorDataListener listener : dataListeners) {
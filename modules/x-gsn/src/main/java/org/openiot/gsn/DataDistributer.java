@@ -27,6 +27,7 @@ import org.openiot.gsn.beans.StreamElement;
 import org.openiot.gsn.beans.VSensorConfig;
 import org.openiot.gsn.http.rest.DeliverySystem;
 import org.openiot.gsn.http.rest.DistributionRequest;
+import org.openiot.gsn.http.rest.FlowControlledDelivery;
 import org.openiot.gsn.storage.DataEnumerator;
 import org.openiot.gsn.storage.SQLValidator;
 
@@ -109,6 +110,20 @@ public class DataDistributer implements VirtualSensorDataListener, VSensorStateC
 
     private ConcurrentHashMap<DistributionRequest, Boolean> candidatesForNextRound = new ConcurrentHashMap<DistributionRequest, Boolean>();
 
+    // set when a flow controlled delivery may have become ready, guarded by itself
+    private final Object readiness = new Object();
+
+    private boolean readySignal = false;
+
+    private final Runnable readyListener = new Runnable() {
+        public void run() {
+            synchronized (readiness) {
+                readySignal = true;
+                readiness.notifyAll();
+            }
+        }
+    };
+
     public void addListener(DistributionRequest listener) {
         synchronized (listeners) {
             if (!listeners.contains(listener)) {
@@ -128,6 +143,8 @@ public class DataDistributer implements VirtualSensorDataListener, VSensorStateC
                     throw new RuntimeException(e);
                 }
                 preparedStatements.put(listener, prepareStatement);
+                if (listener.getDeliverySystem() instanceof FlowControlledDelivery)
+                    ((FlowControlledDelivery) listener.getDeliverySystem()).setReadyListener(readyListener);
                 listeners.add(listener);
                 addListenerToCandidates(listener);
 
@@ -239,7 +256,18 @@ public class DataDistributer implements VirtualSensorDataListener, VSensorStateC
             }
 
 
+            synchronized (readiness) {
+                readySignal = false;
+            }
+            boolean flushed = false;
+            boolean skipped = false;
             for (Entry<DistributionRequest, DataEnumerator> item : candidateListeners.entrySet()) {
+                if (!isReady(item.getKey())) {
+                    // stays a candidate, with its data enumerator where it was
+                    skipped = true;
+                    continue;
+                }
+                flushed = true;
                 boolean success = flushStreamElement(item.getValue(), item.getKey());
                 if (success == false)
                     removeListener(item.getKey());
@@ -252,6 +280,31 @@ public class DataDistributer implements VirtualSensorDataListener, VSensorStateC
                     }
                 }
             }
+            if (skipped && !flushed)
+                awaitReady();
+        }
+    }
+
+    /**
+     * A listener is not ready while its delivery is flow controlled and can't take an element, a closed one is
+     * ready so that it is removed.
+     */
+    private boolean isReady(DistributionRequest listener) {
+        DeliverySystem delivery = listener.getDeliverySystem();
+        return !(delivery instanceof FlowControlledDelivery) || listener.isClosed() || ((FlowControlledDelivery) delivery).isReady();
+    }
+
+    /**
+     * Waits until a delivery may have become ready since the beginning of the round, at most a keep-alive period.
+     */
+    private void awaitReady() {
+        synchronized (readiness) {
+            try {
+                if (!readySignal)
+                    readiness.wait(getKeepAlivePeriod());
+            } catch (InterruptedException e) {
+                logger.error(e.getMessage(), e);
+            }
         }
     }
 
@@ -79,6 +79,8 @@ import org.openiot.gsn.beans.StorageConfig;
 import org.openiot.gsn.beans.VSensorConfig;
 import org.openiot.gsn.dynamicSensorControl.DynamicControlTaskTimer;
 import org.openiot.gsn.http.ac.ConnectToDB;
+import org.openiot.gsn.http.rest.BinaryDelivery;
+import org.openiot.gsn.http.rest.BinaryStreamingServer;
 import org.openiot.gsn.http.rest.LocalDeliveryWrapper;
 import org.openiot.gsn.http.rest.PushDelivery;
 import org.openiot.gsn.http.rest.RestDelivery;
@@ -89,6 +91,7 @@ import org.openiot.gsn.storage.StorageManager;
 import org.openiot.gsn.storage.StorageManagerFactory;
 import org.openiot.gsn.utils.PropertiesReader;
 import org.openiot.gsn.utils.ValidityTools;
+import org.openiot.gsn.utils.geo.SensorGeoIndex;
 import org.openiot.gsn.vsensor.SQLValidatorIntegration;
 import org.openiot.gsn.wrappers.WrappersUtil;
 
@@ -212,6 +215,9 @@ public final class Main {
 				.getInstance(PushDelivery.class));
 		vsloader.addVSensorStateChangeListener(DataDistributer
 				.getInstance(RestDelivery.class));
+		vsloader.addVSensorStateChangeListener(DataDistributer
+				.getInstance(BinaryDelivery.class));
+		vsloader.addVSensorStateChangeListener(SensorGeoIndex.getInstance());
 
 		ContainerImpl.getInstance().addVSensorDataListener(
 				DataDistributer.getInstance(LocalDeliveryWrapper.class));
@@ -219,6 +225,13 @@ public final class Main {
 				DataDistributer.getInstance(PushDelivery.class));
 		ContainerImpl.getInstance().addVSensorDataListener(
 				DataDistributer.getInstance(RestDelivery.class));
+		ContainerImpl.getInstance().addVSensorDataListener(
+				DataDistributer.getInstance(BinaryDelivery.class));
+		try {
+			BinaryStreamingServer.startIfEnabled();
+		} catch (Exception e) {
+			logger.error("Start of the binary streaming server failed: " + e.getMessage(), e);
+		}
 		vsloader.startLoading();
 
 	}
@@ -33,6 +33,7 @@ import org.openiot.gsn.beans.InputStream;
 import org.openiot.gsn.beans.Modifications;
 import org.openiot.gsn.beans.StreamSource;
 import org.openiot.gsn.beans.VSensorConfig;
+import org.openiot.gsn.storage.RollupManager;
 import org.openiot.gsn.wrappers.AbstractWrapper;
 import org.openiot.gsn.wrappers.WrappersUtil;
 import org.slf4j.Logger;
@@ -256,6 +257,7 @@ public class VSensorLoader extends Thread {
                 Main.getStorage(vs).executeCreateTable(vs.getName(), vs.getOutputStructure(), pool.getConfig().getIsTimeStampUnique());
             else
                 logger.info("Reusing the existing " + vs.getName() + " table.");
+            RollupManager.getInstance().register(vs);
         } catch (SQLException e) {
             if (e.getMessage().toLowerCase().contains("table already exists")) {
                 logger.error(e.getMessage());
@@ -371,6 +373,7 @@ public class VSensorLoader extends Thread {
         try {
             // delete table so that future creation with different type does not crash
             Main.getStorage(vsensorName).executeDropTable(vsensorName);
+            RollupManager.getInstance().unregister(vsensorName);
         } catch (SQLException ex) {
             logger.warn("Problem deleting sensor tables.", ex);
         }
@@ -24,6 +24,7 @@ package org.openiot.gsn;
 import org.openiot.gsn.beans.InputStream;
 import org.openiot.gsn.beans.StreamSource;
 import org.openiot.gsn.beans.VSensorConfig;
+import org.openiot.gsn.storage.RollupManager;
 import org.openiot.gsn.vsensor.AbstractVirtualSensor;
 import org.apache.log4j.Logger;
 
@@ -138,6 +139,8 @@ public class VirtualSensor {
         }
         if (logger.isDebugEnabled())
             logger.debug(new StringBuilder().append(effected).append(" old rows dropped from ").append(config.getName()).toString());
+        if (effected > 0)
+            RollupManager.getInstance().prune(config.getName());
     }
 }
 
@@ -27,6 +27,8 @@ import org.openiot.gsn.acquisition2.wrappers.AbstractWrapper2;
 import org.openiot.gsn.beans.AddressBean;
 import org.openiot.gsn.wrappers.WrappersUtil;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -50,10 +52,40 @@ public class SafeStorage {
   private SafeStorageDB storage ;
   
   private Hashtable<String, AbstractWrapper2> loadedWrappers;
+
+  public static final String BACKEND_DB = "db";
+
+  public static final String BACKEND_LOG = "log";
+
+  public static final int DEFAULT_ACK_WINDOW = 256;
+
+  /**
+   * With the log backend, the wrappers output is kept in one SafeStorageLog per requester
+   * instead of the database tables; the database then only keeps the hello messages.
+   */
+  private boolean useLog;
+
+  private File logRoot;
+
+  private int segmentSize;
+
+  private long retentionSize;
+
+  private int ackWindow;
+
+  private Hashtable<String, SafeStorageLog> logs = new Hashtable<String, SafeStorageLog>();
   
   public SafeStorage(int safeStoragePort) throws ClassNotFoundException, SQLException {
 
 	  storage = new SafeStorageDB(safeStoragePort);		
+	  Properties props = SafeStorageDB.getProperties();
+	  useLog = BACKEND_LOG.equalsIgnoreCase(props.getProperty("backend", BACKEND_DB).trim());
+	  logRoot = getLogRoot(safeStoragePort);
+	  segmentSize = Integer.parseInt(props.getProperty("segment-size", Integer.toString(SafeStorageLog.DEFAULT_SEGMENT_SIZE)).trim());
+	  retentionSize = Long.parseLong(props.getProperty("retention-size", Long.toString(SafeStorageLog.DEFAULT_RETENTION_SIZE)).trim());
+	  ackWindow = Integer.parseInt(props.getProperty("ack-window", Integer.toString(DEFAULT_ACK_WINDOW)).trim());
+	  if (useLog)
+		  logger.warn("Using the log backend in " + logRoot + " (segment size: " + segmentSize + ", retention size: " + retentionSize + ", acknowledgement window: " + ackWindow + ")");
 	  wrappers = WrappersUtil.loadWrappers(new HashMap<String, Class<?>>(),SAFE_STORAGE_WRAPPERS_PROPERTIES);
 	  storage.executeSQL("create table if not exists SETUP (pk INTEGER NOT NULL AUTO_INCREMENT PRIMARY KEY, table_name varchar not null unique, requester varchar not null unique,created_at TIMESTAMP default CURRENT_TIMESTAMP() not null )");
 	  storage.executeSQL("create table if not exists HELLO (wrapper_id VARCHAR NOT NULL PRIMARY KEY, hellomsg OTHER NOT NULL)");
@@ -136,14 +168,21 @@ public class SafeStorage {
       pis.close();
       rs.close();
 	  
-      PreparedStatement ps = storage.createPreparedStatement("insert into "+table_name+" (stream_element) values (?)");
       wrapper.setTableName(table_name);
       wrapper.setNetwork(network);
-      wrapper.setPreparedStatement(ps);
       wrapper.setKeepProcessedSafeStorageEntries(keepProcessed) ;
+      if (useLog) {
+        wrapper.setLog(getLog(helloMsg.getRequster(), keepProcessed));
+      } else {
+        PreparedStatement ps = storage.createPreparedStatement("insert into "+table_name+" (stream_element) values (?)");
+        wrapper.setPreparedStatement(ps);
+      }
     } catch ( SQLException e ) {
       logger.error ( e.getMessage ( ) , e );
       return null;
+    } catch ( IOException e ) {
+      logger.error ( e.getMessage ( ) , e );
+      return null;
     } 
     wrapper.start ( );
     loadedWrappers.put(helloMsg.getRequster(), wrapper);
@@ -172,6 +211,63 @@ public class SafeStorage {
   public SafeStorageDB getStorage() {
     return storage;
   }
+
+  private synchronized SafeStorageLog getLog(String requester, boolean keepProcessed) throws IOException {
+    SafeStorageLog log = logs.get(requester);
+    if (log == null) {
+      log = new SafeStorageLog(new File(logRoot, getLogName(requester)), segmentSize, keepProcessed, retentionSize);
+      logs.put(requester, log);
+    }
+    return log;
+  }
+
+  /*
+  * Returns the name of the log directory of the given requester. The lower case letters, the digits, '_' and '-' are
+  * kept and every other byte of the UTF-8 form is written %XX, so that two requesters never share a directory, even
+  * on a case insensitive file system.
+  * */
+  static String getLogName(String requester) throws IOException {
+    if (requester == null || requester.length() == 0 || requester.equals(".") || requester.equals(".."))
+      throw new IOException("Invalid requester name for the safe storage log: " + requester);
+    StringBuilder name = new StringBuilder();
+    for (byte b : requester.getBytes("UTF-8")) {
+      if ((b >= 'a' && b <= 'z') || (b >= '0' && b <= '9') || b == '_' || b == '-')
+        name.append((char) b);
+      else
+        name.append(String.format("%%%02X", b & 0xFF));
+    }
+    return name.toString();
+  }
+
+  /*
+  * Returns the directory of the logs of the safe storage listening on the given port
+  * */
+  public static File getLogRoot(int safeStoragePort) {
+    return new File(SafeStorageDB.getPath(), "storage" + safeStoragePort + ".log");
+  }
+
+  /*
+  * Deletes the logs of the safe storage listening on the given port
+  * */
+  public static void deleteLogs(int safeStoragePort) {
+    deleteRecursively(getLogRoot(safeStoragePort));
+  }
+
+  private static void deleteRecursively(File f) {
+    File[] children = f.listFiles();
+    if (children != null)
+      for (File child : children)
+        deleteRecursively(child);
+    if (f.exists() && !f.delete())
+      logger.warn("Can't delete " + f);
+  }
+
+  /**
+   * Maximum number of elements sent and not yet acknowledged, with the log backend.
+   */
+  public int getAckWindow() {
+    return ackWindow;
+  }
   
   
 }
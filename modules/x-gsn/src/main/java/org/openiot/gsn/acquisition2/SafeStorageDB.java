@@ -152,6 +152,32 @@ public class SafeStorageDB {
 
     }
 
+    /*
+    * Returns the safe storage properties, empty if the properties file does not exist
+    * */
+    public static Properties getProperties() {
+        Properties props = new Properties();
+        try {
+            FileInputStream in = new FileInputStream(SAFESTORAGE_PROPERTIES_FILE);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.debug("Couldn't read safe storage properties file: " + SAFESTORAGE_PROPERTIES_FILE);
+        }
+        return props;
+    }
+
+    /*
+    * Returns the directory holding the safe storage files
+    * */
+    public static String getPath() {
+        String dbPath = getProperties().getProperty("path", DEFAULT_SAFESTORAGE_PATH);
+        return dbPath.isEmpty() ? DEFAULT_SAFESTORAGE_PATH : dbPath;
+    }
+
     /*
     * Creates a well-formed db url using the path given the database name
     * and default properties files
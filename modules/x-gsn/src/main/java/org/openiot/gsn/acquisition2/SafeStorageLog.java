@@ -0,0 +1,535 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.acquisition2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only log of the elements produced by one safe storage wrapper, an alternative to the
+ * per-wrapper H2 table of {@link SafeStorageDB}.
+ * <p>
+ * The log is a directory of memory-mapped segment files named after the sequence number of their
+ * first record. Each record is
+ * <pre>
+ * int  length of the payload (written last, 0 marks the end of the segment)
+ * long sequence number
+ * long creation time
+ * ...  payload (the serialised values)
+ * </pre>
+ * The sequence number of the last acknowledged record is kept in the <code>ack</code> file of the
+ * directory; readers restart after it. Segments whose records are all acknowledged are deleted,
+ * unless processed entries have to be kept, in which case they are deleted once the log is larger
+ * than its retention size. A segment still used by a reader is unmapped and deleted when the reader
+ * leaves it.
+ * Records survive a crash of the process, not of the operating system.
+ */
+public class SafeStorageLog {
+
+  public static transient Logger logger = Logger.getLogger ( SafeStorageLog.class );
+
+  public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+  public static final long DEFAULT_RETENTION_SIZE = 1024L * 1024 * 1024;
+
+  private static final int RECORD_HEADER = 4 + 8 + 8;
+
+  // one position is indexed every INDEX_INTERVAL records
+  private static final int INDEX_INTERVAL = 64;
+
+  private static final String SEGMENT_SUFFIX = ".seg";
+
+  private final File directory;
+
+  private final int segmentSize;
+
+  private final boolean keepProcessed;
+
+  private final long retentionSize;
+
+  // segments by sequence number of their first record
+  private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+
+  // total size of the segments files
+  private long size;
+
+  private Segment active;
+
+  private long nextSeq = 1;
+
+  private long ackedSeq;
+
+  private final MappedByteBuffer ackBuffer;
+
+  private final RandomAccessFile ackFile;
+
+  private boolean closed;
+
+  public SafeStorageLog(File directory, int segmentSize, boolean keepProcessed) throws IOException {
+    this(directory, segmentSize, keepProcessed, DEFAULT_RETENTION_SIZE);
+  }
+
+  /**
+   * @param retentionSize when processed entries are kept, acknowledged segments are deleted while the
+   * log is larger than this number of bytes; 0 keeps them all.
+   */
+  public SafeStorageLog(File directory, int segmentSize, boolean keepProcessed, long retentionSize) throws IOException {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.keepProcessed = keepProcessed;
+    this.retentionSize = retentionSize;
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("Can't create the safe storage log directory " + directory);
+
+    ackFile = new RandomAccessFile(new File(directory, "ack"), "rw");
+    ackBuffer = ackFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8);
+    ackedSeq = ackBuffer.getLong(0);
+
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        String name = f.getName();
+        if (name.endsWith(SEGMENT_SUFFIX)) {
+          long base = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+          Segment s = new Segment(f, base, (int) f.length());
+          segments.put(base, s);
+          size += s.size;
+        }
+      }
+    }
+    if (!segments.isEmpty()) {
+      // rebuilds the index of every segment, and finds the end of the last one
+      for (Segment s : segments.values()) {
+        s.recover();
+        Long nextBase = segments.higherKey(s.base);
+        if (nextBase != null && s.count != nextBase - s.base)
+          logger.warn("Safe storage segment " + s.file + " holds " + s.count + " record(s) instead of " + (nextBase - s.base));
+      }
+      active = segments.lastEntry().getValue();
+      nextSeq = active.base + active.count;
+    } else {
+      nextSeq = ackedSeq + 1;
+    }
+    deleteAcknowledgedSegments();
+    logger.warn("Safe storage log " + directory + ": " + segments.size() + " segment(s), next sequence number " + nextSeq + ", acknowledged up to " + ackedSeq);
+  }
+
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Appends the values and wakes up the waiting readers.
+   * @return the sequence number of the new record
+   */
+  public long append(Serializable[] values) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+    ObjectOutputStream oos = new ObjectOutputStream(bos);
+    oos.writeObject(values);
+    oos.close();
+    byte[] payload = bos.toByteArray();
+
+    synchronized (this) {
+      if (closed)
+        throw new IOException("The safe storage log " + directory + " is closed");
+      if (active == null || !active.fits(payload.length))
+        roll(payload.length);
+      long seq = nextSeq++;
+      active.append(seq, System.currentTimeMillis(), payload);
+      notifyAll();
+      return seq;
+    }
+  }
+
+  private void roll(int payloadLength) throws IOException {
+    if (active != null)
+      active.seal();
+    int segment = Math.max(segmentSize, RECORD_HEADER + payloadLength + 4);
+    File f = new File(directory, String.format("%020d", nextSeq) + SEGMENT_SUFFIX);
+    active = new Segment(f, nextSeq, segment);
+    segments.put(nextSeq, active);
+    size += active.size;
+    deleteAcknowledgedSegments();
+  }
+
+  /**
+   * Returns the sequence number of the last acknowledged record.
+   */
+  public synchronized long getAcknowledged() {
+    return ackedSeq;
+  }
+
+  /**
+   * Cumulative acknowledgement: all the records up to seq are processed.
+   */
+  public synchronized void acknowledge(long seq) {
+    if (seq <= ackedSeq || closed)
+      return;
+    ackedSeq = Math.min(seq, nextSeq - 1);
+    ackBuffer.putLong(0, ackedSeq);
+    deleteAcknowledgedSegments();
+  }
+
+  /*
+  * Returns the number of segments files, including the ones waiting for their readers to be deleted
+  * */
+  synchronized int getSegmentCount() {
+    return segments.size();
+  }
+
+  synchronized long getSize() {
+    return size;
+  }
+
+  private void deleteAcknowledgedSegments() {
+    while (segments.size() > 1) {
+      Map.Entry<Long, Segment> first = segments.firstEntry();
+      long nextBase = segments.higherKey(first.getKey());
+      if (nextBase - 1 > ackedSeq)
+        break;
+      if (keepProcessed && (retentionSize <= 0 || size <= retentionSize))
+        break;
+      segments.remove(first.getKey());
+      size -= first.getValue().size;
+      first.getValue().retired = true;
+      if (first.getValue().refs == 0)
+        first.getValue().delete();
+    }
+  }
+
+  private void release(Segment segment) {
+    if (--segment.refs == 0 && segment.retired)
+      segment.delete();
+  }
+
+  /**
+   * Returns a reader positioned after the last acknowledged record. The reader has to be closed,
+   * by the thread using it, once it is no longer needed.
+   */
+  public synchronized Reader openReader() {
+    return new Reader(ackedSeq + 1);
+  }
+
+  /**
+   * Closes the log. The segments still used by readers are unmapped by the garbage collector.
+   */
+  public synchronized void close() {
+    if (closed)
+      return;
+    closed = true;
+    for (Segment s : segments.values()) {
+      if (s.refs == 0)
+        s.close();
+      else
+        s.force();
+    }
+    try {
+      ackBuffer.force();
+      ackFile.close();
+    } catch (IOException e) {
+      logger.error(e.getMessage(), e);
+    }
+    unmap(ackBuffer);
+    notifyAll();
+  }
+
+  /*
+  * Releases the mapping of the buffer without waiting for the garbage collector, so that its file
+  * can be deleted on every platform. The buffer must not be used afterwards.
+  * */
+  static void unmap(MappedByteBuffer buffer) {
+    try {
+      Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+      cleanerMethod.setAccessible(true);
+      Object cleaner = cleanerMethod.invoke(buffer);
+      if (cleaner != null)
+        cleaner.getClass().getMethod("clean").invoke(cleaner);
+    } catch (Exception e) {
+      // left to the garbage collector
+      logger.debug("Can't unmap a safe storage buffer: " + e.getMessage());
+    }
+  }
+
+  public static class Record {
+
+    private final long seq;
+
+    private final long createdAt;
+
+    private final byte[] payload;
+
+    Record(long seq, long createdAt, byte[] payload) {
+      this.seq = seq;
+      this.createdAt = createdAt;
+      this.payload = payload;
+    }
+
+    public long getSequenceNumber() {
+      return seq;
+    }
+
+    public long getCreatedAt() {
+      return createdAt;
+    }
+
+    public Object[] getValues() throws IOException {
+      ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload));
+      try {
+        return (Object[]) in.readObject();
+      } catch (ClassNotFoundException e) {
+        throw new IOException(e.getMessage(), e);
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  /**
+   * Sequential reader, owned by a single thread. The segment being read is referenced by the reader,
+   * so that it stays mapped while it is read without holding the lock of the log.
+   */
+  public class Reader {
+
+    private long seq;
+
+    private Segment segment;
+
+    private ByteBuffer buffer;
+
+    Reader(long seq) {
+      this.seq = seq;
+    }
+
+    /**
+     * Returns the next record, waiting at most timeout milliseconds for it to be appended, or null.
+     */
+    public Record next(long timeout) throws InterruptedException, IOException {
+      synchronized (SafeStorageLog.this) {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (seq >= nextSeq) {
+          if (closed)
+            throw new IOException("The safe storage log " + directory + " is closed");
+          long wait = deadline - System.currentTimeMillis();
+          if (wait <= 0)
+            return null;
+          SafeStorageLog.this.wait(wait);
+        }
+        if (closed)
+          throw new IOException("The safe storage log " + directory + " is closed");
+        if (segment == null || seq >= segment.base + segment.count) {
+          // records before the first segment were acknowledged and deleted
+          Map.Entry<Long, Segment> e = segments.floorEntry(seq);
+          if (e == null) {
+            e = segments.firstEntry();
+            seq = e.getKey();
+          }
+          Segment next = e.getValue();
+          next.refs++;
+          if (segment != null)
+            release(segment);
+          segment = next;
+          if (seq >= segment.base + segment.count)
+            throw new IOException("Corrupted safe storage segment " + segment.file + ": record " + seq + " is missing");
+          buffer = segment.bufferAt(seq);
+        }
+      }
+      // the record is complete since seq < nextSeq, and the segment is referenced by this reader
+      Segment.skipTo(buffer, seq);
+      Record r = Segment.read(buffer);
+      if (r == null)
+        throw new IOException("Corrupted safe storage segment " + segment.file + " at record " + seq);
+      seq = r.seq + 1;
+      return r;
+    }
+
+    /**
+     * Releases the segment being read.
+     */
+    public void close() {
+      synchronized (SafeStorageLog.this) {
+        if (segment != null)
+          release(segment);
+        segment = null;
+        buffer = null;
+      }
+    }
+  }
+
+  private static class Segment {
+
+    private final File file;
+
+    private final long base;
+
+    private final int size;
+
+    private RandomAccessFile raf;
+
+    private MappedByteBuffer buffer;
+
+    // number of records
+    private long count;
+
+    // positions of the records base, base + INDEX_INTERVAL, base + 2 * INDEX_INTERVAL...
+    private int[] index = new int[16];
+
+    // number of readers using the segment, and whether it was removed from the log
+    private int refs;
+
+    private boolean retired;
+
+    Segment(File file, long base, int size) throws IOException {
+      this.file = file;
+      this.base = base;
+      this.size = size;
+      raf = new RandomAccessFile(file, "rw");
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /*
+    * Finds the end of the records of a segment written before a restart, indexing them
+    * */
+    void recover() {
+      ByteBuffer b = buffer.duplicate();
+      b.position(0);
+      int start = 0;
+      while (read(b) != null) {
+        indexRecord(start);
+        count++;
+        start = b.position();
+      }
+      buffer.position(start);
+    }
+
+    private void indexRecord(int position) {
+      if (count % INDEX_INTERVAL != 0)
+        return;
+      int i = (int) (count / INDEX_INTERVAL);
+      if (i == index.length)
+        index = Arrays.copyOf(index, i * 2);
+      index[i] = position;
+    }
+
+    boolean fits(int payloadLength) {
+      // keep room for the end marker
+      return buffer.remaining() >= RECORD_HEADER + payloadLength + 4;
+    }
+
+    void append(long seq, long createdAt, byte[] payload) {
+      int start = buffer.position();
+      buffer.position(start + 4);
+      buffer.putLong(seq);
+      buffer.putLong(createdAt);
+      buffer.put(payload);
+      // the length makes the record visible, so it is written last
+      buffer.putInt(start, payload.length);
+      indexRecord(start);
+      count++;
+    }
+
+    /*
+    * Returns a buffer positioned on the closest indexed record at or before the record seq of this segment
+    * */
+    ByteBuffer bufferAt(long seq) {
+      ByteBuffer b = buffer.duplicate();
+      b.position(index[(int) ((seq - base) / INDEX_INTERVAL)]);
+      return b;
+    }
+
+    /*
+    * Moves the buffer forward to the record seq, reading only the record headers
+    * */
+    static void skipTo(ByteBuffer b, long seq) {
+      while (b.remaining() >= RECORD_HEADER) {
+        int start = b.position();
+        int length = b.getInt(start);
+        if (length <= 0 || b.getLong(start + 4) >= seq)
+          return;
+        b.position(start + RECORD_HEADER + length);
+      }
+    }
+
+    static Record read(ByteBuffer b) {
+      if (b.remaining() < RECORD_HEADER)
+        return null;
+      int start = b.position();
+      int length = b.getInt(start);
+      if (length <= 0 || length > b.remaining() - RECORD_HEADER)
+        return null;
+      b.position(start + 4);
+      long seq = b.getLong();
+      long createdAt = b.getLong();
+      byte[] payload = new byte[length];
+      b.get(payload);
+      return new Record(seq, createdAt, payload);
+    }
+
+    void seal() {
+      if (buffer.remaining() >= 4)
+        buffer.putInt(buffer.position(), 0);
+    }
+
+    void force() {
+      buffer.force();
+    }
+
+    void close() {
+      try {
+        buffer.force();
+        raf.close();
+      } catch (IOException e) {
+        logger.error(e.getMessage(), e);
+      }
+      unmap(buffer);
+      buffer = null;
+    }
+
+    void delete() {
+      try {
+        raf.close();
+      } catch (IOException e) {
+        logger.debug(e.getMessage());
+      }
+      // a file still mapped can't be deleted on Windows
+      unmap(buffer);
+      buffer = null;
+      if (!file.delete())
+        logger.warn("Can't delete the acknowledged safe storage segment " + file);
+      else
+        logger.debug("Deleted the acknowledged safe storage segment " + file);
+    }
+  }
+}
@@ -36,6 +36,8 @@ public class SafeStorageClientSessionHandler extends IoHandlerAdapter {
   
   private static transient Logger logger = Logger.getLogger ( SafeStorageClientSessionHandler.class );
   
+  private static final String NACKED_KEY = "nacked";
+  
   AbstractMessage helloMsg = null;
   
   private MessageHandler handler;
@@ -52,10 +54,14 @@ session.close();
   public void messageReceived(IoSession session, Object message) throws Exception {
     logger.debug("Received data from the server");
     DataMsg dataMsg = (DataMsg) message;
+    // the server may have sent more elements after the one we failed, they are sent again on reconnection
+    if (session.containsAttribute(NACKED_KEY))
+      return;
     if (handler.messageToBeProcessed(dataMsg)) {
       session.write(new AcknowledgmentMsg(AcknowledgmentMsg.SUCCESS,dataMsg.getSequenceNumber()));
       logger.debug("Sending Success Ack");
     }else {
+      session.setAttribute(NACKED_KEY, Boolean.TRUE);
       session.write(new AcknowledgmentMsg(AcknowledgmentMsg.FAILURE,dataMsg.getSequenceNumber()));
       logger.debug("Sending Success Nack");
     }
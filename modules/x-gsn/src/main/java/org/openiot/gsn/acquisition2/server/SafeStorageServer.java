@@ -85,6 +85,7 @@ public class SafeStorageServer {
 		case SS_CLEAN_MODE : {
 			SafeStorageDB storage = new SafeStorageDB(safeStorageServerPort);
 			storage.dropAllTables();
+			SafeStorage.deleteLogs(safeStorageServerPort);
 			logger.warn("SafeStorage database is now clean and empty.");
 			break;
 		}
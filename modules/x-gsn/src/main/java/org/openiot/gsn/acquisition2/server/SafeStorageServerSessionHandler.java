@@ -23,11 +23,13 @@
 package org.openiot.gsn.acquisition2.server;
 
 import org.openiot.gsn.acquisition2.SafeStorage;
+import org.openiot.gsn.acquisition2.SafeStorageLog;
 import org.openiot.gsn.acquisition2.messages.AcknowledgmentMsg;
 import org.openiot.gsn.acquisition2.messages.DataMsg;
 import org.openiot.gsn.acquisition2.messages.HelloMsg;
 import org.openiot.gsn.acquisition2.wrappers.AbstractWrapper2;
 
+import java.io.IOException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -64,6 +66,13 @@ public class SafeStorageServerSessionHandler extends IoHandlerAdapter{
 				//session.close();
 				return;
 			}
+			if (wrapper.getLog() != null) {
+				// log backend: a sender thread streams the log, the acknowledgments only move the window
+				LogSender sender = new LogSender(session, wrapper.getLog(), ss.getAckWindow());
+				session.setAttribute(SESSION_STATE_KEY, sender);
+				sender.start();
+				return;
+			}
 			SessionState sstate = new SessionState () ;
 			sstate.setWrapper(wrapper);
 			sstate.setReaderPS(ss.getStorage().createPreparedStatement("select pk,stream_element,created_at from "+wrapper.getTableName()+" where processed = false order by pk asc limit 1"));	
@@ -79,10 +88,13 @@ public class SafeStorageServerSessionHandler extends IoHandlerAdapter{
 		if (message instanceof AcknowledgmentMsg) {
 			AcknowledgmentMsg ack = (AcknowledgmentMsg)message;
 			if (!ack.isAck()) {
-				logger.error("Recieved Nack for Hello Message sent for "+((HelloMsg) message).getWrapperDetails().toString());
+				logger.error("Recieved Nack for the element " + ack.getSeqNumber());
 				logger.error("Closing the connection to the SafeStorageServer...");
 				session.close();
 				return;
+			}else if (session.getAttribute(SESSION_STATE_KEY) instanceof LogSender) {
+				((LogSender) session.getAttribute(SESSION_STATE_KEY)).acknowledged(ack.getSeqNumber());
+				return;
 			}else {
 				SessionState sstate = (SessionState) session.getAttribute(SESSION_STATE_KEY);
 				if (sstate != null) {
@@ -130,6 +142,11 @@ public class SafeStorageServerSessionHandler extends IoHandlerAdapter{
 
 	public void sessionClosed(IoSession session) throws Exception {
 		
+		if (session.getAttribute(SESSION_STATE_KEY) instanceof LogSender) {
+			((LogSender) session.getAttribute(SESSION_STATE_KEY)).shutdown();
+			logger.warn("Session >" + session + "< is closed");
+			return;
+		}
 		SessionState sstate =  (SessionState) session.getAttribute(SESSION_STATE_KEY);
 		if (sstate == null) {
 			logger.error("No Session State found for session >" + session + "<");
@@ -151,6 +168,78 @@ public class SafeStorageServerSessionHandler extends IoHandlerAdapter{
 		// Update the number of clients using this wrapper.
 	}
 
+	/**
+	 * Streams the records of a safe storage log to one client, keeping at most window records
+	 * sent and not acknowledged. The client processes the elements in order, so an acknowledgment
+	 * covers all the records before it, even if the acknowledgments are handled out of order here.
+	 */
+	private class LogSender extends Thread {
+
+		private final IoSession session;
+
+		private final SafeStorageLog log;
+
+		private final SafeStorageLog.Reader reader;
+
+		private final int window;
+
+		private long lastSent;
+
+		private long lastAcked;
+
+		private volatile boolean running = true;
+
+		public LogSender(IoSession session, SafeStorageLog log, int window) {
+			super("safestorage-sender-" + session.getId());
+			setDaemon(true);
+			this.session = session;
+			this.log = log;
+			this.window = window;
+			reader = log.openReader();
+			lastAcked = log.getAcknowledged();
+			lastSent = lastAcked;
+		}
+
+		public void run() {
+			try {
+				while (running) {
+					synchronized (this) {
+						while (running && lastSent - lastAcked >= window)
+							wait();
+					}
+					SafeStorageLog.Record record = reader.next(1000);
+					if (record == null || !running)
+						continue;
+					synchronized (this) {
+						lastSent = record.getSequenceNumber();
+					}
+					session.write(new DataMsg(record.getValues(), record.getSequenceNumber(), record.getCreatedAt()));
+				}
+			} catch (InterruptedException e) {
+				// session closed
+			} catch (IOException e) {
+				logger.error("Can't read the safe storage log " + log.getDirectory() + ": " + e.getMessage(), e);
+				session.close();
+			} finally {
+				// only this thread reads, so only this thread may release the segment being read
+				reader.close();
+			}
+		}
+
+		public synchronized void acknowledged(long seq) {
+			if (seq <= lastAcked)
+				return;
+			lastAcked = seq;
+			log.acknowledge(seq);
+			notifyAll();
+		}
+
+		public void shutdown() {
+			running = false;
+			interrupt();
+		}
+	}
+
 	private class SessionState {
 
 		private AbstractWrapper2 wrapper;
@@ -23,6 +23,7 @@
 
 package org.openiot.gsn.acquisition2.wrappers;
 
+import org.openiot.gsn.acquisition2.SafeStorageLog;
 import org.openiot.gsn.beans.AddressBean;
 
 import java.io.Serializable;
@@ -46,6 +47,8 @@ public abstract class AbstractWrapper2  extends Thread{
   private IoSession network;
  
   private PreparedStatement insertPS;
+
+  private SafeStorageLog log;
   
   private boolean keepProcessedSafeStorageEntries = true;
  
@@ -89,6 +92,10 @@ public abstract class AbstractWrapper2  extends Thread{
    */
   protected void postStreamElement(Serializable... values)  {
     try {
+      if (log != null) {
+        log.append(values);
+        return;
+      }
       insertPS.clearParameters();
       insertPS.setObject(1,values);
       insertPS.executeUpdate();
@@ -109,6 +116,17 @@ public abstract class AbstractWrapper2  extends Thread{
   public void setPreparedStatement(PreparedStatement preparedStatement) {
     this.insertPS = preparedStatement;
   }
+
+  /**
+   * Stores the data into the given log instead of the safe storage database.
+   */
+  public void setLog(SafeStorageLog log) {
+    this.log = log;
+  }
+
+  public SafeStorageLog getLog() {
+    return log;
+  }
   /**
    * Only called by the handler once handler has consumed every non-processed entries from the db.
    * @throws InterruptedException
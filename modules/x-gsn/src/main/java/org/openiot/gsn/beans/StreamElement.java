@@ -27,7 +27,6 @@
 package org.openiot.gsn.beans;
 
 import org.openiot.gsn.http.rest.StreamElement4Rest;
-import org.openiot.gsn.utils.CaseInsensitiveComparator;
 
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -36,13 +35,23 @@ import java.util.TreeMap;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.log4j.Logger;
 
+/**
+ * A tuple of a data stream. The structure of the tuple (field names and types) is held by an
+ * interned {@link StreamElementSchema} shared by all the elements having the same structure.
+ * <p>
+ * Elements created with a schema and a timestamp only keep their numeric values in primitive slots,
+ * written and read with the typed accessors ({@link #setDouble(int, double)}, {@link #getDouble(int)},
+ * {@link #getLong(int)}...). The <code>Serializable</code> based accessors remain available as a
+ * compatibility view: {@link #getData()} boxes the values once, after which the returned array is
+ * the storage of the element.
+ */
 public final class StreamElement implements Serializable {
 
 	private static final long                      serialVersionUID  = 2000261462783698617L;
 
 	private static final transient Logger          logger            = Logger.getLogger( StreamElement.class );
 
-	private transient TreeMap < String , Integer > indexedFieldNames = null;
+	private transient StreamElementSchema          schema;
 
 	private long                                   timeStamp         = -1;
 
@@ -52,18 +61,29 @@ public final class StreamElement implements Serializable {
 
 	private transient Byte [ ]                               fieldTypes;
 
+	/*
+	 * Numeric values while they are not boxed: one slot per field (raw bits for doubles),
+	 * followed by one bit per field telling whether its value is set. Written under the monitor of
+	 * the element, like the boxing, so that a write cannot be lost while the values are boxed.
+	 */
+	private transient volatile long [ ]                      slots;
+
 	private transient long                                   internalPrimayKey = -1;
 
 	private static final String NULL_ENCODING = "NULL"; // null encoding for transmission over xml-rpc
 
 	public StreamElement (StreamElement other) {
-		this.fieldNames=new String[other.fieldNames.length];
-		this.fieldValues=new Serializable[other.fieldValues.length];
-		this.fieldTypes=new Byte[other.fieldTypes.length];
-		for (int i=0;i<other.fieldNames.length;i++) {
-			fieldNames[i]=other.fieldNames[i];
-			fieldValues[i]=other.fieldValues[i];
-			fieldTypes[i]=other.fieldTypes[i];
+		this.schema = other.getSchema( );
+		this.fieldNames = schema.sharedFieldNames( );
+		this.fieldTypes = schema.sharedFieldTypes( );
+		synchronized ( other ) {
+			long [ ] otherSlots = other.slots;
+			if ( otherSlots != null ) {
+				this.slots = otherSlots.clone( );
+				this.fieldValues = other.fieldValues == null ? null : other.fieldValues.clone( );
+			} else {
+				this.fieldValues = other.fieldValues.clone( );
+			}
 		}
 		this.timeStamp=other.timeStamp;
 		this.internalPrimayKey = other.internalPrimayKey;
@@ -72,16 +92,7 @@ public final class StreamElement implements Serializable {
 		this(outputStructure,data,System.currentTimeMillis());
 	}
 	public StreamElement ( DataField [ ] outputStructure , final Serializable [ ] data , final long timeStamp ) {
-		this.fieldNames = new String [ outputStructure.length ];
-		this.fieldTypes = new Byte [ outputStructure.length ];
-		this.timeStamp = timeStamp;
-		for ( int i = 0 ; i < this.fieldNames.length ; i++ ) {
-			this.fieldNames[ i ] = outputStructure[ i ].getName( ).toLowerCase( );
-			this.fieldTypes[ i ] = outputStructure[ i ].getDataTypeID( );
-		}
-		if ( this.fieldNames.length != data.length ) throw new IllegalArgumentException( "The length of dataFileNames and the actual data provided in the constructor of StreamElement doesn't match." );
-		this.verifyTypesCompatibility( this.fieldTypes , data );
-		this.fieldValues = data;
+		this( StreamElementSchema.intern( outputStructure ) , data , timeStamp );
 	}
 
 	public StreamElement ( final String [ ] dataFieldNames , final Byte [ ] dataFieldTypes , final Serializable [ ] data ) {
@@ -93,10 +104,32 @@ public final class StreamElement implements Serializable {
 			throw new IllegalArgumentException( "The length of dataFileNames and dataFileTypes provided in the constructor of StreamElement doesn't match." );
 		if ( dataFieldNames.length != data.length ) throw new IllegalArgumentException( "The length of dataFileNames and the actual data provided in the constructor of StreamElement doesn't match." );
 		this.timeStamp = timeStamp;
-		this.fieldTypes = dataFieldTypes;
-		this.fieldNames = dataFieldNames;
+		setSchema( StreamElementSchema.intern( dataFieldNames , dataFieldTypes ) );
+		this.fieldValues = data;
+		this.verifyTypesCompatibility( fieldTypes , data );
+	}
+
+	public StreamElement ( final StreamElementSchema schema , final Serializable [ ] data , final long timeStamp ) {
+		if ( schema.size( ) != data.length ) throw new IllegalArgumentException( "The length of dataFileNames and the actual data provided in the constructor of StreamElement doesn't match." );
+		this.timeStamp = timeStamp;
+		setSchema( schema );
+		this.verifyTypesCompatibility( fieldTypes , data );
 		this.fieldValues = data;
-		this.verifyTypesCompatibility( dataFieldTypes , data );
+	}
+
+	/**
+	 * Creates an element without values, to be filled with the typed setters. Numeric values are kept
+	 * in primitive slots until the compatibility view is requested.
+	 */
+	public StreamElement ( final StreamElementSchema schema , final long timeStamp ) {
+		this.timeStamp = timeStamp;
+		setSchema( schema );
+		int n = schema.size( );
+		this.slots = new long [ n + ( n + 63 ) / 64 ];
+	}
+
+	public StreamElement ( DataField [ ] outputStructure , final long timeStamp ) {
+		this( StreamElementSchema.intern( outputStructure ) , timeStamp );
 	}
 
 	public StreamElement(TreeMap<String, Serializable> output,DataField[] fields) {
@@ -106,7 +139,6 @@ public final class StreamElement implements Serializable {
 		String fieldNames[]  = new String[nbFields];
 		Byte fieldTypes[]  = new Byte[nbFields];
 		Serializable fieldValues[] = new Serializable[nbFields];
-		TreeMap < String , Integer > indexedFieldNames = new TreeMap<String, Integer>(new CaseInsensitiveComparator());
 		int idx = 0;
 
 		long timestamp =System.currentTimeMillis();
@@ -122,17 +154,157 @@ public final class StreamElement implements Serializable {
 					if (fields[i].getName().equalsIgnoreCase(key))
 						fieldTypes[idx] = fields[i].getDataTypeID();
 				}
-				indexedFieldNames.put(key, idx);
 				idx++;
 			}
 		}
-		this.fieldNames=fieldNames;
-		this.fieldTypes=fieldTypes;
+		setSchema(StreamElementSchema.intern(fieldNames, fieldTypes));
 		this.fieldValues=fieldValues;
-		this.indexedFieldNames=indexedFieldNames;
 		this.timeStamp=timestamp;
 	}
-	
+
+	private void setSchema ( StreamElementSchema schema ) {
+		this.schema = schema;
+		this.fieldNames = schema.sharedFieldNames( );
+		this.fieldTypes = schema.sharedFieldTypes( );
+	}
+
+	/**
+	 * Returns the shared structure of this element.
+	 */
+	public StreamElementSchema getSchema ( ) {
+		// deserialized elements only carry their field names
+		if ( schema == null )
+			schema = StreamElementSchema.intern( fieldNames , fieldTypes );
+		return schema;
+	}
+
+	/**
+	 * Returns the position of the field, ignoring case, or -1 if it doesn't exist.
+	 */
+	public int indexOf ( final String fieldName ) {
+		return getSchema( ).indexOf( fieldName );
+	}
+
+	private static boolean isSet ( long [ ] s , int n , int index ) {
+		return ( s[ n + ( index >> 6 ) ] & ( 1L << index ) ) != 0;
+	}
+
+	/**
+	 * Returns true if the value of the field at the given position is null.
+	 */
+	public boolean isNull ( int index ) {
+		long [ ] s = slots;
+		if ( s != null && getSchema( ).isNumeric( index ) )
+			return !isSet( s , fieldNames.length , index );
+		return valueAt( s , index ) == null;
+	}
+
+	private Serializable valueAt ( long [ ] s , int index ) {
+		if ( s == null )
+			return fieldValues[ index ];
+		if ( getSchema( ).isNumeric( index ) )
+			return boxSlot( s , index );
+		return fieldValues == null ? null : fieldValues[ index ];
+	}
+
+	/**
+	 * Returns the value of a numeric field as a double, or NaN if it is null.
+	 * @throws ClassCastException if the field is not numeric
+	 */
+	public double getDouble ( int index ) {
+		long [ ] s = slots;
+		if ( s != null && getSchema( ).isNumeric( index ) ) {
+			if ( !isSet( s , fieldNames.length , index ) )
+				return Double.NaN;
+			return schema.getType( index ) == DataTypes.DOUBLE ? Double.longBitsToDouble( s[ index ] ) : s[ index ];
+		}
+		Serializable value = valueAt( s , index );
+		return value == null ? Double.NaN : ( ( Number ) value ).doubleValue( );
+	}
+
+	/**
+	 * Returns the value of a numeric field as a long, or 0 if it is null (see {@link #isNull(int)}).
+	 * Doubles are truncated.
+	 * @throws ClassCastException if the field is not numeric
+	 */
+	public long getLong ( int index ) {
+		long [ ] s = slots;
+		if ( s != null && getSchema( ).isNumeric( index ) ) {
+			if ( !isSet( s , fieldNames.length , index ) )
+				return 0;
+			return schema.getType( index ) == DataTypes.DOUBLE ? ( long ) Double.longBitsToDouble( s[ index ] ) : s[ index ];
+		}
+		Serializable value = valueAt( s , index );
+		return value == null ? 0 : ( ( Number ) value ).longValue( );
+	}
+
+	/**
+	 * Sets the value of a numeric field. The value is converted to the type of the field.
+	 */
+	public synchronized void setDouble ( int index , double value ) {
+		long [ ] s = slots;
+		if ( s != null && getSchema( ).isNumeric( index ) ) {
+			s[ index ] = schema.getType( index ) == DataTypes.DOUBLE ? Double.doubleToRawLongBits( value ) : ( long ) value;
+			s[ fieldNames.length + ( index >> 6 ) ] |= 1L << index;
+		} else {
+			setData( index , convert( getSchema( ).getType( index ) , value , ( long ) value ) );
+		}
+	}
+
+	/**
+	 * Sets the value of a numeric field. The value is converted to the type of the field.
+	 */
+	public synchronized void setLong ( int index , long value ) {
+		long [ ] s = slots;
+		if ( s != null && getSchema( ).isNumeric( index ) ) {
+			s[ index ] = schema.getType( index ) == DataTypes.DOUBLE ? Double.doubleToRawLongBits( value ) : value;
+			s[ fieldNames.length + ( index >> 6 ) ] |= 1L << index;
+		} else {
+			setData( index , convert( getSchema( ).getType( index ) , value , value ) );
+		}
+	}
+
+	private static Serializable convert ( byte type , double d , long l ) {
+		switch ( type ) {
+		case DataTypes.DOUBLE :
+			return d;
+		case DataTypes.INTEGER :
+			return ( int ) l;
+		case DataTypes.SMALLINT :
+			return ( short ) l;
+		case DataTypes.TINYINT :
+			return ( byte ) l;
+		default :
+			return l;
+		}
+	}
+
+	private Serializable boxSlot ( long [ ] s , int index ) {
+		if ( !isSet( s , fieldNames.length , index ) )
+			return null;
+		return convert( schema.getType( index ) , Double.longBitsToDouble( s[ index ] ) , s[ index ] );
+	}
+
+	/**
+	 * Moves the numeric values from the primitive slots to the values array.
+	 */
+	private synchronized void box ( ) {
+		long [ ] s = slots;
+		if ( s == null )
+			return;
+		Serializable [ ] values = fieldValues == null ? new Serializable [ fieldNames.length ] : fieldValues;
+		for ( int i = 0 ; i < values.length ; i++ )
+			if ( getSchema( ).isNumeric( i ) )
+				values[ i ] = boxSlot( s , i );
+		fieldValues = values;
+		slots = null;
+	}
+
+	private void writeObject ( java.io.ObjectOutputStream out ) throws java.io.IOException {
+		box( );
+		out.defaultWriteObject( );
+	}
+
 	/**
 	 * Verify if the data corresponds to the fieldType
 	 * @param fieldType
@@ -203,26 +375,60 @@ public final class StreamElement implements Serializable {
 		final StringBuffer output = new StringBuffer( "timed = " );
 		output.append( this.getTimeStamp( ) ).append( "\t" );
 		for ( int i = 0 ; i < this.fieldNames.length ; i++ )
-			output.append( "," ).append( this.fieldNames[ i ] ).append( "/" ).append( this.fieldTypes[ i ] ).append( " = " ).append( this.fieldValues[ i ] );
+			output.append( "," ).append( this.fieldNames[ i ] ).append( "/" ).append( this.fieldTypes[ i ] ).append( " = " ).append( this.getData( i ) );
 		return output.toString( );
 	}
 
+	/**
+	 * Returns the field names. The array is shared with the schema of the element and must not be modified.
+	 */
 	public final String [ ] getFieldNames ( ) {
 		return this.fieldNames;
 	}
 
 	/*
 	 * Returns the field types in GSN format. Checkout org.openiot.gsn.beans.DataTypes
+	 * The array is shared with the schema of the element and must not be modified.
 	 */
 	public final Byte [ ] getFieldTypes ( ) {
 		return this.fieldTypes;
 	}
 
+	/**
+	 * Returns the values of the fields. Numeric values held in primitive slots are boxed first, the
+	 * returned array then being the storage of this element.
+	 */
 	public final Serializable [ ] getData ( ) {
+		if ( slots != null )
+			box( );
 		return this.fieldValues;
 	}
 
-	public void setData (int index,Serializable data ) {
+	/**
+	 * Returns the value of the field at the given position, boxing it if needed but without
+	 * converting the element to the compatibility view.
+	 */
+	public final Serializable getData ( int index ) {
+		return valueAt( slots , index );
+	}
+
+	public synchronized void setData (int index,Serializable data ) {
+		long [ ] s = slots;
+		if ( s != null && getSchema( ).isNumeric( index ) && ( data == null || data instanceof Number ) ) {
+			if ( data == null )
+				s[ fieldNames.length + ( index >> 6 ) ] &= ~( 1L << index );
+			else if ( schema.getType( index ) == DataTypes.DOUBLE )
+				setDouble( index , ( ( Number ) data ).doubleValue( ) );
+			else
+				setLong( index , ( ( Number ) data ).longValue( ) );
+			return;
+		}
+		if ( s != null ) {
+			if ( getSchema( ).isNumeric( index ) )
+				box( );
+			else if ( fieldValues == null )
+				fieldValues = new Serializable [ fieldNames.length ];
+		}
 		this.fieldValues[index]=data;
 	}
 
@@ -268,13 +474,12 @@ public final class StreamElement implements Serializable {
 	 * @return The value corresponding to the named tuple.
 	 */
 	public final Serializable getData ( final String fieldName ) {
-		generateIndex();
-		Integer index = indexedFieldNames.get( fieldName );
-		if (index == null) {
+		int index = indexOf( fieldName );
+		if (index == -1) {
 			logger.info("There is a request for field "+fieldName+" for StreamElement: "+this.toString()+". As the requested field doesn't exist, GSN returns Null to the callee.");
 			return null;
 		}
-		return this.fieldValues[ index ];
+		return getData( index );
 	}
 	
 	/**
@@ -285,9 +490,8 @@ public final class StreamElement implements Serializable {
 	 * @return The type of the value corresponding to the named tuple.
 	 */
 	public final Byte getType ( final String fieldName ) {
-		generateIndex();
-		Integer index = indexedFieldNames.get( fieldName );
-		if (index == null) {
+		int index = indexOf( fieldName );
+		if (index == -1) {
 			logger.warn("There is a request for type of field "+fieldName+" for StreamElement: "+this.toString()+". As the requested field doesn't exist, GSN returns Null to the callee.");
 			return null;
 		}
@@ -306,6 +510,7 @@ public final class StreamElement implements Serializable {
 	 * @return
 	 */
 	public Object [ ] getDataInRPCFriendly ( ) {
+		Serializable [ ] fieldValues = getData( );
 		Object [ ] toReturn = new Object [ fieldValues.length ];
 		for ( int i = 0 ; i < toReturn.length ; i++ ) {
 			//process null values
@@ -456,18 +661,6 @@ public final class StreamElement implements Serializable {
 		return toReturn;
 	}
 	
-	/**
-	 * Build the index for mapping field name to their positions in the array if it is not yet built
-	 * This assumes that StreamElements cannot change their structure
-	 */
-	private void generateIndex(){
-		if ( indexedFieldNames == null ) {
-			indexedFieldNames = new TreeMap < String , Integer >( new CaseInsensitiveComparator( ) );
-			for ( int i = 0 ; i < this.fieldNames.length ; i++ )
-				this.indexedFieldNames.put( fieldNames[ i ] , i );
-		}
-	}
-	
 	/**
 	 * set the data in the coresponding field, throws an exception if the data type doesn't match
 	 * @param fieldName
@@ -475,10 +668,10 @@ public final class StreamElement implements Serializable {
 	 * @throws IllegalArgumentException
 	 */
 	protected void setData(String fieldName, Serializable data) throws IllegalArgumentException {
-		generateIndex();
-		Integer index = indexedFieldNames.get( fieldName );
-		if (index == null) {
+		int index = indexOf( fieldName );
+		if (index == -1) {
 			logger.warn("There is a request for setting field "+fieldName+" for StreamElement: "+this.toString()+". But the requested field doesn't exist.");
+			return;
 		}
 		verifyTypeCompatibility(fieldTypes[index], data);
 		setData(index,data);		
@@ -0,0 +1,289 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.beans;
+
+import org.openiot.gsn.utils.CaseInsensitiveComparator;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable structure (field names and types) shared by all the stream elements having the same fields.
+ * Schemas are interned, so that the stream elements produced by a wrapper or a query all reference
+ * the same instance, together with its precomputed name to index table. Interning is weak: a schema
+ * no longer referenced by any stream element or output structure is dropped. Every stream element
+ * is built through the interning, so its lookups do not lock.
+ */
+public final class StreamElementSchema {
+
+    // the schemas by their content, only weakly referenced so that they can be dropped
+    private static final ConcurrentHashMap<Key, SchemaReference> interned = new ConcurrentHashMap<Key, SchemaReference>();
+
+    // output structures are usually reused by their wrapper or virtual sensor, keyed by identity
+    private static final ConcurrentHashMap<StructureReference, StreamElementSchema> byStructure = new ConcurrentHashMap<StructureReference, StreamElementSchema>();
+
+    // the cleared references of both maps, whose entries are removed by the next interning
+    private static final ReferenceQueue<Object> dropped = new ReferenceQueue<Object>();
+
+    private final String[] fieldNames;
+    private final Byte[] fieldTypes;
+    private final int hash;
+    private volatile Map<String, Integer> exactIndex;
+    private volatile TreeMap<String, Integer> index;
+
+    private StreamElementSchema(String[] fieldNames, Byte[] fieldTypes) {
+        this.fieldNames = fieldNames;
+        this.fieldTypes = fieldTypes;
+        this.hash = 31 * Arrays.hashCode(fieldNames) + Arrays.hashCode(fieldTypes);
+    }
+
+    /*
+    * Returns the shared schema for the given names and types. The types may be null when unknown,
+    * as for deserialized stream elements.
+    * */
+    public static StreamElementSchema intern(String[] fieldNames, Byte[] fieldTypes) {
+        SchemaReference ref = interned.get(new Key(fieldNames, fieldTypes));
+        StreamElementSchema schema = ref == null ? null : ref.get();
+        if (schema != null)
+            return schema;
+        purge();
+        // copy, the caller may still modify its arrays
+        schema = new StreamElementSchema(fieldNames.clone(), fieldTypes == null ? null : fieldTypes.clone());
+        SchemaReference created = new SchemaReference(schema);
+        while ((ref = interned.putIfAbsent(created.key, created)) != null) {
+            StreamElementSchema existing = ref.get();
+            if (existing != null)
+                return existing;
+            // dropped but not purged yet
+            interned.remove(created.key, ref);
+        }
+        return schema;
+    }
+
+    /*
+    * Returns the shared schema for the given output structure, the field names being lower-cased.
+    * */
+    public static StreamElementSchema intern(DataField[] outputStructure) {
+        StreamElementSchema schema = byStructure.get(new StructureReference(outputStructure, null));
+        if (schema != null && schema.matches(outputStructure))
+            return schema;
+        String[] names = new String[outputStructure.length];
+        Byte[] types = new Byte[outputStructure.length];
+        for (int i = 0; i < outputStructure.length; i++) {
+            names[i] = outputStructure[i].getName();
+            types[i] = outputStructure[i].getDataTypeID();
+        }
+        schema = intern(names, types);
+        byStructure.put(new StructureReference(outputStructure, dropped), schema);
+        return schema;
+    }
+
+    private static void purge() {
+        Reference<?> ref;
+        while ((ref = dropped.poll()) != null) {
+            if (ref instanceof SchemaReference)
+                interned.remove(((SchemaReference) ref).key, ref);
+            else
+                byStructure.remove(ref);
+        }
+    }
+
+    /*
+    * The content of a schema, sharing its arrays
+    * */
+    private static final class Key {
+
+        private final String[] fieldNames;
+        private final Byte[] fieldTypes;
+        private final int hash;
+
+        Key(String[] fieldNames, Byte[] fieldTypes) {
+            this.fieldNames = fieldNames;
+            this.fieldTypes = fieldTypes;
+            this.hash = 31 * Arrays.hashCode(fieldNames) + Arrays.hashCode(fieldTypes);
+        }
+
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key that = (Key) o;
+            return hash == that.hash && Arrays.equals(fieldNames, that.fieldNames) && Arrays.equals(fieldTypes, that.fieldTypes);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class SchemaReference extends WeakReference<StreamElementSchema> {
+
+        private final Key key;
+
+        SchemaReference(StreamElementSchema schema) {
+            super(schema, dropped);
+            this.key = new Key(schema.fieldNames, schema.fieldTypes);
+        }
+    }
+
+    /*
+    * An output structure compared by identity, the lookups use one without queue
+    * */
+    private static final class StructureReference extends WeakReference<DataField[]> {
+
+        private final int hash;
+
+        StructureReference(DataField[] outputStructure, ReferenceQueue<Object> queue) {
+            super(outputStructure, queue);
+            this.hash = System.identityHashCode(outputStructure);
+        }
+
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof StructureReference))
+                return false;
+            DataField[] structure = get();
+            return structure != null && structure == ((StructureReference) o).get();
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private boolean matches(DataField[] outputStructure) {
+        if (outputStructure.length != fieldNames.length || fieldTypes == null)
+            return false;
+        for (int i = 0; i < fieldNames.length; i++)
+            if (!fieldNames[i].equals(outputStructure[i].getName()) || fieldTypes[i] != outputStructure[i].getDataTypeID())
+                return false;
+        return true;
+    }
+
+    public String[] getFieldNames() {
+        return fieldNames.clone();
+    }
+
+    /*
+    * Returns a copy of the types, or null when unknown
+    * */
+    public Byte[] getFieldTypes() {
+        return fieldTypes == null ? null : fieldTypes.clone();
+    }
+
+    public String getFieldName(int i) {
+        return fieldNames[i];
+    }
+
+    /*
+    * The shared arrays, for the stream elements of this schema which must not modify them
+    * */
+    String[] sharedFieldNames() {
+        return fieldNames;
+    }
+
+    Byte[] sharedFieldTypes() {
+        return fieldTypes;
+    }
+
+    public int size() {
+        return fieldNames.length;
+    }
+
+    /*
+    * Returns the GSN type of the field, or -1 if unknown
+    * */
+    public byte getType(int i) {
+        return fieldTypes == null || fieldTypes[i] == null ? -1 : fieldTypes[i];
+    }
+
+    public boolean isNumeric(int i) {
+        switch (getType(i)) {
+            case DataTypes.DOUBLE:
+            case DataTypes.BIGINT:
+            case DataTypes.INTEGER:
+            case DataTypes.SMALLINT:
+            case DataTypes.TINYINT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /*
+    * Returns the position of the field, ignoring case and surrounding spaces, or -1 if it does not exist
+    * */
+    public int indexOf(String fieldName) {
+        if (fieldName == null)
+            return -1;
+        if (exactIndex == null)
+            buildIndex();
+        Integer i = exactIndex.get(fieldName);
+        if (i == null)
+            i = index.get(fieldName);
+        return i == null ? -1 : i;
+    }
+
+    private synchronized void buildIndex() {
+        if (exactIndex != null)
+            return;
+        TreeMap<String, Integer> ci = new TreeMap<String, Integer>(new CaseInsensitiveComparator());
+        Map<String, Integer> exact = new HashMap<String, Integer>();
+        // like the former per element index, the last field wins on duplicated names
+        for (int i = 0; i < fieldNames.length; i++) {
+            ci.put(fieldNames[i], i);
+            exact.put(fieldNames[i], i);
+        }
+        index = ci;
+        exactIndex = exact;
+    }
+
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof StreamElementSchema))
+            return false;
+        StreamElementSchema that = (StreamElementSchema) o;
+        return hash == that.hash && Arrays.equals(fieldNames, that.fieldNames) && Arrays.equals(fieldTypes, that.fieldTypes);
+    }
+
+    public int hashCode() {
+        return hash;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < fieldNames.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(fieldNames[i]).append('/').append(getType(i));
+        }
+        return sb.append(']').toString();
+    }
+}
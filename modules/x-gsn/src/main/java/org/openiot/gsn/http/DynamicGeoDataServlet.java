@@ -22,16 +22,16 @@
 package org.openiot.gsn.http;
 
 import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.Point;
-import com.vividsolutions.jts.index.strtree.STRtree;
 import com.vividsolutions.jts.io.ParseException;
 import com.vividsolutions.jts.io.WKTReader;
 import org.openiot.gsn.Main;
 import org.openiot.gsn.Mappings;
 import org.openiot.gsn.beans.VSensorConfig;
 import org.openiot.gsn.http.ac.UserUtils;
+import org.openiot.gsn.utils.geo.SensorGeoIndex;
 import org.apache.log4j.Logger;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -48,7 +48,6 @@ import java.util.*;
 public class DynamicGeoDataServlet extends HttpServlet {
 
     private static GeometryFactory geometryFactory;
-    private static STRtree geoIndex;
 
     private static transient Logger logger = Logger.getLogger(DynamicGeoDataServlet.class);
     private static final String SEPARATOR = ",";
@@ -100,6 +99,16 @@ public class DynamicGeoDataServlet extends HttpServlet {
             allowedSensors = getAllSensors();
         }
 
+        Envelope envelope;
+        try {
+            envelope = new WKTReader().read(env).getEnvelopeInternal();
+        } catch (ParseException e) {
+            logger.warn(e.getMessage(), e);
+            response.getWriter().write("ERROR: cannot parse envelope");
+            return;
+        }
+        allowedSensors = getCandidateSensors(allowedSensors, envelope);
+
         StringBuilder sb = new StringBuilder();
 
         StringBuilder sqlQueryStr = new StringBuilder();
@@ -157,16 +166,7 @@ public class DynamicGeoDataServlet extends HttpServlet {
 
         logger.warn(sb.toString());
 
-        buildGeoIndex();
-
-
-        try {
-            sensorsWithinEnvelope = getListOfSensorsWithinEnvelope(env);
-        } catch (ParseException e) {
-            logger.warn(e.getMessage(), e);
-            response.getWriter().write("ERROR: cannot create geographic index");
-            return;
-        }
+        sensorsWithinEnvelope = getListOfSensorsWithinEnvelope(envelope);
 
 
         if (debugMode) {
@@ -338,42 +338,33 @@ public class DynamicGeoDataServlet extends HttpServlet {
     }
 
     /*
-   * Builds geographic geoIndex from list of sensors currently loaded in the system
-   * */
-
-    public void buildGeoIndex() {
-
-        geoIndex = new STRtree();
-        //geometryFactory = new GeometryFactory();
-
-        for (int i = 0; i < sensorReadingsList.size(); i++) {
-            geoIndex.insert(sensorReadingsList.get(i).coordinates.getEnvelopeInternal(), sensorReadingsList.get(i).coordinates);
-            //logger.warn(sensors.get(i) + " : " + coordinates.get(i) + " : " + searchForSensors_String(coordinates.get(i)));
-        }
-        geoIndex.build();
-    }
-
-    public List<String> getListOfSensorsWithinEnvelope(String envelope) throws ParseException {
-        Geometry geom = new WKTReader().read(envelope);
-        List listEnvelope = geoIndex.query(geom.getEnvelopeInternal());
-        List<String> sensors = new ArrayList<String>();
-        for (int i = 0; i < listEnvelope.size(); i++) {
-            sensors.add(searchForSensors_String((Point) listEnvelope.get(i)));
-        }
-        return sensors;
+    * Restricts the sensors to query to the ones that may lie within the envelope: sensors whose
+    * configured location is within the envelope, and sensors without a configured location (e.g. mobile
+    * sensors), whose position is only known from their readings.
+    * */
+    public List<String> getCandidateSensors(List<String> sensors, Envelope envelope) {
+        SensorGeoIndex index = SensorGeoIndex.getInstance();
+        Set<String> withinEnvelope = new HashSet<String>();
+        for (String sensor : index.query(envelope))
+            withinEnvelope.add(sensor.toLowerCase());
+
+        List<String> candidates = new Vector<String>();
+        for (String sensor : sensors)
+            if (withinEnvelope.contains(sensor.toLowerCase()) || index.getLocation(sensor) == null)
+                candidates.add(sensor);
+        return candidates;
     }
 
     /*
-    * Searches for the list of sensors which are located at the given point (comma separated)
+    * Returns the sensors whose latest reading is located within the envelope
     * */
-    public String searchForSensors_String(Point p) {
-        StringBuilder s = new StringBuilder("");
-        for (int i = 0; i < sensorReadingsList.size(); i++) {
-            if (sensorReadingsList.get(i).coordinates == p) {
-                return sensorReadingsList.get(i).sensorName;
-            }
+    public List<String> getListOfSensorsWithinEnvelope(Envelope envelope) {
+        List<String> sensors = new ArrayList<String>();
+        for (SensorGeoReading reading : sensorReadingsList) {
+            if (envelope.contains(reading.coordinates.getCoordinate()))
+                sensors.add(reading.sensorName);
         }
-        return "";
+        return sensors;
     }
 
 
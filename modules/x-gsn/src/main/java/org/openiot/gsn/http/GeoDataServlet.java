@@ -25,6 +25,7 @@ package org.openiot.gsn.http;
 import com.vividsolutions.jts.io.ParseException;
 import org.openiot.gsn.Main;
 import org.openiot.gsn.http.ac.User;
+import org.openiot.gsn.utils.geo.SensorGeoIndex;
 import org.apache.log4j.Logger;
 
 import javax.servlet.ServletException;
@@ -63,6 +64,10 @@ public class GeoDataServlet extends HttpServlet {
             String query = HttpRequestUtils.getStringParameter("query", null, request);
             String union = HttpRequestUtils.getStringParameter("union", null, request);
             String debug = HttpRequestUtils.getStringParameter("debug", null, request);
+            // alternatively to env, the k sensors nearest to (lat, lon) can be selected
+            double latitude = HttpRequestUtils.getDoubleParameter("lat", Double.NaN, request);
+            double longitude = HttpRequestUtils.getDoubleParameter("lon", Double.NaN, request);
+            int nearest = HttpRequestUtils.getIntParameter("k", 1, request);
 
             if (debug!= null && debug.trim().toLowerCase().compareTo("true") == 0)
                 debugMode = true;
@@ -77,7 +82,7 @@ public class GeoDataServlet extends HttpServlet {
             if (usePostGIS)
                 response.getWriter().write(runPostGIS(env, query, union));
             else
-                response.getWriter().write(runJTS(env, query, union));
+                response.getWriter().write(runJTS(env, query, union, latitude, longitude, nearest));
 
         } catch (ParseException e) {
             logger.warn(e.getMessage(), e);
@@ -92,7 +97,7 @@ public class GeoDataServlet extends HttpServlet {
         StringBuilder matchingSensors = new StringBuilder();
 
         for (String vsName : sensors) {
-            if (!Main.getContainerConfig().isAcEnabled() || (user != null && (user.hasReadAccessRight(vsName) || user.isAdmin()))) {
+            if (canRead(user, vsName)) {
                 matchingSensors.append(vsName);
                 matchingSensors.append(GetSensorDataWithGeo.SEPARATOR);
             }
@@ -102,14 +107,32 @@ public class GeoDataServlet extends HttpServlet {
         return matchingSensors.toString();
     }
 
-    public String runJTS(String env, String query, String union) throws ParseException {
+    static boolean canRead(User user, String vsName) {
+        return !Main.getContainerConfig().isAcEnabled() || (user != null && (user.hasReadAccessRight(vsName) || user.isAdmin()));
+    }
 
-        StringBuilder response = new StringBuilder();
+    public String runJTS(String env, String query, String union) throws ParseException {
+        return runJTS(env, query, union, Double.NaN, Double.NaN, 1);
+    }
 
-        GetSensorDataWithGeo.buildGeoIndex();
+    /*
+    * When env is null and latitude/longitude are given, queries the k readable sensors nearest to them
+    * */
+    public String runJTS(String env, String query, String union, double latitude, double longitude, int k) throws ParseException {
 
+        StringBuilder response = new StringBuilder();
 
-        ArrayList<String> sensors = GetSensorDataWithGeo.getListOfSensors(env);
+        ArrayList<String> sensors;
+        if (env == null && !Double.isNaN(latitude) && !Double.isNaN(longitude)) {
+            final User reader = user;
+            // access control is applied before taking the k nearest, not after
+            sensors = new ArrayList<String>(SensorGeoIndex.getInstance().nearest(longitude, latitude, k, new SensorGeoIndex.Filter() {
+                public boolean accept(String sensor) {
+                    return canRead(reader, sensor);
+                }
+            }));
+        } else
+            sensors = GetSensorDataWithGeo.getListOfSensors(env);
         String matchingSensors = getMatchingSensors(sensors);
 
         if (matchingSensors.length() == 0) {
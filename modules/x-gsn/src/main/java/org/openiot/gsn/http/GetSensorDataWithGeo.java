@@ -22,16 +22,14 @@
 
 package org.openiot.gsn.http;
 
-import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.Point;
-import com.vividsolutions.jts.index.strtree.STRtree;
 import com.vividsolutions.jts.io.ParseException;
 import com.vividsolutions.jts.io.WKTReader;
 import org.openiot.gsn.Main;
 import org.openiot.gsn.Mappings;
 import org.openiot.gsn.beans.VSensorConfig;
+import org.openiot.gsn.utils.geo.SensorGeoIndex;
 import org.apache.log4j.Logger;
 
 import java.sql.*;
@@ -42,10 +40,6 @@ public class GetSensorDataWithGeo {
     private static transient Logger logger = Logger.getLogger(GetSensorDataWithGeo.class);
 
     private static GetSensorDataWithGeo instance = null;
-    private static STRtree geoIndex;
-    private static GeometryFactory geometryFactory;
-    private static List<String> sensors;
-    private static List<Point> coordinates;
 
     public static final String LIST_SENSORS_RESERVED_WORD = "$sensors";
     public static final String LIST_SENSORS_RESERVED_WORD_REGEX = "\\$sensors";
@@ -75,13 +69,7 @@ public class GetSensorDataWithGeo {
     * Searches for the list of sensors which are located at the given point (as list of Strings)
     * */
     public static List<String> searchForSensors(Point p) {
-        List l = new Vector<String>();
-        for (int i = 0; i < coordinates.size(); i++) {
-            if (coordinates.get(i) == p) {
-                l.add(sensors.get(i));
-            }
-        }
-        return l;
+        return SensorGeoIndex.getInstance().query(p.getEnvelopeInternal());
     }
 
     /*
@@ -89,58 +77,30 @@ public class GetSensorDataWithGeo {
     * */
     public static String searchForSensors_String(Point p) {
         StringBuilder s = new StringBuilder("");
-        for (int i = 0; i < coordinates.size(); i++) {
-            if (coordinates.get(i) == p) {
-                s.append(sensors.get(i)).append(" ");
-            }
+        for (String sensor : searchForSensors(p)) {
+            if (s.length() > 0)
+                s.append(SEPARATOR);
+            s.append(sensor);
         }
-        return s.toString().trim().replace(" ", SEPARATOR);
+        return s.toString();
     }
 
     /*
     * Returns list of sensors currently loaded in the system
     * */
     public static String getListOfSensors() {
-        StringBuilder s = new StringBuilder();
-        Iterator iter = Mappings.getAllVSensorConfigs();
-        while (iter.hasNext()) {
-            VSensorConfig sensorConfig = (VSensorConfig) iter.next();
-            Double longitude = sensorConfig.getLongitude();
-            Double latitude = sensorConfig.getLatitude();
-            String sensor = sensorConfig.getName();
-
-            if ((latitude != null) && (longitude != null)) {
-                Point point = geometryFactory.createPoint(new Coordinate(longitude.doubleValue(), latitude.doubleValue()));
-                coordinates.add(point);
-                sensors.add(sensor);
-                s.append(sensor)
-                        .append(" => ")
-                        .append(longitude)
-                        .append(" : ")
-                        .append(latitude)
-                        .append(NEWLINE);
-            }
-        }
-        return s.toString();
+        return SensorGeoIndex.getInstance().toString();
     }
 
     /*
-    * Builds geographic geoIndex from list of sensors currently loaded in the system
+    * Adds the sensors currently loaded in the system to the geographic index.
+    * The index is maintained by the virtual sensor loader, so this is only needed when
+    * sensors were loaded without it.
     * */
     public static void buildGeoIndex() {
-
-        geoIndex = new STRtree();
-        geometryFactory = new GeometryFactory();
-        sensors = new Vector<String>();
-        coordinates = new Vector<Point>();
-
-        getListOfSensors();
-
-        for (int i = 0; i < sensors.size(); i++) {
-            geoIndex.insert(coordinates.get(i).getEnvelopeInternal(), coordinates.get(i));
-            logger.warn(sensors.get(i) + " : " + coordinates.get(i) + " : " + searchForSensors_String(coordinates.get(i)));
-        }
-        geoIndex.build();
+        Iterator iter = Mappings.getAllVSensorConfigs();
+        while (iter.hasNext())
+            SensorGeoIndex.getInstance().vsLoading((VSensorConfig) iter.next());
     }
 
     /*
@@ -164,12 +124,14 @@ public class GetSensorDataWithGeo {
 
     public static ArrayList<String> getListOfSensors(String envelope) throws ParseException {
         Geometry geom = new WKTReader().read(envelope);
-        List listEnvelope = geoIndex.query(geom.getEnvelopeInternal());
-        ArrayList<String> sensors = new ArrayList<String>();
-        for (int i = 0; i < listEnvelope.size(); i++) {
-            sensors.add(searchForSensors_String((Point) listEnvelope.get(i)));
-        }
-        return sensors;
+        return new ArrayList<String>(SensorGeoIndex.getInstance().query(geom.getEnvelopeInternal()));
+    }
+
+    /*
+    * Returns the k sensors closest to the given location, closest first
+    * */
+    public static ArrayList<String> getNearestSensors(double longitude, double latitude, int k) {
+        return new ArrayList<String>(SensorGeoIndex.getInstance().nearest(longitude, latitude, k));
     }
 
 
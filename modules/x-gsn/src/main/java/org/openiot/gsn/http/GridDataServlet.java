@@ -21,8 +21,13 @@
 
 package org.openiot.gsn.http;
 
+import org.openiot.gsn.Main;
+import org.openiot.gsn.http.ac.User;
 import org.openiot.gsn.utils.Helpers;
+import org.openiot.gsn.utils.geo.Grid;
+import org.openiot.gsn.utils.geo.GridTileCache;
 import org.openiot.gsn.utils.geo.GridTools;
+import org.openiot.gsn.utils.geo.SensorGeoIndex;
 import org.apache.log4j.Logger;
 
 import javax.servlet.ServletException;
@@ -30,6 +35,8 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
+import java.sql.SQLException;
+import java.util.List;
 import java.util.zip.*;
 
 
@@ -37,6 +44,7 @@ public class GridDataServlet extends HttpServlet {
 
     private static transient Logger logger = Logger.getLogger(GridDataServlet.class);
     private static final String DEFAULT_TIMEFORMAT = "yyyyMMddHHmmss";
+    private static final int DEFAULT_TILE_SIZE = 256;
 
     public void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         /*
@@ -59,6 +67,36 @@ public class GridDataServlet extends HttpServlet {
         String view = HttpRequestUtils.getStringParameter("view", null, request); // files or stream
         String debug = HttpRequestUtils.getStringParameter("debug", "false", request); // show debug information or not
 
+        if (sensor == null) { // use the grid sensor nearest to (lat, lon)
+            double lat = HttpRequestUtils.getDoubleParameter("lat", Double.NaN, request);
+            double lon = HttpRequestUtils.getDoubleParameter("lon", Double.NaN, request);
+            if (!Double.isNaN(lat) && !Double.isNaN(lon)) {
+                final User user = Main.getContainerConfig().isAcEnabled() ? (User) request.getSession().getAttribute("user") : null;
+                // only readable grid sensors are candidates, so a closer sensor of another kind is skipped
+                List<String> nearest = SensorGeoIndex.getInstance().nearest(lon, lat, 1, new SensorGeoIndex.Filter() {
+                    public boolean accept(String sensor) {
+                        return GeoDataServlet.canRead(user, sensor) && GridTools.isGridSensor(sensor);
+                    }
+                });
+                if (!nearest.isEmpty())
+                    sensor = nearest.get(0);
+            }
+            if (sensor == null) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "sensor or lat/lon parameters required");
+                return;
+            }
+        }
+
+        String level = HttpRequestUtils.getStringParameter("level", null, request);
+        String tile = HttpRequestUtils.getStringParameter("tile", null, request); // row,col
+        String region = HttpRequestUtils.getStringParameter("region", null, request); // row0,col0,row1,col1
+        String timed = HttpRequestUtils.getStringParameter("timed", null, request);
+
+        if (level != null || tile != null || region != null || timed != null) {
+            writeGridPart(request, response, sensor, timed, level, tile, region);
+            return;
+        }
+
         String timeBounds = (from != null && to != null) ? " where timed >= " + from + " and timed <= " + to : "";
 
         logger.warn("from: " + from);
@@ -98,6 +136,74 @@ public class GridDataServlet extends HttpServlet {
 
     }
 
+    /*
+    * Serves a single grid (the latest one unless timed is given), downsampled by 2^level, restricted
+    * to a tile or a region of cells. Decoded grids, levels and tiles are cached in the GridTileCache.
+    * */
+    private void writeGridPart(HttpServletRequest request, HttpServletResponse response, String sensor, String timed, String level,
+                               String tile, String region) throws IOException {
+        String field = HttpRequestUtils.getStringParameter("field", "grid", request);
+        String format = HttpRequestUtils.getStringParameter("format", "ascii", request); // ascii, json or binary
+        int tileSize = HttpRequestUtils.getIntParameter("tilesize", DEFAULT_TILE_SIZE, request);
+        boolean compress = HttpRequestUtils.getBooleanParameter("compress", false, request);
+
+        if (tileSize <= 0) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "tilesize must be positive");
+            return;
+        }
+
+        GridTileCache cache = GridTileCache.getInstance();
+        Grid grid;
+        try {
+            int lvl = level == null ? 0 : Integer.parseInt(level);
+            GridTools.LoadedGrid loaded = GridTools.loadGrid(sensor, field, timed == null ? -1 : Long.parseLong(timed));
+            if (loaded == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, "No grid for sensor " + sensor);
+                return;
+            }
+            String key = loaded.key;
+            Grid base = loaded.grid;
+            if (lvl < 0 || lvl > GridTileCache.maxLevel(base)) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "level must be between 0 and " + GridTileCache.maxLevel(base));
+                return;
+            }
+            if (tile != null) {
+                String[] rc = tile.split(",");
+                grid = cache.getTile(key, base, lvl, Integer.parseInt(rc[0].trim()), Integer.parseInt(rc[1].trim()), tileSize);
+            } else {
+                grid = cache.getLevel(key, base, lvl);
+                if (region != null) {
+                    String[] r = region.split(",");
+                    grid = grid.subGrid(Integer.parseInt(r[0].trim()), Integer.parseInt(r[1].trim()), Integer.parseInt(r[2].trim()),
+                            Integer.parseInt(r[3].trim()));
+                }
+            }
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Malformed parameter: " + e.getMessage());
+            return;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Malformed tile or region parameter");
+            return;
+        } catch (SQLException e) {
+            logger.warn(e.getMessage(), e);
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "ERROR in execution of query: " + e.getMessage());
+            return;
+        }
+
+        if (format.equalsIgnoreCase("binary")) {
+            byte[] bytes = grid.toBytes(false, compress);
+            response.setContentType("application/octet-stream");
+            response.setContentLength(bytes.length);
+            response.getOutputStream().write(bytes);
+        } else if (format.equalsIgnoreCase("json")) {
+            response.setContentType("application/json");
+            response.getWriter().write(grid.appendAsJSON(new StringBuilder()).toString());
+        } else {
+            response.setContentType("text/plain");
+            response.getWriter().write(grid.appendAsESRI(new StringBuilder()).toString());
+        }
+    }
+
     public void doPost(HttpServletRequest request, HttpServletResponse res) throws ServletException, IOException {
         doGet(request, res);
     }
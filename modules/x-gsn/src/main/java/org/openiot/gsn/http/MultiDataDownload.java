@@ -122,6 +122,22 @@ public class MultiDataDownload extends HttpServlet {
 				dd.outputResult(res.getOutputStream());
 				//res.getOutputStream().flush();
 			}
+			else if ("columnar".equals(downloadFormat)) {
+				org.openiot.gsn.http.datarequest.DownloadData dd = new org.openiot.gsn.http.datarequest.DownloadData(parameterMap);
+                //
+                if (Main.getContainerConfig().isAcEnabled()) {
+                    ArrayList<String> noAccess = checkAccessControl(user, dd.getQueryBuilder());
+                    if (noAccess != null && noAccess.size() > 0) {
+                        res.sendError(WebConstants.ACCESS_DENIED, "Access Control failed for vsNames:" + noAccess + " and user: " + (user == null ? "not logged in" : user.getUserName()));
+                        return;
+                    }
+                }
+                //
+                dd.process();
+				res.setContentType("application/gzip");
+				res.setHeader("content-disposition","attachment; filename=data.gsnc.gz");
+				dd.outputResult(res.getOutputStream());
+			}
 			else if ("pdf".equals(downloadFormat)) {
 				DownloadReport rpd = new DownloadReport (parameterMap) ;
                 //
@@ -204,6 +220,11 @@ public class MultiDataDownload extends HttpServlet {
 		
 		// Download format
 	    parameterMap.put("outputtype", new String[] { downloadFormat });
+
+		// Resume points of an interrupted download
+		if (req.getParameterValues("resume") != null) {
+			parameterMap.put("resume", req.getParameterValues("resume"));
+		}
 		
 		// CRITFIELDS
 		// TIME LIMITS
@@ -0,0 +1,270 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.http.ac;
+
+import org.apache.log4j.Logger;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* An immutable, in memory copy of the AC tables used to answer the login and access right questions
+   (is this virtual sensor managed, is this the password of this user, which virtual sensors and groups
+   does the user have) without going to the AC DB.
+   Every write to the AC tables through ConnectToDB bumps the version, and the snapshot is reloaded
+   (with one SELECT per table) the next time it is asked for. As the AC DB can also be changed by
+   another GSN instance, a snapshot is never used for more than MAX_AGE milliseconds.
+   The User, DataSource and Group objects are built on every call, as the callers are free to change them. */
+
+class AccessControlSnapshot
+{
+    static final long MAX_AGE = 60 * 1000;
+
+    private static final AtomicLong version = new AtomicLong();
+    private static volatile AccessControlSnapshot current;
+    private static final Object loadLock = new Object();
+    private static transient Logger logger = Logger.getLogger( AccessControlSnapshot.class );
+
+    private final long snapshotVersion;
+    private final long loadTime;
+
+    private final Map<String, String[]> users = new HashMap<String, String[]>();//USERNAME -> PASSWORD, FIRSTNAME, LASTNAME, EMAIL, ISCANDIDATE
+    private final Set<String> dataSources = new HashSet<String>();
+    private final Set<String> dataSourceCandidates = new HashSet<String>();
+    private final Map<String, List<String[]>> userDataSources = new HashMap<String, List<String[]>>();//USERNAME -> DATASOURCENAME, DATASOURCETYPE, FILENAME, FILETYPE, PATH, OWNERDECISION
+    private final Map<String, List<String[]>> userGroups = new HashMap<String, List<String[]>>();//USERNAME -> GROUPNAME, GROUPTYPE
+    private final Map<String, List<String[]>> groupDataSources = new HashMap<String, List<String[]>>();//GROUPNAME -> DATASOURCENAME, DATASOURCETYPE
+
+    private AccessControlSnapshot(long snapshotVersion)
+    {
+        this.snapshotVersion = snapshotVersion;
+        this.loadTime = System.currentTimeMillis();
+    }
+
+    /* marks the current snapshot as outdated, called after every write to the AC tables */
+    static void invalidate()
+    {
+        version.incrementAndGet();
+    }
+
+    /* returns an up to date snapshot, loading it from the AC DB if needed */
+    static AccessControlSnapshot get() throws ClassNotFoundException, SQLException
+    {
+        AccessControlSnapshot snapshot = current;
+        if (snapshot != null && snapshot.isUpToDate())
+        {
+            return snapshot;
+        }
+        synchronized (loadLock)
+        {
+            snapshot = current;
+            if (snapshot == null || !snapshot.isUpToDate())
+            {
+                snapshot = load();
+                current = snapshot;
+            }
+            return snapshot;
+        }
+    }
+
+    /* returns an up to date snapshot, or null if it can not be loaded, in which case the caller checks the AC DB directly */
+    static AccessControlSnapshot getOrNull()
+    {
+        try
+        {
+            return get();
+        }
+        catch (Exception e)
+        {
+            logger.warn("Could not load the access control snapshot, checking the AC DB directly: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private boolean isUpToDate()
+    {
+        return snapshotVersion == version.get() && System.currentTimeMillis() - loadTime < MAX_AGE;
+    }
+
+    private static AccessControlSnapshot load() throws ClassNotFoundException, SQLException
+    {
+        /* the version is read before the tables, so a write made while loading makes this snapshot outdated */
+        AccessControlSnapshot snapshot = new AccessControlSnapshot(version.get());
+        ConnectToDB ctdb = null;
+        try
+        {
+            ctdb = new ConnectToDB();
+            Statement statement = ctdb.getStatement();
+            ResultSet rs = statement.executeQuery("SELECT USERNAME, PASSWORD, FIRSTNAME, LASTNAME, EMAIL, ISCANDIDATE FROM ACUSER");
+            while (rs.next())
+            {
+                snapshot.users.put(rs.getString("USERNAME"), new String[]{rs.getString("PASSWORD"), rs.getString("FIRSTNAME"), rs.getString("LASTNAME"), rs.getString("EMAIL"), rs.getString("ISCANDIDATE")});
+            }
+            rs.close();
+            rs = statement.executeQuery("SELECT DATASOURCENAME, ISCANDIDATE FROM ACDATASOURCE");
+            while (rs.next())
+            {
+                snapshot.dataSources.add(rs.getString("DATASOURCENAME"));
+                if ("yes".equals(rs.getString("ISCANDIDATE")))
+                {
+                    snapshot.dataSourceCandidates.add(rs.getString("DATASOURCENAME"));
+                }
+            }
+            rs.close();
+            rs = statement.executeQuery("SELECT USERNAME, DATASOURCENAME, DATASOURCETYPE, FILENAME, FILETYPE, PATH, OWNERDECISION FROM ACUSER_ACDATASOURCE");
+            while (rs.next())
+            {
+                rows(snapshot.userDataSources, rs.getString("USERNAME")).add(new String[]{rs.getString("DATASOURCENAME"), rs.getString("DATASOURCETYPE"), rs.getString("FILENAME"), rs.getString("FILETYPE"), rs.getString("PATH"), rs.getString("OWNERDECISION")});
+            }
+            rs.close();
+            rs = statement.executeQuery("SELECT USERNAME, GROUPNAME, GROUPTYPE FROM ACUSER_ACGROUP");
+            while (rs.next())
+            {
+                rows(snapshot.userGroups, rs.getString("USERNAME")).add(new String[]{rs.getString("GROUPNAME"), rs.getString("GROUPTYPE")});
+            }
+            rs.close();
+            rs = statement.executeQuery("SELECT GROUPNAME, DATASOURCENAME, DATASOURCETYPE FROM ACGROUP_ACDATASOURCE");
+            while (rs.next())
+            {
+                rows(snapshot.groupDataSources, rs.getString("GROUPNAME")).add(new String[]{rs.getString("DATASOURCENAME"), rs.getString("DATASOURCETYPE")});
+            }
+            rs.close();
+        }
+        finally
+        {
+            if (ctdb != null)
+            {
+                ctdb.closeStatement();
+                ctdb.closeConnection();
+            }
+        }
+        logger.debug("Loaded the access control snapshot version " + snapshot.snapshotVersion + " (" + snapshot.users.size() + " users, " + snapshot.dataSources.size() + " virtual sensors)");
+        return snapshot;
+    }
+
+    private static List<String[]> rows(Map<String, List<String[]>> map, String key)
+    {
+        List<String[]> list = map.get(key);
+        if (list == null)
+        {
+            list = new ArrayList<String[]>();
+            map.put(key, list);
+        }
+        return list;
+    }
+
+    /****************************************** Queries *******************************************/
+    /**********************************************************************************************/
+
+    /* same as ConnectToDB.valueExistsForThisColumn(new Column("DATASOURCENAME", vsname), "ACDATASOURCE") */
+    boolean isManaged(String dataSourceName)
+    {
+        return dataSources.contains(dataSourceName);
+    }
+
+    /* true if the user is registered and is not a candidate anymore */
+    boolean isRegisteredUser(String userName)
+    {
+        String[] user = users.get(userName);
+        return user != null && "no".equals(user[4]);
+    }
+
+    /* password is already encrypted */
+    boolean isPasswordCorrectForThisUser(String userName, String password)
+    {
+        String[] user = users.get(userName);
+        return user != null && password != null && password.equals(user[0]);
+    }
+
+    /* same as ConnectToDB.getUserForUserName, with the login lists of the user */
+    User getUserForLogin(String userName, String password)
+    {
+        String[] row = users.get(userName);
+        User user = new User(userName, password, getDataSourceListForUserLogin(userName), getGroupListForUser(userName));
+        if (row != null)
+        {
+            user.setFirstName(row[1]);
+            user.setLastName(row[2]);
+            user.setEmail(row[3]);
+        }
+        return user;
+    }
+
+    /* same as ConnectToDB.getDataSourceListForUserLogin */
+    Vector getDataSourceListForUserLogin(String userName)
+    {
+        Vector dsList = new Vector();
+        List<String[]> rows = userDataSources.get(userName);
+        if (rows != null)
+        {
+            for (String[] row : rows)
+            {
+                /* see ConnectToDB.filterDataSourceListForLogin */
+                if (dataSourceCandidates.contains(row[0]) == false && row[1] != null && row[1].charAt(0) != '5')
+                {
+                    dsList.add(new DataSource(row[0], row[1], row[2], row[3], row[4], row[5]));
+                }
+            }
+        }
+        return dsList;
+    }
+
+    /* same as ConnectToDB.getGroupListForUser */
+    Vector getGroupListForUser(String userName)
+    {
+        Vector groupList = new Vector();
+        List<String[]> rows = userGroups.get(userName);
+        if (rows != null)
+        {
+            for (String[] row : rows)
+            {
+                if (row[1].charAt(0) != '5')
+                {
+                    groupList.add(new Group(row[0], row[1], getDataSourceListForGroup(row[0])));
+                }
+            }
+        }
+        return groupList;
+    }
+
+    /* same as ConnectToDB.getDataSourceListForGroup */
+    Vector getDataSourceListForGroup(String groupName)
+    {
+        Vector dsList = new Vector();
+        List<String[]> rows = groupDataSources.get(groupName);
+        if (rows != null)
+        {
+            for (String[] row : rows)
+            {
+                dsList.add(new DataSource(row[0], row[1]));
+            }
+        }
+        return dsList;
+    }
+}
@@ -33,7 +33,10 @@ package org.openiot.gsn.http.ac;
 
 
 import java.text.SimpleDateFormat;
+import org.apache.commons.dbcp.BasicDataSource;
 import org.apache.log4j.Logger;
+import org.openiot.gsn.storage.DBConnectionInfo;
+import org.openiot.gsn.storage.DataSources;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
@@ -56,6 +59,7 @@ public class ConnectToDB
 	private static String dbUser;
 	private static String dbPassword;
     private static Vector ACTables;//list of AC tables
+    private static BasicDataSource pool;
 
 	private Connection con ;
 	private Statement stmt ;
@@ -73,12 +77,24 @@ public class ConnectToDB
 	{
         //Load and register the MySQL driver
         Class.forName(driverName);
-        //Get a connection to the database
-        con = DriverManager.getConnection(connectionname,dbUser,dbPassword);
-        //create a statement object
-        stmt= con.createStatement();  ///// changed 20.03.2013
-        meta= this.con.getMetaData();
-        initUsedDB();
+        //Get a connection from the pool, closeConnection() gives it back
+        con = getPool() != null ? pool.getConnection() : DriverManager.getConnection(connectionname,dbUser,dbPassword);
+        try
+        {
+            //create a statement object
+            stmt= con.createStatement();  ///// changed 20.03.2013
+            initUsedDB();
+        }
+        catch(SQLException e)
+        {
+            closeConnection();
+            throw e;
+        }
+        catch(RuntimeException e)
+        {
+            closeConnection();
+            throw e;
+        }
     }
     
     /****************************************** Init Methods*******************************************/
@@ -91,7 +107,19 @@ public class ConnectToDB
         dbUser=jdbcUsername;
         dbPassword= jdbcPassword;
         connectionname=jdbcURL;
+        pool=null;
         checkACTables();
+        AccessControlSnapshot.invalidate();
+    }
+
+    /* the AC DB connections are shared with the rest of GSN through the DataSources pool (null if it can not be created) */
+    private static synchronized BasicDataSource getPool()
+    {
+        if(pool==null)
+        {
+            pool= DataSources.getDataSource(new DBConnectionInfo(driverName,connectionname,dbUser,dbPassword));
+        }
+        return pool;
     }
      /* Check if AC tables exist , and create them otherwise*/
      static void checkACTables()
@@ -490,6 +518,18 @@ public class ConnectToDB
     }
     DatabaseMetaData getMetaData()
     {
+        if(this.meta==null)
+        {
+            try
+            {
+                this.meta=this.con.getMetaData();
+            }
+            catch(SQLException e)
+            {
+                logger.error("ERROR IN GETMETADATA METHOD :SQLException caught ");
+                logger.error(e.getMessage(),e);
+            }
+        }
         return this.meta;
     }
     String getUsedDB()
@@ -637,7 +677,7 @@ public class ConnectToDB
 	{
         boolean insertOK=false;
         String request = "INSERT INTO "+tableName+"("+col.columnLabel+") VALUES ('" + col.columnValue +"')";
-        int t =stmt.executeUpdate(request);
+        int t =executeUpdate(request);
 		if(t!=0)
 		{
             insertOK=true;
@@ -648,7 +688,7 @@ public class ConnectToDB
 	{
 		boolean insertOK=false;
         String request = "INSERT INTO "+tableName+"("+firstCol.columnLabel+","+secondCol.columnLabel+") VALUES ('" + firstCol.columnValue + "','"+ secondCol.columnValue+"')";
-        int f =stmt.executeUpdate(request);
+        int f =executeUpdate(request);
         if(f!=0)
         {
             insertOK=true;
@@ -660,7 +700,7 @@ public class ConnectToDB
 	{
 		boolean insertOK=false;
         String request = "INSERT INTO "+tableName+"("+firstCol.columnLabel+","+secondCol.columnLabel+","+thirdCol.columnLabel+") VALUES ('" + firstCol.columnValue + "','"+ secondCol.columnValue+ "','"+thirdCol.columnValue+"')";
-        int f =stmt.executeUpdate(request);
+        int f =executeUpdate(request);
         if(f!=0)
         {
             insertOK=true;
@@ -672,7 +712,7 @@ public class ConnectToDB
     {
         boolean insertOK=false;
         String request = "INSERT INTO "+tableName+" VALUES ('" + firstCol + "','"+ secondCol+ "','"+thirdCol+"')";
-        int f =stmt.executeUpdate(request);
+        int f =executeUpdate(request);
         if(f!=0)
         {
             insertOK=true;
@@ -684,7 +724,7 @@ public class ConnectToDB
     {
         boolean insertOK=false;
         String request = "INSERT INTO "+tableName+"("+firstCol.columnLabel+","+secondCol.columnLabel+","+thirdCol.columnLabel+","+fourthCol.columnLabel+") VALUES ('" + firstCol.columnValue + "','"+ secondCol.columnValue+ "','"+thirdCol.columnValue+"','"+ fourthCol.columnValue+"')";
-        int f =stmt.executeUpdate(request);
+        int f =executeUpdate(request);
         if(f!=0)
         {
             insertOK=true;
@@ -696,7 +736,7 @@ public class ConnectToDB
     {
         boolean insertOK=false;
         String request = "INSERT INTO "+tableName+"("+firstCol.columnLabel+","+secondCol.columnLabel+","+thirdCol.columnLabel+","+fourthCol.columnLabel+","+fifthCol.columnLabel+","+sixthCol.columnLabel+") VALUES ('" + firstCol.columnValue + "','"+ secondCol.columnValue+ "','"+thirdCol.columnValue+"','"+ fourthCol.columnValue+ "','"+fifthCol.columnValue+ "','"+sixthCol.columnValue+"')";
-        int f =stmt.executeUpdate(request);
+        int f =executeUpdate(request);
         if(f!=0)
         {
             insertOK=true;
@@ -708,7 +748,7 @@ public class ConnectToDB
     {
         boolean insertOK=false;
         String request = "INSERT INTO "+tableName+"("+firstCol.columnLabel+","+secondCol.columnLabel+","+thirdCol.columnLabel+","+fourthCol.columnLabel+","+fifthCol.columnLabel+","+sixthCol.columnLabel+","+seventhCol.columnLabel+") VALUES ('" + firstCol.columnValue + "','"+ secondCol.columnValue+ "','"+thirdCol.columnValue+"','"+fourthCol.columnValue+ "','"+fifthCol.columnValue+ "','"+sixthCol.columnValue+ "','"+seventhCol.columnValue+"')";
-        int f =stmt.executeUpdate(request);
+        int f =executeUpdate(request);
         if(f!=0)
         {
             insertOK=true;
@@ -716,6 +756,19 @@ public class ConnectToDB
         return insertOK;
     }
 
+    /* every write to the AC tables goes through here, so that the access control snapshot gets reloaded */
+    int executeUpdate(String query)throws SQLException
+    {
+        try
+        {
+            return stmt.executeUpdate(query);
+        }
+        finally
+        {
+            AccessControlSnapshot.invalidate();
+        }
+    }
+
     /****************************************** DB Check methods *********************************************/
    /******************************************************************************************************/
 
@@ -1263,7 +1316,7 @@ public class ConnectToDB
     boolean updateOneColumnUnderOneCondition(Column col,Column cond,String tableName)throws SQLException
    {
        String query = "UPDATE "+tableName+" SET "+col.columnLabel+"= '"+col.columnValue+"' WHERE "+cond.columnLabel+"= '"+cond.columnValue+"'";
-       if(stmt.executeUpdate(query) !=0)
+       if(executeUpdate(query) !=0)
            return true;
        else
            return false;
@@ -1271,7 +1324,7 @@ public class ConnectToDB
     boolean updateOneColumnUnderTwoConditions(Column col,Column firstCond,Column secondCond,String tableName)throws SQLException
    {
        String query = "UPDATE "+tableName+" SET "+col.columnLabel+"= '"+col.columnValue+"' WHERE "+firstCond.columnLabel+"= '"+firstCond.columnValue+"' AND "+secondCond.columnLabel+"= '"+secondCond.columnValue+"'";
-       if(stmt.executeUpdate(query) !=0)
+       if(executeUpdate(query) !=0)
            return true;
        else
            return false;
@@ -1317,7 +1370,7 @@ public class ConnectToDB
             .append("' WHERE USERNAME='")
             .append(user.getUserName())
             .append("'");
-       if(stmt.executeUpdate(query.toString()) !=0)
+       if(executeUpdate(query.toString()) !=0)
            return true;
        else
            return false;
@@ -1333,13 +1386,13 @@ public class ConnectToDB
     int deleteUnderOneCondition(Column cond,String tableName)throws SQLException
    {
        String query = "DELETE FROM "+tableName+" WHERE "+cond.columnLabel+"= '"+cond.columnValue+"'";
-       return stmt.executeUpdate(query);
+       return executeUpdate(query);
       
    }
     int deleteUnderTwoConditions(Column firstCond,Column secondCond,String tableName)throws SQLException
    {
        String query = "DELETE FROM "+tableName+" WHERE "+firstCond.columnLabel+"= '"+firstCond.columnValue+"' AND "+secondCond.columnLabel+"= '"+secondCond.columnValue+"'";
-       return stmt.executeUpdate(query);
+       return executeUpdate(query);
    }
     void deleteUserCandidate(String userName)throws SQLException
     {
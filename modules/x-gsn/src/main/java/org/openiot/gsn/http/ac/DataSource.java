@@ -205,6 +205,9 @@ public class DataSource {
     }
 
     public static boolean isVSManaged(String vsname) {
+        AccessControlSnapshot snapshot = AccessControlSnapshot.getOrNull();
+        if (snapshot != null)
+            return snapshot.isManaged(vsname);
         ConnectToDB ctdb = null;
         boolean isManaged = false;
         try {
@@ -46,6 +46,31 @@ public class GeneralServicesAPI
     /* this method return an object User if it succeeds to doLogin and null otherwise */
     public User doLogin(String username, String password)
     {
+        AccessControlSnapshot snapshot= AccessControlSnapshot.getOrNull();
+        if(snapshot!=null)
+        {
+            if(snapshot.isRegisteredUser(username)==false)
+            {
+                logger.warn("WARN IN DOLOGIN : this username does not exist!");
+                return null;
+            }
+            try
+            {
+                String enc= Protector.encrypt(password);
+                if(snapshot.isPasswordCorrectForThisUser(username,enc)==false)
+                {
+                    logger.warn("WARN IN DOLOGIN : incorect password!");
+                    return null;
+                }
+                return new User(username,enc,snapshot.getDataSourceListForUserLogin(username),snapshot.getGroupListForUser(username));
+            }
+            catch(Exception e)
+            {
+                logger.error("ERROR IN DOLOGIN");
+                logger.error(e.getMessage(),e);
+                return null;
+            }
+        }
         User user= null;
         ConnectToDB ctdb = null;
         try
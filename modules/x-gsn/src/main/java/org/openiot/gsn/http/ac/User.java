@@ -376,6 +376,11 @@ public class User
         boolean userIsAdmin=false;
         if(this.userName.equals("Admin") )
         {
+            AccessControlSnapshot snapshot= AccessControlSnapshot.getOrNull();
+            if(snapshot!=null)
+            {
+                return snapshot.isPasswordCorrectForThisUser(this.userName,this.password);
+            }
             ConnectToDB ctdb=null;
             try
             {
@@ -38,6 +38,26 @@ public class UserUtils {
    * Returns null, if user not registered or password is incorrect
    * */
     public static User allowUserToLogin(String username, String password) {
+        AccessControlSnapshot snapshot = AccessControlSnapshot.getOrNull();
+        if (snapshot != null) {
+            if (snapshot.isRegisteredUser(username) == false) {
+                if (username.compareToIgnoreCase("null") != 0)
+                    logger.warn("This username \"" + username + "\" does not exist !");
+                return null;
+            }
+            try {
+                String enc = Protector.encrypt(password);
+                if (snapshot.isPasswordCorrectForThisUser(username, enc) == false) {
+                    logger.warn("Incorrect password for user : " + username);
+                    return null;
+                }
+                logger.warn("Username and password are correct for user : " + username);
+                return snapshot.getUserForLogin(username, enc);
+            } catch (Exception e) {
+                logger.warn("Exception caught : " + e.getMessage());
+                return null;
+            }
+        }
         User user = null;
         ConnectToDB ctdb = null;
 
@@ -22,6 +22,7 @@
 
 package org.openiot.gsn.http.datarequest;
 
+import org.openiot.gsn.storage.RollupManager;
 import org.apache.log4j.Logger;
 
 import java.util.ArrayList;
@@ -76,10 +77,24 @@ public class AbstractQuery {
 				if (lastStandardCriterionLinkedToVs != null) partStandardCriteria.insert(0, "where ");
 			}
 
+			// Aggregations aligned on a rollup of the virtual sensor are computed from its buckets
+			RollupManager.Rollup rollup = null;
+			if (aggregation != null) {
+				try {
+					rollup = RollupManager.getInstance().findRollup(vsName, Long.parseLong(aggregation.getTimeRange()), fields, criteria);
+				} catch (NumberFormatException e) {
+					rollup = null;
+				}
+			}
+
 			StringBuilder partFields = new StringBuilder () ;
 			for (int i = 0 ; i < fields.length ; i++) {
 				if (partFields.length()>0)
 					partFields.append(", ");
+				if (rollup != null) {
+					partFields.append(rollup.getAggregate(aggregation.getGroupOperator(), fields[i]) + " as " + fields[i]);
+					continue;
+				}
 				if (aggregation != null) 	partFields.append(aggregation.getGroupOperator() + "(");
 				partFields.append(fields[i]);
 				if (aggregation != null)	partFields.append(") as " + fields[i]);
@@ -99,7 +114,8 @@ public class AbstractQuery {
 			StringBuilder sqlQuery = new StringBuilder();
 			sqlQuery.append("select ");
 			sqlQuery.append(partFields);
-			sqlQuery.append("from ").append(vsName).append(" ");
+			if (rollup == null)	sqlQuery.append("from ").append(vsName).append(" ");
+			else 				sqlQuery.append("from (").append(rollup.getSourceQuery(vsName)).append(") rollup_data ");
 			sqlQuery.append(partStandardCriteria);
 			if (aggregation == null)	sqlQuery.append("order by timed desc ");
 			else 								sqlQuery.append("group by aggregation_interval desc ");
@@ -0,0 +1,241 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.http.datarequest;
+
+import org.openiot.gsn.beans.DataTypes;
+import org.openiot.gsn.beans.StreamElement;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes stream elements in the typed columnar export format.
+ * <p>
+ * The output is a sequence of gzip members (readable as a single stream by any gzip reader), one
+ * for the header, one per virtual sensor section and one for the trailer. Once decompressed:
+ * <pre>
+ * int    magic ("GSNC"), byte version
+ * per virtual sensor:
+ *   'S'  utf vsname, utf query
+ *   'C'  short ncols, ncols * (utf name, byte type)          before the first block only
+ *   'B'  int nrows
+ *        nrows * timed, zigzag varint deltas (the first one from 0)
+ *        per column: null bitmap ((nrows + 7) / 8 bytes), then the non-null values
+ *   'E'  long nrows
+ * 'Z'
+ * </pre>
+ * Values are written as big-endian doubles (DOUBLE), longs (BIGINT), ints (INTEGER), shorts
+ * (SMALLINT), bytes (TINYINT), and int length prefixed UTF-8 or raw bytes (VARCHAR, CHAR, BINARY).
+ * Binary fields exported as links are declared as VARCHAR.
+ * <p>
+ * Every block carries the raw timestamps of its rows, so the client of an interrupted export can
+ * resume it from the last complete block of each section (see {@link DownloadData}).
+ */
+public class ColumnarWriter {
+
+    public static final int MAGIC = 0x47534e43; // "GSNC"
+    public static final byte VERSION = 1;
+    public static final int BLOCK_SIZE = 4096;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final OutputStream out;
+    private final boolean binaryAsLink;
+    private GZIPOutputStream gzip;
+    private DataOutputStream data;
+
+    private Column[] columns;
+    private long[] timed = new long[BLOCK_SIZE];
+    private int rows;
+    private long sectionRows;
+
+    public ColumnarWriter(OutputStream out, boolean binaryAsLink) {
+        this.out = out;
+        this.binaryAsLink = binaryAsLink;
+    }
+
+    public static void writeHeader(OutputStream out) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        DataOutputStream data = new DataOutputStream(gzip);
+        data.writeInt(MAGIC);
+        data.writeByte(VERSION);
+        data.flush();
+        gzip.finish();
+    }
+
+    public static void writeTrailer(OutputStream out) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write('Z');
+        gzip.finish();
+    }
+
+    public void beginSection(String vsname, String query) throws IOException {
+        gzip = new GZIPOutputStream(out, 64 * 1024);
+        data = new DataOutputStream(new BufferedOutputStream(gzip, 64 * 1024));
+        data.writeByte('S');
+        data.writeUTF(vsname);
+        data.writeUTF(query);
+        columns = null;
+        rows = 0;
+        sectionRows = 0;
+    }
+
+    public void write(StreamElement se) throws IOException {
+        if (columns == null)
+            writeColumns(se);
+        Serializable[] values = se.getData();
+        for (int i = 0; i < columns.length; i++)
+            columns[i].set(rows, values[i]);
+        timed[rows++] = se.getTimeStamp();
+        sectionRows++;
+        if (rows == BLOCK_SIZE)
+            writeBlock();
+    }
+
+    public void endSection() throws IOException {
+        if (rows > 0)
+            writeBlock();
+        data.writeByte('E');
+        data.writeLong(sectionRows);
+        data.flush();
+        gzip.finish();
+    }
+
+    private void writeColumns(StreamElement se) throws IOException {
+        String[] names = se.getFieldNames();
+        Byte[] types = se.getFieldTypes();
+        columns = new Column[names.length];
+        data.writeByte('C');
+        data.writeShort(names.length);
+        for (int i = 0; i < names.length; i++) {
+            byte type = types[i];
+            if (type == DataTypes.BINARY && binaryAsLink)
+                type = DataTypes.VARCHAR;
+            columns[i] = new Column(type);
+            data.writeUTF(names[i]);
+            data.writeByte(type);
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        data.writeByte('B');
+        data.writeInt(rows);
+        long previous = 0;
+        for (int i = 0; i < rows; i++) {
+            writeVarLong(timed[i] - previous);
+            previous = timed[i];
+        }
+        for (Column column : columns)
+            column.write(data, rows);
+        rows = 0;
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL) != 0) {
+            data.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        data.writeByte((int) v);
+    }
+
+    /**
+     * Values of one field for the rows of the current block, in primitive arrays for numeric types.
+     */
+    private static class Column {
+
+        private final byte type;
+        private final boolean[] nulls = new boolean[BLOCK_SIZE];
+        private long[] longs;
+        private double[] doubles;
+        private Object[] objects;
+
+        Column(byte type) {
+            this.type = type;
+            switch (type) {
+                case DataTypes.DOUBLE:
+                    doubles = new double[BLOCK_SIZE];
+                    break;
+                case DataTypes.BIGINT:
+                case DataTypes.INTEGER:
+                case DataTypes.SMALLINT:
+                case DataTypes.TINYINT:
+                    longs = new long[BLOCK_SIZE];
+                    break;
+                default:
+                    objects = new Object[BLOCK_SIZE];
+            }
+        }
+
+        void set(int row, Serializable value) {
+            nulls[row] = value == null;
+            if (value == null)
+                return;
+            if (doubles != null)
+                doubles[row] = ((Number) value).doubleValue();
+            else if (longs != null)
+                longs[row] = ((Number) value).longValue();
+            else
+                objects[row] = value;
+        }
+
+        void write(DataOutputStream data, int rows) throws IOException {
+            for (int i = 0; i < rows; i += 8) {
+                int bits = 0;
+                for (int j = 0; j < 8 && i + j < rows; j++)
+                    if (nulls[i + j])
+                        bits |= 1 << j;
+                data.writeByte(bits);
+            }
+            for (int i = 0; i < rows; i++) {
+                if (nulls[i])
+                    continue;
+                switch (type) {
+                    case DataTypes.DOUBLE:
+                        data.writeDouble(doubles[i]);
+                        break;
+                    case DataTypes.BIGINT:
+                        data.writeLong(longs[i]);
+                        break;
+                    case DataTypes.INTEGER:
+                        data.writeInt((int) longs[i]);
+                        break;
+                    case DataTypes.SMALLINT:
+                        data.writeShort((int) longs[i]);
+                        break;
+                    case DataTypes.TINYINT:
+                        data.writeByte((int) longs[i]);
+                        break;
+                    default:
+                        byte[] bytes = objects[i] instanceof byte[] ? (byte[]) objects[i] : objects[i].toString().getBytes(UTF8);
+                        data.writeInt(bytes.length);
+                        data.write(bytes);
+                        objects[i] = null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.http.datarequest;
+
+import org.openiot.gsn.Main;
+import org.openiot.gsn.storage.DataEnumerator;
+import org.openiot.gsn.storage.StorageManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the queries of a data export in parallel, one task per virtual sensor, and streams the
+ * sections they produce to the client in the order of the given map.
+ * <p>
+ * All the exports share a fixed pool of <code>maxExportThreads</code> threads (system property,
+ * default {@link #DEFAULT_MAX_EXPORT_THREADS}), which bounds the number of database connections
+ * held by exports whatever the number of concurrent requests.
+ * The section at the head of the order is written straight to the client. The sections behind it
+ * are written into a spool, kept in memory while small and moved to a temporary file beyond
+ * {@link #SPOOL_MEMORY_LIMIT} bytes; when a section reaches the head, its spool is copied to the
+ * client, deleted, and the rest of the section is written straight to the client.
+ */
+public class DataExporter {
+
+    private static transient Logger logger = Logger.getLogger(DataExporter.class);
+
+    public static final int DEFAULT_MAX_EXPORT_THREADS = 4;
+
+    public static final int SPOOL_MEMORY_LIMIT = 1024 * 1024;
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(
+            System.getProperty("maxExportThreads") == null ? DEFAULT_MAX_EXPORT_THREADS : Integer.parseInt(System.getProperty("maxExportThreads")),
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "gsn-export-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /**
+     * Writes the section of one virtual sensor. Called concurrently from the export threads, so
+     * implementations must not share mutable state (such as date formats) between sections.
+     * Implementations should stop early when the calling thread is interrupted.
+     */
+    public interface SectionWriter {
+        void writeSection(String vsname, AbstractQuery query, DataEnumerator de, OutputStream out) throws IOException;
+    }
+
+    private final SectionWriter writer;
+
+    public DataExporter(SectionWriter writer) {
+        this.writer = writer;
+    }
+
+    /*
+    * Exports the given queries, keyed by virtual sensor name, to the output stream.
+    * Returns once all the sections are written; on error the remaining tasks are cancelled.
+    * */
+    public void export(Map<String, AbstractQuery> queries, OutputStream os) throws IOException {
+        List<Spool> spools = new ArrayList<Spool>(queries.size());
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(queries.size());
+        for (Entry<String, AbstractQuery> entry : queries.entrySet()) {
+            Spool spool = new Spool();
+            spools.add(spool);
+            futures.add(executor.submit(new SectionTask(entry.getKey(), entry.getValue(), spool)));
+        }
+
+        int sent = 0;
+        try {
+            for (; sent < futures.size(); sent++) {
+                spools.get(sent).streamTo(os);
+                futures.get(sent).get();
+                os.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Export interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Export failed: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            // a section still running must not write to the client once the export returned
+            for (int i = sent; i < futures.size(); i++) {
+                futures.get(i).cancel(true);
+                spools.get(i).delete();
+            }
+        }
+    }
+
+    private class SectionTask implements Callable<Void> {
+
+        private final String vsname;
+        private final AbstractQuery query;
+        private final Spool spool;
+
+        SectionTask(String vsname, AbstractQuery query, Spool spool) {
+            this.vsname = vsname;
+            this.query = query;
+            this.spool = spool;
+        }
+
+        public Void call() throws Exception {
+            StorageManager storage = Main.getStorage(vsname);
+            Connection connection = null;
+            DataEnumerator de = null;
+            boolean done = false;
+            try {
+                connection = storage.getConnection();
+                de = storage.streamedExecuteQuery(query, true, connection);
+                writer.writeSection(vsname, query, de, spool);
+                spool.close();
+                if (Thread.currentThread().isInterrupted())
+                    throw new InterruptedException("Export of " + vsname + " cancelled");
+                done = true;
+                return null;
+            } catch (SQLException e) {
+                logger.debug(e.getMessage());
+                throw e;
+            } finally {
+                // the enumerator closes its connection once exhausted, this only matters on errors
+                if (de != null)
+                    de.close();
+                else
+                    storage.close(connection);
+                if (!done)
+                    spool.delete();
+            }
+        }
+    }
+
+    /**
+     * Output stream buffered in memory up to {@link #SPOOL_MEMORY_LIMIT} bytes, then in a temporary
+     * file, until {@link #streamTo(OutputStream)} switches it to the client stream.
+     * Writes fail once the spool is deleted.
+     */
+    static class Spool extends OutputStream {
+
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream(8 * 1024);
+        private File file;
+        private OutputStream fileOut;
+        private OutputStream direct;
+        private boolean deleted;
+
+        public synchronized void write(int b) throws IOException {
+            target(1).write(b);
+        }
+
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            target(len).write(b, off, len);
+        }
+
+        private OutputStream target(int len) throws IOException {
+            if (deleted)
+                throw new IOException("Export section discarded");
+            if (direct != null)
+                return direct;
+            if (fileOut != null)
+                return fileOut;
+            if (memory.size() + len <= SPOOL_MEMORY_LIMIT)
+                return memory;
+            file = File.createTempFile("gsn-export", ".part");
+            fileOut = new FileOutputStream(file);
+            memory.writeTo(fileOut);
+            memory = null;
+            return fileOut;
+        }
+
+        public synchronized void flush() throws IOException {
+            if (direct != null)
+                direct.flush();
+            else if (fileOut != null)
+                fileOut.flush();
+        }
+
+        /*
+        * Ends the section; the client stream is left open
+        * */
+        public synchronized void close() throws IOException {
+            if (fileOut != null)
+                fileOut.close();
+        }
+
+        /*
+        * Copies what was spooled so far to the given stream, deletes the spool and sends the
+        * following writes straight to the stream
+        * */
+        public synchronized void streamTo(OutputStream os) throws IOException {
+            if (deleted) // the section failed, its task reports why
+                return;
+            if (file == null) {
+                memory.writeTo(os);
+            } else {
+                fileOut.close();
+                InputStream in = new FileInputStream(file);
+                try {
+                    byte[] buffer = new byte[64 * 1024];
+                    int n;
+                    while ((n = in.read(buffer)) != -1)
+                        os.write(buffer, 0, n);
+                } finally {
+                    in.close();
+                    deleteFile();
+                }
+            }
+            memory = null;
+            fileOut = null;
+            direct = os;
+        }
+
+        public synchronized void delete() {
+            deleted = true;
+            memory = null;
+            direct = null;
+            deleteFile();
+        }
+
+        private void deleteFile() {
+            if (file == null)
+                return;
+            try {
+                fileOut.close();
+            } catch (IOException e) {
+                logger.debug(e.getMessage());
+            }
+            if (!file.delete())
+                logger.warn("Could not delete the export spool " + file);
+            file = null;
+        }
+    }
+}
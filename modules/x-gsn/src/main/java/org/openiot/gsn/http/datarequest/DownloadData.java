@@ -22,40 +22,73 @@
  * @author Milos Stojanovic
 */
 
+
 package org.openiot.gsn.http.datarequest;
 
-import org.openiot.gsn.Main;
 import org.openiot.gsn.beans.StreamElement;
 import org.openiot.gsn.http.MultiDataDownload;
 import org.openiot.gsn.storage.DataEnumerator;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.sql.Connection;
-import java.sql.SQLException;
-import java.util.Calendar;
+import java.io.Serializable;
+import java.io.Writer;
+import java.text.FieldPosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TimeZone;
+import java.util.TreeMap;
 
 import org.apache.log4j.Logger;
 
+/**
+ * Exports the data of a set of virtual sensors as csv, xml or in the compressed columnar format
+ * written by {@link ColumnarWriter}. The virtual sensors are queried in parallel by a
+ * {@link DataExporter} and their sections are written in the alphabetical order of their names.
+ * <p>
+ * Exports can be resumed. Every {@link #CHECKPOINT_INTERVAL} rows, the csv output contains a
+ * <code>##checkpoint:vsname:timed:count:rows</code> line (an xml comment in the xml output), where
+ * <code>timed</code> is the raw timestamp of the last row written, <code>count</code> the number
+ * of rows written with that timestamp and <code>rows</code> the number of rows of the virtual sensor
+ * written so far, over all the resumed exports; the columnar output carries the raw timestamps of
+ * every block. A section is complete once its <code>##rows:vsname:total</code> line is written. An
+ * interrupted export is resumed by requesting the incomplete virtual sensors again with one
+ * <code>resume=vsname:timed:count:rows</code> parameter each, which restricts the export to the
+ * rows following the checkpoint and the limit of the query to the rows not written yet. The
+ * <code>rows</code> part may be left out for queries without a limit. Resuming is not supported
+ * for aggregated queries.
+ */
 public class DownloadData extends AbstractDataRequest {
 
     private static transient Logger logger = Logger.getLogger(MultiDataDownload.class);
 
     private static final String PARAM_OUTPUT_TYPE = "outputtype";
 
+    private static final String PARAM_RESUME = "resume";
+
+    public static final int CHECKPOINT_INTERVAL = 10000;
+
+    private static final String EOL = System.getProperty("line.separator");
+
     public enum AllowedOutputType {
         csv,
-        xml
+        xml,
+        columnar
     }
 
     private AllowedOutputType ot;
 
     private String csvDelimiter = ",";
 
+    private Map<String, ResumePoint> resumePoints = new HashMap<String, ResumePoint>();
+
     public DownloadData(Map<String, String[]> requestParameters) throws DataRequestException {
         super(requestParameters);
     }
@@ -90,6 +123,72 @@ public class DownloadData extends AbstractDataRequest {
         catch (IllegalArgumentException e) {
             throw new DataRequestException("The >" + outputType + "< output type is not supported.");
         }
+
+        String[] resume = requestParameters.get(PARAM_RESUME);
+        if (resume != null) {
+            for (String r : resume) {
+                ResumePoint point = ResumePoint.parse(r);
+                AbstractQuery query = findQuery(point.vsname);
+                if (query == null)
+                    throw new DataRequestException("The >" + PARAM_RESUME + "< parameter >" + r + "< refers to a virtual sensor which is not requested.");
+                if (query.getAggregation() != null)
+                    throw new DataRequestException("Aggregated queries can not be resumed.");
+                if (query.getLimitCriterion() != null && point.rows < 0)
+                    throw new DataRequestException("Queries with a limit can only be resumed with the number of rows already written, >" + PARAM_RESUME + "=vsname:timed:count:rows<.");
+                checkResumable(query);
+                resumePoints.put(point.vsname.toLowerCase(), point);
+            }
+        }
+    }
+
+    private AbstractQuery findQuery(String vsname) {
+        for (Entry<String, AbstractQuery> entry : qbuilder.getSqlQueries().entrySet())
+            if (entry.getKey().equalsIgnoreCase(vsname))
+                return entry.getValue();
+        return null;
+    }
+
+    /*
+    * The resume bound is added as the first criterion of the query, which only holds if no other
+    * criterion of that virtual sensor is joined with 'or'.
+    * */
+    private void checkResumable(AbstractQuery query) throws DataRequestException {
+        if (query.getCriteria() == null)
+            return;
+        StandardCriterion previous = null;
+        for (StandardCriterion cc : query.getCriteria()) {
+            if (cc.getVsname().compareTo("") != 0 && cc.getVsname().compareToIgnoreCase(query.getVsName()) != 0)
+                continue;
+            if (previous != null && "or".equals(previous.getCritJoin()))
+                throw new DataRequestException("Queries with criteria joined by 'or' can not be resumed.");
+            previous = cc;
+        }
+    }
+
+    private AbstractQuery resumedQuery(String vsname, AbstractQuery query) {
+        ResumePoint point = resumePoints.get(vsname.toLowerCase());
+        if (point == null)
+            return query;
+        StandardCriterion bound = new StandardCriterion();
+        bound.setCritJoin("and");
+        bound.setCritNeg("");
+        bound.setCritVsname(vsname);
+        bound.setCritField("timed");
+        bound.setCritOperator("<=");
+        bound.setCritValue(Long.toString(point.timed));
+        ArrayList<StandardCriterion> criteria = new ArrayList<StandardCriterion>();
+        criteria.add(bound);
+        if (query.getCriteria() != null)
+            criteria.addAll(query.getCriteria());
+        // the resumed query starts with the rows written at the checkpoint timestamp, which are skipped
+        LimitCriterion limit = query.getLimitCriterion();
+        if (limit != null) {
+            LimitCriterion remaining = new LimitCriterion();
+            remaining.setOffset(0);
+            remaining.setSize((int) Math.max(0, limit.getSize() - (point.rows - point.count)));
+            limit = remaining;
+        }
+        return new AbstractQuery(limit, query.getAggregation(), vsname, query.getFields(), criteria);
     }
 
 //    public String outputResult() {
@@ -100,106 +199,324 @@ public class DownloadData extends AbstractDataRequest {
 
     @Override
     public void outputResult(OutputStream os) {
+        Map<String, AbstractQuery> queries = new TreeMap<String, AbstractQuery>();
+        for (Entry<String, AbstractQuery> entry : qbuilder.getSqlQueries().entrySet())
+            queries.put(entry.getKey(), resumedQuery(entry.getKey(), entry.getValue()));
+
         PrintWriter respond = new PrintWriter(os);
-        Iterator<Entry<String, AbstractQuery>> iter = qbuilder.getSqlQueries().entrySet().iterator();
-        Entry<String, AbstractQuery> nextSqlQuery;
-        DataEnumerator de = null;
         try {
             if (ot == AllowedOutputType.xml) {
                 respond.println("<result>");
+                respond.flush();
+            } else if (ot == AllowedOutputType.columnar) {
+                ColumnarWriter.writeHeader(os);
             }
-            while (iter.hasNext()) {
-                nextSqlQuery = iter.next();
-                Connection connection = null;
-
-                connection = Main.getStorage(nextSqlQuery.getKey()).getConnection();
-                de = Main.getStorage(nextSqlQuery.getKey()).streamedExecuteQuery(nextSqlQuery.getValue(), true, connection);
-                
-                logger.debug("Data Enumerator: " + de);
-                if (ot == AllowedOutputType.csv) {
-                    respond.println("##vsname:" + nextSqlQuery.getKey());
-                    respond.println("##query:" + nextSqlQuery.getValue().getStandardQuery() + (nextSqlQuery.getValue().getLimitCriterion() == null ? "" : "(" + nextSqlQuery.getValue().getLimitCriterion() + ")"));
-                } else if (ot == AllowedOutputType.xml) {
-                    respond.println("\t<!-- " + nextSqlQuery.getValue().getStandardQuery() + " -->");
-                    respond.println("\t<data vsname=\"" + nextSqlQuery.getKey() + "\">");
-                }
-                FieldsCollection fc = qbuilder.getVsnamesAndStreams().get(nextSqlQuery.getKey());
-                boolean wantTimed = true;
-                boolean firstLine = true;
-                while (de.hasMoreElements()) {
-                    if (ot == AllowedOutputType.csv) {
-                        formatCSVElement(respond, de.nextElement(), wantTimed, csvDelimiter, firstLine);
-                    } else if (ot == AllowedOutputType.xml) {
-                        formatXMLElement(respond, de.nextElement(), wantTimed, firstLine);
-                    }
-                    firstLine = false;
-                }
-                if (ot == AllowedOutputType.xml)
-                    respond.println("\t</data>");
-            }
+            new DataExporter(new SectionWriter()).export(queries, os);
             if (ot == AllowedOutputType.xml) {
                 respond.println("</result>");
+            } else if (ot == AllowedOutputType.columnar) {
+                ColumnarWriter.writeTrailer(os);
             }
-        } catch (SQLException e) {
-            logger.debug(e.getMessage());
+        } catch (IOException e) {
+            logger.warn("Export of " + queries.keySet() + " aborted: " + e.getMessage());
         } finally {
             respond.flush();
-            if (de != null)
-                de.close();
         }
     }
 
+    /**
+     * Writes the rows of one virtual sensor, skipping the rows already sent before the resume point.
+     */
+    private class SectionWriter implements DataExporter.SectionWriter {
+
+        public void writeSection(String vsname, AbstractQuery query, DataEnumerator de, OutputStream out) throws IOException {
+            RowFormat format;
+            if (ot == AllowedOutputType.csv)
+                format = new CSVFormat(out);
+            else if (ot == AllowedOutputType.xml)
+                format = new XMLFormat(out);
+            else
+                format = new ColumnarFormat(out);
 
-    private void formatCSVElement(PrintWriter respond, StreamElement se, boolean wantTimed, String cvsDelimiter, boolean firstLine) {
-        if (firstLine) {
-            respond.print("#");
-            for (int i = 0; i < se.getData().length; i++) {
-                respond.print(se.getFieldNames()[i]);
-                if (i != se.getData().length - 1)
-                    respond.print(cvsDelimiter);
+            boolean resumable = query.getAggregation() == null;
+            ResumePoint point = resumePoints.get(vsname.toLowerCase());
+            long skip = point == null ? 0 : point.count;
+            long lastTimed = point == null ? Long.MIN_VALUE : point.timed;
+            long countAtLastTimed = skip;
+            long written = point == null || point.rows < 0 ? 0 : point.rows;
+            long rows = 0;
+
+            format.begin(vsname, query);
+            boolean firstLine = true;
+            while (de.hasMoreElements() && !Thread.currentThread().isInterrupted()) {
+                StreamElement se = de.nextElement();
+                long timed = se.getTimeStamp();
+                if (skip > 0 && timed == point.timed) {
+                    skip--;
+                    continue;
+                }
+                skip = 0;
+                format.row(se, firstLine);
+                firstLine = false;
+                rows++;
+                if (timed == lastTimed) {
+                    countAtLastTimed++;
+                } else {
+                    lastTimed = timed;
+                    countAtLastTimed = 1;
+                }
+                if (resumable && rows % CHECKPOINT_INTERVAL == 0)
+                    format.checkpoint(vsname, lastTimed, countAtLastTimed, written + rows);
             }
-            if (wantTimed && se.getData().length != 0)
-                respond.print(cvsDelimiter);
-            if (wantTimed)
-                respond.print("timed");
-            respond.println();
-        }
-        for (int i = 0; i < se.getData().length; i++) {
-            respond.print(se.getData()[i]);
-            if (i != se.getData().length - 1)
-                respond.print(cvsDelimiter);
-        }
-        if (wantTimed) {
-            if (se.getData().length != 0)
-                respond.print(cvsDelimiter);
-            respond.print(qbuilder.getSdf() == null ? timestampInUTC(se.getTimeStamp()) : qbuilder.getSdf().format(new Date(se.getTimeStamp())));
-        }
-        respond.println();
-    }
-
-    private void formatXMLElement(PrintWriter respond, StreamElement se, boolean wantTimed, boolean firstLine) {
-        if (firstLine) {
-            respond.println("\t\t<header>");
-            for (int i = 0; i < se.getData().length; i++) {
-                respond.println("\t\t\t<field>" + se.getFieldNames()[i] + "</field>");
+            format.end(vsname, rows);
+        }
+    }
+
+    private abstract class RowFormat {
+
+        abstract void begin(String vsname, AbstractQuery query) throws IOException;
+
+        abstract void row(StreamElement se, boolean firstLine) throws IOException;
+
+        void checkpoint(String vsname, long timed, long count, long rows) throws IOException {
+        }
+
+        abstract void end(String vsname, long rows) throws IOException;
+    }
+
+    /**
+     * Writes the rows directly to a buffered writer, the timestamps being formatted into a reused buffer.
+     */
+    private abstract class TextFormat extends RowFormat {
+
+        protected final Writer w;
+        // SimpleDateFormat is not thread-safe and the sections are written concurrently
+        private final SimpleDateFormat sdf = qbuilder.getSdf() == null ? null : (SimpleDateFormat) qbuilder.getSdf().clone();
+        private final Date date = new Date();
+        private final StringBuffer timeBuffer = new StringBuffer(32);
+        private final FieldPosition fieldPosition = new FieldPosition(0);
+        private char[] chars = new char[32];
+
+        TextFormat(OutputStream out) {
+            w = new BufferedWriter(new OutputStreamWriter(out), 64 * 1024);
+        }
+
+        protected void writeTime(long timestamp) throws IOException {
+            if (sdf == null) {
+                w.write(Long.toString(timestampInUTC(timestamp)));
+                return;
             }
-            if (wantTimed)
-                respond.println("\t\t\t<field>timed</field>");
-            respond.println("\t\t</header>");
+            date.setTime(timestamp);
+            timeBuffer.setLength(0);
+            sdf.format(date, timeBuffer, fieldPosition);
+            if (chars.length < timeBuffer.length())
+                chars = new char[timeBuffer.length()];
+            timeBuffer.getChars(0, timeBuffer.length(), chars, 0);
+            w.write(chars, 0, timeBuffer.length());
+        }
+
+        protected void writeValue(Serializable value) throws IOException {
+            w.write(String.valueOf(value));
+        }
+    }
+
+    private class CSVFormat extends TextFormat {
+
+        CSVFormat(OutputStream out) {
+            super(out);
         }
-        respond.println("\t\t<tuple>");
-        for (int i = 0; i < se.getData().length; i++) {
-            respond.println("\t\t\t<field>" + se.getData()[i] + "</field>");
+
+        void begin(String vsname, AbstractQuery query) throws IOException {
+            w.write("##vsname:");
+            w.write(vsname);
+            w.write(EOL);
+            w.write("##query:");
+            w.write(query.getStandardQuery().toString());
+            if (query.getLimitCriterion() != null) {
+                w.write("(");
+                w.write(query.getLimitCriterion().toString());
+                w.write(")");
+            }
+            w.write(EOL);
+        }
+
+        void row(StreamElement se, boolean firstLine) throws IOException {
+            Serializable[] data = se.getData();
+            if (firstLine) {
+                String[] names = se.getFieldNames();
+                w.write("#");
+                for (int i = 0; i < data.length; i++) {
+                    w.write(names[i]);
+                    if (i != data.length - 1)
+                        w.write(csvDelimiter);
+                }
+                if (data.length != 0)
+                    w.write(csvDelimiter);
+                w.write("timed");
+                w.write(EOL);
+            }
+            for (int i = 0; i < data.length; i++) {
+                writeValue(data[i]);
+                if (i != data.length - 1)
+                    w.write(csvDelimiter);
+            }
+            if (data.length != 0)
+                w.write(csvDelimiter);
+            writeTime(se.getTimeStamp());
+            w.write(EOL);
+        }
+
+        void checkpoint(String vsname, long timed, long count, long rows) throws IOException {
+            w.write("##checkpoint:");
+            w.write(vsname);
+            w.write(":");
+            w.write(Long.toString(timed));
+            w.write(":");
+            w.write(Long.toString(count));
+            w.write(":");
+            w.write(Long.toString(rows));
+            w.write(EOL);
+        }
+
+        void end(String vsname, long rows) throws IOException {
+            w.write("##rows:");
+            w.write(vsname);
+            w.write(":");
+            w.write(Long.toString(rows));
+            w.write(EOL);
+            w.flush();
+        }
+    }
+
+    private class XMLFormat extends TextFormat {
+
+        XMLFormat(OutputStream out) {
+            super(out);
+        }
+
+        void begin(String vsname, AbstractQuery query) throws IOException {
+            w.write("\t<!-- ");
+            w.write(query.getStandardQuery().toString());
+            w.write(" -->");
+            w.write(EOL);
+            w.write("\t<data vsname=\"");
+            w.write(vsname);
+            w.write("\">");
+            w.write(EOL);
+        }
+
+        void row(StreamElement se, boolean firstLine) throws IOException {
+            Serializable[] data = se.getData();
+            if (firstLine) {
+                String[] names = se.getFieldNames();
+                w.write("\t\t<header>");
+                w.write(EOL);
+                for (int i = 0; i < data.length; i++) {
+                    w.write("\t\t\t<field>");
+                    w.write(names[i]);
+                    w.write("</field>");
+                    w.write(EOL);
+                }
+                w.write("\t\t\t<field>timed</field>");
+                w.write(EOL);
+                w.write("\t\t</header>");
+                w.write(EOL);
+            }
+            w.write("\t\t<tuple>");
+            w.write(EOL);
+            for (int i = 0; i < data.length; i++) {
+                w.write("\t\t\t<field>");
+                writeValue(data[i]);
+                w.write("</field>");
+                w.write(EOL);
+            }
+            w.write("\t\t\t<field>");
+            writeTime(se.getTimeStamp());
+            w.write("</field>");
+            w.write(EOL);
+            w.write("\t\t</tuple>");
+            w.write(EOL);
+        }
+
+        void checkpoint(String vsname, long timed, long count, long rows) throws IOException {
+            w.write("\t\t<!-- checkpoint:");
+            w.write(vsname);
+            w.write(":");
+            w.write(Long.toString(timed));
+            w.write(":");
+            w.write(Long.toString(count));
+            w.write(":");
+            w.write(Long.toString(rows));
+            w.write(" -->");
+            w.write(EOL);
+        }
+
+        void end(String vsname, long rows) throws IOException {
+            w.write("\t\t<!-- rows:");
+            w.write(vsname);
+            w.write(":");
+            w.write(Long.toString(rows));
+            w.write(" -->");
+            w.write(EOL);
+            w.write("\t</data>");
+            w.write(EOL);
+            w.flush();
+        }
+    }
+
+    private class ColumnarFormat extends RowFormat {
+
+        // DataExporter reads the binary fields as links, which the writer declares as VARCHAR
+        private final ColumnarWriter writer;
+
+        ColumnarFormat(OutputStream out) {
+            writer = new ColumnarWriter(out, true);
+        }
+
+        void begin(String vsname, AbstractQuery query) throws IOException {
+            writer.beginSection(vsname, query.getStandardQuery().toString());
+        }
+
+        void row(StreamElement se, boolean firstLine) throws IOException {
+            writer.write(se);
+        }
+
+        void end(String vsname, long rows) throws IOException {
+            writer.endSection();
+        }
+    }
+
+    private static class ResumePoint {
+
+        final String vsname;
+        final long timed;
+        final long count;
+        // -1 if not given
+        final long rows;
+
+        ResumePoint(String vsname, long timed, long count, long rows) {
+            this.vsname = vsname;
+            this.timed = timed;
+            this.count = count;
+            this.rows = rows;
+        }
+
+        static ResumePoint parse(String value) throws DataRequestException {
+            String[] parts = value.split(":");
+            try {
+                if (parts.length == 3)
+                    return new ResumePoint(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]), -1);
+                if (parts.length == 4 && Long.parseLong(parts[3]) >= Long.parseLong(parts[2]))
+                    return new ResumePoint(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+            throw new DataRequestException("The >" + PARAM_RESUME + "< parameter >" + value + "< does not follow the vsname:timed:count[:rows] syntax.");
         }
-        if (wantTimed)
-            respond.println("\t\t\t<field>" + (qbuilder.getSdf() == null ? timestampInUTC(se.getTimeStamp()) : qbuilder.getSdf().format(new Date(se.getTimeStamp()))) + "</field>");
-        respond.println("\t\t</tuple>");
     }
 
     private long timestampInUTC(long timestamp) {
-        Calendar cal = Calendar.getInstance();
-        cal.setTimeInMillis(timestamp);
-        return cal.getTimeInMillis() + cal.getTimeZone().getOffset(cal.getTimeInMillis());
+        return timestamp + TimeZone.getDefault().getOffset(timestamp);
     }
 
     public AllowedOutputType getOt() {
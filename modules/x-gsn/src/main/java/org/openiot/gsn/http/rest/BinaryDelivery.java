@@ -0,0 +1,268 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*   
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.http.rest;
+
+import org.openiot.gsn.DataDistributer;
+import org.openiot.gsn.beans.DataField;
+import org.openiot.gsn.beans.StreamElement;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Delivers the stream elements over a connection accepted by the {@link BinaryStreamingServer}.
+ * <p/>
+ * The DataDistributer thread only queues the stream elements, a writer thread sends them in batches as long as the
+ * remote wrapper granted credits, and the thread which accepted the connection reads the credits. The delivery is
+ * ready as long as the queued elements are fewer than the credits, so the DataDistributer stops reading the data of a
+ * slow remote wrapper until it grants credits again, instead of filling the queue.
+ */
+public class BinaryDelivery implements FlowControlledDelivery {
+
+    private static final int QUEUE_SIZE = 4096;
+
+    private static final int MAX_BATCH_SIZE = 256;
+
+    private static transient Logger logger = Logger.getLogger(BinaryDelivery.class);
+
+    private final Socket socket;
+
+    private final DataInputStream in;
+
+    private final DataOutputStream out;
+
+    private final boolean compression;
+
+    private final BlockingQueue<StreamElement> queue = new ArrayBlockingQueue<StreamElement>(QUEUE_SIZE);
+
+    private final Object creditLock = new Object();
+
+    private int credits;
+
+    private DataField[] structure;
+
+    private Thread writer;
+
+    private volatile boolean closed = false;
+
+    private volatile Runnable readyListener;
+
+    public BinaryDelivery(Socket socket, DataInputStream in, DataOutputStream out, boolean compression, int credits) {
+        this.socket = socket;
+        this.in = in;
+        this.out = out;
+        this.compression = compression;
+        this.credits = credits;
+    }
+
+    public synchronized void writeStructure(DataField[] fields) throws IOException {
+        structure = fields;
+        byte[] payload = BinaryStreamProtocol.encodeStructure(fields);
+        BinaryStreamProtocol.writeFrame(out, BinaryStreamProtocol.STRUCTURE, payload, payload.length);
+        out.flush();
+        writer = new Thread(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, "BinaryDelivery-writer-" + socket.getRemoteSocketAddress());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public boolean writeStreamElement(StreamElement se) {
+        if (closed)
+            return false;
+        if (!queue.offer(se)) {
+            // only when the element is written without checking isReady, never blocks the DataDistributer
+            logger.warn("Closing the binary streaming connection from " + socket.getRemoteSocketAddress() + ", " + QUEUE_SIZE
+                    + " elements are waiting for credits.");
+            close();
+            return false;
+        }
+        return !closed;
+    }
+
+    public boolean isReady() {
+        if (closed)
+            return false;
+        int queued = queue.size();
+        synchronized (creditLock) {
+            return queued < credits && queued < QUEUE_SIZE;
+        }
+    }
+
+    public void setReadyListener(Runnable listener) {
+        readyListener = listener;
+    }
+
+    /**
+     * The writer thread sends a KEEPALIVE frame itself when nothing was sent for a keep-alive period.
+     */
+    public boolean writeKeepAliveStreamElement() {
+        return !closed;
+    }
+
+    /**
+     * Reads the credits sent by the remote wrapper until the connection is closed, called by the thread which
+     * accepted the connection.
+     */
+    void readCredits() {
+        try {
+            while (!closed) {
+                BinaryStreamProtocol.Frame frame = BinaryStreamProtocol.readFrame(in);
+                if (frame.type != BinaryStreamProtocol.CREDIT)
+                    throw new IOException("Unexpected frame type: " + frame.type);
+                int granted = frame.data().readInt();
+                synchronized (creditLock) {
+                    credits += granted;
+                    creditLock.notifyAll();
+                }
+                Runnable listener = readyListener;
+                if (listener != null)
+                    listener.run();
+            }
+        } catch (IOException e) {
+            if (!closed)
+                logger.debug("Connection from " + socket.getRemoteSocketAddress() + " closed: " + e.getMessage());
+        } finally {
+            close();
+        }
+    }
+
+    private void write() {
+        List<StreamElement> batch = new ArrayList<StreamElement>(MAX_BATCH_SIZE);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(64 * 1024);
+        Deflater deflater = compression ? new Deflater(Deflater.BEST_SPEED) : null;
+        long keepAlivePeriod = DataDistributer.getKeepAlivePeriod();
+        try {
+            while (!closed) {
+                int allowed;
+                synchronized (creditLock) {
+                    long deadline = System.currentTimeMillis() + keepAlivePeriod;
+                    while (credits == 0 && !closed && System.currentTimeMillis() < deadline)
+                        creditLock.wait(Math.max(1, deadline - System.currentTimeMillis()));
+                    allowed = Math.min(credits, MAX_BATCH_SIZE);
+                }
+                if (closed)
+                    break;
+                StreamElement first = allowed == 0 ? null : queue.poll(keepAlivePeriod, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    // no credit or no element for a keep-alive period
+                    BinaryStreamProtocol.writeFrame(out, BinaryStreamProtocol.KEEPALIVE, new byte[0], 0);
+                    out.flush();
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, allowed - 1);
+
+                bytes.reset();
+                BinaryStreamProtocol.encodeElements(batch, structure, new DataOutputStream(bytes));
+                byte type = BinaryStreamProtocol.BATCH;
+                compressed.reset();
+                if (deflater != null && BinaryStreamProtocol.deflate(deflater, bytes.toByteArray(), bytes.size(), compressed) > 0
+                        && compressed.size() < bytes.size()) {
+                    type |= BinaryStreamProtocol.COMPRESSED;
+                    BinaryStreamProtocol.writeFrame(out, type, compressed.toByteArray(), compressed.size());
+                } else {
+                    BinaryStreamProtocol.writeFrame(out, type, bytes.toByteArray(), bytes.size());
+                }
+                int remaining;
+                synchronized (creditLock) {
+                    credits -= batch.size();
+                    remaining = credits;
+                }
+                // flush only when the queue is drained or the credits are exhausted, so that a burst goes out in
+                // large TCP segments
+                if (remaining == 0 || queue.isEmpty())
+                    out.flush();
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            logger.debug(e.getMessage(), e);
+        } catch (IOException e) {
+            if (!closed)
+                logger.debug("Failed to write to " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+        } finally {
+            if (deflater != null)
+                deflater.end();
+            close();
+        }
+    }
+
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        synchronized (creditLock) {
+            creditLock.notifyAll();
+        }
+        // so that the DataDistributer removes the listener without waiting
+        Runnable listener = readyListener;
+        if (listener != null)
+            listener.run();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+        }
+        queue.clear();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Sends an ERROR frame and closes the connection, used when the handshake fails.
+     */
+    static void reject(Socket socket, DataOutputStream out, String message) {
+        try {
+            byte[] payload = message.getBytes("UTF-8");
+            BinaryStreamProtocol.writeFrame(out, BinaryStreamProtocol.ERROR, payload, payload.length);
+            out.flush();
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.debug(e.getMessage(), e);
+            }
+        }
+    }
+
+    static DataOutputStream outputStream(Socket socket) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+    }
+}
@@ -0,0 +1,199 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*   
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.http.rest;
+
+import org.openiot.gsn.beans.AddressBean;
+import org.openiot.gsn.beans.DataField;
+import org.openiot.gsn.beans.StreamElement;
+import org.openiot.gsn.wrappers.AbstractWrapper;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.util.List;
+
+import javax.net.ssl.SSLSocketFactory;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Streams the data of a remote virtual sensor over the binary protocol of the {@link BinaryStreamingServer}, instead
+ * of the XStream serialized elements of the RestRemoteWrapper.
+ * <p/>
+ * Takes the parameters of the RestRemoteWrapper (query, host or remote-contact-point, username, password, timeout,
+ * start-time) plus streaming-port (the remoteStreamingPort of the remote container, default 22002), ssl (true
+ * when the remote container sets remoteStreamingSSL, the certificate being checked against the trust store of the
+ * JVM, default false), compression (default false) and credits (the number of elements the remote container may send ahead, default 1000). The
+ * elements are inserted in batches, and the wrapper resumes after the last element it received when it reconnects.
+ */
+public class BinaryRemoteWrapper extends AbstractWrapper {
+
+    private static final int DEFAULT_CREDITS = 1000;
+
+    private final transient Logger logger = Logger.getLogger(BinaryRemoteWrapper.class);
+
+    private RemoteWrapperParamParser initParams;
+
+    private String host;
+
+    private int port;
+
+    private boolean compression;
+
+    private boolean ssl;
+
+    private int credits;
+
+    private DataField[] structure = null;
+
+    private Socket socket;
+
+    private DataInputStream in;
+
+    private DataOutputStream out;
+
+    private long lastReceivedTimestamp = -1;
+
+    private long lastReceivedPk = -1;
+
+    public DataField[] getOutputFormat() {
+        return structure;
+    }
+
+    public String getWrapperName() {
+        return "Binary Remote Wrapper";
+    }
+
+    public boolean initialize() {
+        try {
+            AddressBean addressBean = getActiveAddressBean();
+            initParams = new RemoteWrapperParamParser(addressBean, false);
+            host = URI.create(initParams.getRemoteContactPoint()).getHost();
+            port = addressBean.getPredicateValueAsInt("streaming-port", BinaryStreamingServer.DEFAULT_STREAMING_PORT);
+            compression = Boolean.parseBoolean(addressBean.getPredicateValueWithDefault("compression", "false"));
+            ssl = Boolean.parseBoolean(addressBean.getPredicateValueWithDefault("ssl", "false"));
+            credits = addressBean.getPredicateValueAsInt("credits", DEFAULT_CREDITS);
+            if (credits <= 0)
+                throw new RuntimeException("The >credits< parameter must be positive: " + credits);
+            lastReceivedTimestamp = initParams.getStartTime();
+            structure = connectToRemote();
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+            return false;
+        }
+        return true;
+    }
+
+    private DataField[] connectToRemote() throws IOException {
+        closeConnection();
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), 30 * 1000);
+        if (ssl)
+            socket = ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(socket, host, port, true);
+        socket.setSoTimeout(initParams.getTimeout());
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        out = BinaryDelivery.outputStream(socket);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream hello = new DataOutputStream(bytes);
+        hello.writeInt(BinaryStreamProtocol.VERSION);
+        hello.writeBoolean(compression);
+        hello.writeUTF(initParams.getQuery());
+        // after a failure, resumes with the elements having the same timestamp as the last one but a greater pk
+        hello.writeLong(lastReceivedPk < 0 ? lastReceivedTimestamp : lastReceivedTimestamp - 1);
+        hello.writeLong(lastReceivedPk);
+        hello.writeInt(credits);
+        hello.writeUTF(initParams.getUsername() == null ? "" : initParams.getUsername());
+        hello.writeUTF(initParams.getPassword() == null ? "" : initParams.getPassword());
+        BinaryStreamProtocol.writeFrame(out, BinaryStreamProtocol.HELLO, bytes.toByteArray(), bytes.size());
+        out.flush();
+
+        BinaryStreamProtocol.Frame frame = BinaryStreamProtocol.readFrame(in);
+        if (frame.type == BinaryStreamProtocol.ERROR)
+            throw new IOException("The remote host " + host + ":" + port + " refused the connection: " + new String(frame.payload, "UTF-8"));
+        if (frame.type != BinaryStreamProtocol.STRUCTURE)
+            throw new IOException("Unexpected frame type: " + frame.type);
+        DataField[] received = BinaryStreamProtocol.decodeStructure(frame);
+        logger.warn("Connection established for: " + host + ":" + port);
+        return received;
+    }
+
+    private void closeConnection() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.debug(e.getMessage(), e);
+            }
+            socket = null;
+        }
+    }
+
+    public void dispose() {
+        closeConnection();
+    }
+
+    public void run() {
+        while (isActive()) {
+            try {
+                while (isActive()) {
+                    BinaryStreamProtocol.Frame frame = BinaryStreamProtocol.readFrame(in);
+                    byte type = (byte) (frame.type & ~BinaryStreamProtocol.COMPRESSED);
+                    if (type == BinaryStreamProtocol.KEEPALIVE) {
+                        logger.debug("Received a keep alive message.");
+                        continue;
+                    }
+                    if (type == BinaryStreamProtocol.ERROR)
+                        throw new IOException(new String(frame.payload, "UTF-8"));
+                    if (type != BinaryStreamProtocol.BATCH)
+                        throw new IOException("Unexpected frame type: " + frame.type);
+                    List<StreamElement> elements = BinaryStreamProtocol.decodeElements(frame, structure);
+                    if (elements.isEmpty())
+                        continue;
+                    postStreamElements(elements);
+                    StreamElement last = elements.get(elements.size() - 1);
+                    lastReceivedTimestamp = last.getTimeStamp();
+                    lastReceivedPk = last.getInternalPrimayKey();
+                    // grants as many credits as the elements consumed
+                    BinaryStreamProtocol.writeCredit(out, elements.size());
+                    out.flush();
+                }
+            } catch (Exception e) {
+                if (!isActive())
+                    break;
+                logger.warn("Connection to the remote host: " + host + ":" + port + " is lost, trying to reconnect in 3 seconds...");
+                try {
+                    Thread.sleep(3000);
+                    if (isActive())
+                        connectToRemote();
+                } catch (Exception err) {
+                    logger.debug(err.getMessage(), err);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*   
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.http.rest;
+
+import org.openiot.gsn.beans.DataField;
+import org.openiot.gsn.beans.DataTypes;
+import org.openiot.gsn.beans.StreamElement;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The binary protocol streaming the stream elements between two containers (see {@link BinaryStreamingServer} and
+ * {@link BinaryRemoteWrapper}).
+ * <p/>
+ * Every frame is an int length (of what follows), a type byte and the payload:
+ * <ul>
+ * <li>HELLO (client): version int, compression boolean, query, start time long, last pk long (-1 if none), initial
+ * credits int, username, password (empty if none). When a pk is given, the stream resumes after the element with
+ * that pk and the given timed.</li>
+ * <li>STRUCTURE (server): field count int, then the name and the type byte of each field.</li>
+ * <li>BATCH (server): element count int, then for each element its timed long, its pk long, a bitmap of the null
+ * fields and the values of the other fields. The payload is deflated if the type has the COMPRESSED flag.</li>
+ * <li>CREDIT (client): the number of elements the server may send in addition, int.</li>
+ * <li>KEEPALIVE (server): empty, sent when nothing was sent for a keep-alive period.</li>
+ * <li>ERROR (server): the message, the connection is then closed.</li>
+ * </ul>
+ * The strings are written as modified UTF-8 (DataOutput.writeUTF) except the values of the fields which are an int
+ * length followed by the UTF-8 bytes, as the binary fields.
+ */
+final class BinaryStreamProtocol {
+
+    public static final int VERSION = 1;
+
+    public static final byte HELLO = 1;
+    public static final byte STRUCTURE = 2;
+    public static final byte BATCH = 3;
+    public static final byte CREDIT = 4;
+    public static final byte KEEPALIVE = 5;
+    public static final byte ERROR = 6;
+
+    public static final byte COMPRESSED = (byte) 0x80;
+
+    public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+    // the batches smaller than that are not worth compressing
+    private static final int MIN_COMPRESSED_LENGTH = 512;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private BinaryStreamProtocol() {
+    }
+
+    /**
+     * A frame read from a stream.
+     */
+    static class Frame {
+        final byte type;
+        final byte[] payload;
+
+        Frame(byte type, byte[] payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+
+        DataInputStream data() {
+            return new DataInputStream(new java.io.ByteArrayInputStream(payload));
+        }
+    }
+
+    static Frame readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 1 || length > MAX_FRAME_LENGTH)
+            throw new IOException("Invalid frame length: " + length);
+        byte type = in.readByte();
+        byte[] payload = new byte[length - 1];
+        in.readFully(payload);
+        return new Frame(type, payload);
+    }
+
+    /**
+     * Writes the frame without flushing the stream.
+     */
+    static void writeFrame(DataOutputStream out, byte type, byte[] payload, int length) throws IOException {
+        out.writeInt(length + 1);
+        out.writeByte(type);
+        out.write(payload, 0, length);
+    }
+
+    static void writeCredit(DataOutputStream out, int credits) throws IOException {
+        out.writeInt(5);
+        out.writeByte(CREDIT);
+        out.writeInt(credits);
+    }
+
+    static byte[] encodeStructure(DataField[] structure) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(structure.length);
+        for (DataField field : structure) {
+            out.writeUTF(field.getName());
+            out.writeByte(field.getDataTypeID());
+        }
+        return bytes.toByteArray();
+    }
+
+    static DataField[] decodeStructure(Frame frame) throws IOException {
+        DataInputStream in = frame.data();
+        DataField[] structure = new DataField[in.readInt()];
+        for (int i = 0; i < structure.length; i++)
+            structure[i] = new DataField(in.readUTF(), in.readByte());
+        return structure;
+    }
+
+    /**
+     * Encodes the values of the given elements according to the structure, in which the fields are looked up by
+     * name.
+     */
+    static void encodeElements(List<StreamElement> elements, DataField[] structure, DataOutputStream out) throws IOException {
+        out.writeInt(elements.size());
+        byte[] nulls = new byte[(structure.length + 7) / 8];
+        Serializable[] values = new Serializable[structure.length];
+        for (StreamElement se : elements) {
+            out.writeLong(se.getTimeStamp());
+            out.writeLong(se.getInternalPrimayKey());
+            java.util.Arrays.fill(nulls, (byte) 0);
+            for (int i = 0; i < structure.length; i++) {
+                int index = se.indexOf(structure[i].getName());
+                values[i] = index < 0 ? null : se.getData(index);
+                if (values[i] == null)
+                    nulls[i >> 3] |= 1 << (i & 7);
+            }
+            out.write(nulls);
+            for (int i = 0; i < structure.length; i++)
+                if (values[i] != null)
+                    writeValue(out, structure[i].getDataTypeID(), values[i]);
+        }
+    }
+
+    /**
+     * Decodes the elements of a BATCH frame, the pk of each element is the one of the server.
+     */
+    static List<StreamElement> decodeElements(Frame frame, DataField[] structure) throws IOException {
+        byte[] payload = frame.payload;
+        if ((frame.type & COMPRESSED) != 0)
+            payload = inflate(payload);
+        DataInputStream in = new DataInputStream(new java.io.ByteArrayInputStream(payload));
+        int count = in.readInt();
+        List<StreamElement> elements = new ArrayList<StreamElement>(count);
+        byte[] nulls = new byte[(structure.length + 7) / 8];
+        for (int n = 0; n < count; n++) {
+            long timed = in.readLong();
+            long pk = in.readLong();
+            in.readFully(nulls);
+            Serializable[] values = new Serializable[structure.length];
+            for (int i = 0; i < structure.length; i++)
+                if ((nulls[i >> 3] & (1 << (i & 7))) == 0)
+                    values[i] = readValue(in, structure[i].getDataTypeID());
+            StreamElement se = new StreamElement(structure, values, timed);
+            se.setInternalPrimayKey(pk);
+            elements.add(se);
+        }
+        return elements;
+    }
+
+    static int deflate(Deflater deflater, byte[] input, int length, ByteArrayOutputStream out) {
+        if (length < MIN_COMPRESSED_LENGTH)
+            return -1;
+        deflater.reset();
+        deflater.setInput(input, 0, length);
+        deflater.finish();
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            out.write(buffer, 0, n);
+        }
+        return out.size();
+    }
+
+    private static byte[] inflate(byte[] payload) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(payload);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new EOFException("Truncated compressed batch.");
+                out.write(buffer, 0, n);
+                if (out.size() > MAX_FRAME_LENGTH)
+                    throw new IOException("Compressed batch too large.");
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed batch: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, byte type, Serializable value) throws IOException {
+        switch (type) {
+            case DataTypes.DOUBLE:
+                out.writeDouble(((Number) value).doubleValue());
+                break;
+            case DataTypes.BIGINT:
+            case DataTypes.TIME:
+                out.writeLong(((Number) value).longValue());
+                break;
+            case DataTypes.INTEGER:
+                out.writeInt(((Number) value).intValue());
+                break;
+            case DataTypes.SMALLINT:
+                out.writeShort(((Number) value).shortValue());
+                break;
+            case DataTypes.TINYINT:
+                out.writeByte(((Number) value).byteValue());
+                break;
+            case DataTypes.BINARY:
+                byte[] bytes = (byte[]) value;
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                break;
+            default:
+                byte[] string = value.toString().getBytes(UTF8);
+                out.writeInt(string.length);
+                out.write(string);
+        }
+    }
+
+    private static Serializable readValue(DataInputStream in, byte type) throws IOException {
+        switch (type) {
+            case DataTypes.DOUBLE:
+                return in.readDouble();
+            case DataTypes.BIGINT:
+            case DataTypes.TIME:
+                return in.readLong();
+            case DataTypes.INTEGER:
+                return in.readInt();
+            case DataTypes.SMALLINT:
+                return in.readShort();
+            case DataTypes.TINYINT:
+                return in.readByte();
+            case DataTypes.BINARY:
+                return readBytes(in);
+            default:
+                return new String(readBytes(in), UTF8);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_LENGTH)
+            throw new IOException("Invalid value length: " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
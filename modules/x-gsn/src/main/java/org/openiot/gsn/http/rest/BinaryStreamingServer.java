@@ -0,0 +1,201 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*   
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.http.rest;
+
+import org.openiot.gsn.DataDistributer;
+import org.openiot.gsn.Main;
+import org.openiot.gsn.Mappings;
+import org.openiot.gsn.beans.ContainerConfig;
+import org.openiot.gsn.beans.VSensorConfig;
+import org.openiot.gsn.http.ac.DataSource;
+import org.openiot.gsn.http.ac.GeneralServicesAPI;
+import org.openiot.gsn.http.ac.User;
+import org.openiot.gsn.storage.SQLUtils;
+import org.openiot.gsn.storage.SQLValidator;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Accepts the connections of the {@link BinaryRemoteWrapper}s and registers a {@link BinaryDelivery} for each of them
+ * in the DataDistributer, the same way the RestStreamHanlder does for the http streaming.
+ * <p/>
+ * Disabled unless the remoteStreamingPort system property is set. With the remoteStreamingSSL system property set to
+ * true, the connections use TLS with the key store of the https connector (conf/servertestkeystore and the SSL
+ * passwords of gsn.xml). As the credentials are sent in the handshake, the server does not start when access control
+ * is enabled without TLS.
+ */
+public class BinaryStreamingServer implements Runnable {
+
+    public static final int DEFAULT_STREAMING_PORT = 22002;
+
+    private static final String KEYSTORE = "conf/servertestkeystore";
+
+    private static transient Logger logger = Logger.getLogger(BinaryStreamingServer.class);
+
+    private final ServerSocket serverSocket;
+
+    private BinaryStreamingServer(ServerSocket serverSocket) {
+        this.serverSocket = serverSocket;
+    }
+
+    /**
+     * Starts the server on the port given by the remoteStreamingPort system property.
+     *
+     * @return the server, or null if the property is not set
+     */
+    public static BinaryStreamingServer startIfEnabled() throws IOException {
+        String port = System.getProperty("remoteStreamingPort");
+        if (port == null)
+            return null;
+        int portNumber = port.trim().length() == 0 ? DEFAULT_STREAMING_PORT : Integer.parseInt(port.trim());
+        boolean ssl = Boolean.getBoolean("remoteStreamingSSL");
+        if (!ssl && Main.getContainerConfig().isAcEnabled()) {
+            logger.error("The binary streaming server is not started, remoteStreamingSSL MUST be true when Access Control is enabled !");
+            return null;
+        }
+        BinaryStreamingServer server = new BinaryStreamingServer(ssl ? sslServerSocket(portNumber) : new ServerSocket(portNumber));
+        Thread t = new Thread(server, "BinaryStreamingServer");
+        t.setDaemon(true);
+        t.start();
+        logger.info("Binary streaming server running @ port: " + server.serverSocket.getLocalPort() + (ssl ? " (TLS)" : ""));
+        return server;
+    }
+
+    private static ServerSocket sslServerSocket(int port) throws IOException {
+        ContainerConfig config = Main.getContainerConfig();
+        try {
+            KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+            FileInputStream input = new FileInputStream(KEYSTORE);
+            try {
+                keyStore.load(input, config.getSSLKeyPassword().toCharArray());
+            } finally {
+                input.close();
+            }
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, config.getSSLKeyStorePassword().toCharArray());
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), null, null);
+            return context.getServerSocketFactory().createServerSocket(port);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot set up TLS with " + KEYSTORE + ": " + e.getMessage(), e);
+        }
+    }
+
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        handle(socket);
+                    }
+                }, "BinaryStreamingServer-" + socket.getRemoteSocketAddress());
+                t.setDaemon(true);
+                t.start();
+            } catch (SocketException e) {
+                logger.debug(e.getMessage(), e);
+            } catch (IOException e) {
+                logger.warn(e.getMessage(), e);
+            }
+        }
+    }
+
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
+    private void handle(Socket socket) {
+        DataOutputStream out = null;
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = BinaryDelivery.outputStream(socket);
+
+            BinaryStreamProtocol.Frame frame = BinaryStreamProtocol.readFrame(in);
+            if (frame.type != BinaryStreamProtocol.HELLO)
+                throw new IOException("Unexpected frame type: " + frame.type);
+            DataInputStream hello = frame.data();
+            int version = hello.readInt();
+            if (version != BinaryStreamProtocol.VERSION) {
+                BinaryDelivery.reject(socket, out, "Unsupported protocol version: " + version);
+                return;
+            }
+            boolean compression = hello.readBoolean();
+            String query = hello.readUTF();
+            long startTime = hello.readLong();
+            long lastVisitedPk = hello.readLong();
+            int credits = hello.readInt();
+            String username = hello.readUTF();
+            String password = hello.readUTF();
+
+            String tableName = SQLValidator.getInstance().validateQuery(query);
+            if (tableName == null) {
+                BinaryDelivery.reject(socket, out, "Bad Table name in the query:" + query);
+                return;
+            }
+            // the table names are in lower case in GSN, see RestStreamHanlder
+            tableName = tableName.trim();
+            query = SQLUtils.newRewrite(query, tableName, tableName.toLowerCase()).toString();
+            tableName = tableName.toLowerCase();
+            VSensorConfig config = Mappings.getConfig(tableName);
+            if (config == null) {
+                BinaryDelivery.reject(socket, out, "Unknown virtual sensor: " + tableName);
+                return;
+            }
+
+            if (Main.getContainerConfig().isAcEnabled() && DataSource.isVSManaged(config.getName())) {
+                User user = username.length() == 0 ? null : GeneralServicesAPI.getInstance().doLogin(username, password);
+                if (user == null || (!user.isAdmin() && !user.hasReadAccessRight(config.getName()))) {
+                    BinaryDelivery.reject(socket, out, "Unauthorized access.");
+                    return;
+                }
+            }
+
+            BinaryDelivery delivery = new BinaryDelivery(socket, in, out, compression, credits);
+            DefaultDistributionRequest request = DefaultDistributionRequest.create(delivery, config, query, startTime, lastVisitedPk);
+            DataDistributer.getInstance(BinaryDelivery.class).addListener(request);
+            logger.debug("Binary streaming request received and registered:" + request);
+            delivery.readCredits();
+        } catch (Exception e) {
+            logger.warn("Binary streaming request from " + socket.getRemoteSocketAddress() + " failed: " + e.getMessage());
+            if (out != null)
+                BinaryDelivery.reject(socket, out, String.valueOf(e.getMessage()));
+        }
+    }
+}
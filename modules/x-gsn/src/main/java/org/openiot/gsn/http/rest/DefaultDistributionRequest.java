@@ -62,6 +62,16 @@ public class DefaultDistributionRequest implements DistributionRequest {
 		return toReturn;
 	}
 
+	/**
+	 * Creates a request resuming after the stream element with the given primary key, used by the remote wrappers
+	 * reconnecting after a failure.
+	 */
+	public static DefaultDistributionRequest create(DeliverySystem deliverySystem, VSensorConfig sensorConfig,String query, long startTime, long lastVisitedPk) throws IOException, SQLException {
+		DefaultDistributionRequest toReturn = new DefaultDistributionRequest(deliverySystem,sensorConfig,query,startTime);
+		toReturn.lastVisitedPk = lastVisitedPk;
+		return toReturn;
+	}
+
 	public String toString() {
 		return new StringBuilder("DefaultDistributionRequest Request[[ Delivery System: ")
                 .append(deliverySystem.getClass().getName())
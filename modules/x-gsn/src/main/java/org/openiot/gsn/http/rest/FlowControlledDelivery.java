@@ -0,0 +1,40 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*   
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.http.rest;
+
+/**
+ * A delivery system which can't always take a stream element, as the {@link BinaryDelivery} waiting for credits.
+ * The DataDistributer skips its listeners while it is not ready, instead of handing it elements it would have to
+ * drop, and tries them again once the delivery tells it is ready.
+ */
+public interface FlowControlledDelivery extends DeliverySystem {
+
+    /**
+     * @return true if the delivery can take a stream element now
+     */
+    public abstract boolean isReady();
+
+    /**
+     * Sets the callback run (from any thread) when the delivery may have become ready.
+     */
+    public abstract void setReadyListener(Runnable listener);
+
+}
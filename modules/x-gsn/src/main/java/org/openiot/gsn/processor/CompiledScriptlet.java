@@ -0,0 +1,55 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.processor;
+
+import groovy.lang.Script;
+
+import java.util.Map;
+
+/**
+ * Base class of the scriptlets compiled with static type checking by the {@link ScriptletProcessor}.
+ * <p/>
+ * The generated prologue declares one typed local variable per input field, read from {@link #__in}, and the
+ * generated epilogue copies the output fields into {@link #__out}. An instance is only used by one thread at a time.
+ */
+public abstract class CompiledScriptlet extends Script {
+
+    /**
+     * The values of the input fields, in the order of the input structure.
+     */
+    public Object[] __in;
+
+    /**
+     * The values of the output fields, in the order of the output structure.
+     */
+    public Object[] __out;
+
+    /**
+     * The timestamp of the input element, bound to the TIMED variable.
+     */
+    public long __timed;
+
+    /**
+     * The variables kept between two evaluations, shared with the periodic scriptlet.
+     */
+    public Map<String, Object> state;
+
+}
@@ -23,15 +23,39 @@
 package org.openiot.gsn.processor;
 
 import groovy.lang.*;
+import groovy.transform.CompileStatic;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.MultipleCompilationErrorsException;
+import org.codehaus.groovy.control.messages.SyntaxErrorMessage;
+import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer;
 import org.openiot.gsn.beans.DataField;
+import org.openiot.gsn.beans.DataTypes;
 import org.openiot.gsn.beans.StreamElement;
+import org.openiot.gsn.beans.StreamElementSchema;
 import org.openiot.gsn.vsensor.AbstractVirtualSensor;
 import org.apache.log4j.Logger;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This Processor (processing class) executes a scriptlet upon reception of a new  StreamElement and can be used to
@@ -92,7 +116,41 @@ import java.util.TreeMap;
  *      period, long, mandatoryif scriptlet-periodic is specified<br/>
  *      Define the period (in ms) between two execution of the scriptlet-periodic script.
  *      </li>
+ *      <li>
+ *      compile, String, optional<br/>
+ *      Either 'dynamic' (default) or 'static'. See STATIC COMPILATION below.
+ *      </li>
+ *      <li>
+ *      parallel, boolean, optional<br/>
+ *      Only with compile=static. Evaluates the received StreamElements concurrently, the produced StreamElements being
+ *      still stored in the order of reception.
+ *      </li>
+ *      <li>
+ *      threads, int, optional<br/>
+ *      The number of threads used in parallel mode, by default the number of processors.
+ *      </li>
  * </ul>
+ * STATIC COMPILATION
+ * ------------------
+ * <p>
+ * With compile=static, the 'scriptlet' is compiled with static type checking (@CompileStatic) for each structure of
+ * the received StreamElements. The input fields are bound to local variables typed after the input structure (Double,
+ * Long, Integer, Short, Byte, String or byte[]), TIMED is a Long and the output fields which are not input fields are
+ * declared too. Every other variable the scriptlet assigns must be declared, the method calls are checked at
+ * compilation time, and the values of the output fields are converted to the type of the output structure. The compiled classes are kept by the virtual sensor until
+ * it is unloaded. The scriptlet is type checked at initialization with the output structure as input structure, the
+ * variables it does not declare being only checked against the structure of the first received StreamElement.
+ * <br/>
+ * As the variables do not survive an evaluation, the state must be kept in the 'state' map (also bound to the
+ * periodic scriptlet), for instance:
+ * <br/>
+ * Long counter = (Long) state.get('counter'); state.put('counter', counter == null ? 0L : counter + 1)
+ * <br/>
+ * The 'isdef' helper and the 'binding' variable are not available, and the scriptlet must not 'return' at its top
+ * level, otherwise the output fields are not set. A compiled scriptlet may run concurrently with the periodic
+ * scriptlet, which stays dynamic. In parallel mode, each thread has its own instance of the scriptlet
+ * and the evaluations must not depend on each other (the 'state' map is shared and not ordered).
+ * </p>
  * PERIODICAL EXECUTION
  * --------------------
  * <p>
@@ -129,6 +187,20 @@ public class ScriptletProcessor extends AbstractVirtualSensor {
 
     private static final String PARAM_PERSITANT = "persistant";
 
+    private static final String PARAM_COMPILE = "compile";
+
+    private static final String PARAM_PARALLEL = "parallel";
+
+    private static final String PARAM_THREADS = "threads";
+
+    // the number of pending evaluations per thread in parallel mode, before the caller evaluates itself
+    private static final int MAX_PENDING_PER_THREAD = 64;
+
+    // compiled scriptlet classes keyed by their generated source, dropped with the class loader on dispose
+    private final ConcurrentHashMap<String, Class<?>> compiledClasses = new ConcurrentHashMap<String, Class<?>>();
+
+    private GroovyClassLoader loader = null;
+
     private Timer timer = null;
 
     /**
@@ -156,6 +228,32 @@ public class ScriptletProcessor extends AbstractVirtualSensor {
 
     private TimerTask periodicalTask = null;
 
+    private String scriptletSource = null;
+
+    private boolean compiled = false;
+
+    /**
+     * This field holds the state of the compiled scriptlet, which is also bound to the periodic scriptlet as 'state'.
+     */
+    protected final Map<String, Object> state = Collections.synchronizedMap(new HashMap<String, Object>());
+
+    // per thread instances of the compiled scriptlet, by input structure (null if it failed to compile)
+    private final ThreadLocal<Map<StreamElementSchema, CompiledScriptlet>> instances = new ThreadLocal<Map<StreamElementSchema, CompiledScriptlet>>() {
+        protected Map<StreamElementSchema, CompiledScriptlet> initialValue() {
+            Map<StreamElementSchema, CompiledScriptlet> scripts = Collections.synchronizedMap(new HashMap<StreamElementSchema, CompiledScriptlet>());
+            allInstances.add(scripts);
+            return scripts;
+        }
+    };
+
+    // the maps of all the threads, cleared on dispose as the threads calling dataAvailable outlive the virtual sensor
+    private final List<Map<StreamElementSchema, CompiledScriptlet>> allInstances = Collections.synchronizedList(new ArrayList<Map<StreamElementSchema, CompiledScriptlet>>());
+
+    private ThreadPoolExecutor executor = null;
+
+    // parallel evaluations, in the order of reception
+    private final LinkedList<FutureTask<StreamElement>> pending = new LinkedList<FutureTask<StreamElement>>();
+
     @Override
     public boolean initialize() {
         return initialize(
@@ -168,11 +266,40 @@ public class ScriptletProcessor extends AbstractVirtualSensor {
     public void dispose() {
         if (periodicalTask != null)
             periodicalTask.cancel();
+        if (executor != null)
+            executor.shutdown();
+        synchronized (allInstances) {
+            for (Map<StreamElementSchema, CompiledScriptlet> scripts : allInstances)
+                scripts.clear();
+            allInstances.clear();
+        }
+        instances.remove();
+        compiledClasses.clear();
+        synchronized (compiledClasses) {
+            if (loader != null) {
+                loader.clearCache();
+                try {
+                    loader.close();
+                }
+                catch (IOException e) {
+                    logger.warn("Failed to close the scriptlet class loader " + e.getMessage());
+                }
+                loader = null;
+            }
+        }
     }
 
     @Override
     public void dataAvailable(String inputStreamName, StreamElement se) {
-        evaluate(scriptlet, se, persistant);
+        if (!compiled)
+            evaluate(scriptlet, se, persistant);
+        else if (executor != null)
+            submit(se);
+        else {
+            StreamElement seo = evaluateCompiled(se);
+            if (seo != null && persistant)
+                dataProduced(seo);
+        }
     }
 
     protected boolean initialize(DataField[] outputStructure, TreeMap<String, String> parameters) {
@@ -196,6 +323,7 @@ public class ScriptletProcessor extends AbstractVirtualSensor {
 
         String ps1 = parameters.get(PARAM_SCRIPTLET);
         if (ps1 != null) {
+            scriptletSource = ps1;
             scriptlet = initScriptlet(ps1);
             if (scriptlet == null)
                 return false;
@@ -229,6 +357,42 @@ public class ScriptletProcessor extends AbstractVirtualSensor {
             }
         }
 
+        String compile = parameters.get(PARAM_COMPILE);
+        if (compile != null && !compile.equalsIgnoreCase("dynamic")) {
+            if (!compile.equalsIgnoreCase("static")) {
+                logger.warn("The Initial Parameter >" + PARAM_COMPILE + "< must be either 'static' or 'dynamic'.");
+                return false;
+            }
+            compiled = scriptletSource != null;
+            if (compiled && !checkCompiledScriptlet())
+                return false;
+        }
+        if (Boolean.parseBoolean(parameters.get(PARAM_PARALLEL))) {
+            if (!compiled) {
+                logger.warn("The Initial Parameter >" + PARAM_PARALLEL + "< requires >" + PARAM_COMPILE + "< to be 'static'.");
+                return false;
+            }
+            int threads = Runtime.getRuntime().availableProcessors();
+            if (parameters.containsKey(PARAM_THREADS)) {
+                try {
+                    threads = Math.max(1, Integer.parseInt(parameters.get(PARAM_THREADS).trim()));
+                }
+                catch (NumberFormatException e) {
+                    logger.warn("Invalid >" + PARAM_THREADS + "< parameter, using " + threads + " threads.");
+                }
+            }
+            executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(threads * MAX_PENDING_PER_THREAD), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ScriptletProcessor");
+                    t.setDaemon(true);
+                    return t;
+                }
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        if (compiled)
+            context.setVariable("state", state);
+
         // Add the periodical task to the timer if needed.
         if (scriptletPeriodic != null && period >= 0) {
             periodicalTask = new TimerTask() {
@@ -315,6 +479,223 @@ public class ScriptletProcessor extends AbstractVirtualSensor {
         }
     }
 
+    /**
+     * Evaluates the compiled scriptlet on the given StreamElement.
+     *
+     * @return the StreamElement matching the output structure, or null if the scriptlet does not compile for the
+     *         structure of the given StreamElement
+     */
+    protected StreamElement evaluateCompiled(StreamElement se) {
+        StreamElementSchema schema = se.getSchema();
+        CompiledScriptlet script = getCompiledScriptlet(schema);
+        if (script == null)
+            return null;
+        for (int i = 0; i < script.__in.length; i++)
+            script.__in[i] = convert(se.getData(i), schema.getType(i));
+        script.__timed = se.getTimeStamp();
+        script.run();
+        Serializable[] data = new Serializable[outputStructure.length];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (Serializable) convert(script.__out[i], outputStructure[i].getDataTypeID());
+        StreamElement seo = new StreamElement(outputStructure, data);
+        if (script.__timed >= 0)
+            seo.setTimeStamp(script.__timed);
+        return seo;
+    }
+
+    private CompiledScriptlet getCompiledScriptlet(StreamElementSchema schema) {
+        Map<StreamElementSchema, CompiledScriptlet> scripts = instances.get();
+        CompiledScriptlet script = scripts.get(schema);
+        if (script == null && !scripts.containsKey(schema)) {
+            Class<?> clazz = compile(generateSource(schema));
+            if (clazz != null) {
+                try {
+                    script = (CompiledScriptlet) clazz.newInstance();
+                    script.__in = new Object[schema.size()];
+                    script.__out = new Object[outputStructure.length];
+                    script.state = state;
+                }
+                catch (Exception e) {
+                    logger.error("Failed to instantiate the compiled scriptlet " + e.getMessage(), e);
+                    script = null;
+                }
+            }
+            scripts.put(schema, script);
+        }
+        return script;
+    }
+
+    /*
+    * Type checks the scriptlet with the output structure as input structure. The input structure is only known with the
+    * first StreamElement, so the errors on the variables which are not declared are left until then.
+    * */
+    private boolean checkCompiledScriptlet() {
+        String source = generateSource(StreamElementSchema.intern(outputStructure));
+        try {
+            Class<?> clazz = getLoader().parseClass(source, "Scriptlet" + Integer.toHexString(source.hashCode()) + ".groovy");
+            compiledClasses.putIfAbsent(source, clazz);
+            return true;
+        }
+        catch (MultipleCompilationErrorsException e) {
+            for (Object message : e.getErrorCollector().getErrors()) {
+                if (!(message instanceof SyntaxErrorMessage) || !((SyntaxErrorMessage) message).getCause().getOriginalMessage().trim().endsWith("is undeclared.")) {
+                    logger.error("Failed to compile the scriptlet " + e.getMessage());
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private GroovyClassLoader getLoader() {
+        synchronized (compiledClasses) {
+            if (loader == null) {
+                CompilerConfiguration configuration = new CompilerConfiguration();
+                configuration.setScriptBaseClass(CompiledScriptlet.class.getName());
+                configuration.addCompilationCustomizers(new ASTTransformationCustomizer(CompileStatic.class));
+                loader = new GroovyClassLoader(ScriptletProcessor.class.getClassLoader(), configuration);
+            }
+            return loader;
+        }
+    }
+
+    protected Class<?> compile(String source) {
+        Class<?> clazz = compiledClasses.get(source);
+        if (clazz != null)
+            return clazz;
+        try {
+            clazz = getLoader().parseClass(source, "Scriptlet" + Integer.toHexString(source.hashCode()) + ".groovy");
+            logger.debug("Compiled script: \n" + source);
+        }
+        catch (Exception e) {
+            logger.error("Failed to compile the scriptlet " + e.getMessage());
+            return null;
+        }
+        Class<?> previous = compiledClasses.putIfAbsent(source, clazz);
+        return previous == null ? clazz : previous;
+    }
+
+    /**
+     * Wraps the scriptlet with the typed declarations of the fields of the given input structure and the copy of the
+     * output fields.
+     */
+    protected String generateSource(StreamElementSchema schema) {
+        StringBuilder source = new StringBuilder();
+        source.append("// start auto generated part --\n");
+        source.append("import static ").append(org.openiot.gsn.utils.services.EmailService.class.getCanonicalName()).append(".*;\n");
+        source.append("import static ").append(org.openiot.gsn.utils.services.TwitterService.class.getCanonicalName()).append(".*;\n");
+        Set<String> declared = new HashSet<String>();
+        declared.add("TIMED");
+        for (int i = 0; i < schema.size(); i++) {
+            String name = schema.getFieldName(i).toUpperCase();
+            if (!declared.add(name))
+                continue;
+            // declared with def, so that an assignment can change the type (e.g. TEMPERATURE = TEMPERATURE * 0.95)
+            source.append("def ").append(name).append(" = (").append(groovyType(schema.getType(i))).append(") __in[").append(i).append("];\n");
+        }
+        source.append("Long TIMED = __timed;\n");
+        for (DataField df : outputStructure) {
+            String name = df.getName().toUpperCase();
+            if (declared.add(name))
+                source.append("def ").append(name).append(" = null;\n");
+        }
+        source.append("// end auto generated part --\n");
+        source.append(scriptletSource).append('\n');
+        source.append("// start auto generated part --\n");
+        for (int i = 0; i < outputStructure.length; i++)
+            source.append("__out[").append(i).append("] = ").append(outputStructure[i].getName().toUpperCase()).append(";\n");
+        source.append("__timed = TIMED == null ? -1L : TIMED.longValue();\n");
+        source.append("// end auto generated part --\n");
+        return source.toString();
+    }
+
+    private static String groovyType(byte type) {
+        switch (type) {
+            case DataTypes.DOUBLE:
+                return "Double";
+            case DataTypes.BIGINT:
+                return "Long";
+            case DataTypes.INTEGER:
+                return "Integer";
+            case DataTypes.SMALLINT:
+                return "Short";
+            case DataTypes.TINYINT:
+                return "Byte";
+            case DataTypes.VARCHAR:
+            case DataTypes.CHAR:
+                return "String";
+            case DataTypes.BINARY:
+                return "byte[]";
+            default:
+                return "Object";
+        }
+    }
+
+    /*
+    * Converts the numbers to the boxed type of the given GSN type
+    * */
+    private static Object convert(Object value, byte type) {
+        if (value == null)
+            return null;
+        if (value instanceof Number) {
+            Number n = (Number) value;
+            switch (type) {
+                case DataTypes.DOUBLE:
+                    return value instanceof Double ? value : Double.valueOf(n.doubleValue());
+                case DataTypes.BIGINT:
+                    return value instanceof Long ? value : Long.valueOf(n.longValue());
+                case DataTypes.INTEGER:
+                    return value instanceof Integer ? value : Integer.valueOf(n.intValue());
+                case DataTypes.SMALLINT:
+                    return value instanceof Short ? value : Short.valueOf(n.shortValue());
+                case DataTypes.TINYINT:
+                    return value instanceof Byte ? value : Byte.valueOf(n.byteValue());
+            }
+        }
+        if ((type == DataTypes.VARCHAR || type == DataTypes.CHAR) && !(value instanceof String))
+            return value.toString();
+        return value;
+    }
+
+    /*
+    * Evaluates the StreamElement in the executor, the results are produced in the order of reception by drain()
+    * */
+    private void submit(final StreamElement se) {
+        FutureTask<StreamElement> task = new FutureTask<StreamElement>(new Callable<StreamElement>() {
+            public StreamElement call() {
+                return evaluateCompiled(se);
+            }
+        }) {
+            protected void done() {
+                drain();
+            }
+        };
+        synchronized (pending) {
+            pending.add(task);
+        }
+        executor.execute(task);
+    }
+
+    private void drain() {
+        synchronized (pending) {
+            while (!pending.isEmpty() && pending.getFirst().isDone()) {
+                FutureTask<StreamElement> task = pending.removeFirst();
+                try {
+                    StreamElement seo = task.get();
+                    if (seo != null && persistant)
+                        dataProduced(seo);
+                }
+                catch (ExecutionException e) {
+                    logger.error("Failed to evaluate the scriptlet " + e.getCause().getMessage(), e.getCause());
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
     private synchronized Timer getTimer() {
         if (timer == null)
             timer = new Timer(false);
@@ -35,6 +35,9 @@ import org.openiot.gsn.beans.StreamElement;
 import org.junit.Test;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.TreeMap;
 
 public class TestScriptletProcessor {
@@ -186,8 +189,85 @@ public class TestScriptletProcessor {
         processor.evaluate(processor.scriptlet, se, true);
     }
 
+    @Test
+    public void testStaticCompilation() {
+        TreeMap<String,String> parameters = new TreeMap<String,String>();
+        parameters.put("scriptlet", "SPEED = SPEED * 2; ANGLE = TEMPERATURE + ANGLE; Integer offset = 1; TEMPERATURE = TEMPERATURE + offset");
+        parameters.put("compile", "static");
+        ScriptletProcessor processor = new ScriptletProcessor();
+        assertTrue(processor.initialize(dataFields1, parameters));
+        StreamElement se = new StreamElement(dataFields1, data1);
+        se.setTimeStamp(123456L);
+        StreamElement seo = processor.evaluateCompiled(se);
+        assertEquals(24, seo.getData("temperature"));
+        assertEquals(4.68, seo.getData("speed"));
+        assertEquals(14, seo.getData("angle"));
+        assertEquals(-4.5, seo.getData("image"));
+        assertEquals(123456L, seo.getTimeStamp());
+        processor.dispose();
+    }
+
+    @Test
+    public void testStaticCompilationRejectsTypeErrors() {
+        TreeMap<String,String> parameters = new TreeMap<String,String>();
+        parameters.put("scriptlet", "Integer offset = 'not a number'; TEMPERATURE = TEMPERATURE + offset");
+        parameters.put("compile", "static");
+        assertFalse(new ScriptletProcessor().initialize(dataFields1, parameters));
+        //
+        parameters.put("scriptlet", "SPEED = SPEED.noSuchMethod()");
+        assertFalse(new ScriptletProcessor().initialize(dataFields1, parameters));
+        // the input fields which are not output fields are only known with the first StreamElement
+        parameters.put("scriptlet", "ATM = SPEED * 2; PRESSURE = PRESSURE");
+        assertTrue(new ScriptletProcessor().initialize(dataFields2, parameters));
+    }
+
+    @Test
+    public void testParallelEvaluation() throws InterruptedException {
+        String scriptlet = "SPEED = SPEED * ANGLE; TEMPERATURE = TEMPERATURE + 1; TIMED = TIMED + 1";
+        List<StreamElement> sequential = evaluateAll(getCollectingProcessor(scriptlet, false), 500);
+        List<StreamElement> parallel = evaluateAll(getCollectingProcessor(scriptlet, true), 500);
+        assertEquals(500, sequential.size());
+        assertEquals(sequential.size(), parallel.size());
+        for (int i = 0; i < sequential.size(); i++) {
+            assertEquals(sequential.get(i).getTimeStamp(), parallel.get(i).getTimeStamp());
+            for (DataField df : dataFields1)
+                assertEquals(sequential.get(i).getData(df.getName()), parallel.get(i).getData(df.getName()));
+        }
+    }
+
     //
 
+    private List<StreamElement> evaluateAll(CollectingProcessor processor, int count) throws InterruptedException {
+        for (int i = 0; i < count; i++)
+            processor.dataAvailable("input", new StreamElement(dataFields1, new Serializable[] { i, i / 10.0, i % 7, -4.5 }, i * 1000L));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (processor.produced.size() < count && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        processor.dispose();
+        return processor.produced;
+    }
+
+    private CollectingProcessor getCollectingProcessor(String scriptlet, boolean parallel) {
+        CollectingProcessor processor = new CollectingProcessor();
+        TreeMap<String,String> parameters = new TreeMap<String,String>();
+        parameters.put("scriptlet", scriptlet);
+        parameters.put("compile", "static");
+        parameters.put("parallel", Boolean.toString(parallel));
+        parameters.put("threads", "4");
+        assertTrue(processor.initialize(dataFields1, parameters));
+        return processor;
+    }
+
+    private static class CollectingProcessor extends ScriptletProcessor {
+
+        private final List<StreamElement> produced = Collections.synchronizedList(new ArrayList<StreamElement>());
+
+        @Override
+        protected synchronized void dataProduced(StreamElement se) {
+            produced.add(se);
+        }
+    }
+
     private ScriptletProcessor getProcessor(DataField[] outputStructure, String scriptlet) {
         ScriptletProcessor processor = new ScriptletProcessor();
         TreeMap<String,String> parameters = new TreeMap<String,String>();
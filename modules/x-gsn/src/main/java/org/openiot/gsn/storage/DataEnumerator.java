@@ -29,6 +29,7 @@ package org.openiot.gsn.storage;
 
 import org.openiot.gsn.beans.DataTypes;
 import org.openiot.gsn.beans.StreamElement;
+import org.openiot.gsn.beans.StreamElementSchema;
 
 import java.io.Serializable;
 import java.sql.PreparedStatement;
@@ -59,6 +60,8 @@ public class DataEnumerator implements DataEnumeratorIF {
 
 	private Byte [ ]      dataFieldTypes;
 
+	private StreamElementSchema schema;
+
 	private boolean          hasNext                  = false;
 
 	boolean                  hasTimedFieldInResultSet = false;
@@ -131,6 +134,7 @@ public class DataEnumerator implements DataEnumeratorIF {
 			}
 			dataFieldNames = fieldNames.toArray( new String [ ] {} );
 			dataFieldTypes = fieldTypes.toArray( new Byte [ ] {} );
+			schema = StreamElementSchema.intern( dataFieldNames , dataFieldTypes );
 			if ( indexofPK == -1 && linkBinaryData ) throw new RuntimeException( "The specified query can't be used with binaryLinked paramter set to true." );
 		} catch ( Exception e ) {
 			logger.error("Trying to create DataEnumerator with:\n"+preparedStatement.toString());
@@ -199,7 +203,7 @@ public class DataEnumerator implements DataEnumeratorIF {
 					innerIndex++;
 				}
 			}
-			streamElement = new StreamElement( dataFieldNames , dataFieldTypes , output , indexOfTimedField == -1 ? System.currentTimeMillis( ) : timestamp );
+			streamElement = new StreamElement( schema , output , indexOfTimedField == -1 ? System.currentTimeMillis( ) : timestamp );
 			if ( indexofPK != -1 ) streamElement.setInternalPrimayKey( pkValue );
 			hasNext = resultSet.next( );
 			if ( hasNext == false )
@@ -0,0 +1,652 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.storage;
+
+import org.openiot.gsn.Main;
+import org.openiot.gsn.beans.DataField;
+import org.openiot.gsn.beans.DataTypes;
+import org.openiot.gsn.beans.StreamElement;
+import org.openiot.gsn.beans.StreamElementSchema;
+import org.openiot.gsn.beans.VSensorConfig;
+import org.openiot.gsn.http.datarequest.StandardCriterion;
+import org.openiot.gsn.utils.GSNRuntimeException;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Maintains, for every virtual sensor with numeric fields, rollup tables holding the count, sum, min and max of each
+ * numeric field per time bucket, at the resolutions given by the <code>rollupResolutions</code> system property
+ * (comma separated milliseconds, default {@value #DEFAULT_RESOLUTIONS}, empty to disable). The table of the
+ * resolution R is named <code>&lt;vsname&gt;_rollup_&lt;R&gt;</code>, has one row per bucket (timed is the start of
+ * the bucket) and the columns <code>&lt;field&gt;_count, &lt;field&gt;_sum, &lt;field&gt;_min, &lt;field&gt;_max</code>.
+ * <p/>
+ * The rollups are updated as the data is published: the current bucket of each resolution is accumulated in memory
+ * and written when the data moves to the next bucket, so a rollup table holds every bucket before its
+ * <i>watermark</i> (the start of the current bucket) and the raw table is used from the watermark on. Late data
+ * (before the watermark) is merged into its bucket row. When a sensor is loaded, the buckets missing from its rollup
+ * tables are computed from the raw table (or from the finest rollup for the coarser resolutions).
+ * <p/>
+ * The rollups follow the storage size of the sensor: once its old rows are removed, the buckets which are no longer
+ * entirely in the raw table are dropped, and the raw rows before the first complete bucket (the <i>floor</i>) are
+ * used as they are, see {@link #prune}.
+ * <p/>
+ * Aggregation requests are answered from the coarsest rollup whose resolution divides the requested range, if all
+ * the aggregated fields are rolled up and all the criteria are bounds on timed aligned to that resolution (so each
+ * bucket is entirely in or out of the result), see {@link #findRollup}.
+ */
+public class RollupManager {
+
+    private static final transient Logger logger = Logger.getLogger(RollupManager.class);
+
+    public static final String DEFAULT_RESOLUTIONS = "60000,3600000,86400000";
+
+    private static final RollupManager singleton = new RollupManager(System.getProperty("rollupResolutions", DEFAULT_RESOLUTIONS));
+
+    public static RollupManager getInstance() {
+        return singleton;
+    }
+
+    private final long[] resolutions;
+
+    private final ConcurrentHashMap<String, SensorRollups> sensors = new ConcurrentHashMap<String, SensorRollups>();
+
+    RollupManager(String resolutions) {
+        List<Long> parsed = new ArrayList<Long>();
+        for (String r : resolutions.split(",")) {
+            if (r.trim().length() == 0)
+                continue;
+            try {
+                long resolution = Long.parseLong(r.trim());
+                if (resolution > 1 && !parsed.contains(resolution))
+                    parsed.add(resolution);
+                else
+                    logger.warn("Ignoring the rollup resolution >" + r + "<.");
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring the rollup resolution >" + r + "<, it is not a number of milliseconds.");
+            }
+        }
+        this.resolutions = new long[parsed.size()];
+        for (int i = 0; i < this.resolutions.length; i++)
+            this.resolutions[i] = parsed.get(i);
+        Arrays.sort(this.resolutions);
+    }
+
+    /**
+     * Creates (or catches up) the rollup tables of the virtual sensor, called once its table exists and before it
+     * produces data. Failures are logged and leave the sensor without rollups.
+     */
+    public void register(VSensorConfig config) {
+        if (resolutions.length == 0 || !config.needsStorage())
+            return;
+        List<DataField> numeric = new ArrayList<DataField>();
+        for (DataField field : config.getOutputStructure())
+            if (isNumeric(field.getDataTypeID()) && !field.getName().equalsIgnoreCase("timed") && !field.getName().equalsIgnoreCase("pk"))
+                numeric.add(field);
+        if (numeric.isEmpty())
+            return;
+        register(config.getName(), Main.getStorage(config), numeric.toArray(new DataField[numeric.size()]));
+    }
+
+    void register(String vsName, StorageManager storage, DataField[] fields) {
+        SensorRollups rollups = new SensorRollups(vsName, storage, fields);
+        try {
+            long start = System.currentTimeMillis();
+            for (Level level : rollups.levels)
+                rollups.catchUp(level);
+            sensors.put(vsName.toLowerCase(), rollups);
+            logger.info("Rollups of " + vsName + " at " + Arrays.toString(resolutions) + " ms ready in " + (System.currentTimeMillis() - start) + " ms.");
+        } catch (SQLException e) {
+            logger.error("Could not prepare the rollups of " + vsName + ", its aggregations will use the raw data: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Forgets the rollups of the virtual sensor and drops its tables (like its raw table, so that a new structure
+     * does not conflict).
+     */
+    public void unregister(String vsName) {
+        SensorRollups rollups = sensors.remove(vsName.toLowerCase());
+        if (rollups == null)
+            return;
+        for (Level level : rollups.levels) {
+            try {
+                rollups.storage.executeDropTable(level.tableName);
+            } catch (SQLException e) {
+                logger.warn("Problem deleting the rollup table " + level.tableName + ".", e);
+            }
+        }
+    }
+
+    /**
+     * Adds the element, just inserted in the table of the virtual sensor, to its rollups. The calls for one sensor
+     * must not be concurrent (they are made under the publishing lock of the container).
+     */
+    public void update(String vsName, StreamElement se) {
+        SensorRollups rollups = sensors.get(vsName.toLowerCase());
+        if (rollups == null)
+            return;
+        int[] indexes = new int[rollups.fields.length];
+        for (int i = 0; i < indexes.length; i++)
+            indexes[i] = se.indexOf(rollups.fields[i].getName());
+        for (Level level : rollups.levels) {
+            try {
+                rollups.add(level, se, indexes);
+            } catch (SQLException e) {
+                logger.error("Could not update the rollup table " + level.tableName + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Drops the buckets of the rollups of the virtual sensor which are no longer entirely in its table, called after
+     * its storage size was enforced. If that fails, its aggregations use the raw table until the next call.
+     */
+    public void prune(String vsName) {
+        SensorRollups rollups = sensors.get(vsName.toLowerCase());
+        if (rollups == null)
+            return;
+        Connection connection = null;
+        try {
+            connection = rollups.storage.getConnection();
+            for (Level level : rollups.levels)
+                rollups.prune(level, connection);
+            rollups.pruned = true;
+        } catch (SQLException e) {
+            logger.error("Could not prune the rollups of " + vsName + ", its aggregations will use the raw data: " + e.getMessage(), e);
+            rollups.pruned = false;
+        } finally {
+            rollups.storage.close(connection);
+        }
+    }
+
+    /**
+     * Returns the coarsest rollup which can answer the aggregation of the fields of the virtual sensor by the given
+     * range (in milliseconds) under the given criteria, or null if the raw table must be used.
+     */
+    public Rollup findRollup(String vsName, long range, String[] fields, List<StandardCriterion> criteria) {
+        SensorRollups rollups = sensors.get(vsName.toLowerCase());
+        if (rollups == null || !rollups.pruned)
+            return null;
+        DataField[] aggregated = new DataField[fields.length];
+        String[] averageTypes = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            for (int j = 0; j < rollups.fields.length; j++) {
+                if (rollups.fields[j].getName().equalsIgnoreCase(fields[i].trim())) {
+                    aggregated[i] = rollups.fields[j];
+                    averageTypes[i] = rollups.averageTypes[j];
+                }
+            }
+            if (aggregated[i] == null)
+                return null;
+        }
+        // the bounds on timed, a bucket is entirely in or out of the result if they are aligned to its resolution
+        List<Long> bounds = new ArrayList<Long>();
+        if (criteria != null) {
+            for (StandardCriterion cc : criteria) {
+                if (cc.getVsname().compareTo("") != 0 && cc.getVsname().compareToIgnoreCase(vsName) != 0)
+                    continue;
+                if (!cc.getField().trim().equalsIgnoreCase("timed"))
+                    return null;
+                long value;
+                try {
+                    value = Long.parseLong(cc.getValue().trim());
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                String op = cc.getOperator().trim();
+                if (op.equals(">=") || op.equals("<"))
+                    bounds.add(value);
+                else if (op.equals(">") || op.equals("<="))
+                    bounds.add(value + 1);
+                else
+                    return null;
+            }
+        }
+        nextLevel:
+        for (int i = rollups.levels.length - 1; i >= 0; i--) {
+            Level level = rollups.levels[i];
+            if (range % level.resolution != 0)
+                continue;
+            for (long bound : bounds)
+                if (bound % level.resolution != 0)
+                    continue nextLevel;
+            long watermark = level.watermark;
+            long floor = level.floor;
+            if (watermark == Long.MIN_VALUE || floor >= watermark)
+                continue;
+            return new Rollup(level.tableName, level.resolution, floor, watermark, aggregated, averageTypes, rollups.sumType);
+        }
+        return null;
+    }
+
+    static boolean isNumeric(byte type) {
+        return type == DataTypes.DOUBLE || type == DataTypes.BIGINT || type == DataTypes.INTEGER || type == DataTypes.SMALLINT || type == DataTypes.TINYINT;
+    }
+
+    /**
+     * A rollup table chosen for a query, with the floor and the watermark it had at that time.
+     */
+    public static class Rollup {
+
+        private final String tableName;
+        private final long resolution;
+        private final long floor;
+        private final long watermark;
+        private final DataField[] fields;
+        private final String[] averageTypes;
+        private final String sumType;
+
+        Rollup(String tableName, long resolution, long floor, long watermark, DataField[] fields, String[] averageTypes, String sumType) {
+            this.tableName = tableName;
+            this.resolution = resolution;
+            this.floor = floor;
+            this.watermark = watermark;
+            this.fields = fields;
+            this.averageTypes = averageTypes;
+            this.sumType = sumType;
+        }
+
+        public String getTableName() {
+            return tableName;
+        }
+
+        public long getResolution() {
+            return resolution;
+        }
+
+        /**
+         * Returns the expression aggregating the rollup columns of the field with the group operator (min, max or
+         * avg) of an AggregationCriterion. The average of an integer field is an integer division cast back to the
+         * type of the field, as it is on the raw table.
+         */
+        public String getAggregate(String groupOperator, String field) {
+            String column = field.trim().toUpperCase();
+            if (groupOperator.equalsIgnoreCase("min"))
+                return "min(" + column + "_MIN)";
+            if (groupOperator.equalsIgnoreCase("max"))
+                return "max(" + column + "_MAX)";
+            for (int i = 0; i < fields.length; i++)
+                if (fields[i].getName().equalsIgnoreCase(field.trim()) && averageTypes[i] != null)
+                    return "cast(cast(sum(" + column + "_SUM) as " + sumType + ")/nullif(cast(sum(" + column + "_COUNT) as " + sumType + "),0) as " + averageTypes[i] + ")";
+            return "sum(" + column + "_SUM)/nullif(sum(" + column + "_COUNT),0)";
+        }
+
+        /**
+         * Returns the query to use instead of the raw table of the virtual sensor: the buckets between the floor and
+         * the watermark followed by the raw rows outside of them, presented as one-row buckets.
+         */
+        public StringBuilder getSourceQuery(String vsName) {
+            StringBuilder rolled = new StringBuilder("select timed");
+            StringBuilder raw = new StringBuilder("select timed");
+            for (DataField field : fields) {
+                String column = field.getName().toUpperCase();
+                rolled.append(", ").append(column).append("_COUNT, ").append(column).append("_SUM, ").append(column).append("_MIN, ").append(column).append("_MAX");
+                raw.append(", case when ").append(column).append(" is null then 0 else 1 end, ").append(column).append(", ").append(column).append(", ").append(column);
+            }
+            rolled.append(" from ").append(tableName).append(" where timed < ").append(watermark);
+            raw.append(" from ").append(vsName).append(" where timed >= ").append(watermark);
+            if (floor != Long.MIN_VALUE) {
+                rolled.append(" and timed >= ").append(floor);
+                raw.append(" or timed < ").append(floor);
+            }
+            return rolled.append(" union all ").append(raw);
+        }
+    }
+
+    /**
+     * One resolution of the rollups of a sensor. The bucket being filled is only accessed by the publishing thread.
+     */
+    private static class Level {
+
+        final long resolution;
+        final String tableName;
+        volatile long watermark = Long.MIN_VALUE;
+        /** the start of the first bucket whose rows are all in the raw table, the rollup table starts there */
+        volatile long floor = Long.MIN_VALUE;
+
+        long bucket = Long.MIN_VALUE;
+        final long[] count;
+        final double[] sum;
+        final double[] min;
+        final double[] max;
+
+        Level(String vsName, long resolution, int nbFields) {
+            this.resolution = resolution;
+            this.tableName = vsName + "_rollup_" + resolution;
+            count = new long[nbFields];
+            sum = new double[nbFields];
+            min = new double[nbFields];
+            max = new double[nbFields];
+        }
+
+        long bucketOf(long timed) {
+            long b = timed / resolution;
+            if (timed < 0 && b * resolution != timed)
+                b--;
+            return b * resolution;
+        }
+
+        void reset(long bucket) {
+            this.bucket = bucket;
+            Arrays.fill(count, 0);
+            Arrays.fill(sum, 0);
+        }
+
+        void accumulate(int i, double value) {
+            if (count[i] == 0) {
+                min[i] = value;
+                max[i] = value;
+            } else {
+                min[i] = Math.min(min[i], value);
+                max[i] = Math.max(max[i], value);
+            }
+            count[i]++;
+            sum[i] += value;
+        }
+    }
+
+    private class SensorRollups {
+
+        final String vsName;
+        final StorageManager storage;
+        final DataField[] fields;
+        /** the SQL type the average of each field is cast to, null for a double */
+        final String[] averageTypes;
+        /** the SQL type the sums of an integer field and of its count are cast to before their division */
+        final String sumType;
+        final DataField[] structure;
+        final StreamElementSchema schema;
+        final Level[] levels;
+        /** false if the last pruning failed, the rollups may then hold rows no longer in the raw table */
+        volatile boolean pruned = true;
+
+        SensorRollups(String vsName, StorageManager storage, DataField[] fields) {
+            this.vsName = vsName;
+            this.storage = storage;
+            this.fields = fields;
+            sumType = storage.isMysqlDB() ? "signed" : storage.convertGSNTypeToLocalType(new DataField("sum", DataTypes.BIGINT));
+            averageTypes = new String[fields.length];
+            for (int i = 0; i < fields.length; i++)
+                if (fields[i].getDataTypeID() != DataTypes.DOUBLE)
+                    averageTypes[i] = storage.isMysqlDB() ? "signed" : storage.convertGSNTypeToLocalType(fields[i]);
+            structure = new DataField[fields.length * 4];
+            for (int i = 0; i < fields.length; i++) {
+                String name = fields[i].getName().toUpperCase();
+                structure[4 * i] = new DataField(name + "_COUNT", DataTypes.BIGINT);
+                structure[4 * i + 1] = new DataField(name + "_SUM", DataTypes.DOUBLE);
+                structure[4 * i + 2] = new DataField(name + "_MIN", fields[i].getDataTypeID());
+                structure[4 * i + 3] = new DataField(name + "_MAX", fields[i].getDataTypeID());
+            }
+            schema = StreamElementSchema.intern(structure);
+            levels = new Level[resolutions.length];
+            for (int i = 0; i < levels.length; i++)
+                levels[i] = new Level(vsName, resolutions[i], fields.length);
+        }
+
+        /**
+         * Adds the buckets completed since the table was last written (all of them for a new table) and loads the
+         * current bucket from the raw table.
+         */
+        void catchUp(Level level) throws SQLException {
+            Connection connection = null;
+            try {
+                connection = storage.getConnection();
+                boolean exists;
+                try {
+                    exists = storage.tableExists(level.tableName, structure, connection);
+                } catch (GSNRuntimeException e) {
+                    logger.warn("Recreating the rollup table " + level.tableName + ": " + e.getMessage());
+                    storage.executeDropTable(level.tableName, connection);
+                    exists = false;
+                }
+                if (!exists)
+                    storage.executeCreateTable(level.tableName, structure, true, connection);
+
+                Long lastBucket = queryLong("select max(timed) from " + level.tableName, connection);
+                Long lastTimed = queryLong("select max(timed) from " + vsName, connection);
+                long from = lastBucket == null ? Long.MIN_VALUE : lastBucket + level.resolution;
+                if (lastTimed == null) {
+                    level.watermark = from;
+                    prune(level, connection);
+                    return;
+                }
+                long watermark = level.bucketOf(lastTimed);
+                if (from > watermark) {
+                    // the raw table went back in time, its buckets are computed again
+                    storage.executeUpdate(new StringBuilder("delete from ").append(level.tableName).append(" where timed >= ").append(watermark), connection);
+                    from = watermark;
+                }
+
+                // the finest rollup is complete up to its own watermark, which is after this one
+                Level source = levels[0] != level && level.resolution % levels[0].resolution == 0 ? levels[0] : null;
+                StringBuilder insert = new StringBuilder("insert into ").append(level.tableName).append(" (timed");
+                // a decimal division, so that the buckets of negative timestamps are floored like in Level.bucketOf
+                StringBuilder select = new StringBuilder(" select floor(timed/").append(level.resolution).append(".0)*").append(level.resolution);
+                for (DataField field : fields) {
+                    String column = field.getName().toUpperCase();
+                    insert.append(", ").append(column).append("_COUNT, ").append(column).append("_SUM, ").append(column).append("_MIN, ").append(column).append("_MAX");
+                    if (source == null)
+                        select.append(", count(").append(column).append("), sum(").append(column).append("), min(").append(column).append("), max(").append(column).append(")");
+                    else
+                        select.append(", sum(").append(column).append("_COUNT), sum(").append(column).append("_SUM), min(").append(column).append("_MIN), max(").append(column).append("_MAX)");
+                }
+                select.append(" from ").append(source == null ? vsName : source.tableName).append(" where timed < ").append(watermark);
+                if (from != Long.MIN_VALUE)
+                    select.append(" and timed >= ").append(from);
+                select.append(" group by floor(timed/").append(level.resolution).append(".0)*").append(level.resolution);
+                insert.append(")").append(select);
+                PreparedStatement ps = connection.prepareStatement(insert.toString());
+                try {
+                    int buckets = ps.executeUpdate();
+                    if (buckets > 0)
+                        logger.info("Added " + buckets + " buckets to the rollup table " + level.tableName + ".");
+                } finally {
+                    storage.close(ps);
+                }
+
+                // the current bucket
+                level.reset(watermark);
+                StringBuilder current = new StringBuilder("select ");
+                for (int i = 0; i < fields.length; i++) {
+                    String column = fields[i].getName().toUpperCase();
+                    current.append(i == 0 ? "" : ", ").append("count(").append(column).append("), sum(").append(column).append("), min(").append(column).append("), max(").append(column).append(")");
+                }
+                current.append(" from ").append(vsName).append(" where timed >= ").append(watermark);
+                ps = connection.prepareStatement(current.toString());
+                ResultSet rs = null;
+                try {
+                    rs = ps.executeQuery();
+                    if (rs.next()) {
+                        for (int i = 0; i < fields.length; i++) {
+                            level.count[i] = rs.getLong(4 * i + 1);
+                            level.sum[i] = rs.getDouble(4 * i + 2);
+                            level.min[i] = rs.getDouble(4 * i + 3);
+                            level.max[i] = rs.getDouble(4 * i + 4);
+                        }
+                    }
+                } finally {
+                    storage.close(rs);
+                    storage.close(ps);
+                }
+                level.watermark = watermark;
+                prune(level, connection);
+            } finally {
+                storage.close(connection);
+            }
+        }
+
+        /**
+         * Moves the floor of the level to the first bucket entirely in the raw table and deletes the buckets before
+         * it (all of them if the raw table is empty).
+         */
+        void prune(Level level, Connection connection) throws SQLException {
+            Long firstTimed = queryLong("select min(timed) from " + vsName, connection);
+            long floor;
+            if (firstTimed == null) {
+                floor = level.watermark;
+            } else {
+                floor = level.bucketOf(firstTimed);
+                if (floor != firstTimed)
+                    floor += level.resolution;
+            }
+            if (floor == Long.MIN_VALUE)
+                return;
+            PreparedStatement ps = connection.prepareStatement("delete from " + level.tableName + " where timed < ?");
+            try {
+                ps.setLong(1, floor);
+                int buckets = ps.executeUpdate();
+                if (buckets > 0 && logger.isDebugEnabled())
+                    logger.debug("Dropped " + buckets + " buckets from the rollup table " + level.tableName + ".");
+            } finally {
+                storage.close(ps);
+            }
+            level.floor = floor;
+        }
+
+        void add(Level level, StreamElement se, int[] indexes) throws SQLException {
+            long bucket = level.bucketOf(se.getTimeStamp());
+            if (bucket < level.watermark) {
+                // the buckets before the floor are read from the raw table
+                if (bucket >= level.floor)
+                    merge(level, bucket, se, indexes);
+                return;
+            }
+            if (bucket != level.bucket) {
+                if (level.bucket != Long.MIN_VALUE) {
+                    Connection connection = null;
+                    try {
+                        connection = storage.getConnection();
+                        storage.executeInsert(level.tableName, structure, toElement(level.bucket, level.count, level.sum, level.min, level.max), connection);
+                    } finally {
+                        storage.close(connection);
+                    }
+                }
+                level.reset(bucket);
+                level.watermark = bucket;
+            }
+            for (int i = 0; i < indexes.length; i++)
+                if (indexes[i] != -1 && !se.isNull(indexes[i]))
+                    level.accumulate(i, se.getDouble(indexes[i]));
+        }
+
+        /**
+         * Adds a late element to the row of its bucket.
+         */
+        void merge(Level level, long bucket, StreamElement se, int[] indexes) throws SQLException {
+            long[] count = new long[fields.length];
+            double[] sum = new double[fields.length];
+            double[] min = new double[fields.length];
+            double[] max = new double[fields.length];
+            for (int i = 0; i < indexes.length; i++) {
+                if (indexes[i] != -1 && !se.isNull(indexes[i])) {
+                    count[i] = 1;
+                    sum[i] = min[i] = max[i] = se.getDouble(indexes[i]);
+                }
+            }
+            Connection connection = null;
+            boolean autoCommit = true;
+            try {
+                connection = storage.getConnection();
+                autoCommit = connection.getAutoCommit();
+                connection.setAutoCommit(false);
+                PreparedStatement ps = connection.prepareStatement("select * from " + level.tableName + " where timed = ?");
+                ResultSet rs = null;
+                try {
+                    ps.setLong(1, bucket);
+                    rs = ps.executeQuery();
+                    if (rs.next()) {
+                        for (int i = 0; i < fields.length; i++) {
+                            String column = fields[i].getName().toUpperCase();
+                            long stored = rs.getLong(column + "_COUNT");
+                            if (stored == 0)
+                                continue;
+                            double storedMin = rs.getDouble(column + "_MIN");
+                            double storedMax = rs.getDouble(column + "_MAX");
+                            min[i] = count[i] == 0 ? storedMin : Math.min(min[i], storedMin);
+                            max[i] = count[i] == 0 ? storedMax : Math.max(max[i], storedMax);
+                            count[i] += stored;
+                            sum[i] += rs.getDouble(column + "_SUM");
+                        }
+                    }
+                } finally {
+                    storage.close(rs);
+                    storage.close(ps);
+                }
+                ps = connection.prepareStatement("delete from " + level.tableName + " where timed = ?");
+                try {
+                    ps.setLong(1, bucket);
+                    ps.executeUpdate();
+                } finally {
+                    storage.close(ps);
+                }
+                storage.executeInsert(level.tableName, structure, toElement(bucket, count, sum, min, max), connection);
+                connection.commit();
+            } catch (SQLException e) {
+                if (connection != null)
+                    connection.rollback();
+                throw e;
+            } finally {
+                if (connection != null) {
+                    connection.setAutoCommit(autoCommit);
+                    storage.close(connection);
+                }
+            }
+        }
+
+        StreamElement toElement(long bucket, long[] count, double[] sum, double[] min, double[] max) {
+            StreamElement row = new StreamElement(schema, bucket);
+            for (int i = 0; i < fields.length; i++) {
+                row.setLong(4 * i, count[i]);
+                if (count[i] > 0) {
+                    row.setDouble(4 * i + 1, sum[i]);
+                    row.setDouble(4 * i + 2, min[i]);
+                    row.setDouble(4 * i + 3, max[i]);
+                }
+            }
+            return row;
+        }
+
+        Long queryLong(String query, Connection connection) throws SQLException {
+            PreparedStatement ps = connection.prepareStatement(query);
+            ResultSet rs = null;
+            try {
+                rs = ps.executeQuery();
+                if (rs.next()) {
+                    long value = rs.getLong(1);
+                    return rs.wasNull() ? null : value;
+                }
+                return null;
+            } finally {
+                storage.close(rs);
+                storage.close(ps);
+            }
+        }
+    }
+}
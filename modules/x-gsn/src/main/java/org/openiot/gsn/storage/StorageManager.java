@@ -40,6 +40,7 @@ import org.openiot.gsn.utils.ValidityTools;
 import java.io.Serializable;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.dbcp.*;
 import org.apache.log4j.Logger;
@@ -620,69 +621,7 @@ public abstract class StorageManager {
         String query = getStatementInsert(tableName, fields).toString();
         try {
             ps = connection.prepareStatement(query);
-            int counter = 1;
-            for (DataField dataField : fields) {
-                if (dataField.getName().equalsIgnoreCase("timed"))
-                    continue;
-                Serializable value = streamElement.getData(dataField.getName());
-
-                switch (dataField.getDataTypeID()) {
-                    case DataTypes.VARCHAR:
-                        if (value == null)
-                            ps.setNull(counter, Types.VARCHAR);
-                        else
-                            ps.setString(counter, value.toString());
-                        break;
-                    case DataTypes.CHAR:
-                        if (value == null)
-                            ps.setNull(counter, Types.CHAR);
-                        else
-                            ps.setString(counter, value.toString());
-                        break;
-                    case DataTypes.INTEGER:
-                        if (value == null)
-                            ps.setNull(counter, Types.INTEGER);
-                        else
-                            ps.setInt(counter, ((Number) value).intValue());
-                        break;
-                    case DataTypes.SMALLINT:
-                        if (value == null)
-                            ps.setNull(counter, Types.SMALLINT);
-                        else
-                            ps.setShort(counter, ((Number) value).shortValue());
-                        break;
-                    case DataTypes.TINYINT:
-                        if (value == null)
-                            ps.setNull(counter, Types.TINYINT);
-                        else
-                            ps.setByte(counter, ((Number) value).byteValue());
-                        break;
-                    case DataTypes.DOUBLE:
-                        if (value == null)
-                            ps.setNull(counter, Types.DOUBLE);
-                        else
-                            ps.setDouble(counter, ((Number) value).doubleValue());
-                        break;
-                    case DataTypes.BIGINT:
-                        if (value == null)
-                            ps.setNull(counter, Types.BIGINT);
-                        else
-                            ps.setLong(counter, ((Number) value).longValue());
-                        break;
-                    case DataTypes.BINARY:
-                        if (value == null)
-                            ps.setNull(counter, Types.BINARY);
-                        else
-                            ps.setBytes(counter, (byte[]) value);
-                        break;
-                    default:
-                        logger.error("The type conversion is not supported for : "
-                                + dataField.getName() + "("
-                                + dataField.getDataTypeID() + ") : ");
-                }
-                counter++;
-            }
-            ps.setLong(counter, streamElement.getTimeStamp());
+            setInsertParameters(ps, fields, streamElement);
             ps.execute();
         } catch (GSNRuntimeException e) {
             //if (e.getType() == GSNRuntimeException.UNEXPECTED_VIRTUAL_SENSOR_REMOVAL) {
@@ -703,6 +642,116 @@ public abstract class StorageManager {
         }
     }
 
+    /**
+     * Inserts the stream elements with one batched prepared statement, as
+     * executeInsert does one by one. If the batch fails, the elements are
+     * inserted one at a time so one bad element does not drop the others.
+     *
+     * @return the stream elements inserted, in order
+     */
+    public List<StreamElement> executeInsertBatch(CharSequence tableName, DataField[] fields, List<StreamElement> streamElements, Connection connection) throws SQLException {
+        if (streamElements.isEmpty())
+            return streamElements;
+        PreparedStatement ps = null;
+        String query = getStatementInsert(tableName, fields).toString();
+        boolean autoCommit = connection.getAutoCommit();
+        try {
+            connection.setAutoCommit(false);
+            ps = connection.prepareStatement(query);
+            for (StreamElement streamElement : streamElements) {
+                setInsertParameters(ps, fields, streamElement);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            connection.commit();
+            return streamElements;
+        } catch (SQLException e) {
+            logger.warn("Inserting a batch of " + streamElements.size() + " stream elements into " + tableName + " failed, inserting them one by one: " + e.getMessage());
+            connection.rollback();
+        } finally {
+            close(ps);
+            connection.setAutoCommit(autoCommit);
+        }
+        List<StreamElement> inserted = new ArrayList<StreamElement>(streamElements.size());
+        for (StreamElement streamElement : streamElements) {
+            try {
+                executeInsert(tableName, fields, streamElement, connection);
+                inserted.add(streamElement);
+            } catch (SQLException e) {
+                //logged and dropped by executeInsert
+            }
+        }
+        return inserted;
+    }
+
+    private void setInsertParameters(PreparedStatement ps, DataField[] fields, StreamElement streamElement) throws SQLException {
+        int counter = 1;
+        for (DataField dataField : fields) {
+            if (dataField.getName().equalsIgnoreCase("timed"))
+                continue;
+            // numeric values are read through the typed accessors, without boxing
+            int index = streamElement.indexOf(dataField.getName());
+            boolean isNull = index == -1 || streamElement.isNull(index);
+
+            switch (dataField.getDataTypeID()) {
+                case DataTypes.VARCHAR:
+                    if (isNull)
+                        ps.setNull(counter, Types.VARCHAR);
+                    else
+                        ps.setString(counter, streamElement.getData(index).toString());
+                    break;
+                case DataTypes.CHAR:
+                    if (isNull)
+                        ps.setNull(counter, Types.CHAR);
+                    else
+                        ps.setString(counter, streamElement.getData(index).toString());
+                    break;
+                case DataTypes.INTEGER:
+                    if (isNull)
+                        ps.setNull(counter, Types.INTEGER);
+                    else
+                        ps.setInt(counter, (int) streamElement.getLong(index));
+                    break;
+                case DataTypes.SMALLINT:
+                    if (isNull)
+                        ps.setNull(counter, Types.SMALLINT);
+                    else
+                        ps.setShort(counter, (short) streamElement.getLong(index));
+                    break;
+                case DataTypes.TINYINT:
+                    if (isNull)
+                        ps.setNull(counter, Types.TINYINT);
+                    else
+                        ps.setByte(counter, (byte) streamElement.getLong(index));
+                    break;
+                case DataTypes.DOUBLE:
+                    if (isNull)
+                        ps.setNull(counter, Types.DOUBLE);
+                    else
+                        ps.setDouble(counter, streamElement.getDouble(index));
+                    break;
+                case DataTypes.BIGINT:
+                    if (isNull)
+                        ps.setNull(counter, Types.BIGINT);
+                    else
+                        ps.setLong(counter, streamElement.getLong(index));
+                    break;
+                case DataTypes.BINARY:
+                    if (isNull)
+                        ps.setNull(counter, Types.BINARY);
+                    else
+                        ps.setBytes(counter, (byte[]) streamElement.getData(index));
+                    break;
+                default:
+                    logger.error("The type conversion is not supported for : "
+                            + dataField.getName() + "("
+                            + dataField.getDataTypeID() + ") : ");
+            }
+            counter++;
+        }
+        ps.setLong(counter, streamElement.getTimeStamp());
+    }
+
     /***************************************************************************
      * Statement Generators
      **************************************************************************/
@@ -0,0 +1,34 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.storage.rrd;
+
+/**
+ * The types of the data sources of a round-robin database, as in rrdtool.
+ * <ul>
+ * <li>GAUGE stores the values as they are,</li>
+ * <li>COUNTER stores the rate of an increasing counter, which may overflow (32 or 64 bits),</li>
+ * <li>DERIVE stores the rate of change of the values, which may be negative,</li>
+ * <li>ABSOLUTE stores the rate of a counter which is reset on every reading.</li>
+ * </ul>
+ */
+public enum DataSourceType {
+    GAUGE, COUNTER, DERIVE, ABSOLUTE
+}
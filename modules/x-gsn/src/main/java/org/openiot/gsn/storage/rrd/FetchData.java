@@ -0,0 +1,105 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.storage.rrd;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * The rows of an archive fetched from a {@link RoundRobinDatabase} for a time range. Each row is stamped with the end
+ * of its interval (in milliseconds), unknown values are NaN.
+ */
+public class FetchData {
+
+    private final ConsolidationFunction function;
+    private final long step;
+    private final String[] names;
+    private final long[] timestamps;
+    private final double[][] values;
+
+    FetchData(ConsolidationFunction function, long step, String[] names, long[] timestamps, double[][] values) {
+        this.function = function;
+        this.step = step;
+        this.names = names;
+        this.timestamps = timestamps;
+        this.values = values;
+    }
+
+    public ConsolidationFunction getFunction() {
+        return function;
+    }
+
+    /**
+     * @return the number of milliseconds between two rows
+     */
+    public long getStep() {
+        return step;
+    }
+
+    public String[] getDataSourceNames() {
+        return names;
+    }
+
+    public int getRowCount() {
+        return timestamps.length;
+    }
+
+    public long[] getTimestamps() {
+        return timestamps;
+    }
+
+    /**
+     * @return the values of the data source at the given position, one per row
+     */
+    public double[] getValues(int dataSource) {
+        return values[dataSource];
+    }
+
+    /**
+     * @return the values of the given data source, one per row, or null if there is no such data source
+     */
+    public double[] getValues(String dataSource) {
+        for (int i = 0; i < names.length; i++)
+            if (names[i].equals(dataSource))
+                return values[i];
+        return null;
+    }
+
+    /**
+     * Writes the rows as CSV, with a header line and the unknown values left empty.
+     */
+    public void exportCSV(Writer out) throws IOException {
+        out.write("timed");
+        for (String name : names)
+            out.append(',').append(name);
+        out.write('\n');
+        for (int row = 0; row < timestamps.length; row++) {
+            out.write(Long.toString(timestamps[row]));
+            for (double[] column : values) {
+                out.write(',');
+                if (!Double.isNaN(column[row]))
+                    out.write(Double.toString(column[row]));
+            }
+            out.write('\n');
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,583 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.storage.rrd;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A round-robin database kept in a memory-mapped file: the updates are consolidated, in-process, into fixed-size
+ * archives following the rrdtool semantics.
+ * <p/>
+ * The values given to {@link #update} are converted into rates according to their {@link DataSourceType} (a value
+ * is unknown if it is NaN, out of the min/max bounds, or if the previous update is older than the heartbeat). The
+ * rates are averaged over each step into primary data points (unknown if more than the heartbeat of the step is
+ * unknown), which are consolidated by each archive into rows of <i>steps</i> points (unknown if more than
+ * <i>xff</i> of the points are unknown). The rows of an archive are aligned on multiples of their duration.
+ * <p/>
+ * The times are in milliseconds. The file is written through the mapping, {@link #sync()} forces it to the disk.
+ * An instance is thread safe, but a file must not be opened twice.
+ */
+public class RoundRobinDatabase {
+
+    private static final int MAGIC = 0x47525244; // GRRD
+
+    private static final int VERSION = 1;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    // header
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_STEP = 8;
+    private static final int H_LAST_UPDATE = 12;
+    private static final int H_DS_COUNT = 20;
+    private static final int H_RRA_COUNT = 24;
+    private static final int HEADER_SIZE = 28;
+
+    // data source definition and state
+    private static final int DS_NAME = 0;
+    private static final int DS_TYPE = 20;
+    private static final int DS_HEARTBEAT = 21;
+    private static final int DS_MIN = 25;
+    private static final int DS_MAX = 33;
+    private static final int DS_LAST_VALUE = 41;
+    private static final int DS_PDP_SUM = 49;
+    private static final int DS_UNKNOWN = 57;
+    private static final int DS_SIZE = 65;
+
+    // archive definition and state, followed by the consolidation state of each data source
+    private static final int RRA_FUNCTION = 0;
+    private static final int RRA_XFF = 1;
+    private static final int RRA_STEPS = 9;
+    private static final int RRA_ROWS = 13;
+    private static final int RRA_CURRENT_ROW = 17;
+    private static final int RRA_PDP_COUNT = 21;
+    private static final int RRA_HEADER_SIZE = 25;
+    private static final int CDP_VALUE = 0;
+    private static final int CDP_UNKNOWN = 8;
+    private static final int CDP_SIZE = 12;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer buffer;
+    private final RrdDefinition definition;
+
+    // the immutable part of the definition, cached
+    private final int dsCount;
+    private final long stepMillis;
+    private final DataSourceType[] types;
+    private final long[] heartbeats;
+    private final double[] mins;
+    private final double[] maxs;
+    private final String[] names;
+    private final ConsolidationFunction[] functions;
+    private final int[] steps;
+    private final int[] rows;
+    private final double[] xffs;
+    private final int[] rraOffsets;
+    private final int[] dataOffsets;
+
+    // scratch arrays of update(), guarded by this
+    private final double[] rates;
+    private final double[] pdps;
+
+    private RoundRobinDatabase(File file, RandomAccessFile raf, MappedByteBuffer buffer, RrdDefinition definition) {
+        this.file = file;
+        this.raf = raf;
+        this.buffer = buffer;
+        this.definition = definition;
+        List<RrdDefinition.DataSource> dataSources = definition.getDataSources();
+        List<RrdDefinition.Archive> archives = definition.getArchives();
+        dsCount = dataSources.size();
+        stepMillis = definition.getStep() * 1000L;
+        types = new DataSourceType[dsCount];
+        heartbeats = new long[dsCount];
+        mins = new double[dsCount];
+        maxs = new double[dsCount];
+        names = new String[dsCount];
+        for (int i = 0; i < dsCount; i++) {
+            RrdDefinition.DataSource ds = dataSources.get(i);
+            types[i] = ds.getType();
+            heartbeats[i] = ds.getHeartbeat() * 1000L;
+            mins[i] = ds.getMin();
+            maxs[i] = ds.getMax();
+            names[i] = ds.getName();
+        }
+        int rraCount = archives.size();
+        functions = new ConsolidationFunction[rraCount];
+        steps = new int[rraCount];
+        rows = new int[rraCount];
+        xffs = new double[rraCount];
+        rraOffsets = new int[rraCount];
+        dataOffsets = new int[rraCount];
+        int offset = HEADER_SIZE + dsCount * DS_SIZE;
+        for (int r = 0; r < rraCount; r++) {
+            rraOffsets[r] = offset;
+            offset += RRA_HEADER_SIZE + dsCount * CDP_SIZE;
+        }
+        for (int r = 0; r < rraCount; r++) {
+            RrdDefinition.Archive rra = archives.get(r);
+            functions[r] = rra.getFunction();
+            steps[r] = rra.getSteps();
+            rows[r] = rra.getRows();
+            xffs[r] = rra.getXff();
+            dataOffsets[r] = offset;
+            offset += rows[r] * dsCount * 8;
+        }
+        rates = new double[dsCount];
+        pdps = new double[dsCount];
+    }
+
+    /**
+     * Creates (or overwrites) the database file, with all the values unknown.
+     *
+     * @param start the time of the creation, the first update must be after it
+     */
+    public static RoundRobinDatabase create(File file, RrdDefinition definition, long start) throws IOException {
+        if (definition.getDataSources().isEmpty() || definition.getArchives().isEmpty())
+            throw new IllegalArgumentException("A round-robin database needs at least one data source and one archive.");
+        long size = HEADER_SIZE + definition.getDataSources().size() * (long) DS_SIZE;
+        for (RrdDefinition.Archive rra : definition.getArchives())
+            size += RRA_HEADER_SIZE + definition.getDataSources().size() * (CDP_SIZE + rra.getRows() * 8L);
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("The round-robin database would be too large: " + size + " bytes.");
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        MappedByteBuffer buffer;
+        try {
+            raf.setLength(0);
+            raf.setLength(size);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        RoundRobinDatabase db = new RoundRobinDatabase(file, raf, buffer, definition);
+        db.format(start);
+        return db;
+    }
+
+    /**
+     * Opens an existing database file.
+     */
+    public static RoundRobinDatabase open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(H_MAGIC) != MAGIC)
+                throw new IOException(file + " is not a round-robin database.");
+            if (buffer.getInt(H_VERSION) != VERSION)
+                throw new IOException("Unsupported version of the round-robin database " + file + ": " + buffer.getInt(H_VERSION));
+            RrdDefinition definition = new RrdDefinition(buffer.getInt(H_STEP));
+            int dsCount = buffer.getInt(H_DS_COUNT);
+            int rraCount = buffer.getInt(H_RRA_COUNT);
+            for (int i = 0; i < dsCount; i++) {
+                int o = HEADER_SIZE + i * DS_SIZE;
+                byte[] name = new byte[DS_TYPE - DS_NAME];
+                for (int j = 0; j < name.length; j++)
+                    name[j] = buffer.get(o + DS_NAME + j);
+                int length = 0;
+                while (length < name.length && name[length] != 0)
+                    length++;
+                definition.addDataSource(new String(name, 0, length, ASCII), DataSourceType.values()[buffer.get(o + DS_TYPE)],
+                        buffer.getInt(o + DS_HEARTBEAT), buffer.getDouble(o + DS_MIN), buffer.getDouble(o + DS_MAX));
+            }
+            int o = HEADER_SIZE + dsCount * DS_SIZE;
+            for (int r = 0; r < rraCount; r++) {
+                definition.addArchive(ConsolidationFunction.values()[buffer.get(o + RRA_FUNCTION)], buffer.getDouble(o + RRA_XFF),
+                        buffer.getInt(o + RRA_STEPS), buffer.getInt(o + RRA_ROWS));
+                o += RRA_HEADER_SIZE + dsCount * CDP_SIZE;
+            }
+            return new RoundRobinDatabase(file, raf, buffer, definition);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        } catch (RuntimeException e) {
+            raf.close();
+            throw new IOException("Corrupted round-robin database " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return true if the given file is a round-robin database of this format
+     */
+    public static boolean isRoundRobinDatabase(File file) {
+        if (!file.isFile() || file.length() < HEADER_SIZE)
+            return false;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                return raf.readInt() == MAGIC;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void format(long start) {
+        buffer.putInt(H_MAGIC, MAGIC);
+        buffer.putInt(H_VERSION, VERSION);
+        buffer.putInt(H_STEP, definition.getStep());
+        buffer.putLong(H_LAST_UPDATE, start);
+        buffer.putInt(H_DS_COUNT, dsCount);
+        buffer.putInt(H_RRA_COUNT, functions.length);
+        for (int i = 0; i < dsCount; i++) {
+            int o = dsOffset(i);
+            byte[] name = names[i].getBytes(ASCII);
+            for (int j = 0; j < DS_TYPE - DS_NAME; j++)
+                buffer.put(o + DS_NAME + j, j < name.length ? name[j] : 0);
+            buffer.put(o + DS_TYPE, (byte) types[i].ordinal());
+            buffer.putInt(o + DS_HEARTBEAT, (int) (heartbeats[i] / 1000));
+            buffer.putDouble(o + DS_MIN, mins[i]);
+            buffer.putDouble(o + DS_MAX, maxs[i]);
+            // the part of the first step before the creation is unknown
+            setDataSourceState(i, Double.NaN, 0, floorMod(start, stepMillis));
+        }
+        for (int r = 0; r < functions.length; r++) {
+            int o = rraOffsets[r];
+            buffer.put(o + RRA_FUNCTION, (byte) functions[r].ordinal());
+            buffer.putDouble(o + RRA_XFF, xffs[r]);
+            buffer.putInt(o + RRA_STEPS, steps[r]);
+            buffer.putInt(o + RRA_ROWS, rows[r]);
+            // align the rows, the points of the current row before the creation are unknown
+            int pdpCount = (int) floorMod(floorDiv(start, stepMillis), steps[r]);
+            setArchiveState(r, 0, pdpCount);
+            for (int i = 0; i < dsCount; i++)
+                setConsolidationState(r, i, Double.NaN, pdpCount);
+            for (int row = 0; row < rows[r]; row++)
+                for (int i = 0; i < dsCount; i++)
+                    setRow(r, row, i, Double.NaN);
+        }
+    }
+
+    /**
+     * Updates the database with the values of the data sources at the given time. A value is unknown if NaN.
+     *
+     * @return false if the update is ignored because it is not after the last one
+     */
+    public synchronized boolean update(long time, double[] values) {
+        if (values.length != dsCount)
+            throw new IllegalArgumentException("Expected " + dsCount + " values, got " + values.length + ".");
+        long last = buffer.getLong(H_LAST_UPDATE);
+        if (time <= last)
+            return false;
+        for (int i = 0; i < dsCount; i++)
+            rates[i] = rate(i, values[i], time - last);
+
+        long boundary = (floorDiv(last, stepMillis) + 1) * stepMillis;
+        if (time < boundary) {
+            accumulate(time - last);
+        } else {
+            // the step in progress is complete
+            accumulate(boundary - last);
+            for (int i = 0; i < dsCount; i++) {
+                int o = dsOffset(i);
+                long unknown = buffer.getLong(o + DS_UNKNOWN);
+                pdps[i] = unknown > heartbeats[i] || unknown >= stepMillis ? Double.NaN : buffer.getDouble(o + DS_PDP_SUM) / (stepMillis - unknown);
+                setDataSourceState(i, buffer.getDouble(o + DS_LAST_VALUE), 0, 0);
+            }
+            for (int r = 0; r < functions.length; r++)
+                consolidate(r, pdps, 1);
+            // the whole steps covered by the update all have the current rates
+            long whole = (time - boundary) / stepMillis;
+            if (whole > 0)
+                for (int r = 0; r < functions.length; r++)
+                    consolidate(r, rates, whole);
+            accumulate((time - boundary) % stepMillis);
+        }
+        buffer.putLong(H_LAST_UPDATE, time);
+        return true;
+    }
+
+    /**
+     * Fetches the rows of the finest archive of the given function covering the time range.
+     */
+    public FetchData fetch(ConsolidationFunction function, long start, long end) {
+        return fetch(function, start, end, 0);
+    }
+
+    /**
+     * Fetches the rows of the archive of the given function covering the time range whose resolution is the closest
+     * to the given one (in milliseconds). If no archive covers the range, the one covering the most of it is used.
+     */
+    public synchronized FetchData fetch(ConsolidationFunction function, long start, long end, long resolution) {
+        if (end < start)
+            throw new IllegalArgumentException("The end of the range is before its start.");
+        long last = buffer.getLong(H_LAST_UPDATE);
+        int best = -1;
+        boolean bestCovers = false;
+        for (int r = 0; r < functions.length; r++) {
+            if (functions[r] != function)
+                continue;
+            long rowStep = stepMillis * steps[r];
+            boolean covers = lastRowTime(r, last) - (rows[r] - 1) * rowStep <= start;
+            if (best < 0 || (covers && !bestCovers)) {
+                best = r;
+                bestCovers = covers;
+            } else if (covers == bestCovers) {
+                long bestStep = stepMillis * steps[best];
+                if (covers ? Math.abs(rowStep - resolution) < Math.abs(bestStep - resolution)
+                        : rows[r] * rowStep > rows[best] * bestStep)
+                    best = r;
+            }
+        }
+        if (best < 0)
+            throw new IllegalArgumentException("There is no " + function + " archive in " + file + ".");
+
+        long rowStep = stepMillis * steps[best];
+        long lastRow = lastRowTime(best, last);
+        long first = (floorDiv(start - 1, rowStep) + 1) * rowStep;
+        long count = ((floorDiv(end - 1, rowStep) + 1) * rowStep - first) / rowStep + 1;
+        if (count * dsCount > Integer.MAX_VALUE / 8)
+            throw new IllegalArgumentException("Too many rows requested: " + count);
+        long[] timestamps = new long[(int) count];
+        double[][] values = new double[dsCount][(int) count];
+        int current = buffer.getInt(rraOffsets[best] + RRA_CURRENT_ROW);
+        for (int k = 0; k < count; k++) {
+            long t = first + k * rowStep;
+            timestamps[k] = t;
+            long back = (lastRow - t) / rowStep;
+            for (int i = 0; i < dsCount; i++)
+                values[i][k] = t > lastRow || back >= rows[best] ? Double.NaN : getRow(best, (int) ((current - back + rows[best]) % rows[best]), i);
+        }
+        return new FetchData(function, rowStep, names.clone(), timestamps, values);
+    }
+
+    /**
+     * @return the time of the last update
+     */
+    public synchronized long getLastUpdate() {
+        return buffer.getLong(H_LAST_UPDATE);
+    }
+
+    public RrdDefinition getDefinition() {
+        return definition;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Forces the changes to the disk.
+     */
+    public synchronized void sync() {
+        buffer.force();
+    }
+
+    public synchronized void close() throws IOException {
+        buffer.force();
+        raf.close();
+    }
+
+    // used by the importer
+
+    synchronized void setLastUpdate(long time) {
+        buffer.putLong(H_LAST_UPDATE, time);
+    }
+
+    synchronized void setDataSourceState(int ds, double lastValue, double pdpSum, long unknownMillis) {
+        int o = dsOffset(ds);
+        buffer.putDouble(o + DS_LAST_VALUE, lastValue);
+        buffer.putDouble(o + DS_PDP_SUM, pdpSum);
+        buffer.putLong(o + DS_UNKNOWN, unknownMillis);
+    }
+
+    synchronized void setArchiveState(int rra, int currentRow, int pdpCount) {
+        buffer.putInt(rraOffsets[rra] + RRA_CURRENT_ROW, currentRow);
+        buffer.putInt(rraOffsets[rra] + RRA_PDP_COUNT, pdpCount);
+    }
+
+    synchronized void setConsolidationState(int rra, int ds, double value, int unknownPdps) {
+        int o = cdpOffset(rra, ds);
+        buffer.putDouble(o + CDP_VALUE, value);
+        buffer.putInt(o + CDP_UNKNOWN, unknownPdps);
+    }
+
+    synchronized void setRow(int rra, int row, int ds, double value) {
+        buffer.putDouble(dataOffsets[rra] + (row * dsCount + ds) * 8, value);
+    }
+
+    // helper methods
+
+    private double getRow(int rra, int row, int ds) {
+        return buffer.getDouble(dataOffsets[rra] + (row * dsCount + ds) * 8);
+    }
+
+    private int dsOffset(int ds) {
+        return HEADER_SIZE + ds * DS_SIZE;
+    }
+
+    private int cdpOffset(int rra, int ds) {
+        return rraOffsets[rra] + RRA_HEADER_SIZE + ds * CDP_SIZE;
+    }
+
+    /*
+    * The end of the last complete row of the archive
+    * */
+    private long lastRowTime(int rra, long last) {
+        return floorDiv(last, stepMillis) * stepMillis - buffer.getInt(rraOffsets[rra] + RRA_PDP_COUNT) * stepMillis;
+    }
+
+    /*
+    * Converts the value into a rate per second according to the type of the data source, NaN if unknown
+    * */
+    private double rate(int ds, double value, long interval) {
+        int o = dsOffset(ds);
+        double previous = buffer.getDouble(o + DS_LAST_VALUE);
+        buffer.putDouble(o + DS_LAST_VALUE, value);
+        if (Double.isNaN(value) || interval > heartbeats[ds])
+            return Double.NaN;
+        double rate;
+        switch (types[ds]) {
+            case COUNTER:
+                double delta = value - previous;
+                if (delta < 0) {
+                    // the counter wrapped, on 32 or 64 bits
+                    delta += 4294967296.0;
+                    if (delta < 0)
+                        delta += 18446744069414584320.0;
+                }
+                rate = delta * 1000 / interval;
+                break;
+            case DERIVE:
+                rate = (value - previous) * 1000 / interval;
+                break;
+            case ABSOLUTE:
+                rate = value * 1000 / interval;
+                break;
+            default:
+                rate = value;
+        }
+        // NaN bounds never match
+        if (rate < mins[ds] || rate > maxs[ds])
+            return Double.NaN;
+        return rate;
+    }
+
+    private void accumulate(long millis) {
+        if (millis == 0)
+            return;
+        for (int i = 0; i < dsCount; i++) {
+            int o = dsOffset(i);
+            if (Double.isNaN(rates[i]))
+                buffer.putLong(o + DS_UNKNOWN, buffer.getLong(o + DS_UNKNOWN) + millis);
+            else
+                buffer.putDouble(o + DS_PDP_SUM, buffer.getDouble(o + DS_PDP_SUM) + rates[i] * millis);
+        }
+    }
+
+    /*
+    * Adds count identical primary data points to the archive, writing the completed rows
+    * */
+    private void consolidate(int rra, double[] points, long count) {
+        int o = rraOffsets[rra];
+        int pdpCount = buffer.getInt(o + RRA_PDP_COUNT);
+        long missing = steps[rra] - pdpCount;
+        if (count < missing) {
+            for (int i = 0; i < dsCount; i++)
+                addPoints(rra, i, points[i], count);
+            buffer.putInt(o + RRA_PDP_COUNT, pdpCount + (int) count);
+            return;
+        }
+        int current = buffer.getInt(o + RRA_CURRENT_ROW);
+        current = (current + 1) % rows[rra];
+        for (int i = 0; i < dsCount; i++) {
+            addPoints(rra, i, points[i], missing);
+            setRow(rra, current, i, rowValue(rra, i));
+            setConsolidationState(rra, i, Double.NaN, 0);
+        }
+        count -= missing;
+
+        // the rows made of the given points only, of which at most one turn of the archive is written
+        long whole = count / steps[rra];
+        if (whole > 0) {
+            current = (int) ((current + whole - Math.min(whole, rows[rra])) % rows[rra]);
+            for (long k = Math.min(whole, rows[rra]); k > 0; k--) {
+                current = (current + 1) % rows[rra];
+                for (int i = 0; i < dsCount; i++)
+                    setRow(rra, current, i, points[i]);
+            }
+        }
+        buffer.putInt(o + RRA_CURRENT_ROW, current);
+        int rest = (int) (count % steps[rra]);
+        for (int i = 0; i < dsCount; i++)
+            addPoints(rra, i, points[i], rest);
+        buffer.putInt(o + RRA_PDP_COUNT, rest);
+    }
+
+    private void addPoints(int rra, int ds, double point, long count) {
+        if (count == 0)
+            return;
+        int o = cdpOffset(rra, ds);
+        if (Double.isNaN(point)) {
+            buffer.putInt(o + CDP_UNKNOWN, buffer.getInt(o + CDP_UNKNOWN) + (int) count);
+            return;
+        }
+        double value = buffer.getDouble(o + CDP_VALUE);
+        switch (functions[rra]) {
+            case AVERAGE:
+                value = (Double.isNaN(value) ? 0 : value) + point * count;
+                break;
+            case MIN:
+                value = Double.isNaN(value) ? point : Math.min(value, point);
+                break;
+            case MAX:
+                value = Double.isNaN(value) ? point : Math.max(value, point);
+                break;
+            default:
+                value = point;
+        }
+        buffer.putDouble(o + CDP_VALUE, value);
+    }
+
+    private double rowValue(int rra, int ds) {
+        int o = cdpOffset(rra, ds);
+        int unknown = buffer.getInt(o + CDP_UNKNOWN);
+        if (unknown >= steps[rra] || unknown > xffs[rra] * steps[rra])
+            return Double.NaN;
+        double value = buffer.getDouble(o + CDP_VALUE);
+        return functions[rra] == ConsolidationFunction.AVERAGE ? value / (steps[rra] - unknown) : value;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+    }
+
+    private static long floorMod(long x, long y) {
+        return x - floorDiv(x, y) * y;
+    }
+
+    @Override
+    public String toString() {
+        return "RoundRobinDatabase[" + file + ", step=" + definition.getStep() + "s, data sources=" + Arrays.toString(names) + "]";
+    }
+}
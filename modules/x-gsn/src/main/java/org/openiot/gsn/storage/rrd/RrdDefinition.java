@@ -0,0 +1,198 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.storage.rrd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The layout of a round-robin database: the step (in seconds) between two primary data points, the data sources and
+ * the archives. The data sources and archives can also be given with the rrdtool create syntax, for instance
+ * <code>DS:temperature:GAUGE:600:-50:U</code> and <code>RRA:AVERAGE:0.5:1:600</code>.
+ */
+public class RrdDefinition {
+
+    /**
+     * The maximum length of a data source name, as in rrdtool.
+     */
+    public static final int MAX_NAME_LENGTH = 19;
+
+    private final int step;
+
+    private final List<DataSource> dataSources = new ArrayList<DataSource>();
+
+    private final List<Archive> archives = new ArrayList<Archive>();
+
+    public RrdDefinition(int step) {
+        if (step <= 0)
+            throw new IllegalArgumentException("The step must be positive: " + step);
+        this.step = step;
+    }
+
+    public RrdDefinition addDataSource(String name, DataSourceType type, int heartbeat, double min, double max) {
+        if (name == null || name.length() == 0 || name.length() > MAX_NAME_LENGTH || !name.matches("[a-zA-Z0-9_]+"))
+            throw new IllegalArgumentException("Invalid data source name (1 to " + MAX_NAME_LENGTH + " characters among [a-zA-Z0-9_]): " + name);
+        if (heartbeat <= 0)
+            throw new IllegalArgumentException("The heartbeat must be positive: " + heartbeat);
+        for (DataSource ds : dataSources)
+            if (ds.getName().equals(name))
+                throw new IllegalArgumentException("Duplicate data source name: " + name);
+        dataSources.add(new DataSource(name, type, heartbeat, min, max));
+        return this;
+    }
+
+    /**
+     * Adds a data source given as <code>[DS:]name:type:heartbeat:min:max</code>, where min and max may be U.
+     */
+    public RrdDefinition addDataSource(String spec) {
+        String[] parts = strip(spec, "DS:").split(":");
+        if (parts.length != 5)
+            throw new IllegalArgumentException("Invalid data source, expected [DS:]name:type:heartbeat:min:max: " + spec);
+        return addDataSource(parts[0], DataSourceType.valueOf(parts[1].toUpperCase()), Integer.parseInt(parts[2]), parseValue(parts[3]), parseValue(parts[4]));
+    }
+
+    public RrdDefinition addArchive(ConsolidationFunction function, double xff, int steps, int rows) {
+        if (xff < 0 || xff >= 1)
+            throw new IllegalArgumentException("The xfiles factor must be in [0, 1[: " + xff);
+        if (steps <= 0 || rows <= 0)
+            throw new IllegalArgumentException("The steps and rows of an archive must be positive: " + steps + ", " + rows);
+        archives.add(new Archive(function, xff, steps, rows));
+        return this;
+    }
+
+    /**
+     * Adds an archive given as <code>[RRA:]function:xff:steps:rows</code>.
+     */
+    public RrdDefinition addArchive(String spec) {
+        String[] parts = strip(spec, "RRA:").split(":");
+        if (parts.length != 4)
+            throw new IllegalArgumentException("Invalid archive, expected [RRA:]function:xff:steps:rows: " + spec);
+        return addArchive(ConsolidationFunction.valueOf(parts[0].toUpperCase()), Double.parseDouble(parts[1]), Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+    }
+
+    /**
+     * @return the number of seconds between two primary data points
+     */
+    public int getStep() {
+        return step;
+    }
+
+    public List<DataSource> getDataSources() {
+        return Collections.unmodifiableList(dataSources);
+    }
+
+    public List<Archive> getArchives() {
+        return Collections.unmodifiableList(archives);
+    }
+
+    private static String strip(String spec, String prefix) {
+        spec = spec.trim();
+        return spec.regionMatches(true, 0, prefix, 0, prefix.length()) ? spec.substring(prefix.length()) : spec;
+    }
+
+    private static double parseValue(String value) {
+        return value.equalsIgnoreCase("U") ? Double.NaN : Double.parseDouble(value);
+    }
+
+    public static class DataSource {
+
+        private final String name;
+        private final DataSourceType type;
+        private final int heartbeat;
+        private final double min;
+        private final double max;
+
+        DataSource(String name, DataSourceType type, int heartbeat, double min, double max) {
+            this.name = name;
+            this.type = type;
+            this.heartbeat = heartbeat;
+            this.min = min;
+            this.max = max;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public DataSourceType getType() {
+            return type;
+        }
+
+        /**
+         * @return the maximum number of seconds between two updates before the value becomes unknown
+         */
+        public int getHeartbeat() {
+            return heartbeat;
+        }
+
+        /**
+         * @return the minimum accepted value, NaN if none
+         */
+        public double getMin() {
+            return min;
+        }
+
+        /**
+         * @return the maximum accepted value, NaN if none
+         */
+        public double getMax() {
+            return max;
+        }
+    }
+
+    public static class Archive {
+
+        private final ConsolidationFunction function;
+        private final double xff;
+        private final int steps;
+        private final int rows;
+
+        Archive(ConsolidationFunction function, double xff, int steps, int rows) {
+            this.function = function;
+            this.xff = xff;
+            this.steps = steps;
+            this.rows = rows;
+        }
+
+        public ConsolidationFunction getFunction() {
+            return function;
+        }
+
+        /**
+         * @return the maximum fraction of unknown primary data points for a row to be known
+         */
+        public double getXff() {
+            return xff;
+        }
+
+        /**
+         * @return the number of primary data points consolidated in a row
+         */
+        public int getSteps() {
+            return steps;
+        }
+
+        public int getRows() {
+            return rows;
+        }
+    }
+}
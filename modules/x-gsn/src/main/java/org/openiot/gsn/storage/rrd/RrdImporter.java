@@ -0,0 +1,233 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.storage.rrd;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.log4j.Logger;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Converts an rrdtool database into a {@link RoundRobinDatabase}, keeping its layout, its rows and its consolidation
+ * state. The binary .rrd files depend on the architecture which wrote them, so they are read through their XML dump:
+ * either an existing dump (as written by <code>rrdtool dump</code>) or a .rrd file, for which rrdtool is run once.
+ * The COMPUTE data sources and the archives of the other functions than AVERAGE, MIN, MAX and LAST are skipped.
+ * <p/>
+ * Usage: RrdImporter &lt;file.rrd|dump.xml&gt; &lt;target&gt;
+ */
+public class RrdImporter {
+
+    private static final transient Logger logger = Logger.getLogger(RrdImporter.class);
+
+    /**
+     * Imports the given .rrd file or XML dump into the target file, which is overwritten.
+     */
+    public static RoundRobinDatabase importFile(File source, File target) throws IOException {
+        if (isXml(source)) {
+            InputStream in = new BufferedInputStream(new FileInputStream(source));
+            try {
+                return importDump(in, target);
+            } finally {
+                in.close();
+            }
+        }
+        Process process = new ProcessBuilder("rrdtool", "dump", source.getPath()).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        RoundRobinDatabase db;
+        try {
+            db = importDump(new BufferedInputStream(process.getInputStream()), target);
+        } finally {
+            process.getInputStream().close();
+        }
+        try {
+            int status = process.waitFor();
+            if (status != 0) {
+                db.close();
+                throw new IOException("rrdtool dump " + source + " failed with the status " + status);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            db.close();
+            throw new IOException("Interrupted while waiting for rrdtool dump " + source);
+        }
+        return db;
+    }
+
+    /**
+     * Imports the XML dump of an rrdtool database into the target file, which is overwritten.
+     */
+    public static RoundRobinDatabase importDump(InputStream dump, File target) throws IOException {
+        Element rrd;
+        try {
+            DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            // the dumps refer to the rrdtool DTD, which is not needed
+            builder.setEntityResolver(new EntityResolver() {
+                public InputSource resolveEntity(String publicId, String systemId) {
+                    return new InputSource(new StringReader(""));
+                }
+            });
+            Document document = builder.parse(dump);
+            rrd = document.getDocumentElement();
+        } catch (ParserConfigurationException e) {
+            throw new IOException(e.getMessage(), e);
+        } catch (SAXException e) {
+            throw new IOException("Invalid rrdtool dump: " + e.getMessage(), e);
+        }
+        if (!"rrd".equals(rrd.getNodeName()))
+            throw new IOException("Invalid rrdtool dump, the root element is " + rrd.getNodeName());
+
+        int step = Integer.parseInt(text(rrd, "step"));
+        long lastUpdate = Long.parseLong(text(rrd, "lastupdate")) * 1000;
+        RrdDefinition definition = new RrdDefinition(step);
+
+        // the positions of the imported data sources in the dump
+        List<Integer> dataSources = new ArrayList<Integer>();
+        List<Element> dsElements = children(rrd, "ds");
+        for (int i = 0; i < dsElements.size(); i++) {
+            Element ds = dsElements.get(i);
+            String type = text(ds, "type");
+            if (type.equals("COMPUTE")) {
+                logger.warn("Skipping the COMPUTE data source " + text(ds, "name") + ".");
+                continue;
+            }
+            definition.addDataSource(text(ds, "name"), DataSourceType.valueOf(type), Integer.parseInt(text(ds, "minimal_heartbeat")),
+                    value(text(ds, "min")), value(text(ds, "max")));
+            dataSources.add(i);
+        }
+
+        List<Element> rraElements = new ArrayList<Element>();
+        for (Element rra : children(rrd, "rra")) {
+            ConsolidationFunction function;
+            try {
+                function = ConsolidationFunction.valueOf(text(rra, "cf"));
+            } catch (IllegalArgumentException e) {
+                logger.warn("Skipping the " + text(rra, "cf") + " archive.");
+                continue;
+            }
+            Element params = child(rra, "params");
+            double xff = value(text(params != null ? params : rra, "xff"));
+            definition.addArchive(function, xff, Integer.parseInt(text(rra, "pdp_per_row")), children(child(rra, "database"), "row").size());
+            rraElements.add(rra);
+        }
+
+        RoundRobinDatabase db = RoundRobinDatabase.create(target, definition, lastUpdate);
+        for (int i = 0; i < dataSources.size(); i++) {
+            Element ds = dsElements.get(dataSources.get(i));
+            db.setDataSourceState(i, value(text(ds, "last_ds")), value(text(ds, "value")) * 1000, Long.parseLong(text(ds, "unknown_sec")) * 1000);
+        }
+        for (int r = 0; r < rraElements.size(); r++) {
+            Element rra = rraElements.get(r);
+            RrdDefinition.Archive archive = definition.getArchives().get(r);
+            List<Element> cdps = children(child(rra, "cdp_prep"), "ds");
+            for (int i = 0; i < dataSources.size(); i++) {
+                Element cdp = cdps.get(dataSources.get(i));
+                db.setConsolidationState(r, i, value(text(cdp, "value")), Integer.parseInt(text(cdp, "unknown_datapoints")));
+            }
+            // the rows are dumped from the oldest to the newest
+            List<Element> rows = children(child(rra, "database"), "row");
+            for (int row = 0; row < rows.size(); row++) {
+                List<Element> v = children(rows.get(row), "v");
+                for (int i = 0; i < dataSources.size(); i++)
+                    db.setRow(r, row, i, value(v.get(dataSources.get(i)).getTextContent()));
+            }
+            long pdp = Math.max(0, lastUpdate / (step * 1000L));
+            db.setArchiveState(r, rows.size() - 1, (int) (pdp % archive.getSteps()));
+        }
+        db.setLastUpdate(lastUpdate);
+        db.sync();
+        logger.info("Imported " + dataSources.size() + " data sources and " + rraElements.size() + " archives into " + target);
+        return db;
+    }
+
+    // helper methods
+
+    private static boolean isXml(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            int c;
+            do {
+                c = in.read();
+            } while (c != -1 && Character.isWhitespace(c));
+            return c == '<';
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Element child(Element parent, String name) {
+        for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling())
+            if (n instanceof Element && n.getNodeName().equals(name))
+                return (Element) n;
+        return null;
+    }
+
+    private static List<Element> children(Element parent, String name) {
+        List<Element> list = new ArrayList<Element>();
+        if (parent != null)
+            for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling())
+                if (n instanceof Element && n.getNodeName().equals(name))
+                    list.add((Element) n);
+        return list;
+    }
+
+    private static String text(Element parent, String name) throws IOException {
+        Element e = child(parent, name);
+        if (e == null)
+            throw new IOException("Invalid rrdtool dump, missing <" + name + "> in <" + parent.getNodeName() + ">");
+        return e.getTextContent().trim();
+    }
+
+    /*
+    * rrdtool writes the unknown values as NaN, UNKN or nan
+    * */
+    private static double value(String text) {
+        try {
+            return Double.parseDouble(text.trim());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Usage: RrdImporter <file.rrd|dump.xml> <target>");
+            System.exit(1);
+        }
+        RoundRobinDatabase db = importFile(new File(args[0]), new File(args[1]));
+        System.out.println(db);
+        db.close();
+    }
+}
@@ -0,0 +1,69 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.tests.performance;
+
+import org.openiot.gsn.storage.rrd.RoundRobinDatabase;
+import org.openiot.gsn.storage.rrd.RrdDefinition;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Measures the time of an update of a round-robin database with the layout StreamRRDExporterVirtualSensor creates by
+ * default (AVERAGE and MAX archives of 1, 6, 24 and 288 steps of 300s), one update per second of data.
+ * <p>
+ * Parameters (system properties): nbUpdates (default 5000000), nbFields (default 4), nbRuns (default 5), file
+ * (default a temporary file). The first run warms the JIT up and is not reported.
+ */
+public class RoundRobinUpdates {
+
+    public static void main(String[] args) throws IOException {
+        int nbUpdates = Integer.parseInt(System.getProperty("nbUpdates", "5000000"));
+        int nbFields = Integer.parseInt(System.getProperty("nbFields", "4"));
+        int nbRuns = Integer.parseInt(System.getProperty("nbRuns", "5"));
+        File file = System.getProperty("file") != null ? new File(System.getProperty("file")) : File.createTempFile("updates", ".grrd");
+        file.deleteOnExit();
+
+        RrdDefinition definition = new RrdDefinition(300);
+        for (int i = 0; i < nbFields; i++)
+            definition.addDataSource("field" + i + ":GAUGE:600:U:U");
+        for (String rra : new String[]{"AVERAGE:0.5:1:600", "AVERAGE:0.5:6:700", "AVERAGE:0.5:24:775", "AVERAGE:0.5:288:797",
+                "MAX:0.5:1:600", "MAX:0.5:6:700", "MAX:0.5:24:775", "MAX:0.5:288:797"})
+            definition.addArchive(rra);
+        long time = System.currentTimeMillis();
+        RoundRobinDatabase db = RoundRobinDatabase.create(file, definition, time);
+        double[] values = new double[nbFields];
+        for (int r = 0; r <= nbRuns; r++) {
+            long start = System.nanoTime();
+            for (int n = 0; n < nbUpdates; n++) {
+                time += 1000;
+                for (int i = 0; i < nbFields; i++)
+                    values[i] = (n + i) % 100;
+                db.update(time, values);
+            }
+            long delta = System.nanoTime() - start;
+            if (r == 0)
+                continue;
+            System.out.println("run: " + r + ", ns/update: " + (double) delta / nbUpdates);
+        }
+        db.close();
+    }
+}
@@ -0,0 +1,127 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.tests.performance;
+
+import org.openiot.gsn.beans.DataField;
+import org.openiot.gsn.beans.StreamElement;
+import org.openiot.gsn.processor.ScriptletProcessor;
+
+import java.io.Serializable;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the time spent by the ScriptletProcessor to evaluate representative scriptlets (a calibration, a threshold
+ * and a classification), dynamically, compiled with static type checking and compiled in parallel mode.
+ * <p>
+ * Parameters (system properties): nbElements (default 1000000), nbRuns (default 5), nbThreads (default the number of
+ * processors, for the parallel mode). The first run of each variant warms the JIT up and is not reported.
+ */
+public class Scriptlets {
+
+    private static final DataField[] INPUT = new DataField[]{
+            new DataField("temperature", "double"),
+            new DataField("humidity", "double"),
+            new DataField("speed", "integer")
+    };
+
+    private static final DataField[] OUTPUT = new DataField[]{
+            new DataField("temperature", "double"),
+            new DataField("humidity", "double"),
+            new DataField("alarm", "integer"),
+            new DataField("status", "varchar(10)")
+    };
+
+    private static final String[][] SCRIPTLETS = new String[][]{
+            {"calibration", "TEMPERATURE = TEMPERATURE * 0.98 + 0.4; HUMIDITY = Math.min(100d, HUMIDITY * 1.02)"},
+            {"threshold", "ALARM = (TEMPERATURE > 30 || HUMIDITY > 90) ? 1 : 0"},
+            {"classification", "STATUS = SPEED < 10 ? 'slow' : SPEED < 50 ? 'normal' : 'fast'"}
+    };
+
+    private final int nbElements;
+    private final StreamElement[] elements;
+
+    public Scriptlets(int nbElements) {
+        this.nbElements = nbElements;
+        // a small set of elements reused in turn, so that their creation is not measured
+        elements = new StreamElement[1024];
+        for (int i = 0; i < elements.length; i++)
+            elements[i] = new StreamElement(INPUT, new Serializable[]{15 + (i % 30) * 0.7, 40 + (i % 60) * 1.0, i % 80}, i);
+    }
+
+    /*
+    * Counts the produced elements instead of storing them
+    * */
+    private static class CountingProcessor extends ScriptletProcessor {
+
+        private final AtomicLong produced = new AtomicLong();
+
+        public boolean initialize(String scriptlet, String compile, int nbThreads) {
+            TreeMap<String, String> parameters = new TreeMap<String, String>();
+            parameters.put("scriptlet", scriptlet);
+            parameters.put("compile", compile);
+            if (nbThreads > 0) {
+                parameters.put("parallel", "true");
+                parameters.put("threads", Integer.toString(nbThreads));
+            }
+            return initialize(OUTPUT, parameters);
+        }
+
+        @Override
+        protected void dataProduced(StreamElement streamElement) {
+            produced.incrementAndGet();
+        }
+    }
+
+    private void measure(String label, String scriptlet, String compile, int nbThreads, int nbRuns) throws InterruptedException {
+        CountingProcessor processor = new CountingProcessor();
+        if (!processor.initialize(scriptlet, compile, nbThreads))
+            throw new IllegalStateException("Failed to initialize the processor for " + label);
+        for (int r = 0; r <= nbRuns; r++) {
+            long expected = processor.produced.get() + nbElements;
+            long start = System.nanoTime();
+            for (int n = 0; n < nbElements; n++)
+                processor.dataAvailable("input", elements[n & (elements.length - 1)]);
+            while (processor.produced.get() < expected)
+                Thread.sleep(1);
+            long delta = System.nanoTime() - start;
+            if (r == 0)
+                continue;
+            System.out.println(new StringBuilder()
+                    .append(label)
+                    .append(", run: ").append(r)
+                    .append(", ns/element: ").append((double) delta / nbElements)
+                    .toString());
+        }
+        processor.dispose();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Scriptlets bench = new Scriptlets(Integer.parseInt(System.getProperty("nbElements", "1000000")));
+        int nbRuns = Integer.parseInt(System.getProperty("nbRuns", "5"));
+        int nbThreads = Integer.parseInt(System.getProperty("nbThreads", Integer.toString(Runtime.getRuntime().availableProcessors())));
+        for (String[] scriptlet : SCRIPTLETS) {
+            bench.measure(scriptlet[0] + " dynamic", scriptlet[1], "dynamic", 0, nbRuns);
+            bench.measure(scriptlet[0] + " static", scriptlet[1], "static", 0, nbRuns);
+            bench.measure(scriptlet[0] + " static parallel (" + nbThreads + " threads)", scriptlet[1], "static", nbThreads, nbRuns);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.tests.performance;
+
+import org.openiot.gsn.beans.DataField;
+import org.openiot.gsn.beans.StreamElement;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the time and the memory allocated to create a stream element and read its fields the
+ * way the wrappers and StorageManager.executeInsert do on the postStreamElement path, with boxed
+ * values and with primitive slots.
+ * <p>
+ * Parameters (system properties): nbElements (default 5000000), nbFields (default 8), nbRuns (default 5).
+ * The first run of each variant warms the JIT up and is not reported.
+ */
+public class StreamElements {
+
+    private final int nbElements;
+    private final DataField[] structure;
+    private final String[] names;
+    private double sink;
+
+    public StreamElements(int nbElements, int nbFields) {
+        this.nbElements = nbElements;
+        structure = new DataField[nbFields];
+        names = new String[nbFields];
+        for (int i = 0; i < nbFields; i++) {
+            structure[i] = new DataField("field_" + i, i % 2 == 0 ? "double" : "bigint");
+            names[i] = structure[i].getName();
+        }
+    }
+
+    /*
+    * Boxed values, fields read by name
+    * */
+    private void runBoxed() {
+        for (int n = 0; n < nbElements; n++) {
+            Serializable[] values = new Serializable[structure.length];
+            for (int i = 0; i < values.length; i++)
+                values[i] = i % 2 == 0 ? (Serializable) (n * 0.5) : (Serializable) (long) n;
+            StreamElement se = new StreamElement(structure, values, n);
+            for (String name : names)
+                sink += ((Number) se.getData(name)).doubleValue();
+        }
+    }
+
+    /*
+    * Primitive slots, fields read by index
+    * */
+    private void runPrimitive() {
+        for (int n = 0; n < nbElements; n++) {
+            StreamElement se = new StreamElement(structure, n);
+            for (int i = 0; i < structure.length; i++) {
+                if (i % 2 == 0)
+                    se.setDouble(i, n * 0.5);
+                else
+                    se.setLong(i, n);
+            }
+            for (String name : names) {
+                int index = se.indexOf(name);
+                sink += se.isNull(index) ? 0 : se.getDouble(index);
+            }
+        }
+    }
+
+    private void measure(String label, Runnable run, int nbRuns) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        boolean allocation = threads instanceof com.sun.management.ThreadMXBean;
+        for (int r = 0; r <= nbRuns; r++) {
+            long bytes = allocation ? ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+            long start = System.nanoTime();
+            run.run();
+            long delta = System.nanoTime() - start;
+            if (allocation)
+                bytes = ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId()) - bytes;
+            if (r == 0)
+                continue;
+            System.out.println(new StringBuilder()
+                    .append(label)
+                    .append(", run: ").append(r)
+                    .append(", ns/element: ").append((double) delta / nbElements)
+                    .append(", bytes/element: ").append(allocation ? Double.toString((double) bytes / nbElements) : "n/a")
+                    .toString());
+        }
+    }
+
+    public static void main(String[] args) {
+        final StreamElements bench = new StreamElements(
+                Integer.parseInt(System.getProperty("nbElements", "5000000")),
+                Integer.parseInt(System.getProperty("nbFields", "8"))
+        );
+        int nbRuns = Integer.parseInt(System.getProperty("nbRuns", "5"));
+        bench.measure("boxed", new Runnable() {
+            public void run() {
+                bench.runBoxed();
+            }
+        }, nbRuns);
+        bench.measure("primitive", new Runnable() {
+            public void run() {
+                bench.runPrimitive();
+            }
+        }, nbRuns);
+        System.out.println("checksum: " + bench.sink);
+    }
+}
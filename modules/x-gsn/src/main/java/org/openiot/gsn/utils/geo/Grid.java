@@ -0,0 +1,360 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.utils.geo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raster of doubles stored in a single primitive array, row-major, first row at the top (as in ESRI
+ * ASCII grids), together with its geo-referencing (lower-left corner, cell size and no-data value).
+ * <p>
+ * The binary format is a fixed header followed by the cells as big-endian floats or doubles,
+ * optionally deflated:
+ * <pre>
+ * int    magic ("GRD1")
+ * byte   flags (FLAG_FLOAT, FLAG_DEFLATE)
+ * int    nrows, ncols
+ * double xllcorner, yllcorner, cellsize, nodata_value
+ * ...    cells
+ * </pre>
+ * Java-serialised Double[][] blobs written by older versions of GridDataWrapper are still decoded.
+ */
+public class Grid {
+
+    public static final int MAGIC = 0x47524431; // "GRD1"
+    public static final byte FLAG_FLOAT = 1;
+    public static final byte FLAG_DEFLATE = 2;
+    private static final int HEADER_SIZE = 4 + 1 + 4 + 4 + 4 * 8;
+
+    private final int nrows;
+    private final int ncols;
+    private final double[] cells;
+    private double xllcorner;
+    private double yllcorner;
+    private double cellsize = 1;
+    private double nodata = Double.NaN;
+
+    public Grid(int nrows, int ncols) {
+        this(nrows, ncols, new double[nrows * ncols]);
+    }
+
+    public Grid(int nrows, int ncols, double[] cells) {
+        if (cells.length != nrows * ncols)
+            throw new IllegalArgumentException("Expected " + nrows * ncols + " cells, got " + cells.length);
+        this.nrows = nrows;
+        this.ncols = ncols;
+        this.cells = cells;
+    }
+
+    public Grid setGeoReference(double xllcorner, double yllcorner, double cellsize, double nodata) {
+        this.xllcorner = xllcorner;
+        this.yllcorner = yllcorner;
+        this.cellsize = cellsize;
+        this.nodata = nodata;
+        return this;
+    }
+
+    public int getRows() {
+        return nrows;
+    }
+
+    public int getCols() {
+        return ncols;
+    }
+
+    public double get(int row, int col) {
+        return cells[row * ncols + col];
+    }
+
+    public void set(int row, int col, double value) {
+        cells[row * ncols + col] = value;
+    }
+
+    /*
+    * Direct access to the cells, row-major
+    * */
+    public double[] getCells() {
+        return cells;
+    }
+
+    public double getXllcorner() {
+        return xllcorner;
+    }
+
+    public double getYllcorner() {
+        return yllcorner;
+    }
+
+    public double getCellsize() {
+        return cellsize;
+    }
+
+    public double getNodata() {
+        return nodata;
+    }
+
+    public boolean isNodata(double value) {
+        return Double.isNaN(value) || value == nodata;
+    }
+
+    /*
+    * Returns a copy of the rows [row0, row1) and columns [col0, col1), clipped to the grid
+    * */
+    public Grid subGrid(int row0, int col0, int row1, int col1) {
+        row0 = Math.max(0, row0);
+        col0 = Math.max(0, col0);
+        row1 = Math.min(nrows, row1);
+        col1 = Math.min(ncols, col1);
+        int rows = Math.max(0, row1 - row0);
+        int cols = Math.max(0, col1 - col0);
+
+        Grid sub = new Grid(rows, cols);
+        for (int i = 0; i < rows; i++)
+            System.arraycopy(cells, (row0 + i) * ncols + col0, sub.cells, i * cols, cols);
+        // rows are counted from the top, the corner is at the bottom left
+        return sub.setGeoReference(xllcorner + col0 * cellsize, yllcorner + (nrows - row1) * cellsize, cellsize, nodata);
+    }
+
+    /*
+    * Returns a grid where each cell is the mean of factor x factor cells of this grid.
+    * No-data cells are ignored; a block holding only no-data cells yields no-data.
+    * */
+    public Grid downsample(int factor) {
+        if (factor <= 1)
+            return this;
+        int rows = (nrows + factor - 1) / factor;
+        int cols = (ncols + factor - 1) / factor;
+        double[] sums = new double[rows * cols];
+        int[] counts = new int[rows * cols];
+
+        for (int i = 0; i < nrows; i++) {
+            int base = (i / factor) * cols;
+            for (int j = 0; j < ncols; j++) {
+                double v = cells[i * ncols + j];
+                if (!isNodata(v)) {
+                    sums[base + j / factor] += v;
+                    counts[base + j / factor]++;
+                }
+            }
+        }
+        for (int k = 0; k < sums.length; k++)
+            sums[k] = counts[k] == 0 ? nodata : sums[k] / counts[k];
+
+        // the corner stays at the bottom left of the (possibly padded) last row of blocks
+        return new Grid(rows, cols, sums).setGeoReference(xllcorner, yllcorner - (rows * factor - nrows) * cellsize, cellsize * factor, nodata);
+    }
+
+    public long getSizeInBytes() {
+        return 8L * cells.length + 64;
+    }
+
+    public byte[] toBytes() {
+        return toBytes(false, false);
+    }
+
+    public byte[] toBytes(boolean singlePrecision, boolean compress) {
+        int cellBytes = singlePrecision ? 4 : 8;
+        ByteBuffer payload = ByteBuffer.allocate(cells.length * cellBytes);
+        if (singlePrecision) {
+            for (double v : cells)
+                payload.putFloat((float) v);
+        } else {
+            payload.asDoubleBuffer().put(cells);
+        }
+        byte[] data = payload.array();
+        int length = data.length;
+
+        if (compress) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 4 + 64);
+            byte[] buf = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                bos.write(buf, 0, n);
+            }
+            deflater.end();
+            data = bos.toByteArray();
+            length = data.length;
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + length);
+        out.putInt(MAGIC);
+        out.put((byte) ((singlePrecision ? FLAG_FLOAT : 0) | (compress ? FLAG_DEFLATE : 0)));
+        out.putInt(nrows);
+        out.putInt(ncols);
+        out.putDouble(xllcorner);
+        out.putDouble(yllcorner);
+        out.putDouble(cellsize);
+        out.putDouble(nodata);
+        out.put(data, 0, length);
+        return out.array();
+    }
+
+    public static boolean isCompactFormat(byte[] bytes) {
+        return bytes != null && bytes.length >= HEADER_SIZE && ByteBuffer.wrap(bytes).getInt() == MAGIC;
+    }
+
+    /*
+    * Decodes a grid in the compact format or a Java-serialised Double[][]
+    * */
+    public static Grid fromBytes(byte[] bytes) throws IOException {
+        if (!isCompactFormat(bytes))
+            return fromLegacyBytes(bytes);
+
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        in.getInt();
+        byte flags = in.get();
+        int nrows = in.getInt();
+        int ncols = in.getInt();
+        double xll = in.getDouble();
+        double yll = in.getDouble();
+        double cellsize = in.getDouble();
+        double nodata = in.getDouble();
+
+        boolean singlePrecision = (flags & FLAG_FLOAT) != 0;
+        int payloadSize = nrows * ncols * (singlePrecision ? 4 : 8);
+        ByteBuffer payload;
+        if ((flags & FLAG_DEFLATE) != 0) {
+            byte[] data = new byte[payloadSize];
+            Inflater inflater = new Inflater();
+            inflater.setInput(bytes, HEADER_SIZE, bytes.length - HEADER_SIZE);
+            try {
+                int read = 0;
+                while (read < payloadSize && !inflater.finished()) {
+                    int n = inflater.inflate(data, read, payloadSize - read);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+                    read += n;
+                }
+                if (read != payloadSize)
+                    throw new IOException("Truncated grid: expected " + payloadSize + " bytes, got " + read);
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupted grid: " + e.getMessage(), e);
+            } finally {
+                inflater.end();
+            }
+            payload = ByteBuffer.wrap(data);
+        } else {
+            if (bytes.length - HEADER_SIZE < payloadSize)
+                throw new IOException("Truncated grid: expected " + payloadSize + " bytes, got " + (bytes.length - HEADER_SIZE));
+            payload = ByteBuffer.wrap(bytes, HEADER_SIZE, payloadSize).slice();
+        }
+
+        double[] cells = new double[nrows * ncols];
+        if (singlePrecision) {
+            for (int i = 0; i < cells.length; i++)
+                cells[i] = payload.getFloat();
+        } else {
+            payload.asDoubleBuffer().get(cells);
+        }
+        return new Grid(nrows, ncols, cells).setGeoReference(xll, yll, cellsize, nodata);
+    }
+
+    private static Grid fromLegacyBytes(byte[] bytes) throws IOException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return fromArray((Double[][]) in.readObject());
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e.getMessage(), e);
+        } catch (ClassCastException e) {
+            throw new IOException("Not a grid: " + e.getMessage(), e);
+        } finally {
+            in.close();
+        }
+    }
+
+    public static Grid fromArray(Double[][] array) {
+        int rows = array.length;
+        int cols = rows == 0 ? 0 : array[0].length;
+        Grid grid = new Grid(rows, cols);
+        for (int i = 0; i < rows; i++)
+            for (int j = 0; j < cols; j++) {
+                Double d = array[i][j];
+                grid.cells[i * cols + j] = d == null ? Double.NaN : d;
+            }
+        return grid;
+    }
+
+    public Double[][] toArray() {
+        Double[][] array = new Double[nrows][ncols];
+        for (int i = 0; i < nrows; i++)
+            for (int j = 0; j < ncols; j++)
+                array[i][j] = cells[i * ncols + j];
+        return array;
+    }
+
+    /*
+    * Appends the cells, one row per line, values separated by a space
+    * */
+    public StringBuilder appendCells(StringBuilder sb) {
+        for (int i = 0; i < nrows; i++) {
+            for (int j = 0; j < ncols; j++)
+                sb.append(cells[i * ncols + j]).append(' ');
+            sb.append('\n');
+        }
+        return sb;
+    }
+
+    /*
+    * Appends the grid in the ESRI ASCII format
+    * */
+    public StringBuilder appendAsESRI(StringBuilder sb) {
+        sb.append("ncols ").append(ncols).append('\n')
+                .append("nrows ").append(nrows).append('\n')
+                .append("xllcorner ").append(xllcorner).append('\n')
+                .append("yllcorner ").append(yllcorner).append('\n')
+                .append("cellsize ").append(cellsize).append('\n')
+                .append("NODATA_value ").append(nodata).append('\n');
+        return appendCells(sb);
+    }
+
+    /*
+    * Appends the cells as a JSON array of rows
+    * */
+    public StringBuilder appendAsJSON(StringBuilder sb) {
+        sb.append('[');
+        for (int i = 0; i < nrows; i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append('[');
+            for (int j = 0; j < ncols; j++) {
+                if (j > 0)
+                    sb.append(',');
+                double v = cells[i * ncols + j];
+                if (Double.isNaN(v) || Double.isInfinite(v))
+                    sb.append("null");
+                else
+                    sb.append(v);
+            }
+            sb.append(']');
+        }
+        return sb.append(']');
+    }
+}
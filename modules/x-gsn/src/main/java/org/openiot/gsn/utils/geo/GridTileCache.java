@@ -0,0 +1,151 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.utils.geo;
+
+import org.apache.log4j.Logger;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of decoded grids, of their downsampled levels and of the tiles cut from
+ * them. Levels and tiles are computed on first request only. The cache is bounded by the total
+ * memory of the grids it holds.
+ * Grids are identified by sensor, field and timestamp; since stored grids are never modified, entries
+ * do not need to be invalidated.
+ */
+public class GridTileCache {
+
+    private static transient Logger logger = Logger.getLogger(GridTileCache.class);
+
+    public static final long DEFAULT_MAX_BYTES = 128L * 1024 * 1024;
+
+    private static final GridTileCache instance = new GridTileCache(DEFAULT_MAX_BYTES);
+
+    private final LinkedHashMap<String, Grid> cache = new LinkedHashMap<String, Grid>(64, 0.75f, true);
+    private long maxBytes;
+    private long currentBytes;
+    private long hits;
+    private long misses;
+
+    public GridTileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static GridTileCache getInstance() {
+        return instance;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    public static String key(String sensor, String field, long timed) {
+        return new StringBuilder(sensor.toLowerCase()).append('/').append(field.toLowerCase()).append('@').append(timed).toString();
+    }
+
+    public synchronized Grid get(String key) {
+        Grid grid = cache.get(key);
+        if (grid == null)
+            misses++;
+        else
+            hits++;
+        return grid;
+    }
+
+    public synchronized void put(String key, Grid grid) {
+        Grid previous = cache.put(key, grid);
+        if (previous != null)
+            currentBytes -= previous.getSizeInBytes();
+        currentBytes += grid.getSizeInBytes();
+        evict();
+    }
+
+    /*
+    * Returns the level at which the grid is downsampled to a single cell
+    * */
+    public static int maxLevel(Grid base) {
+        int size = Math.max(base.getRows(), base.getCols());
+        int level = 0;
+        while (size > 1) {
+            size = (size + 1) / 2;
+            level++;
+        }
+        return level;
+    }
+
+    /*
+    * Returns the grid downsampled by 2^level, computing it from the highest level already cached.
+    * Levels above maxLevel(base) are the single cell of maxLevel(base).
+    * */
+    public Grid getLevel(String key, Grid base, int level) {
+        level = Math.min(level, maxLevel(base));
+        if (level <= 0)
+            return base;
+        int from = level;
+        Grid grid = get(key + "#L" + from);
+        while (grid == null && --from > 0)
+            grid = get(key + "#L" + from);
+        if (grid == null)
+            grid = base;
+        for (int l = from + 1; l <= level; l++) {
+            grid = grid.downsample(2);
+            put(key + "#L" + l, grid);
+        }
+        return grid;
+    }
+
+    /*
+    * Returns the tile (tileRow, tileCol) of size tileSize x tileSize at the given level
+    * */
+    public Grid getTile(String key, Grid base, int level, int tileRow, int tileCol, int tileSize) {
+        String tileKey = new StringBuilder(key).append("#T").append(level).append('/').append(tileRow).append('/')
+                .append(tileCol).append('/').append(tileSize).toString();
+        Grid tile = get(tileKey);
+        if (tile == null) {
+            Grid grid = getLevel(key, base, level);
+            tile = grid.subGrid(tileRow * tileSize, tileCol * tileSize, (tileRow + 1) * tileSize, (tileCol + 1) * tileSize);
+            put(tileKey, tile);
+        }
+        return tile;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Grid>> iter = cache.entrySet().iterator();
+        while (currentBytes > maxBytes && iter.hasNext()) {
+            Map.Entry<String, Grid> eldest = iter.next();
+            currentBytes -= eldest.getValue().getSizeInBytes();
+            iter.remove();
+            logger.debug("evicted " + eldest.getKey());
+        }
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+        currentBytes = 0;
+    }
+
+    public synchronized String getStatistics() {
+        return "entries=" + cache.size() + ", bytes=" + currentBytes + ", hits=" + hits + ", misses=" + misses;
+    }
+}
@@ -23,14 +23,15 @@
 package org.openiot.gsn.utils.geo;
 
 import org.openiot.gsn.Main;
+import org.openiot.gsn.Mappings;
+import org.openiot.gsn.beans.DataField;
 import org.openiot.gsn.beans.DataTypes;
+import org.openiot.gsn.beans.VSensorConfig;
 import org.apache.log4j.Logger;
-import org.json.JSONArray;
+import org.json.simple.JSONAware;
 import org.json.simple.JSONObject;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.sql.*;
 
 public class GridTools {
@@ -42,31 +43,15 @@ public class GridTools {
         StringBuilder sb = new StringBuilder();
 
         try {
-            ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
-            ObjectInputStream in = null;
+            Grid grid = Grid.fromBytes(bytes);
 
-            in = new ObjectInputStream(bis);
+            logger.debug("grid.rows" + grid.getRows());
+            logger.debug("grid.cols" + grid.getCols());
 
-            Double deserial[][] = new Double[0][];
-
-            deserial = (Double[][]) in.readObject();
-            in.close();
-
-            logger.debug("deserial.length" + deserial.length);
-            logger.debug("deserial[0].length" + deserial[0].length);
-
-            for (int i = 0; i < deserial.length; i++) {
-
-                for (int j = 0; j < deserial[0].length; j++) {
-                    sb.append(deserial[i][j]).append(" ");
-                }
-                sb.append("\n");
-            }
+            grid.appendCells(sb);
 
         } catch (IOException e) {
             logger.warn(e);
-        } catch (ClassNotFoundException e) {
-            logger.warn(e);
         }
 
         return sb.toString();
@@ -77,35 +62,137 @@ public class GridTools {
     * */
     public static Double[][] deSerialize(byte[] bytes) {
 
-        Double deserial[][] = new Double[0][];
+        Grid grid = decode(bytes);
+        return grid == null ? new Double[0][] : grid.toArray();
+    }
 
+    /*
+    * Decodes a grid stored in the compact format or as a serialised Double[][], without boxing the cells
+    * */
+    public static Grid decode(byte[] bytes) {
         try {
-            ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
-            ObjectInputStream in = null;
+            return Grid.fromBytes(bytes);
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+            return null;
+        }
+    }
 
-            in = new ObjectInputStream(bis);
+    /*
+    * Tells whether the output structure of the sensor is the one of a grid sensor:
+    * ncols and nrows fields and at least one binary field holding the grid
+    * */
+    public static boolean isGridSensor(String sensor) {
+        VSensorConfig config = Mappings.getConfig(sensor);
+        if (config == null)
+            return false;
+        boolean ncols = false, nrows = false, binary = false;
+        for (DataField field : config.getOutputStructure()) {
+            String name = field.getName();
+            if (name.equals("ncols"))
+                ncols = true;
+            else if (name.equals("nrows"))
+                nrows = true;
+            else if (field.getDataTypeID() == DataTypes.BINARY)
+                binary = true;
+        }
+        return ncols && nrows && binary;
+    }
 
-            deserial = (Double[][]) in.readObject();
-            in.close();
+    /*
+    * Tells whether the sensor has a binary output field with the given name (case insensitive)
+    * */
+    public static boolean isBinaryField(String sensor, String field) {
+        VSensorConfig config = Mappings.getConfig(sensor);
+        if (config == null || field == null)
+            return false;
+        for (DataField f : config.getOutputStructure())
+            if (f.getName().equalsIgnoreCase(field))
+                return f.getDataTypeID() == DataTypes.BINARY;
+        return false;
+    }
 
-            logger.debug("deserial.length" + deserial.length);
-            logger.debug("deserial[0].length" + deserial[0].length);
+    /*
+    * A grid loaded by loadGrid, and its key in the GridTileCache (the key of its levels and tiles).
+    * The grid is held here, so it doesn't matter if the cache evicts it meanwhile.
+    * */
+    public static class LoadedGrid {
+        public final String key;
+        public final Grid grid;
 
-            for (int i = 0; i < deserial.length; i++) {
-                StringBuilder sb = new StringBuilder();
-                for (int j = 0; j < deserial[0].length; j++) {
-                    sb.append(deserial[i][j]).append(" ");
-                }
-                logger.debug(sb.toString());
-            }
+        LoadedGrid(String key, Grid grid) {
+            this.key = key;
+            this.grid = grid;
+        }
+    }
 
-        } catch (IOException e) {
-            logger.error(e.getMessage(), e);
-        } catch (ClassNotFoundException e) {
-            logger.error(e.getMessage(), e);
+    /*
+    * Loads the grid stored in the given field of the sensor at the given time (the latest one if timed < 0).
+    * Decoded grids are kept in the GridTileCache.
+    * Returns null if there is no such grid, the sensor is not a loaded grid sensor or the field is not one
+    * of its binary fields.
+    * */
+    public static LoadedGrid loadGrid(String sensor, String field, long timed) throws SQLException {
+        // both names end up in the SQL, so only fields of a loaded grid sensor are accepted
+        if (!isGridSensor(sensor) || !isBinaryField(sensor, field))
+            return null;
+        VSensorConfig config = Mappings.getConfig(sensor);
+        sensor = config.getName();
+        field = field.toLowerCase();
+
+        if (timed >= 0) {
+            String key = GridTileCache.key(sensor, field, timed);
+            Grid cached = GridTileCache.getInstance().get(key);
+            if (cached != null)
+                return new LoadedGrid(key, cached);
         }
 
-        return deserial;
+        StringBuilder query = new StringBuilder("select timed, ncols, nrows, xllcorner, yllcorner, cellsize, nodata_value, ")
+                .append(field).append(" from ").append(sensor).append(" where timed = ");
+        if (timed >= 0)
+            query.append(timed);
+        else
+            query.append("(select max(timed) from ").append(sensor).append(")");
+
+        Connection connection = null;
+        Statement statement = null;
+        ResultSet results = null;
+        try {
+            connection = Main.getDefaultStorage().getConnection();
+            statement = connection.createStatement();
+            results = statement.executeQuery(query.toString());
+            if (!results.next())
+                return null;
+
+            long t = results.getLong(1);
+            String key = GridTileCache.key(sensor, field, t);
+            Grid cached = GridTileCache.getInstance().get(key);
+            if (cached != null)
+                return new LoadedGrid(key, cached);
+
+            byte[] bytes = results.getBytes(8);
+            Grid grid = decode(bytes);
+            if (grid == null)
+                return null;
+            if (!Grid.isCompactFormat(bytes)) // legacy grids carry no geo-reference
+                grid.setGeoReference(results.getDouble(4), results.getDouble(5), results.getDouble(6), results.getDouble(7));
+            GridTileCache.getInstance().put(key, grid);
+            return new LoadedGrid(key, grid);
+        } finally {
+            if (results != null)
+                try {
+                    results.close();
+                } catch (SQLException e) {
+                    logger.warn(e.getMessage(), e);
+                }
+            if (statement != null)
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    logger.warn(e.getMessage(), e);
+                }
+            Main.getDefaultStorage().close(connection);
+        }
     }
 
     public static String executeQueryForGridAsString(String query) {
@@ -207,17 +294,13 @@ public class GridTools {
                     Object o = results.getObject(col + 1); // Get value of the column
 
                     if (typ[col] == DataTypes.BINARY) {
-                        byte[] bin = (byte[]) o;
-                        Double[][] array = GridTools.deSerialize(bin);
-                        JSONArray jsonArray = new JSONArray();
-                        for (int i=0;i<array.length;i++) {
-                            JSONArray anArray = new JSONArray();
-                            for (int j=0;j<array[i].length;j++) {
-                                anArray.put(array[i][j]);
-                            }
-                            jsonArray.put(anArray);
-                        }
-                        jsonResponse.put(columnLabel[col], jsonArray);
+                        final Grid grid = decode((byte[]) o);
+                        if (grid != null)
+                            jsonResponse.put(columnLabel[col], new JSONAware() {
+                                public String toJSONString() {
+                                    return grid.appendAsJSON(new StringBuilder()).toString();
+                                }
+                            });
                     } else {
                         jsonResponse.put(columnLabel[col], o);
                     }
@@ -0,0 +1,245 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.utils.geo;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.index.quadtree.Quadtree;
+import org.openiot.gsn.VSensorStateChangeListener;
+import org.openiot.gsn.beans.VSensorConfig;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Spatial index over the locations of the loaded virtual sensors.
+ * The index is kept up to date by the virtual sensor loader: a sensor is inserted when it is loaded
+ * and removed when it is unloaded, so queries never need a global rebuild.
+ * Sensors without latitude/longitude in their configuration are not indexed.
+ */
+public class SensorGeoIndex implements VSensorStateChangeListener {
+
+    private static transient Logger logger = Logger.getLogger(SensorGeoIndex.class);
+
+    private static final SensorGeoIndex instance = new SensorGeoIndex();
+
+    /*
+    * Selects the sensors a query may return
+    * */
+    public interface Filter {
+        boolean accept(String sensor);
+    }
+
+    private final GeometryFactory geometryFactory = new GeometryFactory();
+    private final Quadtree index = new Quadtree();
+    private final Map<String, Point> locations = new HashMap<String, Point>();
+    // grows with every insertion; it is not shrunk on removal, so it may be larger than needed
+    private final Envelope extent = new Envelope();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    protected SensorGeoIndex() {
+
+    }
+
+    public static SensorGeoIndex getInstance() {
+        return instance;
+    }
+
+    public boolean vsLoading(VSensorConfig config) {
+        Double latitude = config.getLatitude();
+        Double longitude = config.getLongitude();
+        if (latitude == null || longitude == null)
+            return true;
+        add(config.getName(), longitude, latitude);
+        return true;
+    }
+
+    public boolean vsUnLoading(VSensorConfig config) {
+        remove(config.getName());
+        return true;
+    }
+
+    public void release() throws Exception {
+        lock.writeLock().lock();
+        try {
+            for (Point p : locations.values())
+                index.remove(p.getEnvelopeInternal(), p);
+            locations.clear();
+            extent.setToNull();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+    * Inserts or moves the sensor to the given location
+    * */
+    public void add(String sensor, double longitude, double latitude) {
+        String name = sensor.toLowerCase();
+        Point point = geometryFactory.createPoint(new Coordinate(longitude, latitude));
+        point.setUserData(sensor);
+        lock.writeLock().lock();
+        try {
+            Point previous = locations.put(name, point);
+            if (previous != null)
+                index.remove(previous.getEnvelopeInternal(), previous);
+            index.insert(point.getEnvelopeInternal(), point);
+            extent.expandToInclude(point.getCoordinate());
+        } finally {
+            lock.writeLock().unlock();
+        }
+        logger.debug("indexed " + sensor + " at " + point);
+    }
+
+    public void remove(String sensor) {
+        lock.writeLock().lock();
+        try {
+            Point previous = locations.remove(sensor.toLowerCase());
+            if (previous != null)
+                index.remove(previous.getEnvelopeInternal(), previous);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+    * Returns the location of the given sensor, or null if it is not indexed
+    * */
+    public Point getLocation(String sensor) {
+        lock.readLock().lock();
+        try {
+            return locations.get(sensor.toLowerCase());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return locations.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+    * Returns the names of the sensors located within the given envelope
+    * */
+    public List<String> query(Envelope envelope) {
+        List<String> sensors = new ArrayList<String>();
+        lock.readLock().lock();
+        try {
+            // the quadtree returns candidates whose node overlaps the envelope, not exact matches
+            for (Object o : index.query(envelope)) {
+                Point p = (Point) o;
+                if (envelope.contains(p.getCoordinate()))
+                    sensors.add((String) p.getUserData());
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        Collections.sort(sensors);
+        return sensors;
+    }
+
+    /*
+    * Returns the names of the k sensors closest to the given point, closest first.
+    * The search envelope is doubled until k sensors are found or it covers all the sensors.
+    * */
+    public List<String> nearest(double longitude, double latitude, int k) {
+        return nearest(longitude, latitude, k, null);
+    }
+
+    /*
+    * Returns the names of the k sensors accepted by the filter (all sensors if it is null) that are
+    * closest to the given point, closest first. Sensors are filtered before the k closest are taken.
+    * */
+    public List<String> nearest(double longitude, double latitude, int k, Filter filter) {
+        List<String> result = new ArrayList<String>();
+        if (k <= 0)
+            return result;
+
+        final Coordinate center = new Coordinate(longitude, latitude);
+        lock.readLock().lock();
+        try {
+            if (locations.isEmpty())
+                return result;
+            k = Math.min(k, locations.size());
+
+            Envelope bounds = new Envelope(extent);
+            bounds.expandToInclude(center);
+            double maxRadius = Math.max(Math.max(center.x - bounds.getMinX(), bounds.getMaxX() - center.x),
+                    Math.max(center.y - bounds.getMinY(), bounds.getMaxY() - center.y));
+            double radius = Math.max(maxRadius / Math.sqrt(locations.size()), 1e-6);
+
+            List<Point> candidates = new ArrayList<Point>();
+            while (true) {
+                Envelope search = new Envelope(center.x - radius, center.x + radius, center.y - radius, center.y + radius);
+                candidates.clear();
+                for (Object o : index.query(search)) {
+                    Point p = (Point) o;
+                    // only points within the inscribed circle are guaranteed to be closer than any point outside the envelope
+                    if (p.getCoordinate().distance(center) <= radius && (filter == null || filter.accept((String) p.getUserData())))
+                        candidates.add(p);
+                }
+                if (candidates.size() >= k || radius >= maxRadius * Math.sqrt(2))
+                    break;
+                radius *= 2;
+            }
+
+            Collections.sort(candidates, new Comparator<Point>() {
+                public int compare(Point a, Point b) {
+                    return Double.compare(a.getCoordinate().distance(center), b.getCoordinate().distance(center));
+                }
+            });
+            for (int i = 0; i < Math.min(k, candidates.size()); i++)
+                result.add((String) candidates.get(i).getUserData());
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    /*
+    * Returns list of indexed sensors and their locations, one per line
+    * */
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        lock.readLock().lock();
+        try {
+            for (Point p : new TreeMap<String, Point>(locations).values())
+                s.append(p.getUserData())
+                        .append(" => ")
+                        .append(p.getX())
+                        .append(" : ")
+                        .append(p.getY())
+                        .append("\n");
+        } finally {
+            lock.readLock().unlock();
+        }
+        return s.toString();
+    }
+}
@@ -28,9 +28,20 @@ import org.openiot.gsn.utils.ParamParser;
 
 import java.io.IOException;
 import java.io.Serializable;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.log4j.Logger;
@@ -52,9 +63,16 @@ import org.jfree.data.time.TimeSeriesCollection;
  * VERY IMPORTANT : THIS A GENERAL PLOT DRAWING VIRTUAL SENSOR AND NOT
  * MEMORY/CPU FRIENDLY. ONE CAN USE THIS VIRTUAL SENSOR AS A STARTING POINT FOR
  * WRITING MORE ADVANCED AND OPTIMIZED CHART DRAWING PACKAGES. <br>
- * VERY IMPORTANT : IN THIS IMPLEMENTATION, THE LARGER THE SIZE OF THE HISTORY
- * USED FOR DRAWING, THE BIGGER THE OUTPUT PLOT SIZE (IN KILOBYTES) AND THE
- * HIGHER PROCESSING TIME.
+ * The plots are drawn by a small pool of background threads shared by all the
+ * chart virtual sensors (<code>chartRenderThreads</code> system property,
+ * default 1), so drawing never holds back the data of the sensor. The plots of
+ * a virtual sensor are drawn one at a time: the plots asked for while one is
+ * waiting or being drawn make a single plot with the latest data, drawn once the
+ * previous one is published. The history is kept in primitive ring buffers and,
+ * when it is longer than the plot is wide, reduced to the minimum and the
+ * maximum of each pixel column (an equal slice of the time range) before
+ * drawing, so the drawing time depends on the width of the plot and not on the
+ * size of the history.
  * 
  */
 public class ChartVirtualSensor extends AbstractVirtualSensor {
@@ -76,6 +94,52 @@ public class ChartVirtualSensor extends AbstractVirtualSensor {
    
    private int                                         counter_pref                       = 0;
    
+   public static final int                             DEFAULT_RENDER_THREADS             = 1;
+   
+   /**
+    * Plots waiting to be drawn, at most one per virtual sensor.
+    */
+   private static final int                            MAX_PENDING_RENDERS                = 1024;
+   
+   private static final ThreadPoolExecutor             renderer                           = new ThreadPoolExecutor( Integer.getInteger( "chartRenderThreads" , DEFAULT_RENDER_THREADS ) ,
+                                                                                                Integer.getInteger( "chartRenderThreads" , DEFAULT_RENDER_THREADS ) , 0 , TimeUnit.MILLISECONDS ,
+                                                                                                new ArrayBlockingQueue < Runnable >( MAX_PENDING_RENDERS ) , new ThreadFactory( ) {
+                                                                                                   private final AtomicInteger count = new AtomicInteger( );
+                                                                                                   
+                                                                                                   public Thread newThread ( Runnable r ) {
+                                                                                                      Thread t = new Thread( r , "gsn-chart-renderer-" + count.incrementAndGet( ) );
+                                                                                                      t.setDaemon( true );
+                                                                                                      t.setPriority( Thread.NORM_PRIORITY - 1 );
+                                                                                                      return t;
+                                                                                                   }
+                                                                                                } );
+   
+   /**
+    * True while a plot of this virtual sensor is waiting to be drawn or being
+    * drawn.
+    */
+   private final AtomicBoolean                         renderPending                      = new AtomicBoolean( false );
+   
+   /**
+    * True if data came since the current plot started to be drawn.
+    */
+   private final AtomicBoolean                         renderRequested                    = new AtomicBoolean( false );
+   
+   private volatile boolean                            disposed                           = false;
+   
+   private final Runnable                              renderTask                         = new Runnable( ) {
+                                                                                             public void run ( ) {
+                                                                                                // updates coming from now on need another plot
+                                                                                                renderRequested.set( false );
+                                                                                                try {
+                                                                                                   if ( !disposed ) publishPlots( );
+                                                                                                } finally {
+                                                                                                   renderPending.set( false );
+                                                                                                }
+                                                                                                if ( renderRequested.get( ) && !disposed ) scheduleRender( );
+                                                                                             }
+                                                                                          };
+   
    public boolean initialize ( ) {
       /**
        * TODO : Checking if the user provides the arguements currectly. TODO :
@@ -123,6 +187,29 @@ public class ChartVirtualSensor extends AbstractVirtualSensor {
        */
       
       if ( ++counter % GENERATE_COUNT != 0 ) return;
+      /**
+       * Drawing is left to the renderer threads, unless a plot is already
+       * waiting to be drawn (it will show this data too) or being drawn (the
+       * next plot is scheduled when it is published).
+       */
+      renderRequested.set( true );
+      scheduleRender( );
+   }
+   
+   private void scheduleRender ( ) {
+      if ( !renderPending.compareAndSet( false , true ) ) return;
+      try {
+         renderer.execute( renderTask );
+      } catch ( RejectedExecutionException e ) {
+         renderPending.set( false );
+         logger.warn( "ChartVS drops the plot because too many plots are waiting to be drawn." );
+      }
+   }
+   
+   /**
+    * Draws the plots (run by the renderer threads) and publishes them.
+    */
+   private void publishPlots ( ) {
       /**
        * Creating the stream element(s) for output. For creating a stream
        * element one need to provide the field names (in the form of string
@@ -158,7 +245,7 @@ public class ChartVirtualSensor extends AbstractVirtualSensor {
       
       for ( int i = 0 ; i < fieldNames.length ; i++ ) {
          ChartInfo chart = input_stream_name_to_ChartInfo_map.get( fieldNames[ i ] );
-         charts[ i ] = chart.writePlot( ).toByteArray( );
+         charts[ i ] = chart.writePlot( );
       }
       StreamElement output = new StreamElement( fieldNames , fieldTypes , charts , System.currentTimeMillis( ) );
       
@@ -169,11 +256,12 @@ public class ChartVirtualSensor extends AbstractVirtualSensor {
       /**
        * For debugging purposes.
        */
-      if ( logger.isDebugEnabled( ) ) logger.debug( new StringBuilder( ).append( "Data received under the name: " ).append( inputStreamName ).toString( ) );
+      if ( logger.isDebugEnabled( ) ) logger.debug( new StringBuilder( ).append( "Plots produced for: " ).append( input_stream_name_to_ChartInfo_map.keySet( ) ).toString( ) );
    }
    
    public void dispose ( ) {
-
+      disposed = true;
+      renderer.remove( renderTask );
    }
    
 }
@@ -181,13 +269,21 @@ public class ChartVirtualSensor extends AbstractVirtualSensor {
 /**
  * This class represents a chart. The class is initialized using a String with a
  * predefined syntax. The class acts as a proxy between the Virtual Sensor and
- * the JFreeChart library which is used for plotting diagrams.
+ * the JFreeChart library which is used for plotting diagrams. The data is
+ * added under the lock of the chart, the plots are drawn under the lock of the
+ * JFreeChart object (only the copy of the data to draw is taken under the lock
+ * of the chart).
  */
 
 class ChartInfo {
    
    private static final String             SYNTAX          = "INPUT_STREAM_VAR_NAME:CHART_NAME:VERTICAL_AXIS_TITLE [TYPE@SIZE] {WIDTH;HEIGHT}";
    
+   /**
+    * Number of sizes for which the last plot is kept.
+    */
+   private static final int                MAX_CACHED_SIZES = 8;
+   
    private  final transient Logger   logger          = Logger.getLogger( this.getClass() );
    
    private String                          plotTitle;
@@ -206,13 +302,26 @@ class ChartInfo {
    
    private TimeSeriesCollection            dataCollectionForTheChart;
    
-   private HashMap < String , TimeSeries > dataForTheChart = new HashMap < String , TimeSeries >( );
+   /**
+    * The history of each field, in the order the fields were first seen.
+    */
+   private LinkedHashMap < String , SeriesBuffer > dataForTheChart = new LinkedHashMap < String , SeriesBuffer >( );
    
    private ByteArrayOutputStream           byteArrayOutputStream;
    
    private JFreeChart                      chart;
    
-   private boolean                         changed         = true;
+   /**
+    * Incremented each time data is added, the plots drawn from an older version
+    * are outdated.
+    */
+   private long                            version         = 0;
+   
+   /**
+    * The last plot drawn for each size ("WIDTHxHEIGHT"), with the version of
+    * the data it shows, the least recently asked for first.
+    */
+   private final LinkedHashMap < String , CachedPlot > plots = new LinkedHashMap < String , CachedPlot >( 16 , 0.75f , true );
    
    private boolean                         ready           = false;
    
@@ -265,45 +374,92 @@ class ChartInfo {
    }
    
    /**
-    * This method adds the specified stream elements to the timeSeries of the
-    * appropriate plot.
+    * This method adds the specified stream elements to the history of the
+    * appropriate plot. Values which are not numbers are ignored.
     * 
     * @param streamElement
     */
    public synchronized void addData ( StreamElement streamElement ) {
       for ( int i = 0 ; i < streamElement.getFieldNames( ).length ; i++ ) {
-         TimeSeries timeSeries = dataForTheChart.get( streamElement.getFieldNames( )[ i ] );
-         if ( timeSeries == null ) {
-            dataForTheChart.put( streamElement.getFieldNames( )[ i ] , timeSeries = new TimeSeries( streamElement.getFieldNames( )[ i ] , org.jfree.data.time.FixedMillisecond.class ) );
-            timeSeries.setMaximumItemCount( historySize );
-            dataCollectionForTheChart.addSeries( timeSeries );
+         SeriesBuffer series = dataForTheChart.get( streamElement.getFieldNames( )[ i ] );
+         if ( series == null ) {
+            dataForTheChart.put( streamElement.getFieldNames( )[ i ] , series = new SeriesBuffer( Math.max( 1 , historySize ) ) );
          }
+         Serializable value = streamElement.getData( )[ i ];
+         if ( value == null ) continue;
          try {
-            timeSeries.addOrUpdate( new FixedMillisecond( new Date( streamElement.getTimeStamp( ) ) ) , Double.parseDouble( streamElement.getData( )[ i ].toString( ) ) );
-         } catch ( SeriesException e ) {
-            logger.warn( e.getMessage( ) , e );
+            series.add( streamElement.getTimeStamp( ) , value instanceof Number ? ( ( Number ) value ).doubleValue( ) : Double.parseDouble( value.toString( ) ) );
+         } catch ( NumberFormatException e ) {
+            if ( logger.isDebugEnabled( ) ) logger.debug( "Ignoring the non numeric value " + value + " of " + streamElement.getFieldNames( )[ i ] );
          }
-         
       }
-      changed = true;
+      version++;
    }
    
    /**
-    * Plots the chart and sends it in the form of ByteArrayOutputStream to
-    * outside.
+    * Plots the chart at its configured size.
     * 
-    * @return Returns the byteArrayOutputStream.
+    * @return Returns the PNG image.
     */
-   public synchronized ByteArrayOutputStream writePlot ( ) {
-      if ( !changed ) return byteArrayOutputStream;
-      byteArrayOutputStream.reset( );
-      try {
-         ChartUtilities.writeChartAsPNG( byteArrayOutputStream , chart , width , height , false , 8 );
-         
-      } catch ( IOException e ) {
-         logger.warn( e.getMessage( ) , e );
+   public byte [ ] writePlot ( ) {
+      return writePlot( width , height );
+   }
+   
+   /**
+    * Plots the chart at the given size, or returns the last plot of this size
+    * if the data didn't change since.
+    * 
+    * @return Returns the PNG image.
+    */
+   public byte [ ] writePlot ( int width , int height ) {
+      String size = width + "x" + height;
+      long dataVersion;
+      List < String > names;
+      List < SeriesBuffer > decimated;
+      synchronized ( this ) {
+         CachedPlot cached = plots.get( size );
+         if ( cached != null && cached.version == version ) return cached.image;
+         dataVersion = version;
+         names = new ArrayList < String >( dataForTheChart.keySet( ) );
+         decimated = new ArrayList < SeriesBuffer >( names.size( ) );
+         for ( SeriesBuffer series : dataForTheChart.values( ) )
+            decimated.add( series.decimate( width ) );
+      }
+      byte [ ] image;
+      synchronized ( chart ) {
+         dataCollectionForTheChart.removeAllSeries( );
+         for ( int i = 0 ; i < names.size( ) ; i++ )
+            dataCollectionForTheChart.addSeries( decimated.get( i ).toTimeSeries( names.get( i ) ) );
+         byteArrayOutputStream.reset( );
+         try {
+            ChartUtilities.writeChartAsPNG( byteArrayOutputStream , chart , width , height , false , 8 );
+         } catch ( IOException e ) {
+            logger.warn( e.getMessage( ) , e );
+         }
+         image = byteArrayOutputStream.toByteArray( );
+      }
+      synchronized ( this ) {
+         CachedPlot cached = plots.get( size );
+         if ( cached == null || cached.version < dataVersion ) plots.put( size , new CachedPlot( dataVersion , image ) );
+         if ( plots.size( ) > MAX_CACHED_SIZES ) {
+            Iterator < String > eldest = plots.keySet( ).iterator( );
+            eldest.next( );
+            eldest.remove( );
+         }
+      }
+      return image;
+   }
+   
+   private static class CachedPlot {
+      
+      final long    version;
+      
+      final byte [ ] image;
+      
+      CachedPlot ( long version , byte [ ] image ) {
+         this.version = version;
+         this.image = image;
       }
-      return byteArrayOutputStream;
    }
    
    public boolean equals ( Object obj ) {
@@ -342,3 +498,104 @@ class ChartInfo {
       return buffer.toString( );
    }
 }
+
+/**
+ * The last values of one field, with their timestamps, in a fixed size ring
+ * buffer of primitives. A value with the same timestamp as the last one
+ * replaces it.
+ */
+
+class SeriesBuffer {
+   
+   private final long [ ]   times;
+   
+   private final double [ ] values;
+   
+   /**
+    * Index of the oldest value.
+    */
+   private int              start = 0;
+   
+   private int              size  = 0;
+   
+   SeriesBuffer ( int capacity ) {
+      times = new long [ capacity ];
+      values = new double [ capacity ];
+   }
+   
+   void add ( long time , double value ) {
+      if ( size > 0 && times[ index( size - 1 ) ] == time ) {
+         values[ index( size - 1 ) ] = value;
+         return;
+      }
+      if ( size < times.length ) {
+         size++;
+      } else {
+         start = ( start + 1 ) % times.length;
+      }
+      times[ index( size - 1 ) ] = time;
+      values[ index( size - 1 ) ] = value;
+   }
+   
+   int size ( ) {
+      return size;
+   }
+   
+   private int index ( int i ) {
+      return ( start + i ) % times.length;
+   }
+   
+   /**
+    * Returns a copy of this series with at most 2 * columns values: if the
+    * series is longer, its time range is cut in columns equal slices, one per
+    * pixel column of the time axis, and only the minimum and the maximum of
+    * each slice are kept (in the order they came), so the drawn line covers the
+    * same pixels.
+    */
+   SeriesBuffer decimate ( int columns ) {
+      columns = Math.max( 1 , columns );
+      if ( size <= 2 * columns ) {
+         SeriesBuffer copy = new SeriesBuffer( Math.max( 1 , size ) );
+         for ( int i = 0 ; i < size ; i++ )
+            copy.add( times[ index( i ) ] , values[ index( i ) ] );
+         return copy;
+      }
+      long first = times[ index( 0 ) ] , last = first;
+      for ( int i = 1 ; i < size ; i++ ) {
+         first = Math.min( first , times[ index( i ) ] );
+         last = Math.max( last , times[ index( i ) ] );
+      }
+      double span = ( double ) last - first + 1;
+      int [ ] min = new int [ columns ] , max = new int [ columns ];
+      Arrays.fill( min , -1 );
+      for ( int i = 0 ; i < size ; i++ ) {
+         int column = Math.min( columns - 1 , ( int ) ( ( times[ index( i ) ] - first ) / span * columns ) );
+         if ( min[ column ] < 0 ) {
+            min[ column ] = max[ column ] = i;
+         } else {
+            if ( values[ index( i ) ] < values[ index( min[ column ] ) ] ) min[ column ] = i;
+            if ( values[ index( i ) ] > values[ index( max[ column ] ) ] ) max[ column ] = i;
+         }
+      }
+      SeriesBuffer copy = new SeriesBuffer( 2 * columns );
+      for ( int column = 0 ; column < columns ; column++ ) {
+         if ( min[ column ] < 0 ) continue;
+         int from = Math.min( min[ column ] , max[ column ] ) , to = Math.max( min[ column ] , max[ column ] );
+         copy.add( times[ index( from ) ] , values[ index( from ) ] );
+         if ( to != from ) copy.add( times[ index( to ) ] , values[ index( to ) ] );
+      }
+      return copy;
+   }
+   
+   TimeSeries toTimeSeries ( String name ) {
+      TimeSeries timeSeries = new TimeSeries( name , FixedMillisecond.class );
+      for ( int i = 0 ; i < size ; i++ ) {
+         try {
+            timeSeries.addOrUpdate( new FixedMillisecond( times[ index( i ) ] ) , values[ index( i ) ] );
+         } catch ( SeriesException e ) {
+            // can't happen with addOrUpdate
+         }
+      }
+      return timeSeries;
+   }
+}
@@ -25,6 +25,7 @@ package org.openiot.gsn.vsensor;
 import org.openiot.gsn.beans.DataTypes;
 import org.openiot.gsn.beans.StreamElement;
 import org.openiot.gsn.beans.VSensorConfig;
+import org.openiot.gsn.utils.geo.Grid;
 import org.openiot.gsn.utils.geo.GridTools;
 import org.apache.log4j.Logger;
 import javax.imageio.ImageIO;
@@ -147,7 +148,9 @@ public class GridRenderer extends AbstractVirtualSensor {
          cellsize = (Double) streamElement.getData("cellsize"); // must be in meters
          
         long timestamp = streamElement.getTimeStamp();
-        Double values[][] = GridTools.deSerialize((byte[]) streamElement.getData("grid"));
+        Grid values = GridTools.decode((byte[]) streamElement.getData("grid"));
+        if (values == null)
+            return;
         byte b[] = createImageFromArray(values);
         
         StreamElement se = new StreamElement(new String[]{"grid"},
@@ -169,20 +172,20 @@ public class GridRenderer extends AbstractVirtualSensor {
      * @return
      */
     
-    private byte[] createImageFromArray(Double[][] a) {
+    private byte[] createImageFromArray(Grid a) {
     	
     	BufferedImage back;
     	
     	// if the min and max values are not given, we search for them in the array of data
     	if ((min_v == 0 && max_v == 0) || min_v >= max_v){
-        minvalue = a[0][0];
-        maxvalue = a[0][0];
+        double[] cells = a.getCells();
+        minvalue = cells[0];
+        maxvalue = cells[0];
 
-        for (int i = 0; i < a.length; i++)
-            for (int j = 0; j < a[0].length; j++) {
-                if (minvalue > a[i][j]) minvalue = a[i][j];
-                if (maxvalue < a[i][j]) maxvalue = a[i][j];
-            }
+        for (int i = 0; i < cells.length; i++) {
+            if (minvalue > cells[i]) minvalue = cells[i];
+            if (maxvalue < cells[i]) maxvalue = cells[i];
+        }
     	}else{
     		minvalue = min_v;
     		maxvalue = max_v;
@@ -239,7 +242,7 @@ public class GridRenderer extends AbstractVirtualSensor {
 	        		int b = (val & 0x000000ff);
 	        		int bw = (int)(0.2126*r+0.7152*g+0.0722*b);
 	        		//and blend it with the color from the grid of values
-	        		int color = mapValue(a[j][i]);
+	        		int color = mapValue(a.get(j, i));
 	        		int r2 = (color & 0x00ff0000) >> 16;
 	        		int g2 = (color & 0x0000ff00) >> 8;
 	        		int b2 = (color & 0x000000ff);
@@ -247,8 +250,8 @@ public class GridRenderer extends AbstractVirtualSensor {
 	        		back.setRGB(x, y, rgb);
 	        	}
     	} else {
-	        int Y = a.length;
-	        int X = a[0].length;
+	        int Y = a.getRows();
+	        int X = a.getCols();
 	
 	        back = new BufferedImage(X * cell_pixels, Y * cell_pixels, BufferedImage.TYPE_INT_RGB);
 	
@@ -257,7 +260,7 @@ public class GridRenderer extends AbstractVirtualSensor {
 	        for (int i = 0; i < X; ++i)
 	            for (int j = 0; j < Y; ++j) {
 	
-	                int color = mapValue(a[j][i]);
+	                int color = mapValue(a.get(j, i));
 	
 	                for (int k = 0; k < cell_pixels * cell_pixels; k++)
 	                    bigPixel[k] = color;
@@ -22,12 +22,19 @@
 
 package org.openiot.gsn.vsensor;
 
+import org.openiot.gsn.beans.DataField;
+import org.openiot.gsn.beans.DataTypes;
 import org.openiot.gsn.beans.StreamElement;
 import org.openiot.gsn.beans.VSensorConfig;
+import org.openiot.gsn.storage.rrd.DataSourceType;
+import org.openiot.gsn.storage.rrd.RoundRobinDatabase;
+import org.openiot.gsn.storage.rrd.RrdDefinition;
+import org.openiot.gsn.storage.rrd.RrdImporter;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.TreeMap;
@@ -36,17 +43,47 @@ import java.util.Map.Entry;
 
 import org.apache.log4j.Logger;
 
+/**
+ * Stores the received values into a round-robin database ({@link RoundRobinDatabase}), updated in-process.
+ * <p/>
+ * Parameters: <code>rrdfile</code> (mandatory), <code>field</code> (comma separated list of the fields to store,
+ * each either as a name or as name:type:heartbeat:min:max, by default all the numeric fields of the output
+ * structure), <code>step</code> (seconds, default 300) and <code>rra</code> (comma separated list of archives with
+ * the rrdtool syntax function:xff:steps:rows, by default AVERAGE and MAX archives of 1, 6, 24 and 288 steps). The
+ * i-th field is stored into the i-th data source.
+ * <p/>
+ * If the rrdfile is an existing rrdtool database, it is imported (once) into rrdfile.grrd which is then used.
+ */
 public class StreamRRDExporterVirtualSensor extends AbstractVirtualSensor {
 	public static final String            PARAM_RRDFILE    = "rrdfile" ;
 
 	public static final String            PARAM_FIELD    = "field" ;
 
+	public static final String            PARAM_STEP    = "step" ;
+
+	public static final String            PARAM_RRA    = "rra" ;
+
+	public static final String            IMPORTED_SUFFIX    = ".grrd" ;
+
+	private static final String [ ]       DEFAULT_ARCHIVES = { "AVERAGE:0.5:1:600" , "AVERAGE:0.5:6:700" , "AVERAGE:0.5:24:775" , "AVERAGE:0.5:288:797" ,
+		"MAX:0.5:1:600" , "MAX:0.5:6:700" , "MAX:0.5:24:775" , "MAX:0.5:288:797" };
+
 	private static final transient Logger logger        = Logger.getLogger(StreamRRDExporterVirtualSensor.class );
 
 	private String rrdfile = null;
 
 	private Vector<String> fields = new Vector<String>();
 
+	private Vector<String> archives = new Vector<String>();
+
+	private int step = 300;
+
+	private RoundRobinDatabase database = null;
+
+	private String [ ] fieldNames;
+
+	private double [ ] values;
+
 	public boolean initialize ( ) {
 		VSensorConfig vsensor = getVirtualSensorConfiguration( );
 		TreeMap < String , String > params = vsensor.getMainClassInitialParams( );
@@ -59,103 +96,141 @@ public class StreamRRDExporterVirtualSensor extends AbstractVirtualSensor {
 			if(key.equals(PARAM_RRDFILE))
 				this.rrdfile=value;
 			else if (key.equals(PARAM_FIELD))
-				this.fields.add(value);
+				addAll(this.fields, value);
+			else if (key.equals(PARAM_RRA))
+				addAll(this.archives, value);
+			else if (key.equals(PARAM_STEP)) {
+				try {
+					this.step = Integer.parseInt(value.trim());
+				} catch (NumberFormatException e) {
+					this.step = 0;
+				}
+				if (this.step <= 0) {
+					logger.error("Initialization Parameter "+PARAM_STEP+" must be a positive number of seconds, not >"+value+"<.");
+					return false;
+				}
+			}
 		}
 		if ( rrdfile == null) {
 			logger.debug("Initialization Parameter "+PARAM_RRDFILE+" is missing!" );
 			return false;
 		}
+		if (fields.isEmpty() && vsensor.getOutputStructure() != null)
+			for (DataField df : vsensor.getOutputStructure())
+				if (df.getDataTypeID() != DataTypes.VARCHAR && df.getDataTypeID() != DataTypes.CHAR && df.getDataTypeID() != DataTypes.BINARY)
+					fields.add(df.getName());
 		logger.debug( "rrdfile=" + this.rrdfile);
-		if (ensureFileExistence(rrdfile)) return true;
-		else return createRRDFile();
-	}
-
-	private boolean createRRDFile() {
-		String command = "rrdtool create "+rrdfile+" --step 300 ";
-		for(int i=0;i<this.fields.size();i++){
-			command = command + "DS:field"+i+":GAUGE:600:0:U ";
-		}
-		command = command + "RRA:AVERAGE:0.5:1:600 ";
-		command = command + "RRA:AVERAGE:0.5:6:700 ";
-		command = command + "RRA:AVERAGE:0.5:24:775 ";
-		command = command + "RRA:AVERAGE:0.5:288:797 ";
-		command = command + "RRA:MAX:0.5:1:600 ";
-		command = command + "RRA:MAX:0.5:6:700 ";
-		command = command + "RRA:MAX:0.5:24:775";
-		command = command + "RRA:MAX:0.5:288:797";
-		Runtime runtime = Runtime.getRuntime();
 		try {
-			if(logger.isDebugEnabled())
-				logger.debug( "The used rrdtool create command is: " + command);                        
-			Process process = runtime.exec(command);
-			if(logger.isDebugEnabled())
-				logger.debug( "The exit value of the rrdtool create command is: " +
-						process.exitValue());
-			return true;
-		} catch (IOException e) {
-			logger.debug("An IOException has occured: "+e);
+			database = openDatabase();
+		} catch (Exception e) {
+			logger.error("Failed to open the round-robin database " + rrdfile + ": " + e.getMessage(), e);
 			return false;
-		} 
-	}
-
-
-	public void dataAvailable ( String inputStreamName , StreamElement streamElement ) {
-		ensureFileExistence( );
-		exportValues( streamElement );
+		}
+		int dsCount = database.getDefinition().getDataSources().size();
+		fieldNames = new String[dsCount];
+		for (int i = 0; i < dsCount; i++)
+			fieldNames[i] = i < fields.size() ? fields.get(i).split(":")[0] : database.getDefinition().getDataSources().get(i).getName();
+		values = new double[dsCount];
+		return true;
 	}
 
-
 	/*
-     returns true if the requested file exists.
-	 * @param filename The file name to check for.
+	 * The fields and archives are comma separated, as the parameters of a virtual sensor can not be repeated.
 	 */
-	private boolean ensureFileExistence ( ) {
-		return ensureFileExistence(this.rrdfile);
+	private static void addAll ( Vector<String> list , String value ) {
+		for (String item : value.split(","))
+			if (item.trim().length() > 0)
+				list.add(item.trim());
 	}
 
 	/*
-     returns true if the requested file exists.
-	 * @param filename The file name to check for.
+	 * Opens the database, importing it if it is an rrdtool file, or creates it from the parameters.
 	 */
-	private boolean ensureFileExistence ( String filename ) {
+	private RoundRobinDatabase openDatabase ( ) throws IOException {
 		File file = new File(rrdfile);
-		if (file.exists()) return true;
-		else {
-			logger.error("rrdfile "+rrdfile+" does not exist!");
-			return false;
+		if (file.exists() && !RoundRobinDatabase.isRoundRobinDatabase(file)) {
+			File imported = new File(rrdfile + IMPORTED_SUFFIX);
+			if (RoundRobinDatabase.isRoundRobinDatabase(imported))
+				return RoundRobinDatabase.open(imported);
+			logger.info("Importing the rrdtool database " + file + " into " + imported);
+			return RrdImporter.importFile(file, imported);
+		}
+		if (file.exists())
+			return RoundRobinDatabase.open(file);
+		if (fields.isEmpty())
+			throw new IOException("No field to store, the Initialization Parameter " + PARAM_FIELD + " is missing!");
+		RrdDefinition definition = new RrdDefinition(step);
+		for (String field : fields) {
+			if (field.indexOf(':') > 0)
+				definition.addDataSource(field);
+			else
+				definition.addDataSource(dataSourceName(field), DataSourceType.GAUGE, 2 * step, 0, Double.NaN);
 		}
+		for (String archive : archives.isEmpty() ? Arrays.asList(DEFAULT_ARCHIVES) : archives)
+			definition.addArchive(archive);
+		logger.debug("Creating the round-robin database " + file);
+		return RoundRobinDatabase.create(file, definition, System.currentTimeMillis() - 10000);
+	}
+
+	/*
+	 * rrdtool data source names are limited to 19 characters among [a-zA-Z0-9_].
+	 */
+	private static String dataSourceName ( String field ) {
+		String name = field.replaceAll("[^a-zA-Z0-9_]", "_");
+		return name.length() > RrdDefinition.MAX_NAME_LENGTH ? name.substring(0, RrdDefinition.MAX_NAME_LENGTH) : name;
+	}
+
+	public void dataAvailable ( String inputStreamName , StreamElement streamElement ) {
+		exportValues( streamElement );
 	}
 
+	/**
+	 * @return the round-robin database, to fetch the archives for graphs and exports
+	 */
+	public RoundRobinDatabase getDatabase ( ) {
+		return database;
+	}
 
 	/*
-	 * Export all received values from a stream to the proposed table name into
-	 * the database selected by the currently open connection.
+	 * Updates the round-robin database with the values of the stream element, at its timestamp.
 	 */
+	private synchronized void exportValues ( StreamElement streamElement ) {
+		if (database == null)
+			return;
+		for (int i = 0; i < fieldNames.length; i++) {
+			int index = streamElement.indexOf(fieldNames[i]);
+			// if the field is missing or empty the value is unknown
+			values[i] = index < 0 ? Double.NaN : valueOf(streamElement, index);
+		}
+		long time = streamElement.isTimestampSet() ? streamElement.getTimeStamp() : System.currentTimeMillis();
+		if (!database.update(time, values) && logger.isDebugEnabled())
+			logger.debug("Ignoring the stream element at " + time + ", not after the last update of " + rrdfile);
+	}
 
-	private void exportValues ( StreamElement streamElement ) {
-		if(logger.isDebugEnabled())
-			logger.debug( "Trying to add new data items to the rrdfile:" + this.rrdfile );
-		String command ="rrdtool update "+rrdfile+" N";
-		Serializable[] stream = streamElement.getData();
-		String field;
-		for(int i=0;i<stream.length;i++){
-			field = stream[i].toString();
-			// if the field is empty we have to add an U for unknown to the rrdfile
-			if(field==null || field.equals("")) field = "U";
-			command = command+":"+field;
+	private static double valueOf ( StreamElement streamElement , int index ) {
+		if (streamElement.getSchema().isNumeric(index))
+			return streamElement.getDouble(index);
+		Serializable value = streamElement.getData(index);
+		if (value instanceof Number)
+			return ((Number) value).doubleValue();
+		if (value != null) {
+			try {
+				return Double.parseDouble(value.toString());
+			} catch (NumberFormatException e) {
+				// unknown
+			}
 		}
-		Runtime runtime = Runtime.getRuntime();
-		try {
-			if(logger.isDebugEnabled())
-				logger.debug( "The used rrdtool update command is: " + command);                        
-			Process process = runtime.exec(command);
-			if(logger.isDebugEnabled())
-				logger.debug( "The processing did not generate an error!");                        
-		} catch (IOException e) {
-			logger.debug("An IOException has occured: "+e);
-		} 
+		return Double.NaN;
 	}
 
-	public void dispose ( ) {
+	public synchronized void dispose ( ) {
+		if (database == null)
+			return;
+		try {
+			database.close();
+		} catch (IOException e) {
+			logger.error("Failed to close the round-robin database " + rrdfile + ": " + e.getMessage(), e);
+		}
+		database = null;
 	}
 }
@@ -259,6 +259,60 @@ public abstract class AbstractWrapper extends Thread {
 		}
 	}
 
+	/**
+	 * Same as calling postStreamElement for each of the stream elements (in
+	 * order), but they are inserted into the wrapper table with one batched
+	 * statement. Used by wrappers receiving many stream elements at once.
+	 * 
+	 * @param streamElements
+	 * @return The number of stream elements which were inserted, the others
+	 *         were null, out of order or failed to be inserted.
+	 */
+	protected int postStreamElements(List<StreamElement> streamElements) {
+		if (!isActive() || listeners.size() == 0 || streamElements.isEmpty())
+			return 0;
+		try {
+			List<StreamElement> inOrder = new ArrayList<StreamElement>(streamElements.size());
+			for (StreamElement se : streamElements) {
+				if (se == null)
+					continue;
+				if (isOutOfOrder(se)) {
+					logger.debug("Out of order data item detected, it is not propagated into the system : [" + se.toString() + "]");
+					continue;
+				}
+				inOrder.add(se);
+				lastInOrderTimestamp = se.getTimeStamp();
+			}
+			if (inOrder.isEmpty())
+				return 0;
+
+			Connection conn = null;
+			List<StreamElement> inserted;
+			try {
+				conn = Main.getWindowStorage().getConnection();
+				inserted = Main.getWindowStorage().executeInsertBatch(aliasCodeS, getOutputFormat(), inOrder, conn);
+			} finally {
+				Main.getWindowStorage().close(conn);
+			}
+
+			// only the stored rows are seen by the virtual sensors
+			for (StreamElement se : inserted) {
+				for (SlidingHandler slidingHandler : slidingHandlers.values())
+					slidingHandler.dataAvailable(se);
+			}
+			// as postStreamElement, once every GARBAGE_COLLECT_AFTER_SPECIFIED_NO_OF_ELEMENTS elements
+			long before = noOfCallsToPostSE;
+			noOfCallsToPostSE += inserted.size();
+			if (before / GARBAGE_COLLECT_AFTER_SPECIFIED_NO_OF_ELEMENTS != noOfCallsToPostSE / GARBAGE_COLLECT_AFTER_SPECIFIED_NO_OF_ELEMENTS)
+				removeUselessValues();
+			return inserted.size();
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+			logger.error("Produced data items from the wrapper couldn't be propagated inside the system.");
+			return 0;
+		}
+	}
+
 	/**
 	 * Updates the table representing the data items produced by the stream
 	 * element. Returns false if the update fails or doesn't change the state of
@@ -308,7 +362,10 @@ public abstract class AbstractWrapper extends Thread {
 					lastInOrderTimestamp = Long.MIN_VALUE; // Table is empty
 				}
 			}
-            return (se.getTimeStamp() <= lastInOrderTimestamp);
+            // equal timestamps are only out of order if they have to be unique
+            if (isTimeStampUnique())
+                return (se.getTimeStamp() <= lastInOrderTimestamp);
+            return (se.getTimeStamp() < lastInOrderTimestamp);
 		} finally {
 			Main.getWindowStorage().close(conn);
 		}
@@ -24,6 +24,7 @@ package org.openiot.gsn.wrappers;
 import org.openiot.gsn.beans.AddressBean;
 import org.openiot.gsn.beans.DataField;
 import org.openiot.gsn.beans.StreamElement;
+import org.openiot.gsn.utils.geo.Grid;
 import org.apache.log4j.Logger;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
@@ -52,6 +53,9 @@ public class GridDataWrapper extends AbstractWrapper {
     private static final String PARAM_TIME_FORMAT = "time-format";
     private static final String PARAM_EXTENSION = "extension";
     private static final String PARAM_RATE = "rate";
+    private static final String PARAM_GRID_FORMAT = "grid-format"; // compact (default) or legacy (serialized Double[][])
+    private static final String PARAM_GRID_PRECISION = "grid-precision"; // double (default) or float
+    private static final String PARAM_GRID_COMPRESSION = "grid-compression"; // true or false (default)
 
     private static final String[] ESRI_Format = {"ncols",
             "nrows",
@@ -68,7 +72,11 @@ public class GridDataWrapper extends AbstractWrapper {
     private double yllcorner;
     private double cellsize;
     private double NODATA_value;
-    private Double[][] rawData;
+    private Grid rawData;
+
+    private boolean legacyFormat;
+    private boolean singlePrecision;
+    private boolean compress;
 
     private long rate;
 
@@ -115,6 +123,10 @@ public class GridDataWrapper extends AbstractWrapper {
             return false;
         }
 
+        legacyFormat = "legacy".equalsIgnoreCase(addressBean.getPredicateValueWithDefault(PARAM_GRID_FORMAT, "compact"));
+        singlePrecision = "float".equalsIgnoreCase(addressBean.getPredicateValueWithDefault(PARAM_GRID_PRECISION, "double"));
+        compress = Boolean.parseBoolean(addressBean.getPredicateValueWithDefault(PARAM_GRID_COMPRESSION, "false"));
+
         latestProcessedTimestamp = -1;
 
         return true;
@@ -229,40 +241,31 @@ public class GridDataWrapper extends AbstractWrapper {
 
             //parse raw data
             if (success) {
-                List raw = new ArrayList<Double>();
+                double[] raw = new double[nrows * ncols];
+                int count = 0;
 
-                for (int i = 6; i < lines.size(); i++) {
+                for (int i = 6; i < lines.size() && count < raw.length; i++) {
                     String[] aLine = lines.get(i).split(" ");
-                    for (int j = 0; j < aLine.length; j++) {
+                    for (int j = 0; j < aLine.length && count < raw.length; j++) {
 
                         try {
-                            Double d = Double.parseDouble(aLine[j]);
-                            if (d != null)
-                                raw.add(d);
-                            else
-                                raw.add(NODATA_value);
+                            raw[count++] = Double.parseDouble(aLine[j]);
                         } catch (java.lang.NumberFormatException e) {
+                            count--;
                             logger.warn(j + ": \"" + aLine[j] + "\"");
                             logger.warn(e);
                             logger.warn(e.getMessage());
                         }
-                        //System.out.println(i + "," + j + " : " + d);
                     }
 
                 }
 
-                logger.debug("Size of list => " + raw.size() + " ? " + ncols * nrows);
-                logger.debug(raw);
+                logger.debug("Size of list => " + count + " ? " + ncols * nrows);
 
-                if (raw.size() == nrows * ncols) {
-                    rawData = new Double[nrows][ncols];
-                    for (int i = 0; i < nrows; i++)
-                        for (int j = 0; j < ncols; j++) {
-                            rawData[i][j] = (Double) raw.get(i * ncols + j);
-                            //System.out.println(i + "," + j + " : " + rawData[i][j]);
-                        }
-                    logger.debug("rawData.length " + rawData.length);
-                    logger.debug("rawData[0].length " + rawData[0].length);
+                if (count == nrows * ncols) {
+                    rawData = new Grid(nrows, ncols, raw).setGeoReference(xllcorner, yllcorner, cellsize, NODATA_value);
+                    logger.debug("rawData.rows " + rawData.getRows());
+                    logger.debug("rawData.cols " + rawData.getCols());
                 } else {
                     success = false;
                 }
@@ -314,22 +317,26 @@ public class GridDataWrapper extends AbstractWrapper {
     private boolean postData(String filePath, long timed) {
 
 
-        parseFile(filePath);
-
-        boolean success = true;
+        boolean success = parseFile(filePath);
+        if (!success)
+            return false;
 
         Serializable[] stream = new Serializable[7];
 
         try {
 
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            ObjectOutputStream oos = new ObjectOutputStream(bos);
-            oos.writeObject(rawData);
-            oos.flush();
-            oos.close();
-            bos.close();
-
-            System.out.println("size => " + bos.toByteArray().length);
+            byte[] bytes;
+            if (legacyFormat) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                ObjectOutputStream oos = new ObjectOutputStream(bos);
+                oos.writeObject(rawData.toArray());
+                oos.flush();
+                oos.close();
+                bos.close();
+                bytes = bos.toByteArray();
+            } else {
+                bytes = rawData.toBytes(singlePrecision, compress);
+            }
 
             stream[0] = new Integer(ncols);
             stream[1] = new Integer(nrows);
@@ -337,11 +344,11 @@ public class GridDataWrapper extends AbstractWrapper {
             stream[3] = new Double(yllcorner);
             stream[4] = new Double(cellsize);
             stream[5] = new Double(NODATA_value);
-            stream[6] = bos.toByteArray();
+            stream[6] = bytes;
 
-            logger.debug("size => " + bos.toByteArray().length);
+            logger.debug("size => " + bytes.length);
 
-            //testDeserialize(bos.toByteArray());
+            //testDeserialize(bytes);
 
 
         } catch (IOException e) {
@@ -364,31 +371,15 @@ public class GridDataWrapper extends AbstractWrapper {
     public static void testDeserialize(byte[] bytes) {
 
         try {
-            ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
-            ObjectInputStream in = null;
-
-            in = new ObjectInputStream(bis);
+            Grid grid = Grid.fromBytes(bytes);
 
-            Double deserial[][] = new Double[0][];
+            logger.debug("grid.rows" + grid.getRows());
+            logger.debug("grid.cols" + grid.getCols());
 
-            deserial = (Double[][]) in.readObject();
-            in.close();
-
-            logger.debug("deserial.length" + deserial.length);
-            logger.debug("deserial[0].length" + deserial[0].length);
-
-            for (int i = 0; i < deserial.length; i++) {
-                StringBuilder sb = new StringBuilder();
-                for (int j = 0; j < deserial[0].length; j++) {
-                    sb.append(deserial[i][j]).append(" ");
-                }
-                System.out.println(sb.toString());
-            }
+            System.out.println(grid.appendCells(new StringBuilder()).toString());
 
         } catch (IOException e) {
             logger.error(e.getMessage(), e);
-        } catch (ClassNotFoundException e) {
-            logger.error(e.getMessage(), e);
         }
     }
 
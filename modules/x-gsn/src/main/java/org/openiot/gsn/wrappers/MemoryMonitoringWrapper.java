@@ -24,11 +24,9 @@ package org.openiot.gsn.wrappers;
 
 import org.openiot.gsn.beans.AddressBean;
 import org.openiot.gsn.beans.DataField;
-import org.openiot.gsn.beans.DataTypes;
 import org.openiot.gsn.beans.StreamElement;
 import org.openiot.gsn.utils.ParamParser;
 
-import java.io.Serializable;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 
@@ -53,8 +51,6 @@ public class MemoryMonitoringWrapper extends AbstractWrapper {
    
    private static final String       FIELD_NAME_PENDING_FINALIZATION_COUNT = "PENDING_FINALIZATION_COUNT";
    
-   private static final String [ ]   FIELD_NAMES                           = new String [ ] { FIELD_NAME_HEAP , FIELD_NAME_NON_HEAP , FIELD_NAME_PENDING_FINALIZATION_COUNT };
-   
    private static final MemoryMXBean mbean                                 = ManagementFactory.getMemoryMXBean( );
    
    public boolean initialize ( ) {
@@ -81,8 +77,10 @@ public class MemoryMonitoringWrapper extends AbstractWrapper {
          long nonHeapMemoryUsage = mbean.getNonHeapMemoryUsage( ).getUsed( );
          int pendingFinalizationCount = mbean.getObjectPendingFinalizationCount( );
          
-         StreamElement streamElement = new StreamElement( FIELD_NAMES , new Byte [ ] { DataTypes.BIGINT , DataTypes.BIGINT , DataTypes.INTEGER } , new Serializable [ ] { heapMemoryUsage ,
-               nonHeapMemoryUsage , pendingFinalizationCount } , System.currentTimeMillis( ) );
+         StreamElement streamElement = new StreamElement( outputStructureCache , System.currentTimeMillis( ) );
+         streamElement.setLong( 0 , heapMemoryUsage );
+         streamElement.setLong( 1 , nonHeapMemoryUsage );
+         streamElement.setLong( 2 , pendingFinalizationCount );
          postStreamElement( streamElement );
       }
    }
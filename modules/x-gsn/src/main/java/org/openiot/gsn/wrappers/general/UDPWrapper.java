@@ -34,6 +34,7 @@ import java.io.InputStream;
 import java.io.Serializable;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.util.Arrays;
 
 import org.apache.log4j.Logger;
 
@@ -82,9 +83,10 @@ public class UDPWrapper extends AbstractWrapper {
          try {
             receivedPacket = new DatagramPacket( receivedData , receivedData.length );
             socket.receive( receivedPacket );
-            String dataRead = new String( receivedPacket.getData( ) );
-            if ( logger.isDebugEnabled( ) ) logger.debug( "UDPWrapper received a packet : " + dataRead );
-            StreamElement streamElement = new StreamElement( new String [ ] { RAW_PACKET } , new Byte [ ] { DataTypes.BINARY } , new Serializable [ ] { receivedPacket.getData( ) } , System
+            // the receive buffer is reused for the next packet
+            byte [ ] packet = Arrays.copyOf( receivedData , receivedPacket.getLength( ) );
+            if ( logger.isDebugEnabled( ) ) logger.debug( "UDPWrapper received a packet : " + new String( packet ) );
+            StreamElement streamElement = new StreamElement( new String [ ] { RAW_PACKET } , new Byte [ ] { DataTypes.BINARY } , new Serializable [ ] { packet } , System
                   .currentTimeMillis( ) );
             postStreamElement( streamElement );
          } catch ( IOException e ) {
@@ -24,102 +24,93 @@ package org.openiot.gsn.wrappers.tinyos;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Iterator;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * The SensorScope gateway: accepts the connections of the base stations and
+ * hands the packets they send to the wrappers.
+ *
+ * All the connections are served by one thread with a selector. Each
+ * connection has its own buffer, from which the TinyOS frames (8 bytes of
+ * header, the 6th being the payload length) are cut as they are complete.
+ * As with the previous blocking listener, a connection is closed after its
+ * first packet, unless the sensorscope.keepAlive system property is true.
+ * The packets are then decoded, logged in the per station log file and
+ * dispatched to the handlers registered for their station by
+ * sensorscope.decoderThreads threads (2 by default). The packets of a station
+ * always go to the same thread, so its handlers get them in order.
+ */
 public class SensorScope2Listener implements Runnable {
 
-    private static final int MAX_BUFFER_SIZE = 128;
+    private static final int MAX_BUFFER_SIZE = 512;
+    private static final int HEADER_SIZE = 8;
+    private static final long CONNECTION_IDLE_TIMEOUT = 300000; // connections without data for that long are closed
+    private static final long HOUSEKEEPING_INTERVAL = 10000;
+    private static final String STATION_LOGS_FOLDER = "logs/sensorscope2/";
+
     private boolean initialized = false;
-    private boolean running = false;
+    private volatile boolean running = false;
 
     private static SensorScope2Listener instance = null;
 
     private transient Logger logger = Logger.getLogger(this.getClass());
     private int server_port;
-    long counter = 0;
-
-    private ServerSocket serverSocket = null;
-    private Socket client = null;
-
-    private Thread thread;
-    private static final long PACKET_AGE_LIMIT = 600000; // packet stay for a maximum of PACKET_AGE_LIMIT (ms) before being recycled
+    private final AtomicLong counter = new AtomicLong();
 
-    public ConcurrentLinkedQueue<SensorScope2Packet> queue = new ConcurrentLinkedQueue<SensorScope2Packet>();
+    private Selector selector = null;
+    private ServerSocketChannel serverChannel = null;
+    private final boolean keepAlive = Boolean.getBoolean("sensorscope.keepAlive");
 
-    //public SensorScope2Packet
+    private final ExecutorService[] decoders = new ExecutorService[Math.max(1, Integer.getInteger("sensorscope.decoderThreads", 2))];
 
-    public SensorScope2Packet getNextPacketAfter(SensorScope2Packet latestPacket) {
+    private final Map<Integer, List<PacketHandler>> handlers = new ConcurrentHashMap<Integer, List<PacketHandler>>();
 
-        RecyclePackets();
-
-        long timestamp = 0;
-
-        if (latestPacket != null)
-            timestamp = latestPacket.timestamp;
+    private Thread thread;
 
-        Iterator iter = queue.iterator();
-        boolean found = false;
-        SensorScope2Packet packet = null;
-        while (iter.hasNext() && !found) {
-            packet = (SensorScope2Packet) iter.next();
-            if (packet.timestamp >= timestamp) {  // duplicate timestamps are possible because of multiple station ids
-                if (packet != latestPacket) // skip same packet already processed
-                    if (queue.contains(latestPacket)) {
-                        if (indexOf(packet) > indexOf(latestPacket))
-                        found = true;
-                    } else {
-                        found = true;
-                    }
-            }
-        }
-        if (found)
-            return packet;
-        else
-            return null;
+    /**
+     * Receives the packets of a station, on a decoder thread.
+     */
+    public interface PacketHandler {
+        public void packetReceived(SensorScope2Packet packet);
     }
 
-    private int indexOf(SensorScope2Packet packet) {
-        Iterator iter  = queue.iterator();
-        int index = -1;
-        boolean found = false;
-        while (iter.hasNext() && !found) {
-            index++;
-            if (packet == iter.next())
-                found = true;
+    public void addHandler(int stationID, PacketHandler handler) {
+        synchronized (handlers) {
+            List<PacketHandler> list = handlers.get(stationID);
+            if (list == null) {
+                list = new CopyOnWriteArrayList<PacketHandler>();
+                handlers.put(stationID, list);
+            }
+            list.add(handler);
         }
-        if (found)
-            return index;
-        else
-            return -1;
     }
 
-    /*
-    * Delete elements older than age limit
-    * */
-    public void RecyclePackets() {
-        Iterator iter = queue.iterator();
-        long currentTimeMillis = System.currentTimeMillis();
-        int n_packets_deleted = 0;
-        SensorScope2Packet packet = null;
-        while (iter.hasNext()) {
-            packet = (SensorScope2Packet) iter.next();
-            if (currentTimeMillis - packet.timestamp > PACKET_AGE_LIMIT) {
-                queue.remove(packet);
-                n_packets_deleted++;
-
-            }
+    public void removeHandler(PacketHandler handler) {
+        synchronized (handlers) {
+            for (List<PacketHandler> list : handlers.values())
+                list.remove(handler);
         }
-        if (n_packets_deleted != 0)
-            logger.warn("Deleted " + n_packets_deleted + " packet(s). New size => " + queue.size());
     }
 
     public void start() {
         if (!running && initialized) {
-            this.thread.start();
             running = true;
+            this.thread.start();
         } else {
             logger.warn("Listener thread already running or not initialized.");
         }
@@ -135,24 +126,36 @@ public class SensorScope2Listener implements Runnable {
         // Create a server socket
         logger.warn("Trying to open a server socket on port " + server_port);
         try {
-            serverSocket = new ServerSocket(server_port);
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(server_port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
         } catch (IOException e) {
             logger.error("Cannot open a server socket on port " + server_port + ".");
             this.initialized = false;
         }
     }
 
-    public static SensorScope2Listener getInstance() {
-        if (instance != null) {
-            return instance;
-        } else {
+    public static synchronized SensorScope2Listener getInstance() {
+        if (instance == null)
             instance = new SensorScope2Listener();
-            return instance;
-        }
+        return instance;
     }
 
     private SensorScope2Listener() {
-        this.thread = new Thread(this);
+        this.thread = new Thread(this, "SensorScope2Listener");
+        for (int i = 0; i < decoders.length; i++) {
+            final String name = "sensorscope-decoder-" + (i + 1);
+            decoders[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, name);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
     }
 
     public void run() {
@@ -161,52 +164,144 @@ public class SensorScope2Listener implements Runnable {
 
         logger.warn("Started SensorScope listener on port " + server_port + ".");
 
+        long lastHousekeeping = System.currentTimeMillis();
         while (running) {
-            byte[] packet = null;
-
             try {
+                selector.select(HOUSEKEEPING_INTERVAL);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                        accept();
+                    else if (key.isReadable())
+                        read(key);
+                }
+                if (System.currentTimeMillis() - lastHousekeeping >= HOUSEKEEPING_INTERVAL) {
+                    lastHousekeeping = System.currentTimeMillis();
+                    closeIdleConnections(lastHousekeeping);
+                }
+            } catch (IOException e) {
+                logger.error("Error in Server: " + e.getMessage(), e);
+            }
+        }
+        for (SelectionKey key : selector.keys())
+            close(key);
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.warn(e.getMessage());
+        }
+    }
 
-                // Wait for a  request
-                client = serverSocket.accept();
-
-                // Get the streams
-                packet = new byte[MAX_BUFFER_SIZE];
-
-                int n_read = client.getInputStream().read(packet);
-
-                byte[] real_packet = new byte[n_read];
-
-                System.arraycopy(packet, 0, real_packet, 0, n_read);
-
-                SensorScope2Packet _packet = new SensorScope2Packet(System.currentTimeMillis(), real_packet);
-
-                queue.add(_packet);
-
-                String order = "[" + String.format("%8d", counter) + "]";
+    private void accept() throws IOException {
+        SocketChannel client;
+        while ((client = serverChannel.accept()) != null) {
+            client.configureBlocking(false);
+            client.register(selector, SelectionKey.OP_READ, new Connection(client.socket().getRemoteSocketAddress()));
+            if (logger.isDebugEnabled())
+                logger.debug("Connection from " + client.socket().getRemoteSocketAddress());
+        }
+    }
 
-                logger.warn(order + " " + _packet.toString());
+    private void read(SelectionKey key) {
+        SocketChannel client = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        int n_read;
+        try {
+            n_read = client.read(connection.buffer);
+        } catch (IOException e) {
+            logger.warn("Cannot read from " + connection.remote + ": " + e.getMessage());
+            close(key);
+            return;
+        }
+        connection.lastActivity = System.currentTimeMillis();
+
+        // cut the complete frames
+        ByteBuffer buffer = connection.buffer;
+        buffer.flip();
+        boolean dispatched = false;
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int frameSize = HEADER_SIZE + (buffer.get(buffer.position() + 5) & 0xff);
+            if (buffer.remaining() < frameSize)
+                break;
+            byte[] frame = new byte[frameSize];
+            buffer.get(frame);
+            dispatch(frame, connection.lastActivity);
+            dispatched = true;
+        }
+        buffer.compact();
+
+        if (n_read < 0) {
+            if (buffer.position() > 0)
+                logger.warn("Dropped an incomplete packet of " + buffer.position() + " bytes from " + connection.remote);
+            close(key);
+        } else if (dispatched && !keepAlive) {
+            close(key);
+        }
+    }
 
-                counter++;
+    private void closeIdleConnections(long now) {
+        for (SelectionKey key : selector.keys()) {
+            Object connection = key.attachment();
+            if (connection instanceof Connection && now - ((Connection) connection).lastActivity > CONNECTION_IDLE_TIMEOUT) {
+                logger.info("Closing the idle connection from " + ((Connection) connection).remote);
+                close(key);
+            }
+        }
+    }
 
-                //RecyclePackets(); // recycle old packets. Calling
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            logger.warn("Cannot close connection " + e.getMessage(), e);
+        }
+    }
 
-            } catch (IOException e) {
-                logger.error("Error in Server: " + e.getMessage(), e);
-            } finally {
-                try {
-                    //inbound.close();
-                    //outbound.close();
-                    client.close();
-                    //serverSocket.close();
-                } catch (IOException e) {
-                    logger.warn("Cannot close stream " + e.getMessage(), e);
+    private void dispatch(final byte[] bytes, final long timestamp) {
+        final int stationID = bytes.length > 10 ? ((bytes[9] & 0xff) << 8) + (bytes[10] & 0xff) : -1;
+        decoders[(stationID & 0x7fffffff) % decoders.length].execute(new Runnable() {
+            public void run() {
+                SensorScope2Packet packet = new SensorScope2Packet(timestamp, bytes);
+                String line = packet.toString();
+                StationLogFiles.getInstance().append(STATION_LOGS_FOLDER + stationID + ".log", line + "\n");
+                if (logger.isDebugEnabled())
+                    logger.debug("[" + String.format("%8d", counter.getAndIncrement()) + "] " + line);
+
+                List<PacketHandler> list = handlers.get(stationID);
+                if (list != null) {
+                    for (PacketHandler handler : list) {
+                        try {
+                            handler.packetReceived(packet);
+                        } catch (RuntimeException e) {
+                            logger.error(e.getMessage(), e);
+                        }
+                    }
                 }
             }
-        }
-
+        });
     }
 
     public void stopAcquisition() {
         running = false;
+        if (selector != null)
+            selector.wakeup();
+    }
+
+    /*
+    * Reception state of a connection
+    * */
+    private static class Connection {
+        final SocketAddress remote;
+        final ByteBuffer buffer = ByteBuffer.allocate(MAX_BUFFER_SIZE);
+        long lastActivity = System.currentTimeMillis();
+
+        Connection(SocketAddress remote) {
+            this.remote = remote;
+        }
     }
 }
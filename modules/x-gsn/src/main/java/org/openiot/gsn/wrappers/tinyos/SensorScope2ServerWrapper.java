@@ -28,6 +28,9 @@ import org.apache.log4j.Logger;
 
 import java.io.Serializable;
 import java.text.DecimalFormat;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class SensorScope2ServerWrapper extends AbstractWrapper {
 
@@ -71,6 +74,15 @@ public class SensorScope2ServerWrapper extends AbstractWrapper {
 
     SensorScope2Listener sensorScope2Listener = null;
 
+    // packets of the selected station, dispatched by the listener
+    private final BlockingQueue<SensorScope2Packet> inbox = new LinkedBlockingQueue<SensorScope2Packet>();
+
+    private final SensorScope2Listener.PacketHandler packetHandler = new SensorScope2Listener.PacketHandler() {
+        public void packetReceived(SensorScope2Packet packet) {
+            inbox.offer(packet);
+        }
+    };
+
     DecimalFormat measure = new DecimalFormat("0.00");
 
     private DataField[] outputStructureCache = new DataField[]{
@@ -447,6 +459,7 @@ public class SensorScope2ServerWrapper extends AbstractWrapper {
 
         sensorScope2Listener = SensorScope2Listener.getInstance();
         sensorScope2Listener.setPort(server_port);
+        sensorScope2Listener.addHandler(selected_station_id, packetHandler);
         sensorScope2Listener.start();
 
         return to_return;
@@ -454,19 +467,19 @@ public class SensorScope2ServerWrapper extends AbstractWrapper {
 
     public void run() {
         while (isActive()) {
+            SensorScope2Packet ss2packet;
             try {
-                // delay
-                Thread.sleep(thread_rate);
+                // wait for the next packet of the station
+                ss2packet = inbox.poll(thread_rate, TimeUnit.MILLISECONDS);
             } catch (InterruptedException e) {
                 logger.error(e.getMessage(), e);
+                continue;
             }
 
             int[] packet = null;
 
             try {
 
-                SensorScope2Packet ss2packet = sensorScope2Listener.getNextPacketAfter(latestPacketReceived);
-
                 if (ss2packet == null) // skip empty packets or no packet at all
                     continue;
 
@@ -475,9 +488,11 @@ public class SensorScope2ServerWrapper extends AbstractWrapper {
 
                 byte[] original_packet = ss2packet.bytes;
 
-                logger.warn(ss2packet.toString());
-                logger.warn("Queue size => " + sensorScope2Listener.queue.size());
-                logger.warn("Processed packets => " + packetsCount++);
+                if (logger.isDebugEnabled()) {
+                    logger.debug(ss2packet.toString());
+                    logger.debug("Queue size => " + inbox.size());
+                }
+                packetsCount++;
 
                 packet = new int[original_packet.length];
 
@@ -994,6 +1009,8 @@ public class SensorScope2ServerWrapper extends AbstractWrapper {
     }
 
     public void dispose() {
+        if (sensorScope2Listener != null)
+            sensorScope2Listener.removeHandler(packetHandler);
         threadCounter--;
     }
 
@@ -471,12 +471,13 @@ public class SensorScopeServerListener {
     }
 
     Socket client = null;
+    InputStream in = null; // buffered, the packets are read byte by byte
     ServerSocket serverSocket = null;
 
 
     int receive(byte[] buffer) {
         try {
-            return client.getInputStream().read(buffer);
+            return in.read(buffer);
         } catch (IOException e) {
             logger.warn("Exception\n" + e.toString());
             return -1;
@@ -486,7 +487,7 @@ public class SensorScopeServerListener {
     int receive(byte[] buffer, int n) {
         //logger.debug("Trying to read " + n + " bytes...");
         try {
-            int nb_read = client.getInputStream().read(buffer, 0, n);
+            int nb_read = in.read(buffer, 0, n);
             //logger.debug("Read (" + nb_read + ")");
             return nb_read;
         } catch (IOException e) {
@@ -499,7 +500,7 @@ public class SensorScopeServerListener {
         logger.warn("Trying to read " + n + " unsigned bytes...");
         byte[] byteBuffer = new byte[buffer.length];
         try {
-            int nb_read = client.getInputStream().read(byteBuffer, 0, n);
+            int nb_read = in.read(byteBuffer, 0, n);
             buffer = UnsignedByte.ByteArray2UnsignedByteArray(byteBuffer);
             logger.info("Read (" + nb_read + ")");
             return nb_read;
@@ -643,26 +644,11 @@ public class SensorScopeServerListener {
     }
 
     public void dumpByte(int value, String fileName) {
-        try {
-            FileWriter fstream = new FileWriter(fileName, true);
-            BufferedWriter out = new BufferedWriter(fstream);
-            String s = value + " ";
-            out.write(s);
-            out.close();
-        } catch (Exception e) {
-            logger.error(e.getMessage(), e);
-        }
+        StationLogFiles.getInstance().append(fileName, value + " ");
     }
 
     public void dumpText(String s, String fileName) {
-        try {
-            FileWriter fstream = new FileWriter(fileName, true);
-            BufferedWriter out = new BufferedWriter(fstream);
-            out.write(s);
-            out.close();
-        } catch (Exception e) {
-            logger.error(e.getMessage(), e);
-        }
+        StationLogFiles.getInstance().append(fileName, s);
     }
 
     public int entry() {
@@ -685,6 +671,7 @@ public class SensorScopeServerListener {
             // Wait for a  request
             logger.warn("Server listening...");
             client = serverSocket.accept();
+            in = new BufferedInputStream(client.getInputStream());
 
             logger.info("Connection from: " + client.getRemoteSocketAddress().toString());
 
@@ -1107,8 +1094,6 @@ public class SensorScopeServerListener {
         if (queueSize > 10) {
             try {  // Publish one element
                 String stationFileName = csvFolderName + "/" + stationID + ".csv";
-                FileWriter fstream = new FileWriter(stationFileName, true);
-                BufferedWriter out = new BufferedWriter(fstream);
 
                 StringBuilder sb = new StringBuilder();
                 for (int i = 0; i < _buffer.length; i++) {
@@ -1119,8 +1104,7 @@ public class SensorScopeServerListener {
                 }
                 sb.append(Helpers.convertTimeFromLongToIso(oldestTimestamp, "yyyy-MM-dd HH:mm:ss"));
                 sb.append("\n");
-                out.write(sb.toString());
-                out.close();
+                StationLogFiles.getInstance().append(stationFileName, sb);
                 stationsBuffer.get(stationID).remove(oldestTimestamp); // Remove one element
                 logger.info("Queue [" + stationID + "] = " + queueSize + " after publishing");
             } catch (Exception e) {
@@ -1149,8 +1133,6 @@ public class SensorScopeServerListener {
                     latestBufferForStation.put(stationID, packet.clone()); // update buffer
                     try {  // Publish it
                         String stationFileName = csvFolderName + "/" + stationID + "_nopast.csv";
-                        FileWriter fstream = new FileWriter(stationFileName, true);
-                        BufferedWriter out = new BufferedWriter(fstream);
 
                         StringBuilder sb = new StringBuilder();
                         for (int i = 0; i < packet.length; i++) {
@@ -1161,8 +1143,7 @@ public class SensorScopeServerListener {
                         }
                         sb.append(Helpers.convertTimeFromLongToIso(timestamp, "yyyy-MM-dd HH:mm:ss"));
                         sb.append("\n");
-                        out.write(sb.toString());
-                        out.close();
+                        StationLogFiles.getInstance().append(stationFileName, sb);
                     } catch (Exception e) {
                         logger.error(e.getMessage(), e);
                     }
@@ -1181,8 +1162,6 @@ public class SensorScopeServerListener {
         logger.debug("Publishing data for stationID=" + stationID);
         try {
             String stationFileName = csvFolderName + "/" + stationID + "_nomerge.csv";
-            FileWriter fstream = new FileWriter(stationFileName, true);
-            BufferedWriter out = new BufferedWriter(fstream);
 
             StringBuilder sb = new StringBuilder();
             for (int i = 0; i < packet.length; i++) {
@@ -1193,8 +1172,7 @@ public class SensorScopeServerListener {
             }
             sb.append(Helpers.convertTimeFromLongToIso(timestamp, "yyyy-MM-dd HH:mm:ss"));
             sb.append("\n");
-            out.write(sb.toString());
-            out.close();
+            StationLogFiles.getInstance().append(stationFileName, sb);
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
         }
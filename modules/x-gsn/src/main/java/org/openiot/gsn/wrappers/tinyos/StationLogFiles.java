@@ -0,0 +1,142 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*   
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.wrappers.tinyos;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the per station log files of the SensorScope listeners open, instead
+ * of opening and closing a FileWriter for every line.
+ * Lines are appended to a BufferedWriter and all the files are flushed by a
+ * timer every FLUSH_INTERVAL ms. At most MAX_OPEN_FILES files stay open, the
+ * least recently written one is closed when another file is needed.
+ */
+public class StationLogFiles {
+
+    public static final long FLUSH_INTERVAL = 2000;
+
+    public static final int MAX_OPEN_FILES = 256;
+
+    private static transient Logger logger = Logger.getLogger(StationLogFiles.class);
+
+    private static StationLogFiles instance = null;
+
+    private final Map<String, Writer> writers = new LinkedHashMap<String, Writer>(16, 0.75f, true);
+
+    public static synchronized StationLogFiles getInstance() {
+        if (instance == null)
+            instance = new StationLogFiles();
+        return instance;
+    }
+
+    private StationLogFiles() {
+        Thread flusher = new Thread("sensorscope-log-flusher") {
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(FLUSH_INTERVAL);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    flush();
+                }
+            }
+        };
+        flusher.setDaemon(true);
+        flusher.start();
+        Runtime.getRuntime().addShutdownHook(new Thread("sensorscope-log-closer") {
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    /**
+     * Appends the text to the file, creating the file (and its folder) if
+     * needed.
+     */
+    public synchronized void append(String fileName, CharSequence text) {
+        try {
+            writer(fileName).append(text);
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+            closeQuietly(writers.remove(fileName));
+        }
+    }
+
+    private Writer writer(String fileName) throws IOException {
+        Writer writer = writers.get(fileName);
+        if (writer == null) {
+            if (writers.size() >= MAX_OPEN_FILES) {
+                Iterator<Writer> eldest = writers.values().iterator();
+                closeQuietly(eldest.next());
+                eldest.remove();
+            }
+            File parent = new File(fileName).getParentFile();
+            if (parent != null && !parent.exists())
+                parent.mkdirs();
+            writer = new BufferedWriter(new FileWriter(fileName, true), 16 * 1024);
+            writers.put(fileName, writer);
+        }
+        return writer;
+    }
+
+    public synchronized void flush() {
+        List<String> failed = new ArrayList<String>();
+        for (Map.Entry<String, Writer> entry : writers.entrySet()) {
+            try {
+                entry.getValue().flush();
+            } catch (IOException e) {
+                logger.error("Cannot write to " + entry.getKey() + ": " + e.getMessage());
+                failed.add(entry.getKey());
+            }
+        }
+        for (String fileName : failed)
+            closeQuietly(writers.remove(fileName));
+    }
+
+    public synchronized void close() {
+        for (Writer writer : writers.values())
+            closeQuietly(writer);
+        writers.clear();
+    }
+
+    private static void closeQuietly(Writer writer) {
+        if (writer == null)
+            return;
+        try {
+            writer.close();
+        } catch (IOException e) {
+            logger.warn(e.getMessage());
+        }
+    }
+}
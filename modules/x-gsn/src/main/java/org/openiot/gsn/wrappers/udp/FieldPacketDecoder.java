@@ -0,0 +1,178 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*   
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.wrappers.udp;
+
+import org.openiot.gsn.beans.AddressBean;
+import org.openiot.gsn.beans.DataField;
+import org.openiot.gsn.beans.DataTypes;
+import org.openiot.gsn.beans.StreamElement;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Decodes packets made of a fixed list of typed fields, given by the
+ * predicate "fields" as "name:type,name:type,...".
+ *
+ * With encoding=binary (the default) the fields follow each other without
+ * separators: tinyint (1 byte), smallint (2), integer (4), bigint (8),
+ * float (4, stored as a double) and double (8), in the byte-order given by
+ * the predicate (big or little, big by default).
+ *
+ * With encoding=text the packet is a line of values separated by the
+ * predicate "separator" (',' by default), and varchar(#) fields are also
+ * accepted. Empty values are null.
+ */
+public class FieldPacketDecoder implements PacketDecoder {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final transient Logger logger = Logger.getLogger(FieldPacketDecoder.class);
+
+    private DataField[] outputFormat;
+
+    private int[] binaryTypes;
+
+    private boolean text;
+
+    private ByteOrder byteOrder;
+
+    private char separator;
+
+    private static final int FLOAT = -1;
+
+    public boolean initialize(AddressBean addressBean) {
+        String fields = addressBean.getPredicateValue("fields");
+        if (fields == null || fields.trim().length() == 0) {
+            logger.warn("The fields predicate is missing");
+            return false;
+        }
+        text = "text".equalsIgnoreCase(addressBean.getPredicateValueWithDefault("encoding", "binary"));
+        byteOrder = "little".equalsIgnoreCase(addressBean.getPredicateValueWithDefault("byte-order", "big")) ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        separator = addressBean.getPredicateValueWithDefault("separator", ",").charAt(0);
+
+        List<DataField> format = new ArrayList<DataField>();
+        List<Integer> types = new ArrayList<Integer>();
+        try {
+            for (String field : fields.split(",")) {
+                int colon = field.indexOf(':');
+                if (colon <= 0) {
+                    logger.warn("Invalid field (name:type expected) : " + field);
+                    return false;
+                }
+                String name = field.substring(0, colon).trim();
+                String type = field.substring(colon + 1).trim();
+                boolean isFloat = type.equalsIgnoreCase("float");
+                DataField dataField = new DataField(name, isFloat ? "double" : type, "Field " + name + " of the received packets.");
+                byte typeID = dataField.getDataTypeID();
+                if (typeID != DataTypes.TINYINT && typeID != DataTypes.SMALLINT && typeID != DataTypes.INTEGER && typeID != DataTypes.BIGINT && typeID != DataTypes.DOUBLE
+                        && !(text && (typeID == DataTypes.VARCHAR || typeID == DataTypes.CHAR))) {
+                    logger.warn("The type of the field " + name + " is not supported with the " + (text ? "text" : "binary") + " encoding : " + type);
+                    return false;
+                }
+                format.add(dataField);
+                types.add(isFloat ? FLOAT : (int) typeID);
+            }
+        } catch (RuntimeException e) {
+            logger.warn(e.getMessage(), e);
+            return false;
+        }
+        outputFormat = format.toArray(new DataField[format.size()]);
+        binaryTypes = new int[types.size()];
+        for (int i = 0; i < binaryTypes.length; i++)
+            binaryTypes[i] = types.get(i);
+        return true;
+    }
+
+    public DataField[] getOutputFormat() {
+        return outputFormat;
+    }
+
+    public StreamElement decode(ByteBuffer packet, long timestamp) {
+        StreamElement se = new StreamElement(outputFormat, timestamp);
+        if (text)
+            decodeText(packet, se);
+        else
+            decodeBinary(packet, se);
+        return se;
+    }
+
+    private void decodeBinary(ByteBuffer packet, StreamElement se) {
+        packet.order(byteOrder);
+        for (int i = 0; i < binaryTypes.length; i++) {
+            switch (binaryTypes[i]) {
+                case DataTypes.TINYINT:
+                    se.setLong(i, packet.get());
+                    break;
+                case DataTypes.SMALLINT:
+                    se.setLong(i, packet.getShort());
+                    break;
+                case DataTypes.INTEGER:
+                    se.setLong(i, packet.getInt());
+                    break;
+                case DataTypes.BIGINT:
+                    se.setLong(i, packet.getLong());
+                    break;
+                case DataTypes.DOUBLE:
+                    se.setDouble(i, packet.getDouble());
+                    break;
+                case FLOAT:
+                    se.setDouble(i, packet.getFloat());
+                    break;
+            }
+        }
+    }
+
+    private void decodeText(ByteBuffer packet, StreamElement se) {
+        String line = new String(packet.array(), packet.arrayOffset() + packet.position(), packet.remaining(), ASCII).trim();
+        int start = 0;
+        for (int i = 0; i < binaryTypes.length; i++) {
+            if (start > line.length())
+                throw new IllegalArgumentException("The packet has " + i + " fields instead of " + binaryTypes.length + " : " + line);
+            int end = line.indexOf(separator, start);
+            if (end < 0)
+                end = line.length();
+            String value = line.substring(start, end).trim();
+            start = end + 1;
+            if (value.length() == 0)
+                continue;
+            switch (binaryTypes[i]) {
+                case DataTypes.TINYINT:
+                case DataTypes.SMALLINT:
+                case DataTypes.INTEGER:
+                case DataTypes.BIGINT:
+                    se.setLong(i, Long.parseLong(value));
+                    break;
+                case DataTypes.DOUBLE:
+                case FLOAT:
+                    se.setDouble(i, Double.parseDouble(value));
+                    break;
+                default:
+                    se.setData(i, value);
+            }
+        }
+    }
+}
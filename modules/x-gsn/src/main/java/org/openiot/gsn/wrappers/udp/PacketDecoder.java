@@ -0,0 +1,54 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*   
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.wrappers.udp;
+
+import org.openiot.gsn.beans.AddressBean;
+import org.openiot.gsn.beans.DataField;
+import org.openiot.gsn.beans.StreamElement;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns the payload of a datagram received by the {@link UDPChannelWrapper}
+ * into a stream element. A decoder is created per wrapper and only used by
+ * its receiving thread, so it can keep state without synchronization.
+ */
+public interface PacketDecoder {
+
+    /**
+     * Reads the decoder specific predicates of the wrapper.
+     *
+     * @return false if the configuration is invalid
+     */
+    public boolean initialize(AddressBean addressBean);
+
+    public DataField[] getOutputFormat();
+
+    /**
+     * @param packet the payload, from its position to its limit. The buffer
+     *               is reused for the next packet, so the decoder has to copy
+     *               what it keeps.
+     * @param timestamp the reception time
+     * @return the stream element, or null to ignore the packet
+     * @throws RuntimeException if the packet is malformed
+     */
+    public StreamElement decode(ByteBuffer packet, long timestamp);
+}
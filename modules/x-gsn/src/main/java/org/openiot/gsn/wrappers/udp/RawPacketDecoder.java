@@ -0,0 +1,54 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*   
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.wrappers.udp;
+
+import org.openiot.gsn.beans.AddressBean;
+import org.openiot.gsn.beans.DataField;
+import org.openiot.gsn.beans.StreamElement;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the whole packet as the single BINARY field RAW_PACKET, as the
+ * UDPWrapper does.
+ */
+public class RawPacketDecoder implements PacketDecoder {
+
+    public static final String RAW_PACKET = "RAW_PACKET";
+
+    private static final DataField[] OUTPUT_FORMAT = new DataField[]{new DataField(RAW_PACKET, "BINARY", "The packet contains raw data received as a UDP packet.")};
+
+    public boolean initialize(AddressBean addressBean) {
+        return true;
+    }
+
+    public DataField[] getOutputFormat() {
+        return OUTPUT_FORMAT;
+    }
+
+    public StreamElement decode(ByteBuffer packet, long timestamp) {
+        byte[] data = new byte[packet.remaining()];
+        packet.get(data);
+        StreamElement se = new StreamElement(OUTPUT_FORMAT, timestamp);
+        se.setData(0, data);
+        return se;
+    }
+}
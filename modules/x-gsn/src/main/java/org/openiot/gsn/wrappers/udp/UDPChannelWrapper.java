@@ -0,0 +1,297 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*   
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.wrappers.udp;
+
+import org.openiot.gsn.beans.AddressBean;
+import org.openiot.gsn.beans.DataField;
+import org.openiot.gsn.beans.StreamElement;
+import org.openiot.gsn.wrappers.AbstractWrapper;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A UDP wrapper for high packet rates.
+ *
+ * A receiving thread drains every datagram waiting on a non blocking
+ * DatagramChannel each time it wakes up, decodes them with a
+ * {@link PacketDecoder} and queues the stream elements. The wrapper thread
+ * takes them from the queue in batches, which are inserted with a single
+ * batched statement (see AbstractWrapper.postStreamElements).
+ *
+ * Predicates:
+ * <ul>
+ * <li>port : the udp port to listen to (required)</li>
+ * <li>address : the address to bind to (all by default)</li>
+ * <li>receive-buffer : the socket receive buffer, in bytes (4MB by default)</li>
+ * <li>packet-size : the largest packet, in bytes (2048 by default). Larger
+ * packets are truncated and dropped.</li>
+ * <li>queue-size : the number of decoded packets waiting to be stored
+ * (65536 by default). Packets arriving when it is full are dropped.</li>
+ * <li>batch-size : the largest number of stream elements stored at once
+ * (1000 by default)</li>
+ * <li>decoder : the class of the PacketDecoder. By default a
+ * FieldPacketDecoder if the fields predicate is given, otherwise a
+ * RawPacketDecoder.</li>
+ * <li>stats-interval : how often the counters are logged, in seconds (60 by
+ * default, 0 to never log them)</li>
+ * </ul>
+ */
+public class UDPChannelWrapper extends AbstractWrapper {
+
+    private final transient Logger logger = Logger.getLogger(UDPChannelWrapper.class);
+
+    private static int threadCounter = 0;
+
+    private AddressBean addressBean;
+
+    private PacketDecoder decoder;
+
+    private DataField[] outputFormat;
+
+    private DatagramChannel channel;
+
+    private Selector selector;
+
+    private Thread receiver;
+
+    private BlockingQueue<StreamElement> queue;
+
+    private int packetSize;
+
+    private int batchSize;
+
+    private long statsInterval;
+
+    private final AtomicLong received = new AtomicLong();
+
+    private final AtomicLong truncated = new AtomicLong();
+
+    private final AtomicLong malformed = new AtomicLong();
+
+    private final AtomicLong ignored = new AtomicLong();
+
+    private final AtomicLong overruns = new AtomicLong();
+
+    private final AtomicLong stored = new AtomicLong();
+
+    private final AtomicLong notStored = new AtomicLong();
+
+    private final AtomicLong batches = new AtomicLong();
+
+    public boolean initialize() {
+        addressBean = getActiveAddressBean();
+        try {
+            decoder = createDecoder(addressBean);
+            if (!decoder.initialize(addressBean))
+                return false;
+            outputFormat = decoder.getOutputFormat();
+
+            int port = addressBean.getPredicateValueAsIntWithException("port");
+            String address = addressBean.getPredicateValue("address");
+            packetSize = addressBean.getPredicateValueAsInt("packet-size", 2048);
+            batchSize = Math.max(1, addressBean.getPredicateValueAsInt("batch-size", 1000));
+            statsInterval = addressBean.getPredicateValueAsInt("stats-interval", 60) * 1000L;
+            queue = new ArrayBlockingQueue<StreamElement>(Math.max(batchSize, addressBean.getPredicateValueAsInt("queue-size", 65536)));
+
+            channel = DatagramChannel.open();
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, addressBean.getPredicateValueAsInt("receive-buffer", 4 * 1024 * 1024));
+            channel.bind(address == null ? new InetSocketAddress(port) : new InetSocketAddress(address, port));
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+            if (logger.isDebugEnabled())
+                logger.debug("Listening on " + channel.getLocalAddress() + " with a receive buffer of " + channel.getOption(StandardSocketOptions.SO_RCVBUF) + " bytes");
+        } catch (Exception e) {
+            logger.warn(e.getMessage(), e);
+            close();
+            return false;
+        }
+        setName("UDPChannelWrapper-Thread" + (++threadCounter));
+        receiver = new Thread(new Runnable() {
+            public void run() {
+                receive();
+            }
+        }, getName() + "-receiver");
+        receiver.setDaemon(true);
+        return true;
+    }
+
+    private static PacketDecoder createDecoder(AddressBean addressBean) throws Exception {
+        String className = addressBean.getPredicateValue("decoder");
+        if (className != null && className.trim().length() > 0)
+            return (PacketDecoder) Class.forName(className.trim()).newInstance();
+        if (addressBean.getPredicateValue("fields") != null)
+            return new FieldPacketDecoder();
+        return new RawPacketDecoder();
+    }
+
+    /**
+     * Stores the queued stream elements, in batches.
+     */
+    public void run() {
+        receiver.start();
+        List<StreamElement> batch = new ArrayList<StreamElement>(batchSize);
+        long lastStats = System.currentTimeMillis();
+        while (isActive()) {
+            try {
+                StreamElement se = queue.poll(1, TimeUnit.SECONDS);
+                if (se != null) {
+                    batch.add(se);
+                    queue.drainTo(batch, batchSize - 1);
+                    int inserted = postStreamElements(batch);
+                    stored.addAndGet(inserted);
+                    notStored.addAndGet(batch.size() - inserted);
+                    batches.incrementAndGet();
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (statsInterval > 0 && System.currentTimeMillis() - lastStats >= statsInterval) {
+                lastStats = System.currentTimeMillis();
+                logger.info(getName() + " " + getStatistics());
+            }
+        }
+    }
+
+    /**
+     * Reads and decodes every waiting datagram each time the channel is
+     * readable.
+     */
+    private void receive() {
+        ByteBuffer buffer = ByteBuffer.allocate(packetSize + 1);
+        while (isActive() && channel.isOpen()) {
+            try {
+                if (selector.select(1000) == 0)
+                    continue;
+                selector.selectedKeys().clear();
+                long now = System.currentTimeMillis();
+                while (true) {
+                    buffer.clear();
+                    if (channel.receive(buffer) == null)
+                        break;
+                    received.incrementAndGet();
+                    buffer.flip();
+                    // the buffer is one byte larger than the largest packet, so a full buffer means a truncated packet
+                    if (buffer.limit() > packetSize) {
+                        truncated.incrementAndGet();
+                        continue;
+                    }
+                    StreamElement se;
+                    try {
+                        se = decoder.decode(buffer, now);
+                    } catch (RuntimeException e) {
+                        if (malformed.incrementAndGet() == 1 || logger.isDebugEnabled())
+                            logger.warn("Malformed packet dropped : " + e.getMessage());
+                        continue;
+                    }
+                    if (se == null)
+                        ignored.incrementAndGet();
+                    else if (!queue.offer(se))
+                        overruns.incrementAndGet();
+                }
+            } catch (IOException e) {
+                if (isActive())
+                    logger.warn("Error while receiving data on UDP channel : " + e.getMessage());
+            } catch (RuntimeException e) {
+                if (isActive())
+                    logger.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * The counters of the wrapper. Packets are either truncated (larger than
+     * packet-size), malformed (rejected by the decoder), ignored (by the
+     * decoder), overruns (the queue was full) or queued. Queued packets are
+     * then stored or not stored (out of order or failed insert). Packets
+     * dropped by the kernel because the receive buffer was full are not seen.
+     */
+    public String getStatistics() {
+        return "received=" + received.get() + " truncated=" + truncated.get() + " malformed=" + malformed.get() + " ignored=" + ignored.get()
+                + " overruns=" + overruns.get() + " queued=" + queue.size() + " stored=" + stored.get() + " notStored=" + notStored.get() + " batches=" + batches.get();
+    }
+
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    public long getDroppedCount() {
+        return truncated.get() + malformed.get() + overruns.get() + notStored.get();
+    }
+
+    public long getOverrunCount() {
+        return overruns.get();
+    }
+
+    public long getStoredCount() {
+        return stored.get();
+    }
+
+    /**
+     * Many packets can be received in the same millisecond.
+     */
+    public boolean isTimeStampUnique() {
+        return false;
+    }
+
+    public DataField[] getOutputFormat() {
+        return outputFormat;
+    }
+
+    private void close() {
+        try {
+            if (selector != null)
+                selector.close();
+            if (channel != null)
+                channel.close();
+        } catch (IOException e) {
+            logger.warn(e.getMessage(), e);
+        }
+    }
+
+    public void dispose() {
+        close();
+        if (receiver != null)
+            receiver.interrupt();
+        logger.info(getName() + " " + getStatistics());
+        threadCounter--;
+    }
+
+    public String getWrapperName() {
+        return "network udp channel";
+    }
+}
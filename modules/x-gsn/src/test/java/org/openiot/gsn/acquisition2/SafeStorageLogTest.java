@@ -0,0 +1,218 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.acquisition2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SafeStorageLogTest {
+
+  private static final int SEGMENT_SIZE = 4096;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File directory;
+
+  private SafeStorageLog log;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = new File(folder.getRoot(), "log");
+    log = new SafeStorageLog(directory, SEGMENT_SIZE, false);
+  }
+
+  @After
+  public void tearDown() {
+    log.close();
+  }
+
+  private void append(int n) throws IOException {
+    for (int i = 0; i < n; i++)
+      log.append(new Serializable[] { i, "value " + i });
+  }
+
+  private File[] segmentFiles() {
+    File[] files = directory.listFiles(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.endsWith(".seg");
+      }
+    });
+    Arrays.sort(files);
+    return files;
+  }
+
+  private void reopen(boolean keepProcessed, long retentionSize) throws IOException {
+    log.close();
+    log = new SafeStorageLog(directory, SEGMENT_SIZE, keepProcessed, retentionSize);
+  }
+
+  @Test
+  public void testReadInOrder() throws Exception {
+    append(200);
+    SafeStorageLog.Reader reader = log.openReader();
+    for (long seq = 1; seq <= 200; seq++) {
+      SafeStorageLog.Record r = reader.next(0);
+      assertEquals(seq, r.getSequenceNumber());
+      assertEquals((int) seq - 1, r.getValues()[0]);
+    }
+    assertNull(reader.next(10));
+    reader.close();
+  }
+
+  @Test
+  public void testAcknowledgeDeletesSegments() throws Exception {
+    append(200);
+    int segments = segmentFiles().length;
+    assertTrue(segments > 2);
+    assertEquals(segments, log.getSegmentCount());
+
+    log.acknowledge(100);
+    assertEquals(100, log.getAcknowledged());
+    assertTrue(log.getSegmentCount() < segments);
+    assertEquals(log.getSegmentCount(), segmentFiles().length);
+    SafeStorageLog.Reader reader = log.openReader();
+    assertEquals(101, reader.next(0).getSequenceNumber());
+    reader.close();
+
+    // beyond the last record
+    log.acknowledge(1000);
+    assertEquals(200, log.getAcknowledged());
+    assertEquals(1, log.getSegmentCount());
+    assertEquals(1, segmentFiles().length);
+  }
+
+  @Test
+  public void testSegmentKeptWhileRead() throws Exception {
+    append(200);
+    File first = segmentFiles()[0];
+    SafeStorageLog.Reader reader = log.openReader();
+    assertEquals(1, reader.next(0).getSequenceNumber());
+
+    log.acknowledge(200);
+    assertEquals(1, log.getSegmentCount());
+    assertTrue("a segment being read is not deleted", first.exists());
+
+    // the reader still reads the acknowledged records of its segment, then jumps to the first segment left
+    long seq = reader.next(0).getSequenceNumber();
+    assertEquals(2, seq);
+    while (seq < 200) {
+      long next = reader.next(0).getSequenceNumber();
+      assertTrue(next > seq);
+      seq = next;
+    }
+    assertFalse(first.exists());
+    reader.close();
+  }
+
+  @Test
+  public void testRestartReplaysUnacknowledged() throws Exception {
+    append(200);
+    log.acknowledge(130);
+    reopen(false, 0);
+
+    assertEquals(130, log.getAcknowledged());
+    SafeStorageLog.Reader reader = log.openReader();
+    for (long seq = 131; seq <= 200; seq++)
+      assertEquals(seq, reader.next(0).getSequenceNumber());
+    assertNull(reader.next(10));
+    assertEquals(201, log.append(new Serializable[] { "after restart" }));
+    assertEquals("after restart", reader.next(0).getValues()[0]);
+    reader.close();
+  }
+
+  @Test
+  public void testTruncatedRecordIsDropped() throws Exception {
+    append(5);
+    log.close();
+
+    // a crash before the length of the last record was written
+    File segment = segmentFiles()[0];
+    RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+    try {
+      int position = 0;
+      for (int i = 0; i < 4; i++) {
+        raf.seek(position);
+        position += 4 + 8 + 8 + raf.readInt();
+      }
+      raf.seek(position);
+      raf.writeInt(0);
+    } finally {
+      raf.close();
+    }
+    log = new SafeStorageLog(directory, SEGMENT_SIZE, false);
+
+    assertEquals(5, log.append(new Serializable[] { "replaced" }));
+    SafeStorageLog.Reader reader = log.openReader();
+    for (long seq = 1; seq <= 4; seq++)
+      assertEquals(seq, reader.next(0).getSequenceNumber());
+    assertEquals("replaced", reader.next(0).getValues()[0]);
+    reader.close();
+  }
+
+  @Test
+  public void testRetentionWhenKeepingProcessed() throws Exception {
+    reopen(true, 3 * SEGMENT_SIZE);
+    append(500);
+    // over the retention size, but unacknowledged records are never deleted
+    assertTrue(log.getSegmentCount() > 3);
+    assertEquals(log.getSegmentCount(), segmentFiles().length);
+
+    log.acknowledge(500);
+    assertEquals(3, log.getSegmentCount());
+    assertTrue(log.getSize() <= 3 * SEGMENT_SIZE);
+    assertEquals(3, segmentFiles().length);
+  }
+
+  @Test
+  public void testLogNames() throws IOException {
+    assertEquals("station-1_a", SafeStorage.getLogName("station-1_a"));
+    assertEquals("%41b%2Ec%2F%2E%2E", SafeStorage.getLogName("Ab.c/.."));
+    assertEquals("%C3%A9", SafeStorage.getLogName("\u00e9"));
+    assertNotEquals(SafeStorage.getLogName("a.b"), SafeStorage.getLogName("a_b"));
+    assertNotEquals(SafeStorage.getLogName("A"), SafeStorage.getLogName("a"));
+    for (String invalid : new String[] { "", ".", ".." }) {
+      try {
+        SafeStorage.getLogName(invalid);
+        fail("The requester name '" + invalid + "' was accepted");
+      } catch (IOException e) {
+        // expected
+      }
+    }
+  }
+}
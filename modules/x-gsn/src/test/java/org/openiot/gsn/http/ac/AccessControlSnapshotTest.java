@@ -0,0 +1,135 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+
+package org.openiot.gsn.http.ac;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AccessControlSnapshotTest {
+
+  private static int databases = 0;
+
+  private String url;
+
+  private Connection connection;
+
+  @Before
+  public void setUp() throws Exception {
+    url = "jdbc:h2:mem:actest" + (databases++);
+    // keeps the in memory database open between the connections of ConnectToDB
+    Class.forName("org.h2.Driver");
+    connection = DriverManager.getConnection(url, "sa", "");
+    ConnectToDB.init("org.h2.Driver", "sa", "", url);
+  }
+
+  @After
+  public void tearDown() throws SQLException {
+    connection.close();
+  }
+
+  @Test
+  public void loadsTheAccessControlTables() throws Exception {
+    execute("INSERT INTO ACUSER(USERNAME,PASSWORD,FIRSTNAME,LASTNAME,EMAIL,ISCANDIDATE) VALUES ('alice','secret','Alice','A','alice@host','no')");
+    execute("INSERT INTO ACUSER(USERNAME,PASSWORD,FIRSTNAME,LASTNAME,EMAIL,ISCANDIDATE) VALUES ('bob','other','Bob','B','bob@host','yes')");
+    execute("INSERT INTO ACDATASOURCE(DATASOURCENAME,ISCANDIDATE) VALUES ('vs1','no')");
+    execute("INSERT INTO ACDATASOURCE(DATASOURCENAME,ISCANDIDATE) VALUES ('vs2','yes')");
+    execute("INSERT INTO ACUSER_ACDATASOURCE(USERNAME,DATASOURCENAME,DATASOURCETYPE,ISUSERWAITING) VALUES ('alice','vs1','1','no')");
+    execute("INSERT INTO ACUSER_ACDATASOURCE(USERNAME,DATASOURCENAME,DATASOURCETYPE,ISUSERWAITING) VALUES ('alice','vs2','1','no')");
+    AccessControlSnapshot.invalidate();
+
+    AccessControlSnapshot snapshot = AccessControlSnapshot.get();
+    assertTrue(snapshot.isManaged("vs1"));
+    assertTrue(snapshot.isManaged("vs2"));
+    assertFalse(snapshot.isManaged("vs3"));
+    assertTrue(snapshot.isRegisteredUser("alice"));
+    assertTrue(snapshot.isRegisteredUser("Admin"));
+    assertFalse(snapshot.isRegisteredUser("bob"));
+    assertTrue(snapshot.isPasswordCorrectForThisUser("alice", "secret"));
+    assertFalse(snapshot.isPasswordCorrectForThisUser("alice", "other"));
+    assertFalse(snapshot.isPasswordCorrectForThisUser("carol", null));
+
+    User alice = snapshot.getUserForLogin("alice", "secret");
+    assertEquals("Alice", alice.getFirstName());
+    // the candidate virtual sensor is not in the login list
+    assertEquals(1, alice.getDataSourceList().size());
+    assertEquals("vs1", ((DataSource) alice.getDataSourceList().get(0)).getDataSourceName());
+  }
+
+  @Test
+  public void reloadsAfterAnInvalidation() throws Exception {
+    AccessControlSnapshot snapshot = AccessControlSnapshot.get();
+    assertSame(snapshot, AccessControlSnapshot.get());
+
+    // a write which does not go through ConnectToDB is not seen until the next invalidation
+    execute("INSERT INTO ACDATASOURCE(DATASOURCENAME,ISCANDIDATE) VALUES ('vs1','no')");
+    assertSame(snapshot, AccessControlSnapshot.get());
+    assertFalse(AccessControlSnapshot.get().isManaged("vs1"));
+
+    AccessControlSnapshot.invalidate();
+    AccessControlSnapshot reloaded = AccessControlSnapshot.get();
+    assertNotSame(snapshot, reloaded);
+    assertTrue(reloaded.isManaged("vs1"));
+    assertFalse(snapshot.isManaged("vs1"));
+
+    // the writes through ConnectToDB invalidate the snapshot
+    ConnectToDB ctdb = new ConnectToDB();
+    try {
+      ctdb.executeUpdate("INSERT INTO ACDATASOURCE(DATASOURCENAME,ISCANDIDATE) VALUES ('vs2','no')");
+    } finally {
+      ctdb.closeStatement();
+      ctdb.closeConnection();
+    }
+    assertNotSame(reloaded, AccessControlSnapshot.get());
+    assertTrue(AccessControlSnapshot.get().isManaged("vs2"));
+    assertTrue(DataSource.isVSManaged("vs2"));
+  }
+
+  @Test
+  public void returnsNullWhenTheDatabaseCanNotBeRead() throws Exception {
+    AccessControlSnapshot.get();
+    execute("DROP TABLE ACUSER_ACGROUP");
+    AccessControlSnapshot.invalidate();
+    assertNull(AccessControlSnapshot.getOrNull());
+  }
+
+  private void execute(String query) throws SQLException {
+    Statement statement = connection.createStatement();
+    try {
+      statement.executeUpdate(query);
+    } finally {
+      statement.close();
+    }
+  }
+}
@@ -0,0 +1,236 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.http.rest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openiot.gsn.beans.DataField;
+import org.openiot.gsn.beans.DataTypes;
+import org.openiot.gsn.beans.StreamElement;
+
+/**
+ * Streams elements over a loopback connection between a {@link BinaryDelivery} and a client reading the frames as
+ * the {@link BinaryRemoteWrapper} does.
+ */
+public class BinaryStreamProtocolTest {
+
+  private static final DataField[] STRUCTURE = new DataField[] { new DataField("value", DataTypes.INTEGER),
+      new DataField("label", DataTypes.VARCHAR), new DataField("data", DataTypes.BINARY) };
+
+  private ServerSocket server;
+
+  private Socket client;
+
+  private DataInputStream clientIn;
+
+  private DataOutputStream clientOut;
+
+  private BinaryDelivery delivery;
+
+  private final Semaphore ready = new Semaphore(0);
+
+  private DataField[] received;
+
+  @BeforeClass
+  public static void shortKeepAlive() {
+    // read once by the DataDistributer, the writer sends a keep-alive when it has no credit for that long
+    System.setProperty("remoteKeepAlivePeriod", "200");
+  }
+
+  private void connect(boolean compression, int credits) throws IOException {
+    server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+    client.setSoTimeout(5000);
+    clientIn = new DataInputStream(client.getInputStream());
+    clientOut = new DataOutputStream(client.getOutputStream());
+
+    Socket accepted = server.accept();
+    delivery = new BinaryDelivery(accepted, new DataInputStream(accepted.getInputStream()), BinaryDelivery.outputStream(accepted),
+        compression, credits);
+    delivery.setReadyListener(new Runnable() {
+      public void run() {
+        ready.release();
+      }
+    });
+    Thread reader = new Thread(new Runnable() {
+      public void run() {
+        delivery.readCredits();
+      }
+    });
+    reader.setDaemon(true);
+    reader.start();
+    delivery.writeStructure(STRUCTURE);
+
+    BinaryStreamProtocol.Frame frame = BinaryStreamProtocol.readFrame(clientIn);
+    assertEquals(BinaryStreamProtocol.STRUCTURE, frame.type);
+    received = BinaryStreamProtocol.decodeStructure(frame);
+  }
+
+  @Before
+  public void setUp() {
+    ready.drainPermits();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (delivery != null)
+      delivery.close();
+    if (client != null)
+      client.close();
+    if (server != null)
+      server.close();
+  }
+
+  private static StreamElement element(int i, byte[] data) {
+    StreamElement se = new StreamElement(STRUCTURE, new Serializable[] { i, i % 2 == 0 ? "element " + i : null, data }, 1000L + i);
+    se.setInternalPrimayKey(i);
+    return se;
+  }
+
+  /**
+   * Writes elements as the DataDistributer does, as long as the delivery is ready.
+   *
+   * @return the number of elements written
+   */
+  private int writeWhileReady(int from, byte[] data) {
+    int i = from;
+    while (delivery.isReady()) {
+      assertTrue(delivery.writeStreamElement(element(i, data)));
+      i++;
+    }
+    return i - from;
+  }
+
+  /**
+   * Reads the batches until count elements were received, skipping the keep-alives.
+   */
+  private List<StreamElement> read(int count) throws IOException {
+    List<StreamElement> elements = new ArrayList<StreamElement>();
+    while (elements.size() < count) {
+      BinaryStreamProtocol.Frame frame = BinaryStreamProtocol.readFrame(clientIn);
+      if (frame.type == BinaryStreamProtocol.KEEPALIVE)
+        continue;
+      assertEquals(BinaryStreamProtocol.BATCH, frame.type & ~BinaryStreamProtocol.COMPRESSED);
+      elements.addAll(BinaryStreamProtocol.decodeElements(frame, received));
+    }
+    assertEquals(count, elements.size());
+    return elements;
+  }
+
+  private static void assertElements(List<StreamElement> elements, int from, byte[] data) {
+    for (int n = 0; n < elements.size(); n++) {
+      StreamElement se = elements.get(n);
+      int i = from + n;
+      assertEquals(1000L + i, se.getTimeStamp());
+      assertEquals(i, se.getInternalPrimayKey());
+      assertEquals(i, se.getData("value"));
+      if (i % 2 == 0)
+        assertEquals("element " + i, se.getData("label"));
+      else
+        assertNull(se.getData("label"));
+      assertArrayEquals(data, (byte[]) se.getData("data"));
+    }
+  }
+
+  @Test
+  public void structure() throws IOException {
+    connect(false, 1);
+    assertEquals(STRUCTURE.length, received.length);
+    for (int i = 0; i < STRUCTURE.length; i++) {
+      assertEquals(STRUCTURE[i].getName(), received[i].getName());
+      assertEquals(STRUCTURE[i].getDataTypeID(), received[i].getDataTypeID());
+    }
+  }
+
+  @Test
+  public void creditExhaustionAndResume() throws Exception {
+    byte[] data = new byte[] { 1, 2, 3 };
+    connect(false, 10);
+
+    // the delivery takes exactly the granted elements
+    assertEquals(10, writeWhileReady(0, data));
+    assertElements(read(10), 0, data);
+
+    // no credit left: only keep-alives, and the delivery stays open but not ready
+    BinaryStreamProtocol.Frame frame = BinaryStreamProtocol.readFrame(clientIn);
+    assertEquals(BinaryStreamProtocol.KEEPALIVE, frame.type);
+    assertFalse(delivery.isReady());
+    assertFalse(delivery.isClosed());
+
+    // more credits make it ready again and the stream resumes where it stopped
+    BinaryStreamProtocol.writeCredit(clientOut, 5);
+    clientOut.flush();
+    assertTrue(ready.tryAcquire(5, TimeUnit.SECONDS));
+    assertTrue(delivery.isReady());
+    assertEquals(5, writeWhileReady(10, data));
+    assertElements(read(5), 10, data);
+    assertFalse(delivery.isClosed());
+  }
+
+  @Test
+  public void compressedBatches() throws Exception {
+    byte[] data = new byte[2048];
+    connect(true, 100);
+    assertEquals(100, writeWhileReady(0, data));
+
+    List<StreamElement> elements = new ArrayList<StreamElement>();
+    boolean compressed = false;
+    while (elements.size() < 100) {
+      BinaryStreamProtocol.Frame frame = BinaryStreamProtocol.readFrame(clientIn);
+      if (frame.type == BinaryStreamProtocol.KEEPALIVE)
+        continue;
+      compressed |= (frame.type & BinaryStreamProtocol.COMPRESSED) != 0;
+      elements.addAll(BinaryStreamProtocol.decodeElements(frame, received));
+    }
+    assertTrue(compressed);
+    assertElements(elements, 0, data);
+  }
+
+  @Test
+  public void closedByTheClient() throws Exception {
+    connect(false, 10);
+    client.close();
+    assertTrue(ready.tryAcquire(5, TimeUnit.SECONDS));
+    assertTrue(delivery.isClosed());
+    assertFalse(delivery.isReady());
+    assertFalse(delivery.writeStreamElement(element(0, new byte[0])));
+  }
+}
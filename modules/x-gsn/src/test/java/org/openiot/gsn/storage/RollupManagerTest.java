@@ -0,0 +1,231 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openiot.gsn.beans.DataField;
+import org.openiot.gsn.beans.DataTypes;
+import org.openiot.gsn.beans.StreamElement;
+import org.openiot.gsn.http.datarequest.StandardCriterion;
+import org.openiot.gsn.storage.db.H2StorageManager;
+
+public class RollupManagerTest {
+
+  private static final String VS = "rolltest";
+
+  private static final DataField[] FIELDS = new DataField[] { new DataField("VALUE", DataTypes.INTEGER), new DataField("TEMP", DataTypes.DOUBLE) };
+
+  private static int databases = 0;
+
+  private StorageManager storage;
+
+  private RollupManager manager;
+
+  @Before
+  public void setUp() throws SQLException {
+    storage = new H2StorageManager();
+    storage.init("org.h2.Driver", "sa", "", "jdbc:h2:mem:rollup" + (databases++), 4);
+    storage.executeCreateTable(VS, FIELDS, false);
+    // every 500 ms from -2000 to 29500
+    for (long timed = -2000; timed < 30000; timed += 500)
+      insert(timed);
+    manager = new RollupManager("1000,10000");
+    manager.register(VS, storage, FIELDS);
+  }
+
+  @After
+  public void tearDown() throws SQLException {
+    manager.unregister(VS);
+    storage.executeDropTable(VS);
+    storage.shutdown();
+  }
+
+  @Test
+  public void bucketsAreAlignedOnTheResolution() throws SQLException {
+    // the bucket of the last element (the watermark) is not written yet
+    List<Long> buckets = buckets(VS + "_rollup_1000");
+    assertEquals(Arrays.asList(-2000L, 2L, -1000L, 2L, 0L, 2L), buckets.subList(0, 6));
+    assertEquals(Arrays.asList(28000L, 2L), buckets.subList(60, 62));
+    assertEquals(62, buckets.size());
+    // the raw table starts within the bucket -10000, which is read from it
+    assertEquals(Arrays.asList(0L, 20L, 10000L, 20L), buckets(VS + "_rollup_10000"));
+
+    manager.update(VS, insert(30000));
+    manager.update(VS, insert(30700));
+    assertEquals(Arrays.asList(29000L, 2L), buckets(VS + "_rollup_1000").subList(62, 64));
+    assertEquals(Arrays.asList(20000L, 20L), buckets(VS + "_rollup_10000").subList(4, 6));
+  }
+
+  @Test
+  public void selectsTheCoarsestAlignedRollup() {
+    String[] fields = new String[] { "value", "temp" };
+    assertEquals(10000, manager.findRollup(VS, 20000, fields, null).getResolution());
+    assertEquals(1000, manager.findRollup(VS, 3000, fields, null).getResolution());
+    assertEquals(1000, manager.findRollup(VS, 20000, fields, Arrays.asList(criterion("timed", ">=", "5000"))).getResolution());
+    assertEquals(10000, manager.findRollup(VS, 20000, fields, Arrays.asList(criterion("timed", ">", "9999"), criterion("timed", "<", "20000"))).getResolution());
+    assertEquals(1000, manager.findRollup(VS, 20000, fields, Arrays.asList(criterion("timed", "<=", "1999"))).getResolution());
+  }
+
+  @Test
+  public void fallsBackToTheRawTable() {
+    String[] fields = new String[] { "value" };
+    assertNull(manager.findRollup("unknown", 1000, fields, null));
+    assertNull(manager.findRollup(VS, 1000, new String[] { "value", "other" }, null));
+    assertNull(manager.findRollup(VS, 1500, fields, null));
+    assertNull(manager.findRollup(VS, 1000, fields, Arrays.asList(criterion("timed", ">=", "1500"))));
+    assertNull(manager.findRollup(VS, 1000, fields, Arrays.asList(criterion("timed", "=", "1000"))));
+    assertNull(manager.findRollup(VS, 1000, fields, Arrays.asList(criterion("value", ">", "2"))));
+    assertNotNull(manager.findRollup(VS, 1000, fields, Arrays.asList(criterion("value", ">", "2", "othervs"))));
+  }
+
+  @Test
+  public void aggregatesLikeTheRawTable() throws SQLException {
+    manager.update(VS, insert(30000));
+    manager.update(VS, insert(30700));
+    // late data, merged into its bucket
+    manager.update(VS, insert(4200));
+    for (long range : new long[] { 1000, 10000, 20000 })
+      assertSameAggregates(range);
+  }
+
+  @Test
+  public void averageKeepsTheTypeOfTheField() throws SQLException {
+    RollupManager.Rollup rollup = manager.findRollup(VS, 10000, new String[] { "value", "temp" }, null);
+    assertEquals(Types.INTEGER, columnType("select " + rollup.getAggregate("avg", "value") + " from (" + rollup.getSourceQuery(VS) + ") rollup_data"));
+    assertEquals(Types.DOUBLE, columnType("select " + rollup.getAggregate("avg", "temp") + " from (" + rollup.getSourceQuery(VS) + ") rollup_data"));
+    assertEquals(columnType("select avg(value) from " + VS), columnType("select " + rollup.getAggregate("avg", "value") + " from (" + rollup.getSourceQuery(VS) + ") rollup_data"));
+  }
+
+  @Test
+  public void followsTheStorageSizeOfTheRawTable() throws SQLException {
+    storage.executeUpdate(new StringBuilder("delete from ").append(VS).append(" where timed < 15500"));
+    manager.prune(VS);
+    assertEquals(16000L, (long) buckets(VS + "_rollup_1000").get(0));
+    // the buckets before 20000 are partly removed, the coarse rollup has nothing before its watermark
+    assertEquals(Collections.emptyList(), buckets(VS + "_rollup_10000"));
+    assertEquals(1000, manager.findRollup(VS, 10000, new String[] { "value" }, null).getResolution());
+    for (long range : new long[] { 1000, 10000 })
+      assertSameAggregates(range);
+
+    storage.executeUpdate(new StringBuilder("delete from ").append(VS));
+    manager.prune(VS);
+    assertEquals(Collections.emptyList(), buckets(VS + "_rollup_1000"));
+    assertNull(manager.findRollup(VS, 1000, new String[] { "value" }, null));
+  }
+
+  private StreamElement insert(long timed) throws SQLException {
+    StreamElement se = new StreamElement(FIELDS, new Serializable[] { (int) (timed / 500 % 7), timed / 100.0 }, timed);
+    storage.executeInsert(VS, FIELDS, se);
+    return se;
+  }
+
+  private static StandardCriterion criterion(String field, String operator, String value) {
+    return criterion(field, operator, value, "");
+  }
+
+  private static StandardCriterion criterion(String field, String operator, String value, String vsName) {
+    StandardCriterion criterion = new StandardCriterion();
+    criterion.setCritVsname(vsName);
+    criterion.setCritField(field);
+    criterion.setCritOperator(operator);
+    criterion.setCritValue(value);
+    return criterion;
+  }
+
+  private void assertSameAggregates(long range) throws SQLException {
+    String[] fields = new String[] { "value", "temp" };
+    RollupManager.Rollup rollup = manager.findRollup(VS, range, fields, null);
+    assertNotNull(rollup);
+    for (String operator : new String[] { "min", "max", "avg" }) {
+      for (String field : fields) {
+        // floored intervals, like the buckets of the negative timestamps
+        List<Object> raw = query("select " + operator + "(" + field + "), floor(timed/" + range + ".0) from " + VS + " group by floor(timed/" + range + ".0) order by 2");
+        List<Object> rolled = query("select " + rollup.getAggregate(operator, field) + ", floor(timed/" + range + ".0) from (" + rollup.getSourceQuery(VS) + ") rollup_data group by floor(timed/" + range + ".0) order by 2");
+        assertEquals(operator + " " + field + " by " + range, raw.size(), rolled.size());
+        for (int i = 0; i < raw.size(); i++) {
+          if (raw.get(i) instanceof Double)
+            assertEquals(operator + " " + field + " by " + range, (Double) raw.get(i), ((Number) rolled.get(i)).doubleValue(), 1e-9);
+          else
+            assertEquals(operator + " " + field + " by " + range, ((Number) raw.get(i)).longValue(), ((Number) rolled.get(i)).longValue());
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the timed and the count of the VALUE field of each bucket of the rollup table.
+   */
+  private List<Long> buckets(String table) throws SQLException {
+    List<Long> buckets = new ArrayList<Long>();
+    for (Object value : query("select timed, VALUE_COUNT from " + table + " order by timed"))
+      buckets.add(((Number) value).longValue());
+    return buckets;
+  }
+
+  private List<Object> query(String query) throws SQLException {
+    List<Object> values = new ArrayList<Object>();
+    Connection connection = storage.getConnection();
+    try {
+      PreparedStatement ps = connection.prepareStatement(query);
+      ResultSet rs = ps.executeQuery();
+      int columns = rs.getMetaData().getColumnCount();
+      while (rs.next())
+        for (int i = 1; i <= columns; i++)
+          values.add(rs.getObject(i));
+      rs.close();
+      ps.close();
+    } finally {
+      storage.close(connection);
+    }
+    return values;
+  }
+
+  private int columnType(String query) throws SQLException {
+    Connection connection = storage.getConnection();
+    try {
+      PreparedStatement ps = connection.prepareStatement(query);
+      ResultSet rs = ps.executeQuery();
+      int type = rs.getMetaData().getColumnType(1);
+      rs.close();
+      ps.close();
+      return type;
+    } finally {
+      storage.close(connection);
+    }
+  }
+}
@@ -0,0 +1,170 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.storage.rrd;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RoundRobinDatabaseTest {
+
+  private static final long STEP = 10000;
+
+  private static final double NaN = Double.NaN;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File file;
+
+  private RoundRobinDatabase db;
+
+  @Before
+  public void setUp() throws IOException {
+    file = new File(folder.getRoot(), "test.grrd");
+    RrdDefinition definition = new RrdDefinition(10);
+    definition.addDataSource("temp", DataSourceType.GAUGE, 20, NaN, NaN);
+    definition.addArchive("AVERAGE:0.5:1:5");
+    definition.addArchive("AVERAGE:0.5:3:4");
+    definition.addArchive("MAX:0.5:3:4");
+    db = RoundRobinDatabase.create(file, definition, 0);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    db.close();
+  }
+
+  @Test
+  public void consolidatesThePrimaryDataPoints() {
+    for (int k = 1; k <= 6; k++)
+      assertTrue(db.update(k * STEP, new double[] { k }));
+
+    FetchData data = db.fetch(ConsolidationFunction.AVERAGE, 3 * STEP, 6 * STEP);
+    assertEquals(STEP, data.getStep());
+    assertArrayEquals(new long[] { 30000, 40000, 50000, 60000 }, data.getTimestamps());
+    assertArrayEquals(new double[] { 3, 4, 5, 6 }, data.getValues("temp"), 0);
+
+    // the finest archive does not cover the range any more
+    data = db.fetch(ConsolidationFunction.AVERAGE, 0, 6 * STEP);
+    assertEquals(3 * STEP, data.getStep());
+    assertArrayEquals(new long[] { 0, 30000, 60000 }, data.getTimestamps());
+    assertArrayEquals(new double[] { NaN, 2, 5 }, data.getValues(0), 0);
+
+    data = db.fetch(ConsolidationFunction.MAX, 3 * STEP, 6 * STEP);
+    assertArrayEquals(new double[] { 3, 6 }, data.getValues(0), 0);
+
+    // both average archives cover the range, the closest resolution wins
+    assertEquals(3 * STEP, db.fetch(ConsolidationFunction.AVERAGE, 3 * STEP, 6 * STEP, 3 * STEP).getStep());
+  }
+
+  @Test
+  public void averagesTheValuesWithinAStep() {
+    assertTrue(db.update(2500, new double[] { 2 }));
+    assertTrue(db.update(5000, new double[] { 2 }));
+    assertTrue(db.update(10000, new double[] { 5 }));
+    assertTrue(db.update(15000, new double[] { 1 }));
+    assertTrue(db.update(20000, new double[] { 3 }));
+    assertArrayEquals(new double[] { 3.5, 2 }, db.fetch(ConsolidationFunction.AVERAGE, STEP, 2 * STEP).getValues(0), 0);
+  }
+
+  @Test
+  public void ignoresTheUpdatesNotAfterTheLastOne() {
+    assertTrue(db.update(STEP, new double[] { 1 }));
+    assertFalse(db.update(STEP, new double[] { 2 }));
+    assertFalse(db.update(STEP - 1, new double[] { 2 }));
+    assertEquals(STEP, db.getLastUpdate());
+  }
+
+  @Test
+  public void wrapsAroundTheArchives() {
+    for (int k = 1; k <= 20; k++)
+      assertTrue(db.update(k * STEP, new double[] { k }));
+
+    FetchData data = db.fetch(ConsolidationFunction.AVERAGE, 16 * STEP, 20 * STEP);
+    assertArrayEquals(new double[] { 16, 17, 18, 19, 20 }, data.getValues(0), 0);
+
+    // the last complete row of the coarse archive ends at 180000, it holds 4 rows
+    data = db.fetch(ConsolidationFunction.AVERAGE, 9 * STEP, 20 * STEP);
+    assertEquals(3 * STEP, data.getStep());
+    assertArrayEquals(new long[] { 90000, 120000, 150000, 180000, 210000 }, data.getTimestamps());
+    assertArrayEquals(new double[] { 8, 11, 14, 17, NaN }, data.getValues(0), 0);
+    data = db.fetch(ConsolidationFunction.AVERAGE, 0, 6 * STEP, 3 * STEP);
+    assertArrayEquals(new double[] { NaN, NaN, NaN }, data.getValues(0), 0);
+  }
+
+  @Test
+  public void unknownAfterTheHeartbeat() {
+    for (int k = 1; k <= 3; k++)
+      assertTrue(db.update(k * STEP, new double[] { k }));
+    // more than the 20 s heartbeat since the last update, the whole interval is unknown
+    assertTrue(db.update(100 * STEP, new double[] { 7 }));
+    assertTrue(db.update(101 * STEP, new double[] { 8 }));
+    FetchData data = db.fetch(ConsolidationFunction.AVERAGE, 97 * STEP, 101 * STEP);
+    assertArrayEquals(new double[] { NaN, NaN, NaN, NaN, 8 }, data.getValues(0), 0);
+    assertArrayEquals(new double[] { NaN }, db.fetch(ConsolidationFunction.MAX, 99 * STEP, 99 * STEP).getValues(0), 0);
+  }
+
+  @Test
+  public void convertsCountersIntoRates() throws IOException {
+    RrdDefinition definition = new RrdDefinition(10);
+    definition.addDataSource("DS:packets:COUNTER:20:0:U");
+    definition.addArchive("LAST:0:1:10");
+    RoundRobinDatabase counters = RoundRobinDatabase.create(new File(folder.getRoot(), "counters.grrd"), definition, 0);
+    try {
+      counters.update(STEP, new double[] { 4294967046.0 });
+      counters.update(2 * STEP, new double[] { 4294967246.0 });
+      // wrapped on 32 bits
+      counters.update(3 * STEP, new double[] { 50 });
+      FetchData data = counters.fetch(ConsolidationFunction.LAST, 2 * STEP, 3 * STEP);
+      assertArrayEquals(new double[] { 20, 10 }, data.getValues(0), 0);
+    } finally {
+      counters.close();
+    }
+  }
+
+  @Test
+  public void persistsTheDefinitionAndTheRows() throws IOException {
+    for (int k = 1; k <= 4; k++)
+      db.update(k * STEP, new double[] { k });
+    db.close();
+    assertTrue(RoundRobinDatabase.isRoundRobinDatabase(file));
+
+    db = RoundRobinDatabase.open(file);
+    assertEquals(10, db.getDefinition().getStep());
+    assertEquals("temp", db.getDefinition().getDataSources().get(0).getName());
+    assertEquals(20, db.getDefinition().getDataSources().get(0).getHeartbeat());
+    assertEquals(3, db.getDefinition().getArchives().size());
+    assertEquals(4 * STEP, db.getLastUpdate());
+    db.update(5 * STEP, new double[] { 5 });
+    assertArrayEquals(new double[] { 1, 2, 3, 4, 5 }, db.fetch(ConsolidationFunction.AVERAGE, STEP, 5 * STEP).getValues(0), 0);
+  }
+}
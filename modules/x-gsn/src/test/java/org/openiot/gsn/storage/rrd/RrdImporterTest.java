@@ -0,0 +1,170 @@
+/**
+*    Copyright (c) 2011-2014, OpenIoT
+*
+*    This file is part of OpenIoT.
+*
+*    OpenIoT is free software: you can redistribute it and/or modify
+*    it under the terms of the GNU Lesser General Public License as published by
+*    the Free Software Foundation, version 3 of the License.
+*
+*    OpenIoT is distributed in the hope that it will be useful,
+*    but WITHOUT ANY WARRANTY; without even the implied warranty of
+*    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*    GNU Lesser General Public License for more details.
+*
+*    You should have received a copy of the GNU Lesser General Public License
+*    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+*
+*     Contact: OpenIoT mailto: info@openiot.eu
+*/
+
+package org.openiot.gsn.storage.rrd;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RrdImporterTest {
+
+  private static final double NaN = Double.NaN;
+
+  /**
+   * A dump of an rrdtool database with a step of 10 s last updated at 60 s, with a COMPUTE data source and an
+   * HWPREDICT archive which are not imported.
+   */
+  private static final String DUMP = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+      + "<!DOCTYPE rrd SYSTEM \"http://oss.oetiker.ch/rrdtool/rrdtool.dtd\">\n"
+      + "<rrd>\n"
+      + "  <version>0003</version>\n"
+      + "  <step>10</step>\n"
+      + "  <lastupdate>60</lastupdate>\n"
+      + "  <ds>\n"
+      + "    <name> temp </name>\n"
+      + "    <type> GAUGE </type>\n"
+      + "    <minimal_heartbeat>20</minimal_heartbeat>\n"
+      + "    <min>-4.0000000000e+01</min>\n"
+      + "    <max>NaN</max>\n"
+      + "    <last_ds>6</last_ds>\n"
+      + "    <value>0.0000000000e+00</value>\n"
+      + "    <unknown_sec> 0 </unknown_sec>\n"
+      + "  </ds>\n"
+      + "  <ds>\n"
+      + "    <name> double </name>\n"
+      + "    <type> COMPUTE </type>\n"
+      + "    <cdef> temp,2,* </cdef>\n"
+      + "  </ds>\n"
+      + "  <rra>\n"
+      + "    <cf>AVERAGE</cf>\n"
+      + "    <pdp_per_row>1</pdp_per_row>\n"
+      + "    <params><xff>5.0000000000e-01</xff></params>\n"
+      + "    <cdp_prep>\n"
+      + "      <ds><value>NaN</value><unknown_datapoints>0</unknown_datapoints></ds>\n"
+      + "      <ds><value>NaN</value><unknown_datapoints>0</unknown_datapoints></ds>\n"
+      + "    </cdp_prep>\n"
+      + "    <database>\n"
+      + "      <!-- 20 --> <row><v>2.0000000000e+00</v><v>4</v></row>\n"
+      + "      <!-- 30 --> <row><v>3.0000000000e+00</v><v>6</v></row>\n"
+      + "      <!-- 40 --> <row><v>4.0000000000e+00</v><v>8</v></row>\n"
+      + "      <!-- 50 --> <row><v>NaN</v><v>NaN</v></row>\n"
+      + "      <!-- 60 --> <row><v>6.0000000000e+00</v><v>12</v></row>\n"
+      + "    </database>\n"
+      + "  </rra>\n"
+      + "  <rra>\n"
+      + "    <cf>HWPREDICT</cf>\n"
+      + "    <pdp_per_row>1</pdp_per_row>\n"
+      + "  </rra>\n"
+      + "  <rra>\n"
+      + "    <cf>MAX</cf>\n"
+      + "    <pdp_per_row>3</pdp_per_row>\n"
+      + "    <params><xff>5.0000000000e-01</xff></params>\n"
+      + "    <cdp_prep>\n"
+      + "      <ds><value>NaN</value><unknown_datapoints>0</unknown_datapoints></ds>\n"
+      + "      <ds><value>NaN</value><unknown_datapoints>0</unknown_datapoints></ds>\n"
+      + "    </cdp_prep>\n"
+      + "    <database>\n"
+      + "      <!-- 0 --> <row><v>NaN</v><v>NaN</v></row>\n"
+      + "      <!-- 30 --> <row><v>3.0000000000e+00</v><v>6</v></row>\n"
+      + "      <!-- 60 --> <row><v>6.0000000000e+00</v><v>12</v></row>\n"
+      + "    </database>\n"
+      + "  </rra>\n"
+      + "</rrd>\n";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void importsTheLayoutAndTheRows() throws IOException {
+    RoundRobinDatabase db = RrdImporter.importDump(new ByteArrayInputStream(DUMP.getBytes("UTF-8")), new File(folder.getRoot(), "imported.grrd"));
+    try {
+      RrdDefinition definition = db.getDefinition();
+      assertEquals(10, definition.getStep());
+      assertEquals(1, definition.getDataSources().size());
+      assertEquals("temp", definition.getDataSources().get(0).getName());
+      assertEquals(DataSourceType.GAUGE, definition.getDataSources().get(0).getType());
+      assertEquals(-40, definition.getDataSources().get(0).getMin(), 0);
+      assertEquals(2, definition.getArchives().size());
+      assertEquals(ConsolidationFunction.MAX, definition.getArchives().get(1).getFunction());
+      assertEquals(3, definition.getArchives().get(1).getSteps());
+      assertEquals(3, definition.getArchives().get(1).getRows());
+      assertEquals(60000, db.getLastUpdate());
+
+      FetchData data = db.fetch(ConsolidationFunction.AVERAGE, 20000, 60000);
+      assertArrayEquals(new long[] { 20000, 30000, 40000, 50000, 60000 }, data.getTimestamps());
+      assertArrayEquals(new double[] { 2, 3, 4, NaN, 6 }, data.getValues(0), 0);
+      assertArrayEquals(new double[] { NaN, 3, 6 }, db.fetch(ConsolidationFunction.MAX, 0, 60000).getValues(0), 0);
+
+      // the imported database goes on from the state of the dump
+      assertTrue(db.update(70000, new double[] { 7 }));
+      assertArrayEquals(new double[] { 3, 4, NaN, 6, 7 }, db.fetch(ConsolidationFunction.AVERAGE, 30000, 70000).getValues(0), 0);
+    } finally {
+      db.close();
+    }
+  }
+
+  @Test
+  public void importsAnXmlFile() throws IOException {
+    File dump = folder.newFile("dump.xml");
+    OutputStream out = new FileOutputStream(dump);
+    try {
+      out.write(DUMP.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+    File target = new File(folder.getRoot(), "imported.grrd");
+    RrdImporter.importFile(dump, target).close();
+    assertTrue(RoundRobinDatabase.isRoundRobinDatabase(target));
+    RoundRobinDatabase db = RoundRobinDatabase.open(target);
+    try {
+      assertArrayEquals(new double[] { 4, NaN, 6 }, db.fetch(ConsolidationFunction.AVERAGE, 40000, 60000).getValues("temp"), 0);
+    } finally {
+      db.close();
+    }
+  }
+
+  @Test
+  public void rejectsAnInvalidDump() throws IOException {
+    try {
+      RrdImporter.importDump(new ByteArrayInputStream("<rrd><step>10</step></rrd>".getBytes("UTF-8")), new File(folder.getRoot(), "invalid.grrd"));
+      fail("A dump without lastupdate was imported");
+    } catch (IOException e) {
+      // expected
+    }
+    try {
+      RrdImporter.importDump(new ByteArrayInputStream("<graph/>".getBytes("UTF-8")), new File(folder.getRoot(), "invalid.grrd"));
+      fail("A document which is not a dump was imported");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+}
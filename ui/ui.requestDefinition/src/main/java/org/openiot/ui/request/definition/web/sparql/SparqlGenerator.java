@@ -53,6 +53,7 @@ import org.openiot.ui.request.definition.web.sparql.nodes.base.Root;
 import org.openiot.ui.request.definition.web.sparql.nodes.base.Scope;
 import org.openiot.ui.request.definition.web.sparql.nodes.base.Select;
 import org.openiot.ui.request.definition.web.sparql.nodes.base.SensorSelectExpression;
+import org.openiot.ui.request.definition.web.sparql.nodes.base.Union;
 import org.openiot.ui.request.definition.web.sparql.nodes.base.Where;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -81,6 +82,9 @@ public class SparqlGenerator extends AbstractGraphNodeVisitor {
 	private Group subGroupNode;
 	private Order subOrderNode;
 	private boolean sinkNodeNeedsGeoCoords;
+	// The series generated as a shared sub-query, if any
+	private SeriesBlock sharedSeries;
+	private boolean seriesAggregated;
 	//
 	private GenericSource targetDataSource;
 	private GraphNodeEndpoint targetAttribute;
@@ -165,13 +169,6 @@ public class SparqlGenerator extends AbstractGraphNodeVisitor {
 
 	private void generateAttributeSubQueryWhereCode(GenericSource sensorNode, GraphNodeEndpoint attributeEndpoint) {
 
-		// Encode attribute selection
-		if (attributeEndpoint != null) {
-			subWhereNode.appendToScope(new Expression("?" + sensorNode.getUID() + "_record <http://openiot.eu/ontology/ns/value> ?" + attributeEndpoint.getUID() + " ."));
-			subWhereNode.appendToScope(new Expression("?" + sensorNode.getUID() + "_record <http://www.w3.org/2000/01/rdf-schema#label> '" + attributeEndpoint.getUserData() + "' ."));
-		}
-		subWhereNode.appendToScope(new Expression("?" + sensorNode.getUID() + "_record <http://purl.oclc.org/NET/ssnx/ssn#observationResultTime> ?" + sensorNode.getUID() + "_recordTime ."));
-
 		// Encode sensor selection expression
 		GraphNodeProperty prop = sensorNode.getPropertyByName("LAT");
 		Object latQuery = sensorNode.getPropertyValueMap().get("LAT");
@@ -192,7 +189,26 @@ public class SparqlGenerator extends AbstractGraphNodeVisitor {
 			radiusQuery = "#" + prop.getVariableName() + "#";
 		}
 
+		// The (selective) sensor selection comes first, then the records of
+		// the selected sensors
 		subWhereNode.appendToScope(new SensorSelectExpression(sensorNode.getUID(),sensorNode.getLabel() ,latQuery, lonQuery, radiusQuery, this.sinkNodeNeedsGeoCoords));
+
+		// Encode attribute selection
+		if (attributeEndpoint != null) {
+			if (sharedSeries != null) {
+				// The attribute is selected by the VALUES block of the shared
+				// sub-query
+				sharedSeries.conflict |= sharedSeries.source != null;
+				sharedSeries.source = sensorNode;
+				sharedSeries.attribute = attributeEndpoint.getUserData();
+				subWhereNode.appendToScope(new Expression("?" + sensorNode.getUID() + "_record <http://www.w3.org/2000/01/rdf-schema#label> ?" + sensorNode.getUID() + "_attrLabel ."));
+				subWhereNode.appendToScope(new Expression("?" + sensorNode.getUID() + "_record <http://openiot.eu/ontology/ns/value> ?" + sensorNode.getUID() + "_attrValue ."));
+			} else {
+				subWhereNode.appendToScope(new Expression("?" + sensorNode.getUID() + "_record <http://www.w3.org/2000/01/rdf-schema#label> '" + attributeEndpoint.getUserData() + "' ."));
+				subWhereNode.appendToScope(new Expression("?" + sensorNode.getUID() + "_record <http://openiot.eu/ontology/ns/value> ?" + attributeEndpoint.getUID() + " ."));
+			}
+		}
+		subWhereNode.appendToScope(new Expression("?" + sensorNode.getUID() + "_record <http://purl.oclc.org/NET/ssnx/ssn#observationResultTime> ?" + sensorNode.getUID() + "_recordTime ."));
 	}
 
 	private void defineVariable(GraphNodeProperty property, Object defaultValue) {
@@ -225,7 +241,7 @@ public class SparqlGenerator extends AbstractGraphNodeVisitor {
 		targetAttribute = sourceEndpoint;
 
 		// Encode selection query
-		subSelectNode.appendToScope(new Expression("?" + sourceEndpoint.getUID()));
+		subSelectNode.appendToScope(new Expression("?" + (sharedSeries != null ? node.getUID() + "_attrValue" : sourceEndpoint.getUID())));
 
 		// Generate nested where clause for selected attribute
 		this.generateAttributeSubQueryWhereCode(targetDataSource, targetAttribute);
@@ -386,161 +402,262 @@ public class SparqlGenerator extends AbstractGraphNodeVisitor {
 
 		// Group queries for xy tuples
 		int seriesCount = Integer.valueOf((String) node.getPropertyValueMap().get("SERIES"));
+		List<SeriesBlock> series = new ArrayList<SeriesBlock>(seriesCount);
 		for (int i = 0; i < seriesCount; i++) {
-			// Start a new code block for each series
-			beginQueryBlock(node, i + 1, seriesCount);
-
-			GraphNodeEndpoint xEndpoint = node.getEndpointByLabel("x" + (i + 1));
-			GraphNodeEndpoint yEndpoint = node.getEndpointByLabel("y" + (i + 1));
-
-			// Follow Y axis value
-			for (GraphNodeConnection connection : model.findGraphEndpointConnections(yEndpoint)) {
-
-				Scope subScope = new Scope();
-				primaryWhereNode.appendToScope(subScope);
-
-				// Generate subquery helpers
-				subSelectNode = subSelectOriginalNode = new Select();
-				subWhereNode = new Where();
-				subGroupNode = new Group();
-				subOrderNode = new Order();
-				subScope.appendToScope(subSelectNode);
-				subScope.appendToScope(subWhereNode);
-				subScope.appendToScope(subGroupNode);
-				subScope.appendToScope(subOrderNode);
-
-				// Explore graph till we reach a sensor node.
-				targetDataSource = null;
-				targetAttribute = null;
-				this.visitedConnectionGraphStack.push(connection);
-				this.visitViaReflection(connection.getSourceNode());
-				this.visitedConnectionGraphStack.pop();
-
-				subSelectNode.appendToScope(new Expression("AS ?" + yEndpoint.getLabel()));
-				primarySelectNode.appendToScope(new Expression("?" + yEndpoint.getLabel()));
-			}
-
-			// Process x axis endpoint
-			if (xEndpoint != null) {
-				for (GraphNodeConnection connection : model.findGraphEndpointConnections(xEndpoint)) {
-					if (xAxisType.equals("Date (observation)")) {
-						String timeComponent = connection.getSourceEndpoint().getLabel().replace("grp_recordTime_", "");
-						// Note: We need to apply an aggregation function to
-						// timestamp components
-						// for the value grouping to work
-						subSelectNode.appendToScope(new Expression("AVG( fn:" + timeComponent + "-from-dateTime(?" + targetDataSource.getUID() + "_recordTime) ) AS ?" + xEndpoint.getLabel() + "_" + timeComponent));
-						primarySelectNode.appendToScope(new Expression("?" + xEndpoint.getLabel() + "_" + timeComponent));
-					} else {
-						Scope subScope = new Scope();
-						primaryWhereNode.appendToScope(subScope);
-
-						// Generate subquery helpers
-						subSelectNode = subSelectOriginalNode = new Select();
-						subWhereNode = new Where();
-						subGroupNode = new Group();
-						subOrderNode = new Order();
-						subScope.appendToScope(subSelectNode);
-						subScope.appendToScope(subWhereNode);
-						subScope.appendToScope(subGroupNode);
-						subScope.appendToScope(subOrderNode);
-
-						// Explore graph till we reach a sensor node.
-						targetDataSource = null;
-						targetAttribute = null;
-						this.visitedConnectionGraphStack.push(connection);
-						this.visitViaReflection(connection.getSourceNode());
-						this.visitedConnectionGraphStack.pop();
-
-						subSelectNode.appendToScope(new Expression("AS ?" + xEndpoint.getLabel()));
-						primarySelectNode.appendToScope(new Expression("?" + xEndpoint.getLabel()));
-					}
-				}
-			}
-
-			endQueryBlock();
+			series.add(new SeriesBlock(node.getEndpointByLabel("y" + (i + 1)), node.getEndpointByLabel("x" + (i + 1)), xAxisType));
 		}
+		generateSeriesQueryBlock(node, series);
 	}
 
 	public void visitPassthroughSink(Passthrough node) {
 
-		// Generate one query per attribute
+		// One series per attribute
 		int attrCount = Integer.valueOf(node.getPropertyValueMap().get("ATTRIBUTES").toString());
+		List<SeriesBlock> series = new ArrayList<SeriesBlock>(attrCount);
 		for (int i = 0; i < attrCount; i++) {
-			// Start a new code block for each attribute
-			beginQueryBlock(node, i + 1, attrCount);
+			series.add(new SeriesBlock(node.getEndpointByLabel("attr" + (i + 1)), null, null));
+		}
+		generateSeriesQueryBlock(node, series);
+	}
 
-			GraphNodeEndpoint attrEndpoint = node.getEndpointByLabel("attr" + (i + 1));
+	public void visitPieSink(Pie node) {
 
-			// Follow attr value
-			for (GraphNodeConnection connection : model.findGraphEndpointConnections(attrEndpoint)) {
+		int seriesCount = Integer.valueOf((String) node.getPropertyValueMap().get("SERIES"));
+		List<SeriesBlock> series = new ArrayList<SeriesBlock>(seriesCount);
+		for (int i = 0; i < seriesCount; i++) {
+			series.add(new SeriesBlock(node.getEndpointByLabel("y" + (i + 1)), null, null));
+		}
+		generateSeriesQueryBlock(node, series);
+	}
 
-				Scope subScope = new Scope();
-				primaryWhereNode.appendToScope(subScope);
+	// -------------------------------------------------------------------------
+	// Series
+	// -------------------------------------------------------------------------
 
-				// Generate subquery helpers
-				subSelectNode = subSelectOriginalNode = new Select();
-				subWhereNode = new Where();
-				subGroupNode = new Group();
-				subOrderNode = new Order();
-				subScope.appendToScope(subSelectNode);
-				subScope.appendToScope(subWhereNode);
-				subScope.appendToScope(subGroupNode);
-				subScope.appendToScope(subOrderNode);
+	/**
+	 * A series (or attribute) of a sink: the endpoints it is read from and the
+	 * code generated for it.
+	 */
+	private static class SeriesBlock {
+		private final GraphNodeEndpoint valueEndpoint;
+		private final GraphNodeEndpoint xEndpoint;
+		private final String xAxisType;
+		// Generated code
+		private Scope scope;
+		private List<String> selectedVariables = new ArrayList<String>();
+		// Set when the series is generated as a shared sub-query
+		private String sharedCode;
+		private GenericSource source;
+		private String attribute;
+		// More than one attribute is read
+		private boolean conflict;
+		private AbstractSparqlNode select;
+		private Where where;
+		private Group group;
+		private boolean aggregated;
+		// Variable of the sink query -> variable of the shared sub-query
+		private Map<String, String> outputs = new LinkedHashMap<String, String>();
+
+		public SeriesBlock(GraphNodeEndpoint valueEndpoint, GraphNodeEndpoint xEndpoint, String xAxisType) {
+			this.valueEndpoint = valueEndpoint;
+			this.xEndpoint = xEndpoint;
+			this.xAxisType = xAxisType;
+		}
+	}
 
-				// Explore graph till we reach a sensor node.
-				targetDataSource = null;
-				targetAttribute = null;
-				this.visitedConnectionGraphStack.push(connection);
-				this.visitViaReflection(connection.getSourceNode());
-				this.visitedConnectionGraphStack.pop();
+	/**
+	 * Generates a single query computing all the series of the sink, instead
+	 * of one query per series. The series reading the same sensor through the
+	 * same filters, groups and aggregate (that is, differing only by the
+	 * attribute) are computed by one sub-query selecting all their attributes
+	 * with a VALUES block and grouping by attribute. The other series are
+	 * computed by their own sub-query, and the sub-queries are united. The
+	 * variables of each series (y1, attr2...) are only bound in the rows of
+	 * that series. The series whose value endpoint is not connected are left
+	 * out.
+	 */
+	private void generateSeriesQueryBlock(GraphNode node, List<SeriesBlock> series) {
+		beginQueryBlock(node, 1, 1);
 
-				subSelectNode.appendToScope(new Expression("AS ?" + attrEndpoint.getLabel()));
-				primarySelectNode.appendToScope(new Expression("?" + attrEndpoint.getLabel()));
+		// Generate every series as a shared sub-query and group the ones
+		// with the same code
+		List<List<SeriesBlock>> groups = new ArrayList<List<SeriesBlock>>();
+		Map<String, List<SeriesBlock>> sharedGroups = new LinkedHashMap<String, List<SeriesBlock>>();
+		int seriesCount = 0;
+		for (SeriesBlock block : series) {
+			// An unconnected endpoint would give an empty UNION branch
+			if (model.findGraphEndpointConnections(block.valueEndpoint).isEmpty()) {
+				continue;
+			}
+			seriesCount++;
+			generateSeries(block, true);
+			List<SeriesBlock> group = block.sharedCode != null ? sharedGroups.get(block.sharedCode) : null;
+			if (group != null) {
+				for (SeriesBlock other : group) {
+					// Two series of the same attribute can't be told apart
+					if (other.attribute.equals(block.attribute)) {
+						group = null;
+						break;
+					}
+				}
+			}
+			if (group == null) {
+				group = new ArrayList<SeriesBlock>();
+				groups.add(group);
+				if (block.sharedCode != null && !sharedGroups.containsKey(block.sharedCode)) {
+					sharedGroups.put(block.sharedCode, group);
+				}
 			}
+			group.add(block);
+		}
 
-			endQueryBlock();
+		Union union = new Union();
+		for (List<SeriesBlock> group : groups) {
+			if (group.size() == 1) {
+				SeriesBlock block = group.get(0);
+				generateSeries(block, false);
+				union.appendToScope(block.scope);
+			} else {
+				union.appendToScope(shareSeries(group));
+			}
+			for (SeriesBlock block : group) {
+				for (String variable : block.selectedVariables) {
+					primarySelectNode.appendToScope(new Expression(variable));
+				}
+			}
 		}
+		primaryWhereNode.appendToScope(union);
+
+		primaryCommentNode.appendComment("Computes " + seriesCount + " series in " + groups.size() + " sub-quer" + (groups.size() > 1 ? "ies" : "y") + ".");
+		endQueryBlock();
 	}
 
-	public void visitPieSink(Pie node) {
+	/**
+	 * Generates the code of one series in its scope. When shared, the
+	 * attribute is left as a variable and the series gets a sharedCode,
+	 * unless it can't be computed by a shared sub-query.
+	 */
+	private void generateSeries(SeriesBlock block, boolean shared) {
+		block.scope = new Scope();
+		block.selectedVariables.clear();
+		block.outputs.clear();
+		block.sharedCode = null;
+		block.source = null;
+		block.attribute = null;
+		block.conflict = false;
+		sharedSeries = shared ? block : null;
+		seriesAggregated = false;
+
+		List<GraphNodeConnection> valueConnections = model.findGraphEndpointConnections(block.valueEndpoint);
+		boolean shareable = shared && valueConnections.size() == 1;
+
+		// Follow the series value
+		for (GraphNodeConnection connection : valueConnections) {
+			beginSubQuery(block.scope);
+
+			// Explore graph till we reach a sensor node.
+			targetDataSource = null;
+			targetAttribute = null;
+			this.visitedConnectionGraphStack.push(connection);
+			this.visitViaReflection(connection.getSourceNode());
+			this.visitedConnectionGraphStack.pop();
 
-		// Generate one query per attribute
-		int seriesCount = Integer.valueOf((String) node.getPropertyValueMap().get("SERIES"));
-		for (int i = 0; i < seriesCount; i++) {
-			// Start a new code block for each series
-			beginQueryBlock(node, i + 1, seriesCount);
+			String label = block.valueEndpoint.getLabel();
+			if (shareable && block.source != null) {
+				subSelectNode.appendToScope(new Expression("AS ?" + block.source.getUID() + "_value"));
+				block.outputs.put(label, block.source.getUID() + "_value");
+				block.select = subSelectOriginalNode;
+				block.where = subWhereNode;
+				block.group = subGroupNode;
+				block.aggregated = seriesAggregated;
+			} else {
+				shareable = false;
+				subSelectNode.appendToScope(new Expression("AS ?" + label));
+			}
+			block.selectedVariables.add("?" + label);
+		}
 
-			GraphNodeEndpoint attrEndpoint = node.getEndpointByLabel("y" + (i + 1));
+		// Process x axis endpoint
+		if (block.xEndpoint != null) {
+			for (GraphNodeConnection connection : model.findGraphEndpointConnections(block.xEndpoint)) {
+				if (block.xAxisType.equals("Date (observation)")) {
+					String timeComponent = connection.getSourceEndpoint().getLabel().replace("grp_recordTime_", "");
+					String variable = block.xEndpoint.getLabel() + "_" + timeComponent;
+					String alias = variable;
+					if (shareable) {
+						alias = block.source.getUID() + "_x_" + timeComponent;
+						block.outputs.put(variable, alias);
+					}
+					// Note: We need to apply an aggregation function to
+					// timestamp components
+					// for the value grouping to work
+					subSelectNode.appendToScope(new Expression("AVG( fn:" + timeComponent + "-from-dateTime(?" + targetDataSource.getUID() + "_recordTime) ) AS ?" + alias));
+					block.selectedVariables.add("?" + variable);
+				} else {
+					// The x values are read by a sub-query of their own
+					shareable = false;
+					beginSubQuery(block.scope);
+
+					// Explore graph till we reach a sensor node.
+					targetDataSource = null;
+					targetAttribute = null;
+					this.visitedConnectionGraphStack.push(connection);
+					this.visitViaReflection(connection.getSourceNode());
+					this.visitedConnectionGraphStack.pop();
+
+					subSelectNode.appendToScope(new Expression("AS ?" + block.xEndpoint.getLabel()));
+					block.selectedVariables.add("?" + block.xEndpoint.getLabel());
+				}
+			}
+		}
 
-			// Follow attr value
-			for (GraphNodeConnection connection : model.findGraphEndpointConnections(attrEndpoint)) {
+		sharedSeries = null;
+		if (shareable && block.source != null && !block.conflict) {
+			block.sharedCode = block.scope.generate();
+		}
+	}
 
-				Scope subScope = new Scope();
-				primaryWhereNode.appendToScope(subScope);
+	private void beginSubQuery(Scope seriesScope) {
+		Scope subScope = new Scope();
+		seriesScope.appendToScope(subScope);
+
+		// Generate subquery helpers
+		subSelectNode = subSelectOriginalNode = new Select();
+		subWhereNode = new Where();
+		subGroupNode = new Group();
+		subOrderNode = new Order();
+		subScope.appendToScope(subSelectNode);
+		subScope.appendToScope(subWhereNode);
+		subScope.appendToScope(subGroupNode);
+		subScope.appendToScope(subOrderNode);
+	}
 
-				// Generate subquery helpers
-				subSelectNode = subSelectOriginalNode = new Select();
-				subWhereNode = new Where();
-				subGroupNode = new Group();
-				subOrderNode = new Order();
-				subScope.appendToScope(subSelectNode);
-				subScope.appendToScope(subWhereNode);
-				subScope.appendToScope(subGroupNode);
-				subScope.appendToScope(subOrderNode);
+	/**
+	 * Turns the shared code generated for the first series of the group into a
+	 * sub-query computing all the series of the group, and binds the variables
+	 * of each series in the rows of its attribute.
+	 */
+	private Scope shareSeries(List<SeriesBlock> group) {
+		SeriesBlock first = group.get(0);
+		String uid = first.source.getUID();
 
-				// Explore graph till we reach a sensor node.
-				targetDataSource = null;
-				targetAttribute = null;
-				this.visitedConnectionGraphStack.push(connection);
-				this.visitViaReflection(connection.getSourceNode());
-				this.visitedConnectionGraphStack.pop();
+		StringBuilder values = new StringBuilder("VALUES ?" + uid + "_attrLabel {");
+		for (SeriesBlock block : group) {
+			values.append(" '").append(block.attribute).append("'");
+		}
+		values.append(" }");
+		first.where.prependToScope(new Expression(values.toString()));
+		first.select.prependToScope(new Expression("?" + uid + "_attrLabel"));
+		if (first.aggregated || first.group.getChildrenCount() > 0) {
+			first.group.prependToScope(new Expression("?" + uid + "_attrLabel"));
+		}
 
-				subSelectNode.appendToScope(new Expression("AS ?" + attrEndpoint.getLabel()));
-				primarySelectNode.appendToScope(new Expression("?" + attrEndpoint.getLabel()));
+		for (SeriesBlock block : group) {
+			for (Map.Entry<String, String> output : block.outputs.entrySet()) {
+				first.scope.appendToScope(new Expression("BIND( IF( ?" + uid + "_attrLabel = '" + block.attribute + "', ?" + output.getValue() + ", ?" + uid + "_none ) AS ?" + output.getKey() + " )"));
 			}
-
-			endQueryBlock();
 		}
+		return first.scope;
 	}
 
 	private void visitIncomingConnections(GraphNode destinationNode) {
@@ -709,6 +826,7 @@ public class SparqlGenerator extends AbstractGraphNodeVisitor {
 	public void visit(org.openiot.ui.request.definition.web.model.nodes.impl.aggegators.Min node) {
 		AbstractSparqlNode current = subSelectNode;
 		subSelectNode = subSelectNode.appendToScope(new AggregateExpression("MIN"));
+		seriesAggregated = true;
 		visitIncomingConnections(node);
 		subSelectNode = current;
 	}
@@ -716,6 +834,7 @@ public class SparqlGenerator extends AbstractGraphNodeVisitor {
 	public void visit(org.openiot.ui.request.definition.web.model.nodes.impl.aggegators.Max node) {
 		AbstractSparqlNode current = subSelectNode;
 		subSelectNode = subSelectNode.appendToScope(new AggregateExpression("MAX"));
+		seriesAggregated = true;
 		visitIncomingConnections(node);
 		subSelectNode = current;
 	}
@@ -723,6 +842,7 @@ public class SparqlGenerator extends AbstractGraphNodeVisitor {
 	public void visit(org.openiot.ui.request.definition.web.model.nodes.impl.aggegators.Count node) {
 		AbstractSparqlNode current = subSelectNode;
 		subSelectNode = subSelectNode.appendToScope(new AggregateExpression("COUNT"));
+		seriesAggregated = true;
 		visitIncomingConnections(node);
 		subSelectNode = current;
 	}
@@ -730,6 +850,7 @@ public class SparqlGenerator extends AbstractGraphNodeVisitor {
 	public void visit(org.openiot.ui.request.definition.web.model.nodes.impl.aggegators.Sum node) {
 		AbstractSparqlNode current = subSelectNode;
 		subSelectNode = subSelectNode.appendToScope(new AggregateExpression("SUM"));
+		seriesAggregated = true;
 		visitIncomingConnections(node);
 		subSelectNode = current;
 	}
@@ -737,6 +858,7 @@ public class SparqlGenerator extends AbstractGraphNodeVisitor {
 	public void visit(org.openiot.ui.request.definition.web.model.nodes.impl.aggegators.Average node) {
 		AbstractSparqlNode current = subSelectNode;
 		subSelectNode = subSelectNode.appendToScope(new AggregateExpression("AVG"));
+		seriesAggregated = true;
 		visitIncomingConnections(node);
 		subSelectNode = current;
 	}
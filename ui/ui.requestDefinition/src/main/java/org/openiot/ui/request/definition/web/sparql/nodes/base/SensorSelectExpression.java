@@ -36,9 +36,9 @@ public class SensorSelectExpression extends AbstractSparqlNode implements Serial
 		super();
 
 
-		// Generate Expr
-		appendToScope(new Expression("?" + nodeId + "_record <http://openiot.eu/ontology/ns/isObservedValueOf> ?" + nodeId + "_sensor ."));
-		appendToScope(new Expression("?" + nodeId + "_sensor <http://purl.oclc.org/NET/ssnx/ssn#observedBy> ?" + nodeId + "_sensorId ."));
+		// Generate Expr. The sensors are selected first (by type and location)
+		// and their records are joined to them, so that the selective
+		// filters are applied early.
 		Scope scope = new Scope();
 		appendToScope(scope);
 		scope.appendToScope(new Expression("SELECT ?" + nodeId + "_sensorId"));
@@ -53,10 +53,12 @@ public class SensorSelectExpression extends AbstractSparqlNode implements Serial
 		where.appendToScope(new Expression("<" + type + "> <http://www.w3.org/2000/01/rdf-schema#subClassOf> <http://purl.oclc.org/NET/ssnx/ssn#Sensor> ."));
 		where.appendToScope(new Expression("?" + nodeId + "_sensorId <http://www.loa-cnr.it/ontologies/DUL.owl#hasLocation> ?" + nodeId + "_loc ."));
 		where.appendToScope(new Expression("?" + nodeId + "_loc geo:geometry ?" + nodeId + "_geo ."));
-		where.appendToScope(new Expression("?" + nodeId + "_loc geo:lat ?" + nodeId + "_lat ."));
-		where.appendToScope(new Expression("?" + nodeId + "_loc geo:long ?" + nodeId + "_lon ."));
 		// Note lat/lon are flipped!
 		where.appendToScope(new Expression("FILTER (<bif:st_intersects>(?" + nodeId + "_geo, <bif:st_point>( " + lon + ", " + lat + "), " + rad + ")) ."));
+		where.appendToScope(new Expression("?" + nodeId + "_loc geo:lat ?" + nodeId + "_lat ."));
+		where.appendToScope(new Expression("?" + nodeId + "_loc geo:long ?" + nodeId + "_lon ."));
+		appendToScope(new Expression("?" + nodeId + "_sensor <http://purl.oclc.org/NET/ssnx/ssn#observedBy> ?" + nodeId + "_sensorId ."));
+		appendToScope(new Expression("?" + nodeId + "_record <http://openiot.eu/ontology/ns/isObservedValueOf> ?" + nodeId + "_sensor ."));
 	}
 	
 	@Override
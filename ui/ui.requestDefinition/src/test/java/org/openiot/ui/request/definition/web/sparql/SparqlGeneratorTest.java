@@ -0,0 +1,171 @@
+/**
+ *    Copyright (c) 2011-2014, OpenIoT
+ *
+ *    This file is part of OpenIoT.
+ *
+ *    OpenIoT is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3 of the License.
+ *
+ *    OpenIoT is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with OpenIoT.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *     Contact: OpenIoT mailto: info@openiot.eu
+ */
+
+package org.openiot.ui.request.definition.web.sparql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.bind.JAXBContext;
+
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openiot.commons.osdspec.model.OAMO;
+import org.openiot.commons.osdspec.model.OSDSpec;
+import org.openiot.ui.request.commons.interfaces.GraphModel;
+import org.openiot.ui.request.commons.models.DefaultGraphModel;
+import org.openiot.ui.request.commons.nodes.base.DefaultGraphNodeEndpoint;
+import org.openiot.ui.request.commons.nodes.enums.EndpointType;
+import org.openiot.ui.request.commons.nodes.interfaces.GraphNode;
+import org.openiot.ui.request.commons.nodes.interfaces.GraphNodeEndpoint;
+import org.openiot.ui.request.definition.web.model.nodes.impl.aggegators.Average;
+import org.openiot.ui.request.definition.web.model.nodes.impl.sinks.Pie;
+import org.openiot.ui.request.definition.web.model.nodes.impl.sources.GenericSource;
+
+/**
+ * Generates the queries of the sample applications of examples/examples.xml
+ * and checks how many queries and sub-queries each of them gets.
+ */
+public class SparqlGeneratorTest {
+
+	private static final Pattern EMPTY_SCOPE = Pattern.compile("\\{\\s*\\}");
+
+	private static Map<String, GraphModel> examples;
+
+	@BeforeClass
+	public static void loadExamples() throws Exception {
+		File file = new File(System.getProperty("basedir", "."), "examples/examples.xml");
+		OSDSpec spec = (OSDSpec) JAXBContext.newInstance(OSDSpec.class).createUnmarshaller().unmarshal(file);
+		examples = new LinkedHashMap<String, GraphModel>();
+		for (OAMO oamo : spec.getOAMO()) {
+			DefaultGraphModel model = new DefaultGraphModel();
+			model.importJSON(new JSONObject(new JSONTokener(oamo.getGraphMeta())));
+			examples.put(oamo.getName(), model);
+		}
+	}
+
+	/**
+	 * @return the number of sinks, of queries and of UNION branches generated
+	 *         for the model
+	 */
+	private static int[] generate(GraphModel model) {
+		int[] counts = new int[3];
+		for (GraphNode node : model.getNodes()) {
+			if (!node.getType().equals("SINK")) {
+				continue;
+			}
+			counts[0]++;
+			List<String> queries = new SparqlGenerator().generateQueriesForNodeEndpoints(model, node);
+			counts[1] += queries.size();
+			for (String query : queries) {
+				assertFalse("Empty scope in:\n" + query, EMPTY_SCOPE.matcher(query).find());
+				counts[2] += count(query, "UNION") + 1;
+			}
+		}
+		return counts;
+	}
+
+	private static int count(String text, String word) {
+		int count = 0;
+		Matcher matcher = Pattern.compile("\\b" + word + "\\b").matcher(text);
+		while (matcher.find()) {
+			count++;
+		}
+		return count;
+	}
+
+	private static void assertQueries(String example, int sinks, int queries, int branches) {
+		GraphModel model = examples.get(example);
+		assertTrue("Missing example: " + example, model != null);
+		int[] counts = generate(model);
+		assertEquals(example + " sinks", sinks, counts[0]);
+		assertEquals(example + " queries", queries, counts[1]);
+		assertEquals(example + " sub-queries", branches, counts[2]);
+	}
+
+	@Test
+	public void examples() {
+		assertEquals(8, examples.size());
+		// one query per sink, the series of a sink being united in it
+		assertQueries("Gauge demo", 2, 2, 2);
+		assertQueries("Map demo (static sensors)", 2, 2, 2);
+		assertQueries("Map demo (mobile sensors)", 1, 1, 1);
+		assertQueries("Pie chart demo", 1, 1, 2);
+		assertQueries("Passthrough demo", 1, 1, 4);
+		assertQueries("Passthrough demo (with variables)", 1, 1, 4);
+		assertQueries("Line chart demo (single series + grouping)", 1, 1, 1);
+		assertQueries("Line chart demo (multiple series + grouping)", 1, 1, 1);
+	}
+
+	private static GraphNodeEndpoint attribute(GenericSource source, String label) {
+		DefaultGraphNodeEndpoint endpoint = new DefaultGraphNodeEndpoint();
+		endpoint.setType(EndpointType.Output);
+		endpoint.setLabel(label);
+		endpoint.setUserData(label);
+		endpoint.setScope("sensor_Number");
+		source.getEndpointDefinitions().add(endpoint);
+		return endpoint;
+	}
+
+	@Test
+	public void unconnectedSeriesAreLeftOut() {
+		DefaultGraphModel model = new DefaultGraphModel();
+		GenericSource source = new GenericSource();
+		source.setLabel("weather");
+		source.setProperty("LAT", 46.5);
+		source.setProperty("LON", 6.6);
+		source.setProperty("RADIUS", 15);
+		GraphNodeEndpoint temperature = attribute(source, "Temperature");
+		GraphNodeEndpoint humidity = attribute(source, "Humidity");
+		Pie pie = new Pie();
+		pie.setProperty("SERIES", "3");
+		model.insert(source, 0, 0);
+		model.insert(pie, 0, 0);
+
+		// y1 and y3 are connected, y2 is not
+		GraphNodeEndpoint[] attributes = { temperature, humidity };
+		String[] series = { "y1", "y3" };
+		for (int i = 0; i < series.length; i++) {
+			Average average = new Average();
+			model.insert(average, 0, 0);
+			model.connect("in" + i, source, attributes[i], average, average.getEndpointByLabel("IN"));
+			model.connect("out" + i, average, average.getEndpointByLabel("OUT"), pie, pie.getEndpointByLabel(series[i]));
+		}
+
+		int[] counts = generate(model);
+		assertEquals(1, counts[1]);
+		// both attributes are read by one shared sub-query
+		assertEquals(1, counts[2]);
+		String query = new SparqlGenerator().generateQueriesForNodeEndpoints(model, pie).get(0);
+		assertTrue(query, query.contains("Computes 2 series in 1 sub-query."));
+		assertTrue(query, query.contains("?y1") && query.contains("?y3"));
+		assertFalse(query, query.contains("?y2"));
+	}
+}
@@ -24,8 +24,21 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * @author Nikos Kefalakis (nkef) e-mail: nkef@ait.edu.gr
@@ -103,20 +116,66 @@ public class PropertyManagement {
 	private static final String SCHEMA_EDITOR_TITLE = "ide.core.navigation.sensorSchemaEditor.title";
 	private static final String SCHEMA_EDITOR_URL = "ide.core.navigation.sensorSchemaEditor.url";
 	
-	private Properties props = null;
+	private static final long RELOAD_DELAY = 500;
 
+	/**
+	 * Called after the properties file was changed on disk and reloaded.
+	 */
+	public interface ReloadListener {
+
+		/**
+		 * @param changedKeys
+		 *            the keys that were added, removed or given another value
+		 */
+		void propertiesReloaded(Set<String> changedKeys);
+	}
+
+	// the properties as last loaded, read without locking
+	private static volatile Map<String, String> snapshot = null;
+	private static final Object loadLock = new Object();
+	private static final List<ReloadListener> listeners = new CopyOnWriteArrayList<ReloadListener>();
+	// guarded by loadLock
+	private static WatchService watchService = null;
+
+	/**
+	 * Cheap: every instance reads the same process wide snapshot of the
+	 * properties file, which is loaded once and reloaded when the file
+	 * changes.
+	 */
 	public PropertyManagement() {
-		initializeProperties();
+		props();
+	}
+
+	private static Map<String, String> props() {
+		Map<String, String> props = snapshot;
+		if (props != null)
+			return props;
+		synchronized (loadLock) {
+			if (snapshot == null) {
+				File configFile = getConfigFile();
+				Map<String, String> loaded = load(configFile);
+				snapshot = loaded != null ? loaded : Collections.<String, String> emptyMap();
+				if (configFile.exists())
+					startWatcher(configFile);
+			}
+			return snapshot;
+		}
+	}
+
+	private static File getConfigFile() {
+		String jbosServerConfigDir = System.getProperty("jboss.server.config.dir");
+		return new File(jbosServerConfigDir + File.separator + PROPERTIES_FILE);
 	}
 
 	/**
 	 * Initialize the Properties
+	 * 
+	 * @return an unmodifiable copy of the properties, or null if none could be
+	 *         read
 	 */
-	private void initializeProperties() {
+	private static Map<String, String> load(File openIotConfigFile) {
 
-		String jbosServerConfigDir = System.getProperty("jboss.server.config.dir");
-		String openIotConfigFile = jbosServerConfigDir + File.separator + PROPERTIES_FILE;
-		props = new Properties();
+		Properties props = new Properties();
 
 		logger.debug("jbosServerConfigDir:" + openIotConfigFile);
 
@@ -134,9 +193,11 @@ public class PropertyManagement {
 
 		// trying to find the file in the classpath
 		if (fis == null) {
-			fis = getClass().getClassLoader().getResourceAsStream(PROPERTIES_FILE);
-			if (fis == null)
+			fis = PropertyManagement.class.getClassLoader().getResourceAsStream(PROPERTIES_FILE);
+			if (fis == null) {
 				logger.error("Unable to find file in the classpath: " + PROPERTIES_FILE);
+				return null;
+			}
 		}
 
 		// loading properites from properties file
@@ -145,91 +206,220 @@ public class PropertyManagement {
 		} catch (IOException e) {
 			// TODO Handle exception
 			logger.error("Unable to load properties from file " + openIotConfigFile);
+			return null;
+		} finally {
+			try {
+				fis.close();
+			} catch (IOException e) {
+				// ignored
+			}
+		}
+		Map<String, String> copy = new HashMap<String, String>();
+		for (String key : props.stringPropertyNames())
+			copy.put(key, props.getProperty(key));
+		return Collections.unmodifiableMap(copy);
+	}
+
+	/**
+	 * Reads the properties file again and, if it changed, publishes the new
+	 * snapshot and tells the listeners. If the file can't be read the current
+	 * snapshot is kept.
+	 */
+	public static void reload() {
+		Set<String> changedKeys;
+		synchronized (loadLock) {
+			Map<String, String> loaded = load(getConfigFile());
+			if (loaded == null)
+				return;
+			Map<String, String> previous = snapshot;
+			changedKeys = new HashSet<String>();
+			if (previous != null) {
+				for (Map.Entry<String, String> entry : previous.entrySet()) {
+					if (!entry.getValue().equals(loaded.get(entry.getKey())))
+						changedKeys.add(entry.getKey());
+				}
+			}
+			for (String key : loaded.keySet()) {
+				if (previous == null || !previous.containsKey(key))
+					changedKeys.add(key);
+			}
+			if (changedKeys.isEmpty())
+				return;
+			snapshot = loaded;
+		}
+		logger.info("Reloaded " + PROPERTIES_FILE + ", changed properties: " + changedKeys);
+		changedKeys = Collections.unmodifiableSet(changedKeys);
+		for (ReloadListener listener : listeners) {
+			try {
+				listener.propertiesReloaded(changedKeys);
+			} catch (RuntimeException e) {
+				logger.error("Properties reload listener failed", e);
+			}
 		}
+	}
 
+	public static void addReloadListener(ReloadListener listener) {
+		listeners.add(listener);
+	}
+
+	public static void removeReloadListener(ReloadListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Watches the directory of the properties file and reloads it when it is
+	 * written (after RELOAD_DELAY, so a file being saved is read once it is
+	 * complete).
+	 */
+	private static void startWatcher(final File configFile) {
+		final WatchService watchService;
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+			configFile.getAbsoluteFile().getParentFile().toPath().register(watchService,
+					StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		} catch (Exception e) {
+			logger.warn("Unable to watch " + configFile + " for changes, the properties won't be reloaded", e);
+			return;
+		}
+		PropertyManagement.watchService = watchService;
+		Thread watcher = new Thread("openiot-properties-watcher") {
+			public void run() {
+				while (true) {
+					try {
+						WatchKey key = watchService.take();
+						boolean changed = false;
+						for (WatchEvent<?> event : key.pollEvents()) {
+							Object context = event.context();
+							if (event.kind() == StandardWatchEventKinds.OVERFLOW
+									|| (context instanceof Path && PROPERTIES_FILE.equals(((Path) context).getFileName().toString())))
+								changed = true;
+						}
+						key.reset();
+						if (changed) {
+							Thread.sleep(RELOAD_DELAY);
+							// the events of the writes made meanwhile are for this reload
+							WatchKey pending;
+							while ((pending = watchService.poll()) != null) {
+								pending.pollEvents();
+								pending.reset();
+							}
+							reload();
+						}
+					} catch (InterruptedException e) {
+						return;
+					} catch (ClosedWatchServiceException e) {
+						return;
+					} catch (RuntimeException e) {
+						logger.error("Properties watcher error", e);
+					}
+				}
+			}
+		};
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	/**
+	 * Stops watching the properties file and ends the watcher thread; the
+	 * properties already loaded stay available but are not reloaded any more.
+	 * To be called when the webapp is undeployed, so its class loader is not
+	 * kept alive by the thread.
+	 */
+	public static void stopWatching() {
+		synchronized (loadLock) {
+			if (watchService == null)
+				return;
+			try {
+				watchService.close();
+			} catch (IOException e) {
+				logger.warn("Unable to close the properties watcher", e);
+			}
+			watchService = null;
+		}
 	}
 
 	public String getProperty(String key, String defaultValue) {
-		return props.getProperty(key, defaultValue);
+		String value = props().get(key);
+		return value != null ? value : defaultValue;
 	}
 
 	public String getSchedulerLsmMetaGraph() {
-		return props.getProperty(SCHEDULER_LSM_META_GRAPH);
+		return props().get(SCHEDULER_LSM_META_GRAPH);
 	}
 
 	public String getSchedulerLsmDataGraph() {
-		return props.getProperty(SCHEDULER_LSM_DATA_GRAPH);
+		return props().get(SCHEDULER_LSM_DATA_GRAPH);
 	}
 
 	public String getSchedulerLsmFunctionalGraph() {
-		return props.getProperty(SCHEDULER_LSM_FUNCTIONAL_GRAPH);
+		return props().get(SCHEDULER_LSM_FUNCTIONAL_GRAPH);
 	}
 
 	public String getSchedulerLsmUserName() {
-		return props.getProperty(SCHEDULER_LSM_USER_NAME);
+		return props().get(SCHEDULER_LSM_USER_NAME);
 	}
 
 	public String getSchedulerLsmPassword() {
-		return props.getProperty(SCHEDULER_LSM_PASSWORD);
+		return props().get(SCHEDULER_LSM_PASSWORD);
 	}
 
 	public String getSchedulerLsmSparqlEndPoint() {
-		return props.getProperty(SCHEDULER_LSM_SPARQL_END_POINT);
+		return props().get(SCHEDULER_LSM_SPARQL_END_POINT);
 	}
 
 	public String getSchedulerLsmRemoteServer() {
-		return props.getProperty(SCHEDULER_LSM_REMOTE_SERVER);
+		return props().get(SCHEDULER_LSM_REMOTE_SERVER);
 	}
 
 	public String getSdumLsmFunctionalGraph() {
-		return props.getProperty(SDUM_LSM_FUNCTIONAL_GRAPH);
+		return props().get(SDUM_LSM_FUNCTIONAL_GRAPH);
 	}
 
 	public String getSdumLsmSparqlEndPoint() {
-		return props.getProperty(SDUM_LSM_SPARQL_END_POINT);
+		return props().get(SDUM_LSM_SPARQL_END_POINT);
 	}
 
 	public String getSdumLsmRemoteServer() {
-		return props.getProperty(SDUM_LSM_REMOTE_SERVER);
+		return props().get(SDUM_LSM_REMOTE_SERVER);
 	}
 
 	public String getRequestCommonsSdumHostUrl() {
 		
-		return props.getProperty(REQUEST_COMMONS_SDUM_CORE_HOST_URL);
+		return props().get(REQUEST_COMMONS_SDUM_CORE_HOST_URL);
 
 	}
 
 	public String getRequestCommonsSchedulerHostUrl() {
-		return props.getProperty(REQUEST_COMMONS_SCHEDULER_CORE_HOST_URL);
+		return props().get(REQUEST_COMMONS_SCHEDULER_CORE_HOST_URL);
 	}
 
 	public String getLsmServerConnectionDriver() {
-		return props.getProperty(LSM_CONNECTION_DRIVER);
+		return props().get(LSM_CONNECTION_DRIVER);
 	}
 
 	public String getLsmServerConnectionURL() {
-		return props.getProperty(LSM_CONNECTION_URL);
+		return props().get(LSM_CONNECTION_URL);
 	}
 
 	public String getLsmServerUserName() {
-		return props.getProperty(LSM_CONNECTION_USERNAME);
+		return props().get(LSM_CONNECTION_USERNAME);
 	}
 
 	public String getLsmServerPass() {
-		return props.getProperty(LSM_CONNECTION_PASS);
+		return props().get(LSM_CONNECTION_PASS);
 	}
 
 	public String getSecurityLsmSparqlEndPoint() {
-		return props.getProperty(SECURITY_LSM_SPARQL_END_POINT);
+		return props().get(SECURITY_LSM_SPARQL_END_POINT);
 	}
 
 	public String getSecurityLsmGraphURL() {
-		return props.getProperty(SECURITY_LSM_GRAPH);
+		return props().get(SECURITY_LSM_GRAPH);
 	}
 
 	public int getLsmMinConnection() {
 		try {
-			return Integer.parseInt(props.getProperty(LSM_MIN_CONNECTION));
+			return Integer.parseInt(props().get(LSM_MIN_CONNECTION));
 		} catch (Exception e) {
 			logger.error("Invalid input value", e);
 		}
@@ -238,7 +428,7 @@ public class PropertyManagement {
 
 	public int getLsmMaxConnection() {
 		try {
-			return Integer.parseInt(props.getProperty(LSM_MAX_CONNECTION));
+			return Integer.parseInt(props().get(LSM_MAX_CONNECTION));
 		} catch (Exception e) {
 			logger.error("Invalid input value", e);
 		}
@@ -247,7 +437,7 @@ public class PropertyManagement {
 
 	public int getLsmRetryAttempts() {
 		try {
-			return Integer.parseInt(props.getProperty(LSM_RETRY_ATTEMPTS));
+			return Integer.parseInt(props().get(LSM_RETRY_ATTEMPTS));
 		} catch (Exception e) {
 			logger.error("Invalid input value", e);
 		}
@@ -257,47 +447,48 @@ public class PropertyManagement {
 	public HashMap<String, String> getIdeNavigationSettings() {
 		HashMap<String, String> navigationMap = new HashMap<String, String>();
 
-		for (String key : props.stringPropertyNames()) {
-			if (key.startsWith(IDE_CORE_NAVIGATION_PREFIX)) {
-				navigationMap.put(key, props.getProperty(key));
+		for (Map.Entry<String, String> entry : props().entrySet()) {
+			if (entry.getKey().startsWith(IDE_CORE_NAVIGATION_PREFIX)) {
+				navigationMap.put(entry.getKey(), entry.getValue());
 			}
 		}
 		return navigationMap;
 	}
 
 	public String getLSMLocalMetaGraph() {
-		return props.getProperty(LSM_LOCAL_METAGRAPH);
+		return props().get(LSM_LOCAL_METAGRAPH);
 	}
 
 	public String getLSMLocalDataGraph() {
-		return props.getProperty(LSM_LOCAL_DATAGRAPH);
+		return props().get(LSM_LOCAL_DATAGRAPH);
 	}
 
 	public String getLSMClientConnectionServerHost() {
-		return props.getProperty(LSM_CLIENT_CONNECTION_SERVER_HOST);
+		return props().get(LSM_CLIENT_CONNECTION_SERVER_HOST);
 	}
 
 	public String getOpeniotOntologyNamespace() {
-		return props.getProperty(OPENIOT_ONTOLOGY_NAMESPACE);
+		return props().get(OPENIOT_ONTOLOGY_NAMESPACE);
 	}
 
 	public String getOpeniotResourceNamespace() {
-		return props.getProperty(OPENIOT_RESOURCE_NAMESPACE);
+		return props().get(OPENIOT_RESOURCE_NAMESPACE);
 	}
 
 	public String getCASLogoutURL() {
-		String serverName = props.getProperty("server.name");
-		String serverPrefix = props.getProperty("server.prefix");
+		Map<String, String> props = props();
+		String serverName = props.get("server.name");
+		String serverPrefix = props.get("server.prefix");
 		String appName = serverPrefix.substring(serverPrefix.lastIndexOf("/") + 1);
 		return serverName + "/" + appName + "/logout";
 	}
 
 	public String getSchemaEditorTitle() {
-		return props.getProperty(SCHEMA_EDITOR_TITLE);
+		return props().get(SCHEMA_EDITOR_TITLE);
 	}
 
 	public String getSchemaEditorUrl() {
-		return props.getProperty(SCHEMA_EDITOR_URL);
+		return props().get(SCHEMA_EDITOR_URL);
 	}
 
 }